@@ -43,6 +43,8 @@ import zipkin.Endpoint;
 import zipkin2.Span;
 import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.JsonCodec;
+import zipkin2.internal.V2SpanReader;
 
 /**
  * This compares the speed of the bundled java codec with the approach used in the scala
@@ -171,6 +173,12 @@ public class CodecBenchmarks {
     return SpanBytesDecoder.JSON_V2.decodeList(tenSpan2sJson);
   }
 
+  /** Baseline for {@link #readTenClientSpans_json_zipkin2}, which used to read with Gson */
+  @Benchmark
+  public List<Span> readTenClientSpans_json_zipkin2_gson() {
+    return JsonCodec.readList(new V2SpanReader(), tenSpan2sJson);
+  }
+
   @Benchmark
   public byte[] writeClientSpan_json_zipkin2() {
     return SpanBytesEncoder.JSON_V2.encode(zipkin2);
@@ -191,6 +199,29 @@ public class CodecBenchmarks {
     return SpanBytesEncoder.JSON_V1.encodeList(tenSpan2s);
   }
 
+  static final byte[] zipkin2Proto3 = SpanBytesEncoder.PROTO3.encode(zipkin2);
+  static final byte[] tenSpan2sProto3 = SpanBytesEncoder.PROTO3.encodeList(tenSpan2s);
+
+  @Benchmark
+  public Span readClientSpan_proto3_zipkin2() {
+    return SpanBytesDecoder.PROTO3.decodeOne(zipkin2Proto3);
+  }
+
+  @Benchmark
+  public List<Span> readTenClientSpans_proto3_zipkin2() {
+    return SpanBytesDecoder.PROTO3.decodeList(tenSpan2sProto3);
+  }
+
+  @Benchmark
+  public byte[] writeClientSpan_proto3_zipkin2() {
+    return SpanBytesEncoder.PROTO3.encode(zipkin2);
+  }
+
+  @Benchmark
+  public byte[] writeTenClientSpans_proto3_zipkin2() {
+    return SpanBytesEncoder.PROTO3.encodeList(tenSpan2s);
+  }
+
   static final byte[] rpcSpanJson = read("/span-rpc.json");
   static final zipkin.Span rpcSpan = Codec.JSON.readSpan(rpcSpanJson);
   static final byte[] rpcSpanThrift = Codec.THRIFT.writeSpan(rpcSpan);
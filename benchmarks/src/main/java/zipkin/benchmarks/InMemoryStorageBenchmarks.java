@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin.internal.Util;
+import zipkin2.DependencyLink;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.QueryRequest;
+
+/**
+ * Measures ingestion into the in-memory store while queries run against it, as when the UI is used
+ * against a busy collector.
+ *
+ * <p>The store starts full, so each accept also evicts the oldest trace. Compare the accept score
+ * of the "acceptOnly" group to the groups that also query. Eviction cost shouldn't grow with the
+ * count of services, so "acceptOnly" should score about the same for each {@link #serviceCount}.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Group)
+public class InMemoryStorageBenchmarks {
+  static final int MAX_SPAN_COUNT = 100000;
+  static final long TIMESTAMP = 1472470996199000L;
+
+  @Param({"100", "5000"})
+  int serviceCount;
+
+  final AtomicInteger nextTrace = new AtomicInteger();
+  List<Endpoint> services;
+  InMemoryStorage storage;
+
+  @Setup public void fill() throws IOException {
+    services = new ArrayList<>(serviceCount);
+    for (int i = 0; i < serviceCount; i++) {
+      services.add(Endpoint.newBuilder().serviceName("service" + i).build());
+    }
+    storage = InMemoryStorage.newBuilder().maxSpanCount(MAX_SPAN_COUNT).build();
+    for (int i = 0; i < MAX_SPAN_COUNT / 2; i++) accept();
+  }
+
+  @Benchmark @Group("acceptOnly") @GroupThreads(4)
+  public void acceptOnly_accept() throws IOException {
+    accept();
+  }
+
+  @Benchmark @Group("acceptAndGetTraces") @GroupThreads(3)
+  public void acceptAndGetTraces_accept() throws IOException {
+    accept();
+  }
+
+  @Benchmark @Group("acceptAndGetTraces") @GroupThreads(1)
+  public List<List<Span>> acceptAndGetTraces_getTraces() throws IOException {
+    return storage.getTraces(QueryRequest.newBuilder()
+      .serviceName("service" + (nextTrace.get() % serviceCount))
+      .endTs(TIMESTAMP / 1000 + nextTrace.get())
+      .lookback(86400000L)
+      .limit(10).build()).execute();
+  }
+
+  @Benchmark @Group("acceptAndGetDependencies") @GroupThreads(3)
+  public void acceptAndGetDependencies_accept() throws IOException {
+    accept();
+  }
+
+  @Benchmark @Group("acceptAndGetDependencies") @GroupThreads(1)
+  public List<DependencyLink> acceptAndGetDependencies_getDependencies() throws IOException {
+    return storage.getDependencies(TIMESTAMP / 1000 + nextTrace.get(), 86400000L).execute();
+  }
+
+  /** Accepts a new trace of two spans: a client and the server it called */
+  void accept() throws IOException {
+    int i = nextTrace.incrementAndGet();
+    String traceId = Util.toLowerHex(i);
+    Endpoint client = services.get(i % serviceCount);
+    Endpoint server = services.get((i + 1) % serviceCount);
+    long timestamp = TIMESTAMP + i * 1000L;
+    List<Span> trace = new ArrayList<>(2);
+    trace.add(Span.newBuilder().traceId(traceId).id("1").name("get").kind(Span.Kind.CLIENT)
+      .localEndpoint(client).remoteEndpoint(server).timestamp(timestamp).duration(200L).build());
+    trace.add(Span.newBuilder().traceId(traceId).parentId("1").id("2").name("get")
+      .kind(Span.Kind.SERVER).localEndpoint(server).timestamp(timestamp + 50L).duration(100L)
+      .build());
+    storage.accept(trace).execute();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + InMemoryStorageBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
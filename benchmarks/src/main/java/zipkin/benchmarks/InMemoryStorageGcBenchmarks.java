@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin.internal.Util;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.InMemoryStorage;
+
+/**
+ * Measures the pause of a full collection while the in-memory store retains a million spans. This
+ * is the old generation work that a collector pays for, regardless of its ingest rate.
+ *
+ * <p>"objects" keeps span objects, "encoded" keeps proto3 bytes on the heap and "offHeap" keeps
+ * them in direct buffers, leaving only indexes on the heap.
+ */
+@Measurement(iterations = 5)
+@Warmup(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-XX:MaxDirectMemorySize=2g"})
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class InMemoryStorageGcBenchmarks {
+  static final int SPAN_COUNT = 1000000;
+  static final long MAX_BYTES = 1024L * 1024 * 1024;
+  static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+  static final Endpoint BACKEND = Endpoint.newBuilder().serviceName("backend").build();
+
+  @Param({"objects", "encoded", "offHeap"})
+  String mode;
+
+  InMemoryStorage storage;
+
+  @Setup public void fill() throws Exception {
+    InMemoryStorage.Builder builder = InMemoryStorage.newBuilder().maxSpanCount(SPAN_COUNT);
+    if (!mode.equals("objects")) builder.maxBytes(MAX_BYTES);
+    if (mode.equals("offHeap")) builder.offHeap(true);
+    storage = builder.build();
+
+    for (int i = 0; i < SPAN_COUNT / 2; i++) {
+      storage.accept(trace(i)).execute();
+    }
+  }
+
+  @Benchmark public void fullGc() {
+    System.gc();
+  }
+
+  /** A client and server span with tags typical of http instrumentation */
+  static List<Span> trace(int i) {
+    String traceId = Util.toLowerHex(i + 1);
+    long timestamp = 1472470996199000L + i * 1000L;
+    List<Span> result = new ArrayList<>(2);
+    result.add(Span.newBuilder().traceId(traceId).id("1").name("get /api").kind(Span.Kind.CLIENT)
+      .localEndpoint(FRONTEND).remoteEndpoint(BACKEND).timestamp(timestamp).duration(200L)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/api/" + i)
+      .putTag("http.status_code", "200").build());
+    result.add(Span.newBuilder().traceId(traceId).parentId("1").id("2").name("get /api")
+      .kind(Span.Kind.SERVER).localEndpoint(BACKEND).timestamp(timestamp + 50L).duration(100L)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/api/" + i)
+      .putTag("http.url", "http://backend/api/" + i).build());
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + InMemoryStorageGcBenchmarks.class.getSimpleName() + ".*")
+      .addProfiler("gc")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -13,6 +13,7 @@
  */
 package zipkin.benchmarks;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -31,13 +32,17 @@ import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 import zipkin.Annotation;
 import zipkin.BinaryAnnotation;
+import zipkin.Codec;
 import zipkin.Constants;
 import zipkin.Endpoint;
 import zipkin.TraceKeys;
 import zipkin2.Span;
+import zipkin.internal.V1SpanBytesDecoder;
 import zipkin.internal.V2SpanConverter;
 import zipkin.internal.Util;
 
+import static java.util.Arrays.asList;
+
 @Measurement(iterations = 5, time = 1)
 @Warmup(iterations = 10, time = 1)
 @Fork(3)
@@ -103,6 +108,9 @@ public class Span2ConverterBenchmarks {
     .putTag("srv/finagle.version", "6.44.0")
     .build();
 
+  byte[] sharedAndServerThrift = Codec.THRIFT.writeSpans(asList(shared, server));
+  byte[] sharedAndServerJson = Codec.JSON.writeSpans(asList(shared, server));
+
   @Benchmark public List<Span> fromSpan_splitShared() {
     return V2SpanConverter.fromSpan(shared);
   }
@@ -115,6 +123,31 @@ public class Span2ConverterBenchmarks {
     return V2SpanConverter.toSpan(server2);
   }
 
+  /** The path taken before v1 encoded spans could be decoded directly into v2 spans */
+  @Benchmark public List<Span> decodeThenConvert_thrift() {
+    return convert(Codec.THRIFT.readSpans(sharedAndServerThrift));
+  }
+
+  @Benchmark public List<Span> decodeDirect_thrift() {
+    return V1SpanBytesDecoder.THRIFT.decodeList(sharedAndServerThrift);
+  }
+
+  @Benchmark public List<Span> decodeThenConvert_json() {
+    return convert(Codec.JSON.readSpans(sharedAndServerJson));
+  }
+
+  @Benchmark public List<Span> decodeDirect_json() {
+    return V1SpanBytesDecoder.JSON_V1.decodeList(sharedAndServerJson);
+  }
+
+  static List<Span> convert(List<zipkin.Span> spans) {
+    List<Span> result = new ArrayList<>();
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      result.addAll(V2SpanConverter.fromSpan(spans.get(i)));
+    }
+    return result;
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
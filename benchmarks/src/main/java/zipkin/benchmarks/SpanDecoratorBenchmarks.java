@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin.collector.SpanDecorator;
+import zipkin.collector.TagSpanDecorator;
+import zipkin.internal.SpanDecorators;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * Compares decorators that each return a rebuilt list of spans with tag decorators, which are
+ * fused into one pass that rebuilds each span once.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanDecoratorBenchmarks {
+  static final Endpoint FRONTEND =
+    Endpoint.newBuilder().serviceName("frontend").ip("127.0.0.1").build();
+  static final Endpoint BACKEND =
+    Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build();
+  static final List<Span> SPANS = new ArrayList<>();
+
+  static {
+    for (int i = 1; i <= 10; i++) {
+      SPANS.add(Span.newBuilder().traceId("86154a4ba6e91385").parentId("86154a4ba6e91385")
+        .id(Long.toHexString(i)).name("get").kind(Span.Kind.CLIENT)
+        .localEndpoint(FRONTEND).remoteEndpoint(BACKEND)
+        .timestamp(1472470996199000L + i).duration(207000L)
+        .putTag("http.path", "/api").putTag("clnt/finagle.version", "6.45.0")
+        .build());
+    }
+  }
+
+  static final Map<String, String> HEADERS =
+    Collections.singletonMap("x-odx-podkey", "pod-1234");
+
+  static final SpanDecorators<Span> CHAINED = SpanDecorators.create(Arrays.asList(
+    chained("ODX-Pod-Key"), chained("region"), chained("cluster")
+  ));
+
+  static final SpanDecorators<Span> FUSED = SpanDecorators.create(Arrays.asList(
+    tag("ODX-Pod-Key"), tag("region"), tag("cluster")
+  ));
+
+  static final SpanDecorators<Span> FUSED_NO_MATCH = SpanDecorators.create(Arrays.asList(
+    tag(null), tag(null), tag(null)
+  ));
+
+  @Benchmark public List<Span> chained_threeDecorators() {
+    return CHAINED.decorate(HEADERS, SPANS);
+  }
+
+  @Benchmark public List<Span> fused_threeDecorators() {
+    return FUSED.decorate(HEADERS, SPANS);
+  }
+
+  /** When decorators add nothing, fused decoration doesn't allocate a new list or spans. */
+  @Benchmark public List<Span> fused_threeDecorators_noTags() {
+    return FUSED_NO_MATCH.decorate(HEADERS, SPANS);
+  }
+
+  /** Like the prior Jafar decorator: a new list, and each span rebuilt to add one tag. */
+  static SpanDecorator<Span> chained(final String key) {
+    return new SpanDecorator<Span>() {
+      @Override public List<Span> decorate(Map<String, String> requestInfo, List<Span> spans) {
+        String value = requestInfo.get("x-odx-podkey");
+        List<Span> result = new ArrayList<>(spans.size());
+        for (Span span : spans) result.add(span.toBuilder().putTag(key, value).build());
+        return result;
+      }
+
+      @Override public boolean isV1SpanSupported() {
+        return false;
+      }
+
+      @Override public boolean isV2SpanSupported() {
+        return true;
+      }
+    };
+  }
+
+  /** Adds a tag from the request headers, or nothing if the key is null. */
+  static TagSpanDecorator<Span> tag(final String key) {
+    return new TagSpanDecorator<Span>() {
+      @Override public void addTags(Map<String, String> requestInfo, Span span,
+        Map<String, String> overlay) {
+        if (key != null) overlay.put(key, requestInfo.get("x-odx-podkey"));
+      }
+
+      @Override public boolean isV1SpanSupported() {
+        return false;
+      }
+
+      @Override public boolean isV2SpanSupported() {
+        return true;
+      }
+    };
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + SpanDecoratorBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
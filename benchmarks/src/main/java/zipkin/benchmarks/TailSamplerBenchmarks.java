@@ -0,0 +1,143 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.collector.SpanDecorator;
+import zipkin.internal.Util;
+import zipkin.internal.V2Collector;
+import zipkin.storage.Callback;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Measures the cost of holding spans for tail sampling, compared to sampling by trace ID.
+ *
+ * <p>Each message is a new trace, and the decision wait is longer than the benchmark, so the buffer
+ * is always full: every message is held, and evicts the trace that was quiet the longest. There
+ * are more traces than recent decisions are kept for, so spans never skip the buffer.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class TailSamplerBenchmarks {
+  static final int TRACE_COUNT = 1 << 15; // more than TraceBuffer.DECISION_CACHE_SIZE
+  static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+  static final Endpoint BACKEND = Endpoint.newBuilder().serviceName("backend").build();
+  static final List<List<Span>> TRACES = new ArrayList<>(TRACE_COUNT);
+
+  static {
+    for (int i = 0; i < TRACE_COUNT; i++) {
+      String traceId = Util.toLowerHex(i + 1);
+      List<Span> trace = new ArrayList<>(4);
+      for (int j = 1; j <= 4; j++) {
+        Span.Builder span = Span.newBuilder().traceId(traceId).id(Util.toLowerHex(j)).name("get")
+          .kind(Span.Kind.CLIENT).localEndpoint(FRONTEND).remoteEndpoint(BACKEND)
+          .timestamp(1472470996199000L + j * 1000).duration(207000L - j * 1000);
+        if (j > 1) span.parentId(Util.toLowerHex(j - 1));
+        if (i % 100 == 0 && j == 4) span.putTag("error", "500"); // 1% of traces have errors
+        trace.add(span.build());
+      }
+      TRACES.add(Collections.unmodifiableList(trace));
+    }
+  }
+
+  static final CollectorTailSampler TAIL_SAMPLER = CollectorTailSampler.newBuilder()
+    .decisionWaitMillis(TimeUnit.HOURS.toMillis(1))
+    .maxWaitMillis(TimeUnit.HOURS.toMillis(1))
+    .maxSpans(10000)
+    .latencyThresholdMillis(500)
+    .addService("payments")
+    .sampleRate(0.1f).build();
+
+  final AtomicInteger nextTrace = new AtomicInteger();
+  final V2Collector tailSampled = collector(null, TAIL_SAMPLER);
+  final V2Collector headSampled = collector(CollectorSampler.create(0.1f), null);
+
+  /** Baseline: sampling each message by trace ID, as without a tail sampler. */
+  @Benchmark public void accept_headSampled() {
+    headSampled.accept(null, nextTrace(), Callback.NOOP);
+  }
+
+  @Benchmark public void accept_tailSampled() {
+    tailSampled.accept(null, nextTrace(), Callback.NOOP);
+  }
+
+  @Benchmark @Threads(4) public void accept_tailSampled_4Threads() {
+    tailSampled.accept(null, nextTrace(), Callback.NOOP);
+  }
+
+  List<Span> nextTrace() {
+    return TRACES.get(nextTrace.getAndIncrement() & (TRACE_COUNT - 1));
+  }
+
+  static V2Collector collector(CollectorSampler sampler, CollectorTailSampler tailSampler) {
+    return new V2Collector(Logger.getAnonymousLogger(), new InMemoryCollectorMetrics(), sampler,
+      NOOP_STORAGE, Collections.<SpanDecorator<Span>>emptyList(), null, null, tailSampler, null);
+  }
+
+  /** Isolates collector overhead from storage. */
+  static final StorageComponent NOOP_STORAGE = new StorageComponent() {
+    @Override public SpanStore spanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return new SpanConsumer() {
+        @Override public Call<Void> accept(List<Span> spans) {
+          return Call.create(null);
+        }
+      };
+    }
+  };
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + TailSamplerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.scribe;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin.Codec;
+import zipkin.Span;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.storage.AsyncSpanConsumer;
+import zipkin.storage.AsyncSpanStore;
+import zipkin.storage.SpanStore;
+import zipkin.storage.StorageComponent;
+
+/**
+ * Measures decoding a batch of 1000 log entries, as finagle sends when its queue backs up.
+ *
+ * <p>The baseline is the stream pipeline previously used, which allocates a byte array per entry
+ * for the ascii message and again for its decoded form.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class ScribeSpanConsumerBenchmarks {
+  static final List<Scribe.LogEntry> ENTRIES = new ArrayList<>(1000);
+
+  static {
+    Span span;
+    try {
+      span = Codec.JSON.readSpan(ByteStreams.toByteArray(
+        ScribeSpanConsumerBenchmarks.class.getResourceAsStream("/span-client.json")));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    for (int i = 0; i < 1000; i++) {
+      Scribe.LogEntry entry = new Scribe.LogEntry();
+      entry.category = "zipkin";
+      entry.message = Base64.getMimeEncoder()
+        .encodeToString(Codec.THRIFT.writeSpan(span.toBuilder().id(i + 1).build()));
+      ENTRIES.add(entry);
+    }
+  }
+
+  final InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  final ScribeSpanConsumer scribe = new ScribeSpanConsumer(ScribeCollector.builder()
+    .metrics(metrics)
+    .storage(NOOP_STORAGE));
+
+  /** Baseline: what {@link ScribeSpanConsumer#decode} replaced. */
+  @Benchmark public List<Span> decode_streamPipeline() {
+    return ENTRIES.stream()
+      .filter(m -> m.category.equals("zipkin"))
+      .map(m -> m.message.getBytes(StandardCharsets.ISO_8859_1))
+      .map(b -> Base64.getMimeDecoder().decode(b))
+      .peek(b -> metrics.incrementBytes(b.length))
+      .map(Codec.THRIFT::readSpan)
+      .collect(Collectors.toList());
+  }
+
+  /** Decodes all entries on the calling thread. */
+  @Benchmark public List<Span> decode() {
+    return scribe.decode(ENTRIES);
+  }
+
+  /** Includes splitting the batch across the decode pool. */
+  @Benchmark public Scribe.ResultCode log() throws Exception {
+    return scribe.log(ENTRIES).get();
+  }
+
+  @Benchmark @Threads(4) public Scribe.ResultCode log_4Threads() throws Exception {
+    return scribe.log(ENTRIES).get();
+  }
+
+  @TearDown public void close() throws IOException {
+    scribe.close();
+  }
+
+  /** Isolates decoding overhead from storage. */
+  static final StorageComponent NOOP_STORAGE = new StorageComponent() {
+    @Override public SpanStore spanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public AsyncSpanStore asyncSpanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public AsyncSpanConsumer asyncSpanConsumer() {
+      return (spans, callback) -> callback.onSuccess(null);
+    }
+
+    @Override public CheckResult check() {
+      return CheckResult.OK;
+    }
+
+    @Override public void close() {
+    }
+  };
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + ScribeSpanConsumerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
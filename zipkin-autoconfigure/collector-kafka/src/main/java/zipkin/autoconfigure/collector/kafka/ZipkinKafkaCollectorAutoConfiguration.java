@@ -13,12 +13,18 @@
  */
 package zipkin.autoconfigure.collector.kafka;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.collector.kafka.KafkaCollector;
 import zipkin.storage.StorageComponent;
 
@@ -30,6 +36,17 @@ import zipkin.storage.StorageComponent;
 @EnableConfigurationProperties(ZipkinKafkaCollectorProperties.class)
 @Conditional(KafkaZooKeeperSetCondition.class)
 public class ZipkinKafkaCollectorAutoConfiguration {
+  /** Present when {@code zipkin.collector.queue.enabled=true} */
+  @Autowired(required = false) CollectorQueue queue;
+  /** Present when {@code zipkin.collector.rate-limit.enabled=true} */
+  @Autowired(required = false) CollectorRateLimiter rateLimiter;
+  /** Present when {@code zipkin.collector.tail-sampler.enabled=true} */
+  @Autowired(required = false) CollectorTailSampler tailSampler;
+  /** Present when {@code zipkin.collector.dedupe.enabled=true} */
+  @Autowired(required = false) CollectorDeduplicator deduplicator;
+  /** Present when {@code zipkin.collector.spool.enabled=true} */
+  @Autowired(required = false) CollectorSpool spool;
+
 
   /**
    * This launches a thread to run start. This prevents a several second hang, or worse crash if
@@ -37,8 +54,14 @@ public class ZipkinKafkaCollectorAutoConfiguration {
    */
   @Bean KafkaCollector kafka(ZipkinKafkaCollectorProperties kafka, CollectorSampler sampler,
       CollectorMetrics metrics, StorageComponent storage) {
-    final KafkaCollector result =
-        kafka.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    KafkaCollector.Builder builder =
+        kafka.toBuilder().sampler(sampler).metrics(metrics).storage(storage);
+    if (queue != null) builder.queue(queue);
+    if (rateLimiter != null) builder.rateLimiter(rateLimiter);
+    if (tailSampler != null) builder.tailSampler(tailSampler);
+    if (deduplicator != null) builder.deduplicator(deduplicator);
+    if (spool != null) builder.spool(spool);
+    final KafkaCollector result = builder.build();
 
     // don't use @Bean(initMethod = "start") as it can crash the process if zookeeper is down
     Thread start = new Thread("start " + result.getClass().getSimpleName()) {
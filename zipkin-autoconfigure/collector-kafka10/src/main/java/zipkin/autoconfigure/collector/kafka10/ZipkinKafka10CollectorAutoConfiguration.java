@@ -13,6 +13,7 @@
  */
 package zipkin.autoconfigure.collector.kafka10;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Condition;
@@ -20,8 +21,13 @@ import org.springframework.context.annotation.ConditionContext;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.type.AnnotatedTypeMetadata;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.collector.kafka10.KafkaCollector;
 import zipkin.storage.StorageComponent;
 
@@ -33,10 +39,28 @@ import zipkin.storage.StorageComponent;
 @EnableConfigurationProperties(ZipkinKafkaCollectorProperties.class)
 @Conditional(ZipkinKafka10CollectorAutoConfiguration.KafkaBootstrapServersSet.class)
 public class ZipkinKafka10CollectorAutoConfiguration { // makes simple type name unique for /autoconfig
+  /** Present when {@code zipkin.collector.queue.enabled=true} */
+  @Autowired(required = false) CollectorQueue queue;
+  /** Present when {@code zipkin.collector.rate-limit.enabled=true} */
+  @Autowired(required = false) CollectorRateLimiter rateLimiter;
+  /** Present when {@code zipkin.collector.tail-sampler.enabled=true} */
+  @Autowired(required = false) CollectorTailSampler tailSampler;
+  /** Present when {@code zipkin.collector.dedupe.enabled=true} */
+  @Autowired(required = false) CollectorDeduplicator deduplicator;
+  /** Present when {@code zipkin.collector.spool.enabled=true} */
+  @Autowired(required = false) CollectorSpool spool;
+
 
   @Bean(initMethod = "start") KafkaCollector kafka(ZipkinKafkaCollectorProperties properties,
       CollectorSampler sampler, CollectorMetrics metrics, StorageComponent storage) {
-    return  properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    KafkaCollector.Builder builder =
+        properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage);
+    if (queue != null) builder.queue(queue);
+    if (rateLimiter != null) builder.rateLimiter(rateLimiter);
+    if (tailSampler != null) builder.tailSampler(tailSampler);
+    if (deduplicator != null) builder.deduplicator(deduplicator);
+    if (spool != null) builder.spool(spool);
+    return builder.build();
   }
 
   /**
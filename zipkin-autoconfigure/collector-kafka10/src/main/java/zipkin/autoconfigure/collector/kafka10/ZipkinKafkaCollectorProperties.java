@@ -28,6 +28,10 @@ public class ZipkinKafkaCollectorProperties {
   private String topic;
   /** Number of Kafka consumer threads to run. */
   private Integer streams;
+  /** Number of threads decoding messages, shared by all streams. */
+  private Integer decodeThreads;
+  /** Messages polled, but not yet stored, above which a stream pauses its partitions. */
+  private Integer maxInFlightMessages;
   /** Additional Kafka consumer configuration. */
   private Map<String, String> overrides = new LinkedHashMap<>();
 
@@ -63,6 +67,22 @@ public class ZipkinKafkaCollectorProperties {
     this.streams = streams;
   }
 
+  public Integer getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  public void setDecodeThreads(Integer decodeThreads) {
+    this.decodeThreads = decodeThreads;
+  }
+
+  public Integer getMaxInFlightMessages() {
+    return maxInFlightMessages;
+  }
+
+  public void setMaxInFlightMessages(Integer maxInFlightMessages) {
+    this.maxInFlightMessages = maxInFlightMessages;
+  }
+
   public Map<String, String> getOverrides() {
     return overrides;
   }
@@ -77,6 +97,8 @@ public class ZipkinKafkaCollectorProperties {
     if (groupId != null) result.groupId(groupId);
     if (topic != null) result.topic(topic);
     if (streams != null) result.streams(streams);
+    if (decodeThreads != null) result.decodeThreads(decodeThreads);
+    if (maxInFlightMessages != null) result.maxInFlightMessages(maxInFlightMessages);
     if (overrides != null) result.overrides(overrides);
     return result;
   }
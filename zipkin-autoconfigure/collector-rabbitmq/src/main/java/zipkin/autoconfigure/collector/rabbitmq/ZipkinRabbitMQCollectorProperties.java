@@ -38,6 +38,10 @@ public class ZipkinRabbitMQCollectorProperties {
   private String username;
   /** RabbitMQ virtual host */
   private String virtualHost;
+  /** Messages a consumer may receive before acknowledging them. Zero acknowledges on delivery */
+  private Integer prefetch;
+  /** Messages a consumer stores together when prefetch is positive */
+  private Integer batchSize;
 
   public List<String> getAddresses() {
     return addresses;
@@ -95,6 +99,22 @@ public class ZipkinRabbitMQCollectorProperties {
     this.virtualHost = virtualHost;
   }
 
+  public Integer getPrefetch() {
+    return prefetch;
+  }
+
+  public void setPrefetch(Integer prefetch) {
+    this.prefetch = prefetch;
+  }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
   public RabbitMQCollector.Builder toBuilder() {
     final RabbitMQCollector.Builder result = RabbitMQCollector.builder();
     ConnectionFactory connectionFactory = new ConnectionFactory();
@@ -105,6 +125,8 @@ public class ZipkinRabbitMQCollectorProperties {
     if (queue != null) result.queue(queue);
     if (username != null) connectionFactory.setUsername(username);
     if (virtualHost != null) connectionFactory.setVirtualHost(virtualHost);
+    if (prefetch != null) result.prefetch(prefetch);
+    if (batchSize != null) result.batchSize(batchSize);
     result.connectionFactory(connectionFactory);
     return result;
   }
@@ -13,12 +13,18 @@
  */
 package zipkin.autoconfigure.collector.scribe;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.collector.scribe.ScribeCollector;
 import zipkin.storage.StorageComponent;
 
@@ -31,9 +37,27 @@ import zipkin.storage.StorageComponent;
 @EnableConfigurationProperties(ZipkinScribeCollectorProperties.class)
 @ConditionalOnProperty(value = "zipkin.collector.scribe.enabled", havingValue = "true")
 public class ZipkinScribeCollectorAutoConfiguration {
+  /** Present when {@code zipkin.collector.queue.enabled=true} */
+  @Autowired(required = false) CollectorQueue queue;
+  /** Present when {@code zipkin.collector.rate-limit.enabled=true} */
+  @Autowired(required = false) CollectorRateLimiter rateLimiter;
+  /** Present when {@code zipkin.collector.tail-sampler.enabled=true} */
+  @Autowired(required = false) CollectorTailSampler tailSampler;
+  /** Present when {@code zipkin.collector.dedupe.enabled=true} */
+  @Autowired(required = false) CollectorDeduplicator deduplicator;
+  /** Present when {@code zipkin.collector.spool.enabled=true} */
+  @Autowired(required = false) CollectorSpool spool;
+
   /** The init method will block until the scribe port is listening, or crash on port conflict */
   @Bean(initMethod = "start") ScribeCollector scribe(ZipkinScribeCollectorProperties scribe,
       CollectorSampler sampler, CollectorMetrics metrics, StorageComponent storage) {
-    return scribe.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    ScribeCollector.Builder builder =
+        scribe.toBuilder().sampler(sampler).metrics(metrics).storage(storage);
+    if (queue != null) builder.queue(queue);
+    if (rateLimiter != null) builder.rateLimiter(rateLimiter);
+    if (tailSampler != null) builder.tailSampler(tailSampler);
+    if (deduplicator != null) builder.deduplicator(deduplicator);
+    if (spool != null) builder.spool(spool);
+    return builder.build();
   }
 }
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.autoconfigure.collector.udp;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import zipkin.collector.CollectorDeduplicator;
+import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
+import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.collector.udp.UdpCollector;
+import zipkin.storage.StorageComponent;
+
+/**
+ * This collector receives a list of spans per UDP datagram, in json or TBinaryProtocol big-endian
+ * encoding. Decoded spans are stored asynchronously.
+ */
+@Configuration
+@EnableConfigurationProperties(ZipkinUdpCollectorProperties.class)
+@ConditionalOnProperty(value = "zipkin.collector.udp.enabled", havingValue = "true")
+public class ZipkinUdpCollectorAutoConfiguration {
+  /** Present when {@code zipkin.collector.queue.enabled=true} */
+  @Autowired(required = false) CollectorQueue queue;
+  /** Present when {@code zipkin.collector.rate-limit.enabled=true} */
+  @Autowired(required = false) CollectorRateLimiter rateLimiter;
+  /** Present when {@code zipkin.collector.tail-sampler.enabled=true} */
+  @Autowired(required = false) CollectorTailSampler tailSampler;
+  /** Present when {@code zipkin.collector.dedupe.enabled=true} */
+  @Autowired(required = false) CollectorDeduplicator deduplicator;
+  /** Present when {@code zipkin.collector.spool.enabled=true} */
+  @Autowired(required = false) CollectorSpool spool;
+
+  /** The init method will block until the udp port is bound, or crash on port conflict */
+  @Bean(initMethod = "start") UdpCollector udp(ZipkinUdpCollectorProperties udp,
+      CollectorSampler sampler, CollectorMetrics metrics, StorageComponent storage) {
+    UdpCollector.Builder builder =
+        udp.toBuilder().sampler(sampler).metrics(metrics).storage(storage);
+    if (queue != null) builder.queue(queue);
+    if (rateLimiter != null) builder.rateLimiter(rateLimiter);
+    if (tailSampler != null) builder.tailSampler(tailSampler);
+    if (deduplicator != null) builder.deduplicator(deduplicator);
+    if (spool != null) builder.spool(spool);
+    return builder.build();
+  }
+}
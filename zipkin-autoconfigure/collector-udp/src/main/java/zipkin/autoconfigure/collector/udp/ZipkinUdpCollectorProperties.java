@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.autoconfigure.collector.udp;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import zipkin.collector.udp.UdpCollector;
+
+@ConfigurationProperties("zipkin.collector.udp")
+public class ZipkinUdpCollectorProperties {
+  private int port = 9412;
+  private int receiveBufferSize = 0;
+  private int workers = 2;
+  private int ringBufferSize = 1024;
+
+  public int getPort() {
+    return port;
+  }
+
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  public int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  public void setReceiveBufferSize(int receiveBufferSize) {
+    this.receiveBufferSize = receiveBufferSize;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public void setWorkers(int workers) {
+    this.workers = workers;
+  }
+
+  public int getRingBufferSize() {
+    return ringBufferSize;
+  }
+
+  public void setRingBufferSize(int ringBufferSize) {
+    this.ringBufferSize = ringBufferSize;
+  }
+
+  public UdpCollector.Builder toBuilder() {
+    return UdpCollector.builder()
+        .port(port)
+        .receiveBufferSize(receiveBufferSize)
+        .workers(workers)
+        .ringBufferSize(ringBufferSize);
+  }
+}
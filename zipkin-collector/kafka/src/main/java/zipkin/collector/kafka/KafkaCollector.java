@@ -25,8 +25,13 @@ import kafka.consumer.KafkaStream;
 import kafka.javaapi.consumer.ZookeeperConsumerConnector;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.internal.LazyCloseable;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.StorageComponent;
@@ -66,6 +71,36 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /** @see Collector.Builder#queue(CollectorQueue) */
+    public Builder queue(CollectorQueue queue) {
+      delegate.queue(queue);
+      return this;
+    }
+
+    /** @see Collector.Builder#rateLimiter(CollectorRateLimiter) */
+    public Builder rateLimiter(CollectorRateLimiter rateLimiter) {
+      delegate.rateLimiter(rateLimiter);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSampler(CollectorTailSampler) */
+    public Builder tailSampler(CollectorTailSampler tailSampler) {
+      delegate.tailSampler(tailSampler);
+      return this;
+    }
+
+    /** @see Collector.Builder#deduplicator(CollectorDeduplicator) */
+    public Builder deduplicator(CollectorDeduplicator deduplicator) {
+      delegate.deduplicator(deduplicator);
+      return this;
+    }
+
+    /** @see Collector.Builder#spool(CollectorSpool) */
+    public Builder spool(CollectorSpool spool) {
+      delegate.spool(spool);
+      return this;
+    }
+
     @Override public Builder metrics(CollectorMetrics metrics) {
       this.metrics = checkNotNull(metrics, "metrics").forTransport("kafka");
       delegate.metrics(this.metrics);
@@ -227,9 +262,10 @@ public final class KafkaCollector implements CollectorComponent {
     }
 
     @Override
-    public void close() {
+    public void close() throws IOException {
       ExecutorService maybeNull = maybeNull();
       if (maybeNull != null) maybeNull.shutdown();
+      collector.close();
     }
   }
 }
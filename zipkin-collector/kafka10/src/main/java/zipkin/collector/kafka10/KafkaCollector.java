@@ -28,14 +28,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.internal.LazyCloseable;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.StorageComponent;
 
 import static org.apache.kafka.clients.consumer.ConsumerConfig.AUTO_OFFSET_RESET_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG;
+import static org.apache.kafka.clients.consumer.ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG;
 import static zipkin.internal.Util.checkNotNull;
 
@@ -43,7 +49,8 @@ import static zipkin.internal.Util.checkNotNull;
  * This collector polls a Kafka topic for messages that contain TBinaryProtocol big-endian encoded
  * lists of spans. These spans are pushed to a {@link AsyncSpanConsumer#accept span consumer}.
  *
- * <p>This collector uses a Kafka 0.10+ consumer.
+ * <p>This collector uses a Kafka 0.10+ consumer. Offsets are committed once spans are stored, so
+ * messages are consumed at least once.
  */
 public final class KafkaCollector implements CollectorComponent {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaCollector.class);
@@ -59,6 +66,8 @@ public final class KafkaCollector implements CollectorComponent {
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
     String topic = "zipkin";
     int streams = 1;
+    int decodeThreads = Runtime.getRuntime().availableProcessors();
+    int maxInFlightMessages = 10000;
 
     @Override public Builder storage(StorageComponent storage) {
       delegate.storage(storage);
@@ -70,6 +79,36 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /** @see Collector.Builder#queue(CollectorQueue) */
+    public Builder queue(CollectorQueue queue) {
+      delegate.queue(queue);
+      return this;
+    }
+
+    /** @see Collector.Builder#rateLimiter(CollectorRateLimiter) */
+    public Builder rateLimiter(CollectorRateLimiter rateLimiter) {
+      delegate.rateLimiter(rateLimiter);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSampler(CollectorTailSampler) */
+    public Builder tailSampler(CollectorTailSampler tailSampler) {
+      delegate.tailSampler(tailSampler);
+      return this;
+    }
+
+    /** @see Collector.Builder#deduplicator(CollectorDeduplicator) */
+    public Builder deduplicator(CollectorDeduplicator deduplicator) {
+      delegate.deduplicator(deduplicator);
+      return this;
+    }
+
+    /** @see Collector.Builder#spool(CollectorSpool) */
+    public Builder spool(CollectorSpool spool) {
+      delegate.spool(spool);
+      return this;
+    }
+
     @Override public Builder metrics(CollectorMetrics metrics) {
       this.metrics = checkNotNull(metrics, "metrics").forTransport("kafka");
       delegate.metrics(this.metrics);
@@ -103,10 +142,31 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /**
+     * Count of threads decoding messages, shared by all streams. Messages from each poll are
+     * decoded in parallel, then stored together. Defaults to the count of processors.
+     */
+    public Builder decodeThreads(int decodeThreads) {
+      if (decodeThreads < 1) throw new IllegalArgumentException("decodeThreads < 1");
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
+    /**
+     * Count of messages polled, but not yet stored, above which a stream pauses its partitions.
+     * Offsets are committed once messages are stored, so these would be consumed again after a
+     * restart. Defaults to 10000.
+     */
+    public Builder maxInFlightMessages(int maxInFlightMessages) {
+      if (maxInFlightMessages < 1) throw new IllegalArgumentException("maxInFlightMessages < 1");
+      this.maxInFlightMessages = maxInFlightMessages;
+      return this;
+    }
+
     /**
      * By default, a consumer will be built from properties derived from builder defaults,
-     * as well as "auto.offset.reset" -> "earliest". Any properties set here will override the
-     * consumer config.
+     * as well as "auto.offset.reset" -> "earliest" and "enable.auto.commit" -> "false". Any
+     * properties set here will override the consumer config.
      *
      * <p>For example: Only consume spans since you connected by setting the below.
      * <pre>{@code
@@ -131,6 +191,8 @@ public final class KafkaCollector implements CollectorComponent {
       // https://kafka.apache.org/documentation/#newconsumerconfigs
       properties.put(GROUP_ID_CONFIG, "zipkin");
       properties.put(AUTO_OFFSET_RESET_CONFIG, "earliest");
+      // offsets are committed once messages are stored
+      properties.put(ENABLE_AUTO_COMMIT_CONFIG, "false");
       properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG,
           ByteArrayDeserializer.class.getName());
       properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
@@ -169,6 +231,9 @@ public final class KafkaCollector implements CollectorComponent {
     final Builder builder;
     final AtomicReference<CheckResult> failure = new AtomicReference<>();
     final CopyOnWriteArrayList<KafkaCollectorWorker> workers = new CopyOnWriteArrayList<>();
+    volatile ExecutorService decoders;
+    /** Shared by all streams, so that there's one queue and spool per transport */
+    volatile Collector collector;
 
     LazyKafkaWorkers(Builder builder) {
       this.streams = builder.streams;
@@ -179,9 +244,11 @@ public final class KafkaCollector implements CollectorComponent {
       ExecutorService pool = streams == 1
           ? Executors.newSingleThreadExecutor()
           : Executors.newFixedThreadPool(streams);
+      decoders = Executors.newFixedThreadPool(builder.decodeThreads);
+      collector = builder.delegate.build();
 
       for (int i = 0; i < streams; i ++) {
-        final KafkaCollectorWorker worker = new KafkaCollectorWorker(builder);
+        final KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, collector, decoders);
         workers.add(worker);
         pool.execute(guardFailures(worker));
       }
@@ -204,7 +271,7 @@ public final class KafkaCollector implements CollectorComponent {
     }
 
     @Override
-    public void close() {
+    public void close() throws IOException {
       ExecutorService maybeNull = maybeNull();
       if (maybeNull != null) {
         maybeNull.shutdownNow();
@@ -214,6 +281,8 @@ public final class KafkaCollector implements CollectorComponent {
           // at least we tried
         }
       }
+      if (decoders != null) decoders.shutdownNow();
+      if (collector != null) collector.close();
     }
   }
 }
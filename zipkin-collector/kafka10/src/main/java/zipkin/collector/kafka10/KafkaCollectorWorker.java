@@ -13,53 +13,90 @@
  */
 package zipkin.collector.kafka10;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import zipkin.Span;
-import zipkin.SpanDecoder;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorMetrics;
+import zipkin.storage.Callback;
 
+import static org.apache.kafka.clients.consumer.ConsumerConfig.RETRY_BACKOFF_MS_CONFIG;
 import static zipkin.SpanDecoder.DETECTING_DECODER;
-import static zipkin.storage.Callback.NOOP;
 
-/** Consumes spans from Kafka messages, ignoring malformed input */
+/**
+ * Consumes spans from Kafka messages, ignoring malformed input.
+ *
+ * <p>Messages from each poll are decoded in parallel, then stored together. Offsets are committed
+ * once storage succeeds, in the order messages were polled, so that spans not yet stored are
+ * consumed again after a crash or rebalance. Partitions are paused while too many messages are
+ * waiting for storage.
+ *
+ * <p>When storage fails, nothing more is committed: the worker seeks back to the first message
+ * not yet stored, and consumes again from there after a backoff of "retry.backoff.ms" (one second
+ * unless overridden). Messages that can't be decoded are dropped, as retrying them would never
+ * succeed.
+ */
 final class KafkaCollectorWorker implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaCollectorWorker.class);
+  /** Used unless the consumer's "retry.backoff.ms" is overridden */
+  static final long DEFAULT_RETRY_BACKOFF_MILLIS = 1000;
 
   final Consumer<byte[], byte[]> kafkaConsumer;
   final Collector collector;
   final CollectorMetrics metrics;
+  final Executor decoder;
+  final int maxInFlightMessages;
+  /** How long to wait before consuming messages again after storage failed */
+  final long retryBackoffMillis;
   /** Kafka topic partitions currently assigned to this worker. List is not modifiable. */
   final AtomicReference<List<TopicPartition>> assignedPartitions =
       new AtomicReference<>(Collections.emptyList());
+  /** Batches in the order they were polled. Only accessed by the polling thread. */
+  final ArrayDeque<Batch> pending = new ArrayDeque<>();
+  final AtomicInteger inFlightMessages = new AtomicInteger();
+  /** Partitions stay paused until this time after storage failed. Only accessed when polling. */
+  long retryAtMillis;
 
-  KafkaCollectorWorker(KafkaCollector.Builder builder) {
+  KafkaCollectorWorker(KafkaCollector.Builder builder, Collector collector, Executor decoder) {
     kafkaConsumer = new KafkaConsumer<>(builder.properties);
     List<String> topics = Arrays.asList(builder.topic.split(","));
     kafkaConsumer.subscribe(topics, new ConsumerRebalanceListener() {
       @Override public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
         assignedPartitions.set(Collections.emptyList());
+        // Commit what's stored. Other messages will be consumed again by the next assignee.
+        commitStored(true);
+        pending.clear();
       }
 
       @Override public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
         assignedPartitions.set(Collections.unmodifiableList(new ArrayList<>(partitions)));
       }
     });
-    this.collector = builder.delegate.build();
+    this.collector = collector;
     this.metrics = builder.metrics;
+    this.decoder = decoder;
+    this.maxInFlightMessages = builder.maxInFlightMessages;
+    Object retryBackoff = builder.properties.get(RETRY_BACKOFF_MS_CONFIG);
+    this.retryBackoffMillis = retryBackoff != null
+        ? Long.parseLong(retryBackoff.toString())
+        : DEFAULT_RETRY_BACKOFF_MILLIS;
   }
 
   @Override
@@ -67,35 +104,131 @@ final class KafkaCollectorWorker implements Runnable {
     try {
       LOG.info("Kafka consumer starting polling loop.");
       while (true) {
-        final ConsumerRecords<byte[], byte[]> consumerRecords = kafkaConsumer.poll(1000);
-        LOG.debug("Kafka polling returned batch of {} messages.", consumerRecords.count());
-        for (ConsumerRecord<byte[], byte[]> record : consumerRecords) {
-          metrics.incrementMessages();
-          final byte[] bytes = record.value();
-
-          if (bytes.length == 0) {
-            metrics.incrementMessagesDropped();
-          } else {
-            // If we received legacy single-span encoding, decode it into a singleton list
-            if (bytes[0] <= 16 && bytes[0] != 12 /* thrift, but not a list */) {
-              metrics.incrementBytes(bytes.length);
-              try {
-                Span span = SpanDecoder.THRIFT_DECODER.readSpan(bytes);
-                collector.accept(null, Collections.singletonList(span), NOOP);
-              } catch (RuntimeException e) {
-                metrics.incrementMessagesDropped();
-              }
-            } else {
-              collector.acceptSpans(bytes, DETECTING_DECODER, NOOP);
-            }
-          }
+        commitStored(false);
+        retryFailed();
+        boolean full = inFlightMessages.get() >= maxInFlightMessages
+            || System.currentTimeMillis() < retryAtMillis;
+        if (full) {
+          kafkaConsumer.pause(kafkaConsumer.assignment());
+        } else if (!kafkaConsumer.paused().isEmpty()) {
+          kafkaConsumer.resume(kafkaConsumer.paused());
         }
+        // poll often while paused, so that partitions resume soon after storage catches up
+        final ConsumerRecords<byte[], byte[]> consumerRecords = kafkaConsumer.poll(full ? 10 : 1000);
+        LOG.debug("Kafka polling returned batch of {} messages.", consumerRecords.count());
+        if (consumerRecords.isEmpty()) continue;
+        accept(consumerRecords);
       }
     } finally {
       LOG.info("Kafka consumer polling loop stopped.");
+      commitOnClose();
       LOG.info("Closing Kafka consumer...");
       kafkaConsumer.close();
       LOG.info("Kafka consumer closed.");
     }
   }
+
+  void accept(ConsumerRecords<byte[], byte[]> consumerRecords) {
+    List<byte[]> messages = new ArrayList<>(consumerRecords.count());
+    Map<TopicPartition, Long> firstOffsets = new LinkedHashMap<>();
+    Map<TopicPartition, OffsetAndMetadata> offsets = new LinkedHashMap<>();
+    for (TopicPartition partition : consumerRecords.partitions()) {
+      List<ConsumerRecord<byte[], byte[]>> records = consumerRecords.records(partition);
+      for (int i = 0, length = records.size(); i < length; i++) {
+        metrics.incrementMessages();
+        byte[] bytes = records.get(i).value();
+        if (bytes.length == 0) {
+          metrics.incrementMessagesDropped();
+        } else {
+          messages.add(bytes);
+        }
+      }
+      firstOffsets.put(partition, records.get(0).offset());
+      // the committed offset is that of the next message to consume
+      long next = records.get(records.size() - 1).offset() + 1;
+      offsets.put(partition, new OffsetAndMetadata(next));
+    }
+    Batch batch = new Batch(firstOffsets, offsets, messages.size());
+    pending.add(batch);
+    inFlightMessages.addAndGet(batch.messageCount);
+    collector.acceptMessages(messages, DETECTING_DECODER, decoder, batch);
+  }
+
+  /** Commits offsets of batches stored so far, stopping at the first that's still in flight. */
+  void commitStored(boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> offsets = null;
+    for (Batch batch; (batch = pending.peek()) != null && batch.done; pending.remove()) {
+      if (offsets == null) offsets = new LinkedHashMap<>();
+      offsets.putAll(batch.offsets);
+    }
+    if (offsets == null) return;
+    if (sync) {
+      kafkaConsumer.commitSync(offsets);
+    } else {
+      kafkaConsumer.commitAsync(offsets, (committed, e) -> {
+        if (e != null) LOG.warn("Kafka offset commit failed: {}", committed, e);
+      });
+    }
+  }
+
+  /**
+   * When the oldest batch not yet committed failed to store, seeks back to it. Batches polled after
+   * it are consumed again too, as their offsets can't be committed past the failed one.
+   */
+  void retryFailed() {
+    Batch failed = pending.peek();
+    if (failed == null || !failed.failed) return;
+    Map<TopicPartition, Long> seekTo = new LinkedHashMap<>();
+    for (Batch batch : pending) {
+      for (Map.Entry<TopicPartition, Long> entry : batch.firstOffsets.entrySet()) {
+        if (!seekTo.containsKey(entry.getKey())) seekTo.put(entry.getKey(), entry.getValue());
+      }
+    }
+    pending.clear(); // batches still in flight only update the in-flight count when they complete
+    for (Map.Entry<TopicPartition, Long> entry : seekTo.entrySet()) {
+      kafkaConsumer.seek(entry.getKey(), entry.getValue());
+    }
+    retryAtMillis = System.currentTimeMillis() + retryBackoffMillis;
+    LOG.warn("Storage failed: consuming {} again in {}ms", seekTo, retryBackoffMillis);
+  }
+
+  /** Commits offsets of stored batches, even when this thread was interrupted to stop. */
+  void commitOnClose() {
+    boolean interrupted = Thread.interrupted();
+    try {
+      commitStored(true);
+    } catch (RuntimeException e) {
+      LOG.warn("Kafka offset commit failed on close", e);
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Messages from one poll. Malformed messages are dropped by the collector without failing the
+   * batch, so an error here means storage failed, and the batch is consumed again.
+   */
+  final class Batch implements Callback<Void> {
+    final Map<TopicPartition, Long> firstOffsets;
+    final Map<TopicPartition, OffsetAndMetadata> offsets;
+    final int messageCount;
+    volatile boolean done, failed;
+
+    Batch(Map<TopicPartition, Long> firstOffsets, Map<TopicPartition, OffsetAndMetadata> offsets,
+        int messageCount) {
+      this.firstOffsets = firstOffsets;
+      this.offsets = offsets;
+      this.messageCount = messageCount;
+    }
+
+    @Override public void onSuccess(Void value) {
+      inFlightMessages.addAndGet(-messageCount);
+      done = true;
+    }
+
+    @Override public void onError(Throwable t) {
+      inFlightMessages.addAndGet(-messageCount);
+      failed = true;
+    }
+  }
 }
@@ -15,36 +15,46 @@ package zipkin.collector.kafka10;
 
 import com.github.charithe.kafka.EphemeralKafkaBroker;
 import com.github.charithe.kafka.KafkaJunitRule;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.curator.test.InstanceSpec;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 import zipkin.Codec;
 import zipkin.Span;
+import zipkin.collector.CollectorSpool;
 import zipkin.collector.InMemoryCollectorMetrics;
 import zipkin.collector.kafka10.KafkaCollector.Builder;
 import zipkin.internal.ApplyTimestampAndDuration;
 import zipkin.internal.V2SpanConverter;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.AsyncSpanStore;
+import zipkin.storage.Callback;
 import zipkin.storage.SpanStore;
 import zipkin.storage.StorageComponent;
 import zipkin2.codec.SpanBytesEncoder;
 
+import static org.apache.kafka.clients.consumer.ConsumerConfig.MAX_POLL_RECORDS_CONFIG;
+import static org.apache.kafka.clients.consumer.ConsumerConfig.RETRY_BACKOFF_MS_CONFIG;
 import static org.assertj.core.api.Assertions.assertThat;
 import static zipkin.TestObjects.LOTS_OF_SPANS;
 import static zipkin.TestObjects.TRACE;
@@ -56,16 +66,15 @@ public class KafkaCollectorTest {
       EphemeralKafkaBroker.create(RANDOM_PORT, RANDOM_PORT, buildBrokerConfig());
 
   @ClassRule public static KafkaJunitRule kafka = new KafkaJunitRule(broker).waitForStartup();
-  @ClassRule public static Timeout globalTimeout = Timeout.seconds(20);
+  @ClassRule public static Timeout globalTimeout = Timeout.seconds(30);
   @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
 
   InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
   InMemoryCollectorMetrics kafkaMetrics = metrics.forTransport("kafka");
 
-  CopyOnWriteArraySet<Thread> threadsProvidingSpans = new CopyOnWriteArraySet<>();
   LinkedBlockingQueue<List<Span>> receivedSpans = new LinkedBlockingQueue<>();
   AsyncSpanConsumer consumer = (spans, callback) -> {
-    threadsProvidingSpans.add(Thread.currentThread());
     receivedSpans.add(spans);
     callback.onSuccess(null);
   };
@@ -226,9 +235,8 @@ public class KafkaCollectorTest {
 
     try (KafkaCollector collector = builder.build()) {
       collector.start();
-      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
       // the only way we could read this, is if the malformed spans were skipped.
-      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+      assertThat(takeSpans(TRACE.size() * 2)).containsExactlyElementsOf(concat(TRACE, TRACE));
     }
 
     assertThat(kafkaMetrics.messagesDropped()).isEqualTo(3);
@@ -246,16 +254,21 @@ public class KafkaCollectorTest {
         callback.onSuccess(null);
       }
     });
-    Builder builder = builder("consumer_exception").storage(storage);
+    // store each message separately, so that only one fails
+    Map<String, String> overrides = new LinkedHashMap<>();
+    overrides.put(MAX_POLL_RECORDS_CONFIG, "1");
+    overrides.put(RETRY_BACKOFF_MS_CONFIG, "10");
+    Builder builder = builder("consumer_exception").storage(storage).overrides(overrides);
 
     produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
-    produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic); // tossed on error
+    produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic); // consumed again on error
     produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
 
     try (KafkaCollector collector = builder.build()) {
       collector.start();
       assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
-      // the only way we could read this, is if the malformed span was skipped.
+      // the failed message is retried before the one after it
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
       assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
     }
 
@@ -272,19 +285,142 @@ public class KafkaCollectorTest {
     try (KafkaCollector collector = builder.build()) {
       collector.start();
       waitForPartitionAssignments(collector);
+      // spans are stored by decoding threads, so check each stream consumes its own partition
+      assertThat(collector.kafkaWorkers.workers)
+        .extracting(w -> w.assignedPartitions.get().size())
+        .containsExactly(1, 1);
       produceSpans(traceBytes, builder.topic, 0);
       assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
       produceSpans(traceBytes, builder.topic, 1);
       assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
     }
 
-    assertThat(threadsProvidingSpans.size()).isEqualTo(2);
-
     assertThat(kafkaMetrics.messages()).isEqualTo(3);
     assertThat(kafkaMetrics.bytes()).isEqualTo(traceBytes.length * 2);
     assertThat(kafkaMetrics.spans()).isEqualTo(TRACE.size() * 2);
   }
 
+  @Test
+  public void storesMessagesFromOnePollTogether() throws Exception {
+    Builder builder = builder("batches");
+
+    byte[] bytes = Codec.THRIFT.writeSpans(TRACE);
+    produceSpans(bytes, builder.topic);
+    produceSpans(Codec.JSON.writeSpans(TRACE), builder.topic);
+    produceSpans(bytes, builder.topic);
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(concat(TRACE, TRACE, TRACE));
+    }
+
+    assertThat(kafkaMetrics.messages()).isEqualTo(3);
+    assertThat(kafkaMetrics.spans()).isEqualTo(TRACE.size() * 3);
+  }
+
+  @Test
+  public void commitsOffsetsOnceStored() throws Exception {
+    LinkedBlockingQueue<Callback<Void>> callbacks = new LinkedBlockingQueue<>();
+    Builder builder = builder("commit_once_stored")
+      .storage(buildStorage((spans, callback) -> callbacks.add(callback)));
+    TopicPartition partition = new TopicPartition(builder.topic, 0);
+
+    produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
+    produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
+
+    try (KafkaCollector collector = builder.build();
+         KafkaConsumer<byte[], byte[]> offsets = new KafkaConsumer<>(builder.properties)) {
+      collector.start();
+      Callback<Void> callback = callbacks.take();
+
+      Thread.sleep(100); // give the worker a chance to commit
+      assertThat(offsets.committed(partition)).isNull();
+
+      callback.onSuccess(null);
+      while (offsets.committed(partition) == null) Thread.sleep(10);
+      assertThat(offsets.committed(partition).offset()).isEqualTo(2L);
+    }
+  }
+
+  @Test
+  public void consumesAgainWhenNotStored() throws Exception {
+    Builder builder = builder("consume_again")
+      .storage(buildStorage((spans, callback) -> receivedSpans.add(spans))); // never completes
+
+    produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+    }
+
+    try (KafkaCollector collector = builder.storage(buildStorage(consumer)).build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+    }
+  }
+
+  @Test
+  public void consumesAgainWhenStorageFails() throws Exception {
+    LinkedBlockingQueue<Callback<Void>> callbacks = new LinkedBlockingQueue<>();
+    Builder builder = builder("storage_fails").storage(buildStorage(
+      (spans, callback) -> {
+        receivedSpans.add(spans);
+        callbacks.add(callback);
+      })).overrides(Collections.singletonMap(RETRY_BACKOFF_MS_CONFIG, "10"));
+
+    produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+      callbacks.take().onError(new IllegalStateException("storage down"));
+
+      // the failed message is consumed again instead of being committed
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+    }
+  }
+
+  @Test
+  public void pausesWhileTooManyMessagesInFlight() throws Exception {
+    LinkedBlockingQueue<Callback<Void>> callbacks = new LinkedBlockingQueue<>();
+    Builder builder = builder("pauses").maxInFlightMessages(1).storage(buildStorage(
+      (spans, callback) -> {
+        receivedSpans.add(spans);
+        callbacks.add(callback);
+      }));
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      waitForPartitionAssignments(collector);
+      produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+
+      produceSpans(Codec.THRIFT.writeSpans(TRACE), builder.topic);
+      assertThat(receivedSpans.poll(500, TimeUnit.MILLISECONDS)).isNull();
+
+      callbacks.take().onSuccess(null);
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(TRACE);
+    }
+  }
+
+  @Test public void streamsShareOneSpool() throws Exception {
+    Builder builder = builder("shared_spool", 2)
+      .spool(CollectorSpool.newBuilder(folder.getRoot()).build());
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start(); // a spool per stream would fail as its directory is in use
+      assertThat(collector.kafkaWorkers.workers)
+        .extracting(w -> w.collector)
+        .containsOnly(collector.kafkaWorkers.collector);
+    }
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start(); // closing released the spool directory
+      assertThat(collector.check().ok).isTrue();
+    }
+  }
+
   @Test public void multipleTopicsCommaDelimited() throws Exception {
     try (KafkaCollector collector = builder("topic1,topic2").build()) {
       collector.start();
@@ -322,6 +458,19 @@ public class KafkaCollectorTest {
     }
   }
 
+  /** Takes lists of spans until the count received, as messages from a poll are stored together */
+  private List<Span> takeSpans(int count) throws InterruptedException {
+    List<Span> result = new ArrayList<>();
+    while (result.size() < count) result.addAll(receivedSpans.take());
+    return result;
+  }
+
+  @SafeVarargs static List<Span> concat(List<Span>... lists) {
+    List<Span> result = new ArrayList<>();
+    for (List<Span> list : lists) result.addAll(list);
+    return result;
+  }
+
   private void produceSpans(byte[] spans, String topic) {
     produceSpans(spans, topic, 0);
   }
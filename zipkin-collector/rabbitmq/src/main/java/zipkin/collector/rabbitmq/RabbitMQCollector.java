@@ -21,22 +21,44 @@ import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.internal.LazyCloseable;
+import zipkin.storage.Callback;
 import zipkin.storage.StorageComponent;
 
 import static zipkin.SpanDecoder.DETECTING_DECODER;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static zipkin.internal.Util.checkNotNull;
 import static zipkin.storage.Callback.NOOP;
 
-/** This collector consumes encoded binary messages from a RabbitMQ queue. */
+/**
+ * This collector consumes encoded binary messages from a RabbitMQ queue.
+ *
+ * <p>By default, messages are acknowledged on delivery. When {@link Builder#prefetch(int)} is set,
+ * messages are instead stored in batches, and acknowledged once storage completes.
+ */
 public final class RabbitMQCollector implements CollectorComponent {
+  private static final Logger LOG = LoggerFactory.getLogger(RabbitMQCollector.class);
 
   public static Builder builder() {
     return new Builder();
@@ -50,6 +72,8 @@ public final class RabbitMQCollector implements CollectorComponent {
     ConnectionFactory connectionFactory = new ConnectionFactory();
     Address[] addresses;
     int concurrency = 1;
+    int prefetch = 0;
+    int batchSize = 1;
 
     @Override public Builder storage(StorageComponent storage) {
       this.delegate.storage(storage);
@@ -61,6 +85,36 @@ public final class RabbitMQCollector implements CollectorComponent {
       return this;
     }
 
+    /** @see Collector.Builder#queue(CollectorQueue) */
+    public Builder queue(CollectorQueue queue) {
+      this.delegate.queue(queue);
+      return this;
+    }
+
+    /** @see Collector.Builder#rateLimiter(CollectorRateLimiter) */
+    public Builder rateLimiter(CollectorRateLimiter rateLimiter) {
+      this.delegate.rateLimiter(rateLimiter);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSampler(CollectorTailSampler) */
+    public Builder tailSampler(CollectorTailSampler tailSampler) {
+      this.delegate.tailSampler(tailSampler);
+      return this;
+    }
+
+    /** @see Collector.Builder#deduplicator(CollectorDeduplicator) */
+    public Builder deduplicator(CollectorDeduplicator deduplicator) {
+      this.delegate.deduplicator(deduplicator);
+      return this;
+    }
+
+    /** @see Collector.Builder#spool(CollectorSpool) */
+    public Builder spool(CollectorSpool spool) {
+      this.delegate.spool(spool);
+      return this;
+    }
+
     @Override public Builder metrics(CollectorMetrics metrics) {
       this.metrics = checkNotNull(metrics, "metrics").forTransport("rabbitmq");
       this.delegate.metrics(this.metrics);
@@ -90,7 +144,31 @@ public final class RabbitMQCollector implements CollectorComponent {
       return this;
     }
 
+    /**
+     * Count of messages each consumer may receive before acknowledging them. When set, messages
+     * are acknowledged once their spans are stored, as opposed to on delivery. Defaults to zero:
+     * messages are acknowledged on delivery, so there's no limit.
+     */
+    public Builder prefetch(int prefetch) {
+      if (prefetch < 0) throw new IllegalArgumentException("prefetch < 0");
+      this.prefetch = prefetch;
+      return this;
+    }
+
+    /**
+     * Count of messages each consumer stores together when {@link #prefetch(int) prefetch} is set.
+     * Fewer are stored when no more messages arrive within 100ms. Defaults to 1.
+     */
+    public Builder batchSize(int batchSize) {
+      if (batchSize < 1) throw new IllegalArgumentException("batchSize < 1");
+      this.batchSize = batchSize;
+      return this;
+    }
+
     @Override public RabbitMQCollector build() {
+      if (prefetch != 0 && batchSize > prefetch) {
+        throw new IllegalArgumentException("batchSize > prefetch");
+      }
       return new RabbitMQCollector(this);
     }
   }
@@ -128,6 +206,8 @@ public final class RabbitMQCollector implements CollectorComponent {
   static final class LazyInit extends LazyCloseable<Connection> {
     final Builder builder;
     final AtomicReference<CheckResult> failure = new AtomicReference<>();
+    volatile ScheduledExecutorService lingerTimer; // only created when batching
+    volatile Collector collector; // shared by all consumers
 
     LazyInit(Builder builder) {
       this.builder = builder;
@@ -142,7 +222,7 @@ public final class RabbitMQCollector implements CollectorComponent {
       } catch (IOException | TimeoutException e) {
         throw new IllegalStateException("Unable to establish connection to RabbitMQ server", e);
       }
-      Collector collector = builder.delegate.build();
+      Collector collector = this.collector = builder.delegate.build();
       CollectorMetrics metrics = builder.metrics;
 
       for (int i = 0; i < builder.concurrency; i++) {
@@ -151,14 +231,43 @@ public final class RabbitMQCollector implements CollectorComponent {
           // this sets up a channel for each consumer thread.
           // We don't track channels them, as the connection will close its channels implicitly
           Channel channel = connection.createChannel();
-          RabbitMQSpanConsumer consumer = new RabbitMQSpanConsumer(channel, collector, metrics);
-          channel.basicConsume(builder.queue, true, name, consumer);
+          if (builder.prefetch == 0) {
+            RabbitMQSpanConsumer consumer = new RabbitMQSpanConsumer(channel, collector, metrics);
+            channel.basicConsume(builder.queue, true, name, consumer);
+            continue;
+          }
+          channel.basicQos(builder.prefetch);
+          BatchingSpanConsumer consumer =
+            new BatchingSpanConsumer(channel, collector, metrics, builder.batchSize, lingerTimer());
+          channel.basicConsume(builder.queue, false, name, consumer);
         } catch (IOException e) {
           throw new IllegalStateException("Failed to start RabbitMQ consumer " + name, e);
         }
       }
       return connection;
     }
+
+    ScheduledExecutorService lingerTimer() {
+      if (lingerTimer == null) {
+        lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "zipkin-rabbitmq-linger");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      return lingerTimer;
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (lingerTimer != null) lingerTimer.shutdownNow();
+        if (collector != null) collector.close();
+      }
+    }
   }
 
   /**
@@ -184,6 +293,135 @@ public final class RabbitMQCollector implements CollectorComponent {
     }
   }
 
+  /**
+   * Consumes messages in batches, acknowledging them once their spans are stored. Batches are
+   * acknowledged in the order they were received, so that one acknowledgement covers all messages
+   * up to the last of a batch.
+   *
+   * <p>When storage fails, the batch's messages are requeued, unless they were already redelivered.
+   * Those are rejected, so that they reach a dead letter exchange if the queue has one. Malformed
+   * messages are acknowledged, as retrying them wouldn't help.
+   */
+  static final class BatchingSpanConsumer extends DefaultConsumer {
+    static final long LINGER_MILLIS = 100;
+    static final Executor DIRECT = new Executor() {
+      @Override public void execute(Runnable command) {
+        command.run();
+      }
+    };
+
+    final Collector collector;
+    final CollectorMetrics metrics;
+    final int batchSize;
+    final ScheduledExecutorService lingerTimer;
+    /** Batches not yet acknowledged, in the order they were received. Guarded by this. */
+    final ArrayDeque<Batch> pending = new ArrayDeque<>();
+    /** The batch receiving messages, or null if there's none. Guarded by this. */
+    Batch current;
+
+    BatchingSpanConsumer(Channel channel, Collector collector, CollectorMetrics metrics,
+      int batchSize, ScheduledExecutorService lingerTimer) {
+      super(channel);
+      this.collector = collector;
+      this.metrics = metrics;
+      this.batchSize = batchSize;
+      this.lingerTimer = lingerTimer;
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+      AMQP.BasicProperties properties, byte[] body) {
+      metrics.incrementMessages();
+      Batch full;
+      synchronized (this) {
+        if (current == null) {
+          current = new Batch(batchSize);
+          pending.add(current);
+          current.scheduledFlush = scheduleFlush(current);
+        }
+        current.add(envelope, body);
+        if (current.messages.size() < batchSize) return;
+        full = current;
+        current = null;
+      }
+      full.scheduledFlush.cancel(false); // stored now, so the timer needn't hold it
+      store(full);
+    }
+
+    ScheduledFuture<?> scheduleFlush(final Batch batch) {
+      return lingerTimer.schedule(new Runnable() {
+        @Override public void run() {
+          synchronized (BatchingSpanConsumer.this) {
+            if (current != batch) return; // already stored
+            current = null;
+          }
+          store(batch);
+        }
+      }, LINGER_MILLIS, MILLISECONDS);
+    }
+
+    void store(Batch batch) {
+      collector.acceptMessages(batch.messages, DETECTING_DECODER, DIRECT, batch);
+    }
+
+    /** Acknowledges completed batches, stopping at the first that's still being stored. */
+    synchronized void acknowledgeCompleted() {
+      for (Batch batch; (batch = pending.peek()) != null && batch.done; pending.remove()) {
+        try {
+          if (batch.stored) {
+            getChannel().basicAck(batch.tags[batch.messages.size() - 1], true);
+          } else {
+            for (int i = 0, length = batch.messages.size(); i < length; i++) {
+              getChannel().basicNack(batch.tags[i], false, !batch.redelivered[i]);
+            }
+          }
+        } catch (IOException | RuntimeException e) {
+          // the channel is closed, so the broker will redeliver unacknowledged messages
+          LOG.debug("Couldn't acknowledge messages", e);
+        }
+      }
+    }
+
+    /** Messages stored together, acknowledged when storage completes. */
+    final class Batch implements Callback<Void> {
+      final List<byte[]> messages;
+      final long[] tags;
+      final boolean[] redelivered;
+      // guarded by BatchingSpanConsumer.this
+      ScheduledFuture<?> scheduledFlush;
+      boolean done, stored;
+
+      Batch(int batchSize) {
+        messages = new ArrayList<>(batchSize);
+        tags = new long[batchSize];
+        redelivered = new boolean[batchSize];
+      }
+
+      void add(Envelope envelope, byte[] body) {
+        int index = messages.size();
+        tags[index] = envelope.getDeliveryTag();
+        redelivered[index] = envelope.isRedeliver();
+        messages.add(body);
+      }
+
+      @Override public void onSuccess(Void value) {
+        complete(true);
+      }
+
+      @Override public void onError(Throwable t) {
+        complete(false);
+      }
+
+      void complete(boolean stored) {
+        synchronized (BatchingSpanConsumer.this) {
+          this.done = true;
+          this.stored = stored;
+          acknowledgeCompleted();
+        }
+      }
+    }
+  }
+
   static Address[] convertAddresses(List<String> addresses) {
     Address[] addressArray = new Address[addresses.size()];
     for (int i = 0; i < addresses.size(); i++) {
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import zipkin.SpanDecoder;
+import zipkin.collector.Collector;
+import zipkin.collector.CollectorMetrics;
+import zipkin.collector.rabbitmq.RabbitMQCollector.BatchingSpanConsumer;
+import zipkin.storage.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/** Tests acknowledgement without a broker: storage is completed by hand, in any order. */
+public class BatchingSpanConsumerTest {
+  Channel channel = mock(Channel.class);
+  Collector collector = mock(Collector.class);
+  ScheduledExecutorService lingerTimer = mock(ScheduledExecutorService.class);
+  ScheduledFuture<?> scheduledFlush = mock(ScheduledFuture.class);
+  BatchingSpanConsumer consumer = new BatchingSpanConsumer(channel, collector,
+    CollectorMetrics.NOOP_METRICS, 2, lingerTimer);
+
+  @Before public void scheduleFlush() {
+    doReturn(scheduledFlush).when(lingerTimer)
+      .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  @Test public void acknowledgesBatchesInOrderReceived() throws Exception {
+    deliver(1, false);
+    deliver(2, false);
+    deliver(3, false);
+    deliver(4, false);
+    List<Callback<Void>> batches = storedBatches(2);
+
+    batches.get(1).onSuccess(null); // the later batch completes first
+    verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+    batches.get(0).onSuccess(null);
+    InOrder inOrder = inOrder(channel);
+    inOrder.verify(channel).basicAck(2, true);
+    inOrder.verify(channel).basicAck(4, true);
+    verifyNoMoreInteractions(channel);
+    assertThat(consumer.pending).isEmpty();
+  }
+
+  @Test public void failedBatch_requeuesOnlyFirstDeliveries() throws Exception {
+    deliver(1, false);
+    deliver(2, true); // requeuing again could loop forever
+    storedBatches(1).get(0).onError(new IllegalStateException("storage down"));
+
+    verify(channel).basicNack(1, false, true);
+    verify(channel).basicNack(2, false, false);
+    verifyNoMoreInteractions(channel);
+  }
+
+  @Test public void failedBatch_isSettledBeforeLaterBatch() throws Exception {
+    deliver(1, false);
+    deliver(2, false);
+    deliver(3, false);
+    deliver(4, false);
+    List<Callback<Void>> batches = storedBatches(2);
+
+    batches.get(1).onSuccess(null);
+    batches.get(0).onError(new IllegalStateException("storage down"));
+
+    // the failed batch is settled first, so the later batch's multiple ack only covers its own
+    InOrder inOrder = inOrder(channel);
+    inOrder.verify(channel).basicNack(1, false, true);
+    inOrder.verify(channel).basicNack(2, false, true);
+    inOrder.verify(channel).basicAck(4, true);
+    verifyNoMoreInteractions(channel);
+  }
+
+  @Test public void fullBatch_cancelsLingerFlush() throws Exception {
+    deliver(1, false);
+    verify(scheduledFlush, never()).cancel(anyBoolean());
+
+    deliver(2, false);
+    storedBatches(1);
+    verify(scheduledFlush).cancel(false);
+  }
+
+  void deliver(long tag, boolean redelivered) {
+    consumer.handleDelivery("consumer", new Envelope(tag, redelivered, "", "zipkin"), null,
+      new byte[] {(byte) tag});
+  }
+
+  List<Callback<Void>> storedBatches(int count) {
+    ArgumentCaptor<Callback> callbacks = ArgumentCaptor.forClass(Callback.class);
+    verify(collector, times(count)).acceptMessages(any(List.class), any(SpanDecoder.class),
+      any(Executor.class), callbacks.capture());
+    return (List) callbacks.getAllValues();
+  }
+}
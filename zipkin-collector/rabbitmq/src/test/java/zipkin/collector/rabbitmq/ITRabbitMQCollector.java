@@ -13,9 +13,12 @@
  */
 package zipkin.collector.rabbitmq;
 
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.ClassRule;
 import org.junit.Rule;
@@ -25,6 +28,10 @@ import zipkin.Codec;
 import zipkin.Span;
 import zipkin.internal.ApplyTimestampAndDuration;
 import zipkin.internal.V2SpanConverter;
+import zipkin.storage.AsyncSpanConsumer;
+import zipkin.storage.AsyncSpanStore;
+import zipkin.storage.SpanStore;
+import zipkin.storage.StorageComponent;
 import zipkin2.codec.SpanBytesEncoder;
 
 import static org.assertj.core.api.Java6Assertions.assertThat;
@@ -133,4 +140,84 @@ public class ITRabbitMQCollector {
   public void messagesDistributedAcrossMultipleThreadsSuccessfully() throws Exception {
     // TODO: reimplement
   }
+
+  @Test
+  public void prefetch_storesBatchesAndAcknowledges() throws Exception {
+    RabbitMQCollector.Builder builder = rabbit.computeCollectorBuilder()
+      .queue("zipkin-test-batches").prefetch(10).batchSize(3);
+
+    byte[] message = Codec.THRIFT.writeSpans(spans);
+    try (RabbitMQCollector collector = builder.build().start()) {
+      for (int i = 0; i < 4; i++) publish(collector, message);
+
+      Thread.sleep(1000);
+      assertThat(rabbit.storage.acceptedSpanCount()).isEqualTo(spans.size() * 4);
+    }
+
+    // had messages not been acknowledged, closing the collector would have requeued them
+    assertThat(messageCount(builder)).isZero();
+    assertThat(rabbit.rabbitmqMetrics.messages()).isEqualTo(4);
+  }
+
+  @Test
+  public void prefetch_requeuesOnStorageFailure() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    RabbitMQCollector.Builder builder = rabbit.computeCollectorBuilder()
+      .queue("zipkin-test-requeue").prefetch(10).storage(failFirstAttempt(attempts));
+
+    try (RabbitMQCollector collector = builder.build().start()) {
+      publish(collector, Codec.THRIFT.writeSpans(spans));
+
+      Thread.sleep(1000);
+      assertThat(attempts.get()).isEqualTo(2);
+      assertThat(rabbit.storage.acceptedSpanCount()).isEqualTo(spans.size());
+    }
+
+    assertThat(messageCount(builder)).isZero();
+  }
+
+  StorageComponent failFirstAttempt(AtomicInteger attempts) {
+    AsyncSpanConsumer delegate = rabbit.storage.asyncSpanConsumer();
+    return new StorageComponent() {
+      @Override public SpanStore spanStore() {
+        throw new AssertionError();
+      }
+
+      @Override public AsyncSpanStore asyncSpanStore() {
+        throw new AssertionError();
+      }
+
+      @Override public AsyncSpanConsumer asyncSpanConsumer() {
+        return (spans, callback) -> {
+          if (attempts.getAndIncrement() == 0) {
+            callback.onError(new IllegalStateException("storage fell over"));
+          } else {
+            delegate.accept(spans, callback);
+          }
+        };
+      }
+
+      @Override public CheckResult check() {
+        return CheckResult.OK;
+      }
+
+      @Override public void close() {
+      }
+    };
+  }
+
+  static void publish(RabbitMQCollector collector, byte[] message) throws Exception {
+    Channel channel = collector.connection.get().createChannel();
+    try {
+      channel.basicPublish("", collector.queue, null, message);
+    } finally {
+      channel.close();
+    }
+  }
+
+  static long messageCount(RabbitMQCollector.Builder builder) throws Exception {
+    try (Connection connection = builder.connectionFactory.newConnection(builder.addresses)) {
+      return connection.createChannel().messageCount(builder.queue);
+    }
+  }
 }
@@ -17,10 +17,16 @@ import com.facebook.swift.codec.ThriftCodecManager;
 import com.facebook.swift.service.ThriftServer;
 import com.facebook.swift.service.ThriftServerConfig;
 import com.facebook.swift.service.ThriftServiceProcessor;
+import java.io.IOException;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.storage.StorageComponent;
 import zipkin.storage.guava.GuavaSpanConsumer;
 
@@ -62,6 +68,36 @@ public final class ScribeCollector implements CollectorComponent {
       return this;
     }
 
+    /** @see Collector.Builder#queue(CollectorQueue) */
+    public Builder queue(CollectorQueue queue) {
+      delegate.queue(queue);
+      return this;
+    }
+
+    /** @see Collector.Builder#rateLimiter(CollectorRateLimiter) */
+    public Builder rateLimiter(CollectorRateLimiter rateLimiter) {
+      delegate.rateLimiter(rateLimiter);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSampler(CollectorTailSampler) */
+    public Builder tailSampler(CollectorTailSampler tailSampler) {
+      delegate.tailSampler(tailSampler);
+      return this;
+    }
+
+    /** @see Collector.Builder#deduplicator(CollectorDeduplicator) */
+    public Builder deduplicator(CollectorDeduplicator deduplicator) {
+      delegate.deduplicator(deduplicator);
+      return this;
+    }
+
+    /** @see Collector.Builder#spool(CollectorSpool) */
+    public Builder spool(CollectorSpool spool) {
+      delegate.spool(spool);
+      return this;
+    }
+
     /** Category zipkin spans will be consumed from. Defaults to "zipkin" */
     public Builder category(String category) {
       this.category = checkNotNull(category, "category");
@@ -80,10 +116,11 @@ public final class ScribeCollector implements CollectorComponent {
     }
   }
 
+  final ScribeSpanConsumer scribe;
   final ThriftServer server;
 
   ScribeCollector(Builder builder) {
-    ScribeSpanConsumer scribe = new ScribeSpanConsumer(builder);
+    scribe = new ScribeSpanConsumer(builder);
     ThriftServiceProcessor processor =
         new ThriftServiceProcessor(new ThriftCodecManager(), emptyList(), scribe);
     server = new ThriftServer(processor, new ThriftServerConfig().setPort(builder.port));
@@ -105,7 +142,11 @@ public final class ScribeCollector implements CollectorComponent {
   }
 
   @Override
-  public void close() {
-    server.close();
+  public void close() throws IOException {
+    try {
+      server.close();
+    } finally {
+      scribe.close();
+    }
   }
 }
@@ -13,48 +13,102 @@
  */
 package zipkin.collector.scribe;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import javax.annotation.Nullable;
+import zipkin.Codec;
 import zipkin.Span;
-import zipkin.SpanDecoder;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorMetrics;
 import zipkin.storage.Callback;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Decodes spans from log entries, then accepts them all at once.
+ *
+ * <p>Entries are base64 decoded into a buffer reused by the decoding thread, then read as thrift
+ * from that buffer. Large batches are split into chunks: the calling thread decodes the first,
+ * while a bounded pool decodes the others.
+ */
 final class ScribeSpanConsumer implements Scribe {
+  /** Count of entries decoded by one thread. Larger batches are split across the decode pool. */
+  static final int CHUNK_SIZE = 128;
+  /** Buffers larger than this aren't kept for reuse. */
+  static final int MAX_BUFFER_SIZE = 64 * 1024;
+  static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[4096]);
+
   final Collector collector;
   final CollectorMetrics metrics;
   final String category;
+  final int decodeThreads;
+  ListeningExecutorService decodePool; // guarded by this, created on the first large batch
 
   public ScribeSpanConsumer(ScribeCollector.Builder builder) {
     this.collector = builder.delegate.build();
     this.metrics = builder.metrics;
     this.category = builder.category;
+    this.decodeThreads = Runtime.getRuntime().availableProcessors();
   }
 
   @Override
   public ListenableFuture<ResultCode> log(List<LogEntry> messages) {
     metrics.incrementMessages();
-    List<Span> spans;
+    int length = messages.size();
+    if (length <= CHUNK_SIZE) {
+      List<Span> spans;
+      try {
+        spans = decode(messages);
+      } catch (RuntimeException e) {
+        metrics.incrementMessagesDropped();
+        return Futures.immediateFailedFuture(e);
+      }
+      return accept(spans);
+    }
+
+    ListeningExecutorService decodePool = decodePool();
+    List<ListenableFuture<List<Span>>> chunks = new ArrayList<>(length / CHUNK_SIZE + 1);
+    chunks.add(null); // placeholder for the first chunk, decoded on this thread
+    for (int i = CHUNK_SIZE; i < length; i += CHUNK_SIZE) {
+      List<LogEntry> chunk = messages.subList(i, Math.min(i + CHUNK_SIZE, length));
+      chunks.add(decodePool.submit(() -> decode(chunk)));
+    }
     try {
-      spans = messages.stream()
-          .filter(m -> m.category.equals(category))
-          .map(m -> m.message.getBytes(StandardCharsets.ISO_8859_1))
-          .map(b -> Base64.getMimeDecoder().decode(b)) // finagle-zipkin uses mime encoding
-          .peek(b -> metrics.incrementBytes(b.length))
-          .map(SpanDecoder.THRIFT_DECODER::readSpan)
-          .collect(Collectors.toList());
+      chunks.set(0, Futures.immediateFuture(decode(messages.subList(0, CHUNK_SIZE))));
     } catch (RuntimeException e) {
-      metrics.incrementMessagesDropped();
-      return Futures.immediateFailedFuture(e);
+      chunks.set(0, Futures.immediateFailedFuture(e));
     }
 
+    ListenableFuture<List<List<Span>>> decoded = Futures.allAsList(chunks);
+    Futures.addCallback(decoded, new FutureCallback<List<List<Span>>>() {
+      @Override public void onSuccess(List<List<Span>> result) {
+      }
+
+      @Override public void onFailure(Throwable t) {
+        metrics.incrementMessagesDropped();
+      }
+    }, MoreExecutors.directExecutor());
+    AsyncFunction<List<List<Span>>, ResultCode> accept = lists -> {
+      List<Span> spans = new ArrayList<>(length);
+      for (List<Span> list : lists) spans.addAll(list);
+      return accept(spans);
+    };
+    return Futures.transform(decoded, accept, MoreExecutors.directExecutor());
+  }
+
+  ListenableFuture<ResultCode> accept(List<Span> spans) {
     SettableFuture<ResultCode> result = SettableFuture.create();
     collector.accept(null, spans, new Callback<Void>() {
       @Override public void onSuccess(@Nullable Void value) {
@@ -67,4 +121,90 @@ final class ScribeSpanConsumer implements Scribe {
     });
     return result;
   }
+
+  /** Decodes spans in entries of this category. */
+  List<Span> decode(List<LogEntry> entries) {
+    List<Span> result = new ArrayList<>(entries.size());
+    byte[] buffer = BUFFER.get();
+    for (int i = 0, length = entries.size(); i < length; i++) {
+      LogEntry entry = entries.get(i);
+      if (!entry.category.equals(category)) continue;
+      String message = entry.message;
+      int maxLength = message.length() / 4 * 3 + 2;
+      if (buffer.length < maxLength) {
+        buffer = new byte[maxLength];
+        if (maxLength <= MAX_BUFFER_SIZE) BUFFER.set(buffer);
+      }
+      int decodedLength = decodeBase64(message, buffer);
+      metrics.incrementBytes(decodedLength);
+      result.add(Codec.THRIFT.readSpan(ByteBuffer.wrap(buffer, 0, decodedLength)));
+    }
+    return result;
+  }
+
+  synchronized ListeningExecutorService decodePool() {
+    if (decodePool == null) {
+      // When the queue is full, the calling thread decodes, slowing down the scribe client
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(decodeThreads, decodeThreads, 1, SECONDS,
+          new ArrayBlockingQueue<>(decodeThreads * 4), r -> {
+            Thread thread = new Thread(r, "zipkin-scribe-decode");
+            thread.setDaemon(true);
+            return thread;
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      pool.allowCoreThreadTimeOut(true);
+      decodePool = MoreExecutors.listeningDecorator(pool);
+    }
+    return decodePool;
+  }
+
+  synchronized void close() throws IOException {
+    if (decodePool != null) decodePool.shutdownNow();
+    collector.close();
+  }
+
+  /** Maps a base64 character to its 6 bits, or -1 if it's ignored, such as a line break. */
+  static final byte[] BASE64 = new byte[128];
+
+  static {
+    Arrays.fill(BASE64, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) BASE64[alphabet.charAt(i)] = (byte) i;
+  }
+
+  /**
+   * Decodes base64 into the buffer, returning the count of bytes written. As done by {@link
+   * java.util.Base64#getMimeDecoder()}, characters outside the alphabet are ignored, as finagle
+   * breaks lines. Decoding ends at padding.
+   *
+   * @throws IllegalArgumentException if the input ends with a partial byte
+   */
+  static int decodeBase64(String in, byte[] out) {
+    int word = 0, chars = 0, pos = 0;
+    for (int i = 0, length = in.length(); i < length; i++) {
+      char c = in.charAt(i);
+      if (c == '=') break;
+      int bits = c < 128 ? BASE64[c] : -1;
+      if (bits == -1) continue;
+      word = (word << 6) | bits;
+      if (++chars == 4) { // 4 characters are 3 bytes
+        out[pos++] = (byte) (word >> 16);
+        out[pos++] = (byte) (word >> 8);
+        out[pos++] = (byte) word;
+        word = chars = 0;
+      }
+    }
+    switch (chars) {
+      case 1:
+        throw new IllegalArgumentException("Malformed base64: last unit has only 6 bits");
+      case 2:
+        out[pos++] = (byte) (word >> 4);
+        break;
+      case 3:
+        out[pos++] = (byte) (word >> 10);
+        out[pos++] = (byte) (word >> 2);
+        break;
+      default:
+    }
+    return pos;
+  }
 }
@@ -13,6 +13,7 @@
  */
 package zipkin.collector.scribe;
 
+import java.io.IOException;
 import org.jboss.netty.channel.ChannelException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -27,7 +28,7 @@ public class ScribeCollectorTest {
   public ExpectedException thrown = ExpectedException.none();
 
   @Test
-  public void check_failsWhenNotStarted() {
+  public void check_failsWhenNotStarted() throws IOException {
     try (ScribeCollector scribe =
              ScribeCollector.builder().storage(new InMemoryStorage()).port(12345).build()) {
 
@@ -42,7 +43,7 @@ public class ScribeCollectorTest {
   }
 
   @Test
-  public void start_failsWhenCantBindPort() {
+  public void start_failsWhenCantBindPort() throws IOException {
     thrown.expect(ChannelException.class);
     thrown.expectMessage("Failed to bind to: 0.0.0.0/0.0.0.0:12345");
 
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -37,6 +38,7 @@ import zipkin.storage.StorageComponent;
 import static com.google.common.base.Charsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static org.hamcrest.core.Is.isA;
 import static zipkin.TestObjects.TRACE;
 
@@ -189,6 +191,71 @@ public class ScribeSpanConsumerTest {
             .build());
   }
 
+  @Test
+  public void largeBatchesAreDecodedInOrder() throws Exception {
+    ScribeSpanConsumer scribe = newScribeSpanConsumer("zipkin", consumer);
+
+    List<Scribe.LogEntry> entries = new ArrayList<>();
+    List<Span> spans = new ArrayList<>();
+    for (int i = 0; i < ScribeSpanConsumer.CHUNK_SIZE * 3 + 1; i++) {
+      Span span = this.span.toBuilder().id(i).build();
+      Scribe.LogEntry entry = new Scribe.LogEntry();
+      entry.category = "zipkin";
+      entry.message = Base64.getMimeEncoder().encodeToString(Codec.THRIFT.writeSpan(span));
+      entries.add(entry);
+      spans.add(span);
+    }
+
+    assertThat(scribe.log(entries).get())
+        .isEqualTo(Scribe.ResultCode.OK);
+
+    assertThat(consumed)
+        .containsExactlyElementsOf(spans);
+    assertThat(scribeMetrics.messages()).isEqualTo(1);
+    assertThat(scribeMetrics.spans()).isEqualTo(spans.size());
+  }
+
+  @Test
+  public void malformedDataInLargeBatchIsDropped() throws Exception {
+    ScribeSpanConsumer scribe = newScribeSpanConsumer("zipkin", consumer);
+
+    List<Scribe.LogEntry> entries = new ArrayList<>();
+    for (int i = 0; i < ScribeSpanConsumer.CHUNK_SIZE * 2; i++) {
+      Scribe.LogEntry entry = new Scribe.LogEntry();
+      entry.category = "zipkin";
+      entry.message = i == ScribeSpanConsumer.CHUNK_SIZE + 1 ? "notbase64" : encodedSpan;
+      entries.add(entry);
+    }
+
+    try {
+      scribe.log(entries).get();
+      failBecauseExceptionWasNotThrown(ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertThat(e).hasCauseInstanceOf(IllegalArgumentException.class);
+    }
+
+    assertThat(consumed).isEmpty();
+    assertThat(scribeMetrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test
+  public void decodeBase64_sameAsMimeDecoder() {
+    Random random = new Random(1234L);
+    byte[] buffer = new byte[1024];
+    for (int length = 0; length < 256; length++) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+
+      // the mime encoder breaks lines every 76 characters
+      String encoded = Base64.getMimeEncoder().encodeToString(bytes) + "\n";
+      int decodedLength = ScribeSpanConsumer.decodeBase64(encoded, buffer);
+
+      assertThat(Arrays.copyOf(buffer, decodedLength))
+          .isEqualTo(Base64.getMimeDecoder().decode(encoded))
+          .isEqualTo(bytes);
+    }
+  }
+
   static BinaryAnnotation binaryAnnotation(String key, boolean value, Endpoint endpoint) {
     return BinaryAnnotation.create(key, value ? new byte[] {1} : new byte[] {0}, Type.BOOL,
         endpoint);
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.udp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue of datagrams, handed from the receiving thread to decode workers.
+ *
+ * <p>Each slot has a sequence number, which says whether the slot is ready to be written or read
+ * for a given position. Writers and readers claim positions with compare-and-set, so neither ever
+ * blocks: {@link #offer} returns false when full and {@link #poll} returns null when empty.
+ */
+final class DatagramRingBuffer {
+  final AtomicReferenceArray<byte[]> datagrams;
+  final AtomicLongArray sequences;
+  final int mask;
+  final AtomicLong writePosition = new AtomicLong();
+  final AtomicLong readPosition = new AtomicLong();
+
+  /** @param capacity rounded up to a power of two */
+  DatagramRingBuffer(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    datagrams = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) sequences.set(i, i);
+    mask = size - 1;
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  /** Returns false if the buffer is full. */
+  boolean offer(byte[] datagram) {
+    long position = writePosition.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) { // the slot was read, or never written
+        if (writePosition.compareAndSet(position, position + 1)) break;
+        position = writePosition.get();
+      } else if (difference < 0) { // the slot holds a datagram from the last lap
+        return false;
+      } else { // another writer claimed this position
+        position = writePosition.get();
+      }
+    }
+    datagrams.lazySet(index, datagram);
+    sequences.set(index, position + 1); // publishes the datagram to readers
+    return true;
+  }
+
+  /** Returns null if the buffer is empty. */
+  byte[] poll() {
+    long position = readPosition.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) { // the slot was written for this position
+        if (readPosition.compareAndSet(position, position + 1)) break;
+        position = readPosition.get();
+      } else if (difference < 0) { // the slot isn't written yet
+        return null;
+      } else { // another reader claimed this position
+        position = readPosition.get();
+      }
+    }
+    byte[] result = datagrams.get(index);
+    datagrams.lazySet(index, null);
+    sequences.set(index, position + mask + 1); // frees the slot for the next lap
+    return result;
+  }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import zipkin.collector.Collector;
+import zipkin.collector.CollectorComponent;
+import zipkin.collector.CollectorDeduplicator;
+import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
+import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.storage.StorageComponent;
+
+import static zipkin.SpanDecoder.DETECTING_DECODER;
+import static zipkin.internal.Util.checkNotNull;
+import static zipkin.storage.Callback.NOOP;
+
+/**
+ * This collector receives a list of spans per UDP datagram, encoded in json or TBinaryProtocol
+ * big-endian. Senders don't wait for a response, so never block on the collector.
+ *
+ * <p>One thread receives datagrams into a {@link DatagramRingBuffer ring buffer}, which {@link
+ * Builder#workers(int) workers} poll to decode and store spans. When the ring buffer is full,
+ * datagrams are dropped, incrementing {@link CollectorMetrics#incrementMessagesDropped()}.
+ *
+ * <p>Workers that find the ring buffer empty yield briefly, then park until the receiver adds a
+ * datagram, so that an idle collector doesn't use CPU.
+ */
+public final class UdpCollector implements CollectorComponent {
+  /** The largest payload of a UDP datagram is 65507 bytes over IPv4, and 65527 over IPv6. */
+  static final int MAX_DATAGRAM_SIZE = 65535;
+  /** Times an idle worker yields before parking. */
+  static final int IDLE_SPINS = 100;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Configuration including defaults needed to receive spans over UDP. */
+  public static final class Builder implements CollectorComponent.Builder {
+    Collector.Builder delegate = Collector.builder(UdpCollector.class);
+    CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    int port = 9412;
+    int receiveBufferSize = 0;
+    int workers = 2;
+    int ringBufferSize = 1024;
+
+    @Override public Builder storage(StorageComponent storage) {
+      this.delegate.storage(storage);
+      return this;
+    }
+
+    @Override public Builder metrics(CollectorMetrics metrics) {
+      this.metrics = checkNotNull(metrics, "metrics").forTransport("udp");
+      this.delegate.metrics(this.metrics);
+      return this;
+    }
+
+    @Override public Builder sampler(CollectorSampler sampler) {
+      this.delegate.sampler(sampler);
+      return this;
+    }
+
+    /** @see Collector.Builder#queue(CollectorQueue) */
+    public Builder queue(CollectorQueue queue) {
+      this.delegate.queue(queue);
+      return this;
+    }
+
+    /** @see Collector.Builder#rateLimiter(CollectorRateLimiter) */
+    public Builder rateLimiter(CollectorRateLimiter rateLimiter) {
+      this.delegate.rateLimiter(rateLimiter);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSampler(CollectorTailSampler) */
+    public Builder tailSampler(CollectorTailSampler tailSampler) {
+      this.delegate.tailSampler(tailSampler);
+      return this;
+    }
+
+    /** @see Collector.Builder#deduplicator(CollectorDeduplicator) */
+    public Builder deduplicator(CollectorDeduplicator deduplicator) {
+      this.delegate.deduplicator(deduplicator);
+      return this;
+    }
+
+    /** @see Collector.Builder#spool(CollectorSpool) */
+    public Builder spool(CollectorSpool spool) {
+      this.delegate.spool(spool);
+      return this;
+    }
+
+    /** UDP port to receive datagrams on. Zero binds an ephemeral port. Defaults to 9412 */
+    public Builder port(int port) {
+      if (port < 0 || port > 0xffff) throw new IllegalArgumentException("invalid port " + port);
+      this.port = port;
+      return this;
+    }
+
+    /**
+     * Size in bytes of the socket's receive buffer, which holds datagrams until the receiving
+     * thread reads them. The operating system may cap this. Defaults to zero, which leaves the
+     * operating system default.
+     */
+    public Builder receiveBufferSize(int receiveBufferSize) {
+      if (receiveBufferSize < 0) throw new IllegalArgumentException("receiveBufferSize < 0");
+      this.receiveBufferSize = receiveBufferSize;
+      return this;
+    }
+
+    /** Count of threads that decode and store spans. Defaults to 2 */
+    public Builder workers(int workers) {
+      if (workers < 1) throw new IllegalArgumentException("workers < 1");
+      this.workers = workers;
+      return this;
+    }
+
+    /**
+     * Count of datagrams received, but not yet decoded, before new ones are dropped. This is
+     * rounded up to a power of two. Defaults to 1024
+     */
+    public Builder ringBufferSize(int ringBufferSize) {
+      if (ringBufferSize < 1) throw new IllegalArgumentException("ringBufferSize < 1");
+      this.ringBufferSize = ringBufferSize;
+      return this;
+    }
+
+    @Override public UdpCollector build() {
+      return new UdpCollector(this);
+    }
+  }
+
+  final Collector collector;
+  final CollectorMetrics metrics;
+  final int port, receiveBufferSize, workerCount;
+  final DatagramRingBuffer ringBuffer;
+  final AtomicReference<CheckResult> failure = new AtomicReference<>();
+  final List<Thread> threads = new ArrayList<>();
+  /** Workers parked until the receiver adds a datagram */
+  final ConcurrentLinkedQueue<Thread> parkedWorkers = new ConcurrentLinkedQueue<>();
+  DatagramChannel channel; // guarded by this
+  volatile boolean closed;
+
+  UdpCollector(Builder builder) {
+    this.collector = builder.delegate.build();
+    this.metrics = builder.metrics;
+    this.port = builder.port;
+    this.receiveBufferSize = builder.receiveBufferSize;
+    this.workerCount = builder.workers;
+    this.ringBuffer = new DatagramRingBuffer(builder.ringBufferSize);
+  }
+
+  /** Will throw an exception if the {@link Builder#port(int) port} is already in use. */
+  @Override public synchronized UdpCollector start() {
+    if (closed) throw new IllegalStateException("closed");
+    if (channel != null) return this;
+    DatagramChannel channel = null;
+    try {
+      channel = DatagramChannel.open();
+      if (receiveBufferSize != 0) {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+      }
+      channel.bind(new InetSocketAddress(port));
+    } catch (IOException e) {
+      closeQuietly(channel);
+      throw new IllegalStateException("Could not bind UDP port " + port, e);
+    }
+    this.channel = channel;
+
+    threads.add(newThread(new Receiver(channel), "zipkin-udp-receiver"));
+    for (int i = 0; i < workerCount; i++) {
+      threads.add(newThread(new Worker(), "zipkin-udp-worker-" + i));
+    }
+    for (Thread thread : threads) thread.start();
+    return this;
+  }
+
+  /** Returns the port datagrams are received on, or -1 if not started. */
+  synchronized int localPort() {
+    if (channel == null) return -1;
+    try {
+      return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  @Override public CheckResult check() {
+    CheckResult failure = this.failure.get();
+    if (failure != null) return failure;
+    synchronized (this) {
+      if (channel == null || !channel.isOpen()) {
+        return CheckResult.failed(new IllegalStateException("not listening"));
+      }
+    }
+    return CheckResult.OK;
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    closeQuietly(channel); // interrupts the receiver
+    for (Thread thread : threads) LockSupport.unpark(thread);
+    collector.close();
+  }
+
+  /** Reads each datagram into a new array, then adds it to the ring buffer. */
+  final class Receiver implements Runnable {
+    final DatagramChannel channel;
+
+    Receiver(DatagramChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override public void run() {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+      while (!closed) {
+        buffer.clear();
+        try {
+          channel.receive(buffer);
+        } catch (ClosedChannelException e) {
+          break;
+        } catch (IOException | RuntimeException e) {
+          failure.set(CheckResult.failed(e));
+          break;
+        }
+        buffer.flip();
+        metrics.incrementMessages();
+        int length = buffer.remaining();
+        if (length == 0) {
+          metrics.incrementMessagesDropped();
+          continue;
+        }
+        byte[] datagram = new byte[length];
+        buffer.get(datagram);
+        if (!ringBuffer.offer(datagram)) {
+          metrics.incrementBytes(length);
+          metrics.incrementMessagesDropped();
+          continue;
+        }
+        Thread parked = parkedWorkers.poll();
+        if (parked != null) LockSupport.unpark(parked);
+      }
+    }
+  }
+
+  /** Decodes and stores datagrams, parking while the ring buffer is empty. */
+  final class Worker implements Runnable {
+    @Override public void run() {
+      int idle = 0;
+      while (!closed) {
+        byte[] datagram = ringBuffer.poll();
+        if (datagram == null && ++idle < IDLE_SPINS) {
+          Thread.yield();
+          continue;
+        }
+        if (datagram == null) datagram = pollOrPark();
+        if (datagram == null) continue; // woken up, or closed
+        idle = 0;
+        collector.acceptSpans(datagram, DETECTING_DECODER, NOOP);
+      }
+    }
+
+    /**
+     * Parks until the receiver adds a datagram. The ring buffer is polled again once this thread
+     * is visible to the receiver, so that a datagram added meanwhile isn't missed.
+     */
+    byte[] pollOrPark() {
+      Thread current = Thread.currentThread();
+      parkedWorkers.add(current);
+      byte[] datagram = ringBuffer.poll();
+      if (datagram == null && !closed) LockSupport.park(this);
+      parkedWorkers.remove(current); // in case of a spurious wakeup, or a datagram found above
+      return datagram;
+    }
+  }
+
+  static Thread newThread(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  static void closeQuietly(DatagramChannel channel) {
+    if (channel == null) return;
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
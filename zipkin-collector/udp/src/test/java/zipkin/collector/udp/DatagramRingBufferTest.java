@@ -0,0 +1,88 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.udp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DatagramRingBufferTest {
+
+  @Test public void capacityIsRoundedUpToPowerOfTwo() {
+    assertThat(new DatagramRingBuffer(1).capacity()).isEqualTo(1);
+    assertThat(new DatagramRingBuffer(3).capacity()).isEqualTo(4);
+    assertThat(new DatagramRingBuffer(1024).capacity()).isEqualTo(1024);
+  }
+
+  @Test public void offerFailsWhenFull_pollReturnsNullWhenEmpty() {
+    DatagramRingBuffer buffer = new DatagramRingBuffer(2);
+
+    assertThat(buffer.poll()).isNull();
+    assertThat(buffer.offer(new byte[] {1})).isTrue();
+    assertThat(buffer.offer(new byte[] {2})).isTrue();
+    assertThat(buffer.offer(new byte[] {3})).isFalse();
+
+    assertThat(buffer.poll()).containsExactly(1);
+    assertThat(buffer.offer(new byte[] {3})).isTrue();
+    assertThat(buffer.poll()).containsExactly(2);
+    assertThat(buffer.poll()).containsExactly(3);
+    assertThat(buffer.poll()).isNull();
+  }
+
+  /** Each datagram is read exactly once, even with many readers wrapping around the buffer. */
+  @Test public void concurrentReaders() throws Exception {
+    DatagramRingBuffer buffer = new DatagramRingBuffer(8);
+    int count = 10_000, readers = 4;
+    ConcurrentLinkedQueue<byte[]> read = new ConcurrentLinkedQueue<>();
+    CountDownLatch done = new CountDownLatch(count);
+
+    ExecutorService executor = Executors.newFixedThreadPool(readers);
+    for (int i = 0; i < readers; i++) {
+      executor.execute(() -> {
+        while (done.getCount() > 0) {
+          byte[] datagram = buffer.poll();
+          if (datagram == null) {
+            Thread.yield();
+            continue;
+          }
+          read.add(datagram);
+          done.countDown();
+        }
+      });
+    }
+
+    for (int i = 0; i < count; ) {
+      if (buffer.offer(new byte[] {(byte) (i >> 8), (byte) i})) {
+        i++;
+      } else {
+        Thread.yield();
+      }
+    }
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    executor.shutdownNow();
+
+    List<Integer> values = new ArrayList<>();
+    for (byte[] b : read) values.add((b[0] & 0xff) << 8 | (b[1] & 0xff));
+    Collections.sort(values);
+    for (int i = 0; i < count; i++) assertThat(values.get(i)).isEqualTo(i);
+  }
+}
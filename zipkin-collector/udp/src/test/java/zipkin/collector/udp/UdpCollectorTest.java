@@ -0,0 +1,219 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.Timeout;
+import zipkin.Codec;
+import zipkin.Span;
+import zipkin.TestObjects;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.internal.V2SpanConverter;
+import zipkin.storage.AsyncSpanConsumer;
+import zipkin.storage.AsyncSpanStore;
+import zipkin.storage.SpanStore;
+import zipkin.storage.StorageComponent;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.internal.Util.UTF_8;
+
+public class UdpCollectorTest {
+  @Rule public Timeout globalTimeout = Timeout.seconds(20);
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  InMemoryCollectorMetrics udpMetrics = metrics.forTransport("udp");
+
+  LinkedBlockingQueue<List<Span>> receivedSpans = new LinkedBlockingQueue<>();
+  AsyncSpanConsumer consumer = (spans, callback) -> {
+    receivedSpans.add(spans);
+    callback.onSuccess(null);
+  };
+  UdpCollector collector;
+
+  @After public void close() throws IOException {
+    if (collector != null) collector.close();
+  }
+
+  @Test public void checkFailsWhenNotStarted() {
+    collector = builder(consumer).build();
+
+    assertThat(collector.check().ok).isFalse();
+  }
+
+  @Test public void checkPasses() {
+    collector = builder(consumer).build().start();
+
+    assertThat(collector.check().ok).isTrue();
+  }
+
+  @Test public void checkFailsWhenClosed() throws IOException {
+    collector = builder(consumer).build().start();
+    collector.close();
+
+    assertThat(collector.check().ok).isFalse();
+  }
+
+  @Test public void start_failsWhenPortInUse() throws Exception {
+    try (DatagramSocket socket = new DatagramSocket(0)) {
+      thrown.expect(IllegalStateException.class);
+      thrown.expectMessage("Could not bind UDP port " + socket.getLocalPort());
+
+      collector = builder(consumer).port(socket.getLocalPort()).build().start();
+    }
+  }
+
+  @Test public void receivesThriftSpans() throws Exception {
+    collector = builder(consumer).build().start();
+
+    byte[] datagram = Codec.THRIFT.writeSpans(TestObjects.TRACE);
+    send(datagram);
+
+    assertThat(receivedSpans.take()).isEqualTo(TestObjects.TRACE);
+    assertThat(udpMetrics.messages()).isEqualTo(1);
+    assertThat(udpMetrics.bytes()).isEqualTo(datagram.length);
+    assertThat(udpMetrics.spans()).isEqualTo(TestObjects.TRACE.size());
+  }
+
+  @Test public void receivesJsonV2Spans() throws Exception {
+    collector = builder(consumer).build().start();
+
+    List<zipkin2.Span> spans = TestObjects.TRACE.stream()
+      .flatMap(s -> V2SpanConverter.fromSpan(s).stream())
+      .collect(toList());
+    send(SpanBytesEncoder.JSON_V2.encodeList(spans));
+
+    assertThat(receivedSpans.take()).isEqualTo(spans.stream()
+      .map(V2SpanConverter::toSpan)
+      .collect(toList()));
+  }
+
+  @Test public void receivesEachDatagramSeparately() throws Exception {
+    collector = builder(consumer).workers(1).build().start();
+
+    for (Span span : TestObjects.TRACE) {
+      send(Codec.THRIFT.writeSpans(asList(span)));
+    }
+
+    for (Span span : TestObjects.TRACE) {
+      assertThat(receivedSpans.take()).containsExactly(span);
+    }
+    assertThat(udpMetrics.messages()).isEqualTo(TestObjects.TRACE.size());
+  }
+
+  @Test public void idleWorkersParkUntilDatagramArrives() throws Exception {
+    collector = builder(consumer).workers(2).build().start();
+    List<Thread> workers = collector.threads.subList(1, collector.threads.size());
+
+    // parked without a timeout, as opposed to waking periodically to poll
+    await(() -> collector.parkedWorkers.size() == 2
+      && workers.stream().allMatch(t -> t.getState() == Thread.State.WAITING));
+
+    send(Codec.THRIFT.writeSpans(TestObjects.TRACE));
+    assertThat(receivedSpans.take()).isEqualTo(TestObjects.TRACE);
+  }
+
+  @Test public void dropsMalformedDatagrams() throws Exception {
+    collector = builder(consumer).build().start();
+
+    send("[\"='".getBytes(UTF_8)); // not json
+    send(new byte[0]);
+    send(Codec.THRIFT.writeSpans(TestObjects.TRACE));
+
+    assertThat(receivedSpans.take()).isEqualTo(TestObjects.TRACE);
+    await(() -> udpMetrics.messagesDropped() == 2);
+    assertThat(udpMetrics.messages()).isEqualTo(3);
+  }
+
+  @Test public void dropsDatagramsWhenRingBufferIsFull() throws Exception {
+    CountDownLatch storing = new CountDownLatch(1), stored = new CountDownLatch(1);
+    collector = builder((spans, callback) -> {
+      storing.countDown();
+      try {
+        stored.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      receivedSpans.add(spans);
+      callback.onSuccess(null);
+    }).workers(1).ringBufferSize(2).build().start();
+
+    byte[] datagram = Codec.THRIFT.writeSpans(TestObjects.TRACE);
+    send(datagram);
+    storing.await(); // the only worker is now blocked
+
+    for (int i = 0; i < 5; i++) send(datagram);
+    await(() -> udpMetrics.messages() == 6);
+
+    assertThat(udpMetrics.messagesDropped()).isEqualTo(3);
+
+    stored.countDown();
+    for (int i = 0; i < 3; i++) {
+      assertThat(receivedSpans.take()).isEqualTo(TestObjects.TRACE);
+    }
+  }
+
+  UdpCollector.Builder builder(AsyncSpanConsumer consumer) {
+    return UdpCollector.builder()
+      .port(0)
+      .metrics(metrics)
+      .storage(new StorageComponent() {
+        @Override public SpanStore spanStore() {
+          throw new AssertionError();
+        }
+
+        @Override public AsyncSpanStore asyncSpanStore() {
+          throw new AssertionError();
+        }
+
+        @Override public AsyncSpanConsumer asyncSpanConsumer() {
+          return consumer;
+        }
+
+        @Override public CheckResult check() {
+          return CheckResult.OK;
+        }
+
+        @Override public void close() {
+          throw new AssertionError();
+        }
+      });
+  }
+
+  void send(byte[] datagram) throws IOException {
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.send(new DatagramPacket(datagram, datagram.length,
+        InetAddress.getLoopbackAddress(), collector.localPort()));
+    }
+  }
+
+  static void await(BooleanSupplier condition) throws InterruptedException {
+    while (!condition.getAsBoolean()) TimeUnit.MILLISECONDS.sleep(10);
+  }
+}
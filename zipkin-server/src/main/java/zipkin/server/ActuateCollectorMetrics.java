@@ -19,7 +19,7 @@ import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.actuate.metrics.buffer.BufferMetricReader;
 import org.springframework.boot.actuate.metrics.buffer.CounterBuffers;
 import org.springframework.boot.actuate.metrics.buffer.GaugeBuffers;
-import zipkin.collector.CollectorMetrics;
+import zipkin.collector.ExtendedCollectorMetrics;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -43,12 +43,28 @@ import static zipkin.internal.Util.checkNotNull;
  * include sampling or storage failures</li>
  *     <li>gauge.zipkin_collector.message_spans.$transport - last count of spans in a message</li>
  *     <li>gauge.zipkin_collector.message_bytes.$transport - last count of bytes in a message</li>
+ *     <li>gauge.zipkin_collector.queued_spans.$transport - spans waiting for or in flight to
+ * storage; only reported when a collector queue is in use</li>
+ *     <li>gauge.zipkin_collector.queued_bytes.$transport - estimated bytes of queued spans</li>
+ *     <li>counter.zipkin_collector.spans_rate_limited.$transport.$service - cumulative spans
+ * dropped by the rate limit of a service; only reported when a rate limit is in use</li>
+ *     <li>gauge.zipkin_collector.buffered_spans.$transport - spans held by the tail sampler until
+ * their trace is decided</li>
+ *     <li>counter.zipkin_collector.traces_evicted.$transport - cumulative traces the tail sampler
+ * decided early, as it was full</li>
+ *     <li>counter.zipkin_collector.spans_deduplicated.$transport - cumulative spans dropped as
+ * already stored; only reported when deduplication is in use</li>
+ *     <li>gauge.zipkin_collector.spooled_bytes.$transport - bytes spooled to disk awaiting replay;
+ * only reported when a spool is in use</li>
+ *     <li>gauge.zipkin_collector.spool_segments.$transport - segment files held by the spool</li>
+ *     <li>gauge.zipkin_collector.spool_replay_lag_ms.$transport - age of the eldest span awaiting
+ * replay</li>
  * </ul>
  * </pre>
  *
  * See https://docs.spring.io/spring-boot/docs/current/reference/html/production-ready-metrics.html
  */
-public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMetrics
+public final class ActuateCollectorMetrics implements ExtendedCollectorMetrics, PublicMetrics
 {
   private final CounterBuffers counterBuffers;
   private final GaugeBuffers gaugeBuffers;
@@ -59,6 +75,15 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String queuedSpans;
+  private final String queuedBytes;
+  private final String spansRateLimited;
+  private final String bufferedSpans;
+  private final String tracesEvicted;
+  private final String spansDeduplicated;
+  private final String spooledBytes;
+  private final String spoolSegments;
+  private final String spoolReplayLag;
   private final BufferMetricReader reader;
 
   public ActuateCollectorMetrics(CounterBuffers counterBuffers, GaugeBuffers gaugeBuffers) {
@@ -78,6 +103,15 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
     this.bytes = "counter.zipkin_collector.bytes" + footer;
     this.spans = "counter.zipkin_collector.spans" + footer;
     this.spansDropped = "counter.zipkin_collector.spans_dropped" + footer;
+    this.queuedSpans = "gauge.zipkin_collector.queued_spans" + footer;
+    this.queuedBytes = "gauge.zipkin_collector.queued_bytes" + footer;
+    this.spansRateLimited = "counter.zipkin_collector.spans_rate_limited" + footer + ".";
+    this.bufferedSpans = "gauge.zipkin_collector.buffered_spans" + footer;
+    this.tracesEvicted = "counter.zipkin_collector.traces_evicted" + footer;
+    this.spansDeduplicated = "counter.zipkin_collector.spans_deduplicated" + footer;
+    this.spooledBytes = "gauge.zipkin_collector.spooled_bytes" + footer;
+    this.spoolSegments = "gauge.zipkin_collector.spool_segments" + footer;
+    this.spoolReplayLag = "gauge.zipkin_collector.spool_replay_lag_ms" + footer;
   }
 
   @Override public ActuateCollectorMetrics forTransport(String transportType) {
@@ -118,6 +152,42 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
     counterBuffers.increment(spansDropped, quantity);
   }
 
+  @Override public void updateQueuedSpans(int quantity) {
+    gaugeBuffers.set(queuedSpans, quantity);
+  }
+
+  @Override public void updateQueuedBytes(int quantity) {
+    gaugeBuffers.set(queuedBytes, quantity);
+  }
+
+  @Override public void incrementSpansRateLimited(String serviceName, int quantity) {
+    counterBuffers.increment(spansRateLimited + serviceName, quantity);
+  }
+
+  @Override public void updateBufferedSpans(int quantity) {
+    gaugeBuffers.set(bufferedSpans, quantity);
+  }
+
+  @Override public void incrementTracesEvicted(int quantity) {
+    counterBuffers.increment(tracesEvicted, quantity);
+  }
+
+  @Override public void incrementSpansDeduplicated(int quantity) {
+    counterBuffers.increment(spansDeduplicated, quantity);
+  }
+
+  @Override public void updateSpooledBytes(long quantity) {
+    gaugeBuffers.set(spooledBytes, quantity);
+  }
+
+  @Override public void updateSpoolSegments(int quantity) {
+    gaugeBuffers.set(spoolSegments, quantity);
+  }
+
+  @Override public void updateSpoolReplayLag(long millis) {
+    gaugeBuffers.set(spoolReplayLag, millis);
+  }
+
   // visible for testing
   void reset() {
     counterBuffers.reset(messages);
@@ -125,7 +195,15 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
     counterBuffers.reset(bytes);
     counterBuffers.reset(spans);
     counterBuffers.reset(spansDropped);
+    counterBuffers.reset(tracesEvicted);
+    counterBuffers.reset(spansDeduplicated);
     gaugeBuffers.set(messageSpans, 0);
     gaugeBuffers.set(messageBytes, 0);
+    gaugeBuffers.set(queuedSpans, 0);
+    gaugeBuffers.set(queuedBytes, 0);
+    gaugeBuffers.set(bufferedSpans, 0);
+    gaugeBuffers.set(spooledBytes, 0);
+    gaugeBuffers.set(spoolSegments, 0);
+    gaugeBuffers.set(spoolReplayLag, 0);
   }
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import zipkin2.storage.InMemoryStorage;
+
+/**
+ * Exports the cost of keeping in-memory storage under its span limit to the "/metrics" endpoint:
+ *
+ * <pre>
+ * <ul>
+ *     <li>counter.zipkin_storage.mem.evictions - times spans were evicted to make room</li>
+ *     <li>counter.zipkin_storage.mem.traces_evicted - cumulative traces evicted</li>
+ *     <li>counter.zipkin_storage.mem.spans_evicted - cumulative spans evicted</li>
+ *     <li>counter.zipkin_storage.mem.spans_oversized - spans dropped as larger than an off-heap
+ *     segment</li>
+ *     <li>gauge.zipkin_storage.mem.eviction_millis - average time an eviction held up ingestion</li>
+ * </ul>
+ * </pre>
+ */
+final class ActuateInMemoryStorageMetrics implements PublicMetrics {
+  final InMemoryStorage storage;
+
+  ActuateInMemoryStorageMetrics(InMemoryStorage storage) {
+    this.storage = storage;
+  }
+
+  @Override public Collection<Metric<?>> metrics() {
+    long evictions = storage.evictionCount();
+    double evictionMillis = evictions == 0 ? 0.0d : storage.evictionNanos() / 1e6 / evictions;
+
+    List<Metric<?>> result = new ArrayList<>(5);
+    result.add(new Metric<Number>("counter.zipkin_storage.mem.evictions", evictions));
+    result.add(
+      new Metric<Number>("counter.zipkin_storage.mem.traces_evicted", storage.evictedTraceCount()));
+    result.add(
+      new Metric<Number>("counter.zipkin_storage.mem.spans_evicted", storage.evictedSpanCount()));
+    result.add(new Metric<Number>("counter.zipkin_storage.mem.spans_oversized",
+      storage.oversizedSpanCount()));
+    result.add(new Metric<Number>("gauge.zipkin_storage.mem.eviction_millis", evictionMillis));
+    return result;
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads request bodies with as few copies as possible.
+ *
+ * <p>A plain body is read directly into an array of its content length. A gzipped body is read
+ * into a buffer reused by the thread, then inflated with a reused {@link Inflater} into an array
+ * sized by the gzip trailer, which holds the uncompressed length. Neither length is trusted for
+ * more than {@link #MAX_RETAINED_BUFFER}: larger arrays grow as bytes arrive, so a client can't
+ * make the server allocate memory it never sends.
+ */
+final class RequestBodyReader {
+  /** Buffers larger than this aren't kept after a request, so one large message can't pin memory */
+  static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+  /** Deflate can't compress more than about 1032:1, so a larger gzip size hint is a lie. */
+  static final int MAX_DEFLATE_RATIO = 1032;
+  /** Caps the initial allocation from a size hint. Larger outputs grow as they inflate. */
+  static final int MAX_SIZE_HINT = 64 * 1024 * 1024;
+  static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+  static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+    @Override protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+
+  static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    @Override protected Inflater initialValue() {
+      return new Inflater(true); // the gzip header and trailer are parsed here
+    }
+  };
+
+  /**
+   * Reads the whole input.
+   *
+   * @param contentLength the length of the body or -1 if unknown
+   */
+  static byte[] read(InputStream in, int contentLength) throws IOException {
+    if (contentLength >= 0) { // read directly into the result
+      byte[] result = new byte[Math.min(contentLength, MAX_RETAINED_BUFFER)];
+      int length = 0, read;
+      while (length < contentLength) {
+        if (length == result.length) { // grow as bytes arrive, up to the content length
+          result = Arrays.copyOf(result, (int) Math.min(contentLength, result.length * 2L));
+        }
+        if ((read = in.read(result, length, result.length - length)) == -1) break;
+        length += read;
+      }
+      return length == result.length ? result : Arrays.copyOf(result, length);
+    }
+    Buffer buffer = BUFFER.get();
+    try {
+      buffer.readFrom(in, contentLength);
+      return Arrays.copyOf(buffer.bytes, buffer.length);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * Reads and inflates a gzipped input.
+   *
+   * @param contentLength the length of the compressed body or -1 if unknown
+   */
+  static byte[] gunzip(InputStream in, int contentLength) throws IOException {
+    Buffer buffer = BUFFER.get();
+    try {
+      buffer.readFrom(in, contentLength);
+      return gunzip(buffer.bytes, buffer.length);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /** Inflates gzip data in the input, which may contain multiple members. */
+  static byte[] gunzip(byte[] input, int length) throws ZipException {
+    if (length < 18) throw new ZipException("Not in GZIP format");
+    // ISIZE in the trailer is the length of the last member, mod 2^32: use it as a hint
+    long sizeHint = readIntLe(input, length - 4) & 0xffffffffL;
+    if (sizeHint == 0 || sizeHint > (long) length * MAX_DEFLATE_RATIO) sizeHint = length * 4L;
+    byte[] output = new byte[(int) Math.min(sizeHint, MAX_SIZE_HINT)];
+    int outputLength = 0;
+
+    Inflater inflater = INFLATER.get();
+    CRC32 crc = new CRC32();
+    int pos = 0;
+    try {
+      while (pos < length) {
+        pos = readHeader(input, pos, length);
+        inflater.reset();
+        inflater.setInput(input, pos, length - pos);
+        int memberStart = outputLength;
+        while (!inflater.finished()) {
+          if (outputLength == output.length) {
+            output = Arrays.copyOf(output, output.length + (output.length >> 1) + 64);
+          }
+          int inflated = inflater.inflate(output, outputLength, output.length - outputLength);
+          if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new ZipException("Unexpected end of ZLIB input stream");
+          }
+          outputLength += inflated;
+        }
+        pos = length - inflater.getRemaining();
+        if (length - pos < 8) throw new ZipException("Unexpected end of ZLIB input stream");
+        crc.reset();
+        crc.update(output, memberStart, outputLength - memberStart);
+        if (readIntLe(input, pos) != (int) crc.getValue()
+          || readIntLe(input, pos + 4) != outputLength - memberStart) {
+          throw new ZipException("Corrupt GZIP trailer");
+        }
+        pos += 8;
+      }
+    } catch (DataFormatException e) {
+      String message = e.getMessage();
+      throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+    } finally {
+      inflater.reset();
+    }
+    return outputLength == output.length ? output : Arrays.copyOf(output, outputLength);
+  }
+
+  /** Returns the position after the header of the gzip member at the input position. */
+  static int readHeader(byte[] input, int pos, int length) throws ZipException {
+    if (length - pos < 10 || (input[pos] & 0xff) != 0x1f || (input[pos + 1] & 0xff) != 0x8b) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (input[pos + 2] != 8) throw new ZipException("Unsupported compression method");
+    int flags = input[pos + 3] & 0xff;
+    pos += 10; // skip MTIME, XFL and OS
+    try {
+      if ((flags & FEXTRA) != 0) pos += 2 + ((input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8);
+      if ((flags & FNAME) != 0) pos = skipZeroTerminated(input, pos, length);
+      if ((flags & FCOMMENT) != 0) pos = skipZeroTerminated(input, pos, length);
+      if ((flags & FHCRC) != 0) pos += 2;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      pos = length + 1;
+    }
+    if (pos > length) throw new ZipException("Unexpected end of GZIP header");
+    return pos;
+  }
+
+  static int skipZeroTerminated(byte[] input, int pos, int length) {
+    while (pos < length && input[pos] != 0) pos++;
+    return pos + 1;
+  }
+
+  static int readIntLe(byte[] input, int pos) {
+    return (input[pos] & 0xff)
+      | (input[pos + 1] & 0xff) << 8
+      | (input[pos + 2] & 0xff) << 16
+      | (input[pos + 3] & 0xff) << 24;
+  }
+
+  /** A growable buffer reused by each thread. */
+  static final class Buffer {
+    byte[] bytes = new byte[8192];
+    int length;
+
+    void readFrom(InputStream in, int contentLength) throws IOException {
+      if (contentLength > bytes.length) {
+        bytes = new byte[Math.min(contentLength, MAX_RETAINED_BUFFER)];
+      }
+      int read;
+      while (true) {
+        if (length == bytes.length) {
+          bytes = Arrays.copyOf(bytes, bytes.length + (bytes.length >> 1));
+        }
+        if ((read = in.read(bytes, length, bytes.length - length)) == -1) return;
+        length += read;
+        if (length == contentLength) return;
+      }
+    }
+
+    void release() {
+      if (bytes.length > MAX_RETAINED_BUFFER) bytes = new byte[8192];
+      length = 0;
+    }
+  }
+
+  private RequestBodyReader() {
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A read-only view of request headers for {@link zipkin.collector.SpanDecorator span decorators},
+ * which usually only look up a header or two. Lookups are case-insensitive and go directly to the
+ * request, so headers are only copied when iterated.
+ *
+ * <p>This is only valid while the request is being processed.
+ */
+final class RequestHeaders extends AbstractMap<String, String> {
+  final HttpServletRequest request;
+  Map<String, String> copy; // lazy as most decorators don't iterate headers
+
+  RequestHeaders(HttpServletRequest request) {
+    this.request = request;
+  }
+
+  @Override public String get(Object name) {
+    return name instanceof String ? request.getHeader((String) name) : null;
+  }
+
+  @Override public boolean containsKey(Object name) {
+    return get(name) != null;
+  }
+
+  @Override public Set<Entry<String, String>> entrySet() {
+    if (copy == null) {
+      Map<String, String> result = new LinkedHashMap<>();
+      Enumeration<String> names = request.getHeaderNames();
+      while (names != null && names.hasMoreElements()) {
+        String name = names.nextElement();
+        result.put(name, request.getHeader(name));
+      }
+      copy = Collections.unmodifiableMap(result);
+    }
+    return copy.entrySet();
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.support.SpringFactoriesLoader;
+import org.springframework.util.ClassUtils;
+import zipkin.internal.V1StorageAdapter;
+import zipkin.internal.V2StorageComponent;
+import zipkin.storage.StorageComponent;
+import zipkin2.storage.FanOutStorage;
+
+/**
+ * Writes to several storage types at the same time, for example during a migration from Cassandra
+ * to Elasticsearch. Each storage type is configured as usual, for example with {@code ES_HOSTS}.
+ *
+ * <p>Each type is created in its own application context, as if it were the value of {@code
+ * zipkin.storage.type}, then combined into a {@link FanOutStorage}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "zipkin.storage.type", havingValue = "fanout")
+@ConditionalOnMissingBean(StorageComponent.class)
+class ZipkinFanOutStorageConfiguration implements DisposableBean {
+  /** Packages of auto-configuration that create a storage component. */
+  static final String[] STORAGE_PACKAGES = {
+    "zipkin.autoconfigure.storage.", "com.oracle.odx.jafar.zipkin."
+  };
+
+  final List<AnnotationConfigApplicationContext> contexts = new ArrayList<>();
+
+  @Bean StorageComponent storage(ConfigurableEnvironment environment,
+    @Value("${zipkin.storage.fanout.primary:mem}") String primary,
+    @Value("${zipkin.storage.fanout.secondaries:}") String[] secondaries,
+    @Value("${zipkin.storage.fanout.read-fallback:}") String readFallback,
+    @Value("${zipkin.storage.fanout.queue-size:1000}") int queueSize,
+    @Value("${zipkin.storage.fanout.concurrency:1}") int concurrency) {
+    FanOutStorage.Builder builder = FanOutStorage.newBuilder()
+      .primary(primary, storage(environment, primary))
+      .readFallback(readFallback.isEmpty() ? null : readFallback)
+      .queueSize(queueSize)
+      .concurrency(concurrency);
+    for (String secondary : secondaries) {
+      if (secondary.isEmpty()) continue;
+      builder.addSecondary(secondary, storage(environment, secondary));
+    }
+    return V2StorageComponent.create(builder.build());
+  }
+
+  zipkin2.storage.StorageComponent storage(ConfigurableEnvironment parent, String type) {
+    if (type.equals("fanout")) throw new IllegalArgumentException("fanout can't contain itself");
+    AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    contexts.add(context);
+    context.setEnvironment(environment(parent, type));
+    context.register(PropertyPlaceholderAutoConfiguration.class,
+      ZipkinServerConfiguration.InMemoryConfiguration.class);
+    for (String name : storageAutoConfigurations()) {
+      context.register(ClassUtils.resolveClassName(name, getClass().getClassLoader()));
+    }
+    context.refresh();
+    if (context.getBeanNamesForType(StorageComponent.class).length == 0) {
+      throw new IllegalArgumentException("unsupported storage type: " + type);
+    }
+    return V1StorageAdapter.create(context.getBean(StorageComponent.class));
+  }
+
+  /** Overlays the storage type on the parent's properties */
+  static ConfigurableEnvironment environment(ConfigurableEnvironment parent, String type) {
+    StandardEnvironment result = new StandardEnvironment();
+    result.getPropertySources().addFirst(new MapPropertySource("zipkin.storage.fanout",
+      Collections.singletonMap("zipkin.storage.type", type)));
+    for (PropertySource<?> source : parent.getPropertySources()) {
+      result.getPropertySources().addLast(source);
+    }
+    return result;
+  }
+
+  Set<String> storageAutoConfigurations() {
+    Set<String> result = new LinkedHashSet<>();
+    for (String name : SpringFactoriesLoader.loadFactoryNames(EnableAutoConfiguration.class,
+      getClass().getClassLoader())) {
+      if (name.contains(".brave.")) continue; // self-tracing is configured by the parent
+      for (String storagePackage : STORAGE_PACKAGES) {
+        if (name.startsWith(storagePackage)) result.add(name);
+      }
+    }
+    return result;
+  }
+
+  @Override public void destroy() {
+    for (AnnotationConfigApplicationContext context : contexts) context.close();
+  }
+}
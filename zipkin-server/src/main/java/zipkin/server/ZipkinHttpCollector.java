@@ -13,13 +13,13 @@
  */
 package zipkin.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -28,15 +28,19 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.bind.annotation.CrossOrigin;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import zipkin.SpanDecoder;
 import zipkin.collector.Collector;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.collector.SpanDecorator;
+import zipkin.internal.Proto3SpanDecoder;
 import zipkin.internal.V2JsonSpanDecoder;
 import zipkin.storage.Callback;
 import zipkin.storage.StorageComponent;
@@ -52,68 +56,96 @@ import static org.springframework.web.bind.annotation.RequestMethod.POST;
 public class ZipkinHttpCollector {
   static final ResponseEntity<?> SUCCESS = ResponseEntity.accepted().build();
   static final String APPLICATION_THRIFT = "application/x-thrift";
+  static final String APPLICATION_PROTOBUF = "application/x-protobuf";
   static final SpanDecoder JSON2_DECODER = new V2JsonSpanDecoder();
+  static final SpanDecoder PROTO3_DECODER = new Proto3SpanDecoder();
 
   final CollectorMetrics metrics;
   final Collector collector;
 
   @Autowired ZipkinHttpCollector(StorageComponent storage, CollectorSampler sampler,
-      CollectorMetrics metrics,
+      CollectorMetrics metrics, Optional<CollectorQueue> queue,
+      Optional<CollectorRateLimiter> rateLimiter, Optional<CollectorTailSampler> tailSampler,
+      Optional<CollectorDeduplicator> deduplicator, Optional<CollectorSpool> spool,
       @Qualifier(SpanDecorator.V1_QUALIFIER) List<SpanDecorator<zipkin.Span>> v1InterceptorsList,
       @Qualifier(SpanDecorator.V2_QUALIFIER) List<SpanDecorator<zipkin2.Span>> v2InterceptorsList) {
     this.metrics = metrics.forTransport("http");
-    this.collector = Collector.builder(getClass())
+    Collector.Builder builder = Collector.builder(getClass())
         .storage(storage).sampler(sampler).metrics(this.metrics)
-        .v1Interceptors(v1InterceptorsList).v2Interceptors(v2InterceptorsList).build();
+        .v1Interceptors(v1InterceptorsList).v2Interceptors(v2InterceptorsList);
+    queue.ifPresent(builder::queue);
+    rateLimiter.ifPresent(builder::rateLimiter);
+    tailSampler.ifPresent(builder::tailSampler);
+    deduplicator.ifPresent(builder::deduplicator);
+    spool.ifPresent(builder::spool);
+    this.collector = builder.build();
+  }
+
+  /** Releases the spool directory, if any, so that the next server can replay it. */
+  @PreDestroy void close() throws IOException {
+    collector.close();
   }
 
   @RequestMapping(value = "/api/v2/spans", method = POST)
-  public ListenableFuture<ResponseEntity<?>> uploadSpansJson2(
-    @RequestHeader(value = "Content-Encoding", required = false) String encoding,
-    @RequestHeader Map<String, String> allHeaders,
-    @RequestBody byte[] body
-  ) {
-    return validateAndStoreSpans(encoding, allHeaders, JSON2_DECODER, body);
+  public ListenableFuture<ResponseEntity<?>> uploadSpansJson2(HttpServletRequest request) {
+    return validateAndStoreSpans(request, JSON2_DECODER);
+  }
+
+  @RequestMapping(value = "/api/v2/spans", method = POST, consumes = APPLICATION_PROTOBUF)
+  public ListenableFuture<ResponseEntity<?>> uploadSpansProto3(HttpServletRequest request) {
+    return validateAndStoreSpans(request, PROTO3_DECODER);
   }
 
   @RequestMapping(value = "/api/v1/spans", method = POST)
-  public ListenableFuture<ResponseEntity<?>> uploadSpansJson(
-      @RequestHeader(value = "Content-Encoding", required = false) String encoding,
-      @RequestHeader Map<String, String> allHeaders,
-      @RequestBody byte[] body
-  ) {
-    
-    return validateAndStoreSpans(encoding, allHeaders, SpanDecoder.JSON_DECODER, body);
+  public ListenableFuture<ResponseEntity<?>> uploadSpansJson(HttpServletRequest request) {
+    return validateAndStoreSpans(request, SpanDecoder.JSON_DECODER);
   }
 
   @RequestMapping(value = "/api/v1/spans", method = POST, consumes = APPLICATION_THRIFT)
-  public ListenableFuture<ResponseEntity<?>> uploadSpansThrift(
-      @RequestHeader(value = "Content-Encoding", required = false) String encoding,
-      @RequestHeader Map<String, String> allHeaders,
-      @RequestBody byte[] body
-  ) {
-    return validateAndStoreSpans(encoding, allHeaders, SpanDecoder.THRIFT_DECODER, body);
+  public ListenableFuture<ResponseEntity<?>> uploadSpansThrift(HttpServletRequest request) {
+    return validateAndStoreSpans(request, SpanDecoder.THRIFT_DECODER);
   }
 
-  ListenableFuture<ResponseEntity<?>> validateAndStoreSpans(String encoding, final Map<String, String> allHeaders, SpanDecoder decoder,
-      byte[] body) {
+  /**
+   * Reads the body from the request stream, inflating it when gzipped, instead of binding it to a
+   * byte array first. Headers are passed to decorators as a view of the request.
+   */
+  ListenableFuture<ResponseEntity<?>> validateAndStoreSpans(HttpServletRequest request,
+    SpanDecoder decoder) {
     SettableListenableFuture<ResponseEntity<?>> result = new SettableListenableFuture<>();
     metrics.incrementMessages();
+    String encoding = request.getHeader("Content-Encoding");
+    byte[] body;
     if (encoding != null && encoding.contains("gzip")) {
       try {
-        body = gunzip(body);
+        body = RequestBodyReader.gunzip(request.getInputStream(), request.getContentLength());
+      } catch (IOException e) {
+        metrics.incrementMessagesDropped();
+        result.set(
+          ResponseEntity.badRequest().body("Cannot gunzip spans: " + e.getMessage() + "\n"));
+        return result;
+      }
+    } else {
+      try {
+        body = RequestBodyReader.read(request.getInputStream(), request.getContentLength());
       } catch (IOException e) {
         metrics.incrementMessagesDropped();
-        result.set(ResponseEntity.badRequest().body("Cannot gunzip spans: " + e.getMessage() + "\n"));
+        result.set(
+          ResponseEntity.badRequest().body("Cannot read spans: " + e.getMessage() + "\n"));
+        return result;
       }
     }
-    collector.acceptSpans(allHeaders, body, decoder, new Callback<Void>() {
+    collector.acceptSpans(new RequestHeaders(request), body, decoder, new Callback<Void>() {
       @Override public void onSuccess(@Nullable Void value) {
         result.set(SUCCESS);
       }
 
       @Override public void onError(Throwable t) {
         String message = t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+        if (t instanceof RejectedExecutionException) { // the collector queue is full
+          result.set(ResponseEntity.status(503).body(message + "\n"));
+          return;
+        }
         result.set(t.getMessage() == null || message.startsWith("Cannot store")
             ? ResponseEntity.status(500).body(message + "\n")
             : ResponseEntity.status(400).body(message + "\n"));
@@ -121,22 +153,4 @@ public class ZipkinHttpCollector {
     });
     return result;
   }
-
-  private static final ThreadLocal<byte[]> GZIP_BUFFER = new ThreadLocal<byte[]>() {
-    @Override protected byte[] initialValue() {
-      return new byte[1024];
-    }
-  };
-
-  static byte[] gunzip(byte[] input) throws IOException {
-    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(input));
-    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(input.length)) {
-      byte[] buf = GZIP_BUFFER.get();
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        outputStream.write(buf, 0, len);
-      }
-      return outputStream.toByteArray();
-    }
-  }
 }
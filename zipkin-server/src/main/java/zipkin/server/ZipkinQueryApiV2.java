@@ -22,16 +22,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.context.request.WebRequest;
 import zipkin.internal.V2StorageComponent;
 import zipkin2.Call;
 import zipkin2.DependencyLink;
@@ -49,6 +50,8 @@ import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 @ConditionalOnProperty(name = "zipkin.query.enabled", matchIfMissing = true)
 public class ZipkinQueryApiV2 {
   static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final String APPLICATION_PROTOBUF = "application/x-protobuf";
+  static final MediaType PROTOBUF = MediaType.parseMediaType(APPLICATION_PROTOBUF);
 
   final String storageType;
   final StorageComponent storage; // don't cache spanStore here as it can cause the app to crash!
@@ -131,13 +134,29 @@ public class ZipkinQueryApiV2 {
     return new String(writeTraces(SpanBytesEncoder.JSON_V2, traces), UTF_8);
   }
 
-  @RequestMapping(value = "/trace/{traceIdHex}", method = RequestMethod.GET, produces = APPLICATION_JSON_VALUE)
-  public String getTrace(@PathVariable String traceIdHex, WebRequest request) throws IOException {
+  /** Returns proto3 when the client prefers it to json, for example "Accept: application/x-protobuf" */
+  @RequestMapping(value = "/trace/{traceIdHex}", method = RequestMethod.GET,
+    produces = {APPLICATION_JSON_VALUE, APPLICATION_PROTOBUF})
+  public byte[] getTrace(@PathVariable String traceIdHex,
+    @Nullable @RequestHeader(value = "Accept", required = false) String accept) throws IOException {
     if (storage == null) throw new Version2StorageNotConfigured();
 
     List<Span> trace = storage.spanStore().getTrace(traceIdHex).execute();
     if (trace.isEmpty()) throw new TraceNotFoundException(traceIdHex);
-    return new String(SpanBytesEncoder.JSON_V2.encodeList(trace), UTF_8);
+    return prefersProto3(accept)
+      ? SpanBytesEncoder.PROTO3.encodeList(trace)
+      : SpanBytesEncoder.JSON_V2.encodeList(trace);
+  }
+
+  static boolean prefersProto3(@Nullable String accept) {
+    if (accept == null) return false;
+    List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+    MediaType.sortBySpecificityAndQuality(mediaTypes);
+    for (MediaType mediaType : mediaTypes) {
+      if (mediaType.includes(MediaType.APPLICATION_JSON)) return false;
+      if (mediaType.includes(PROTOBUF)) return true;
+    }
+    return false;
   }
 
   @ExceptionHandler(Version2StorageNotConfigured.class)
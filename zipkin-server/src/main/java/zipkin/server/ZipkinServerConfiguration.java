@@ -14,6 +14,7 @@
 package zipkin.server;
 
 import com.github.kristofa.brave.Brave;
+import java.io.File;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -26,8 +27,14 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.internal.V2StorageComponent;
 import zipkin.server.brave.TracedStorageComponent;
 import zipkin.storage.StorageComponent;
@@ -35,6 +42,7 @@ import zipkin2.storage.InMemoryStorage;
 
 @Configuration
 @ComponentScan("zipkin.server.jafar") // MAC
+@Import(ZipkinFanOutStorageConfiguration.class)
 public class ZipkinServerConfiguration {
 
   /** Registers health for any components, even those not in this jar. */
@@ -48,6 +56,100 @@ public class ZipkinServerConfiguration {
     return CollectorSampler.create(rate);
   }
 
+  /** When enabled, each collector bounds the spans waiting for storage using these settings. */
+  @Bean
+  @ConditionalOnMissingBean(CollectorQueue.class)
+  @ConditionalOnProperty(name = "zipkin.collector.queue.enabled", havingValue = "true")
+  CollectorQueue collectorQueue(
+    @Value("${zipkin.collector.queue.max-spans:100000}") int maxSpans,
+    @Value("${zipkin.collector.queue.max-bytes:2147483647}") int maxBytes,
+    @Value("${zipkin.collector.queue.max-concurrency:64}") int maxConcurrency,
+    @Value("${zipkin.collector.queue.overflow:BLOCK}") CollectorQueue.Overflow overflow,
+    @Value("${zipkin.collector.queue.max-batch-spans:1}") int maxBatchSpans,
+    @Value("${zipkin.collector.queue.max-batch-bytes:2147483647}") int maxBatchBytes,
+    @Value("${zipkin.collector.queue.max-linger-ms:0}") long maxLingerMillis) {
+    return CollectorQueue.newBuilder()
+      .maxSpans(maxSpans)
+      .maxBytes(maxBytes)
+      .maxConcurrency(maxConcurrency)
+      .overflow(overflow)
+      .maxBatchSpans(maxBatchSpans)
+      .maxBatchBytes(maxBatchBytes)
+      .maxLingerMillis(maxLingerMillis).build();
+  }
+
+  /** When enabled, all collectors share this limit on the rate of spans stored per service. */
+  @Bean
+  @ConditionalOnMissingBean(CollectorRateLimiter.class)
+  @ConditionalOnProperty(name = "zipkin.collector.rate-limit.enabled", havingValue = "true")
+  CollectorRateLimiter collectorRateLimiter(
+    @Value("${zipkin.collector.rate-limit.spans-per-second:1000}") int spansPerSecond,
+    @Value("${zipkin.collector.rate-limit.overrides:}") String overrides,
+    @Value("${zipkin.collector.rate-limit.burst-seconds:1}") int burstSeconds,
+    @Value("${zipkin.collector.rate-limit.max-services:1000}") int maxServices) {
+    return CollectorRateLimiter.newBuilder()
+      .spansPerSecond(spansPerSecond)
+      .parseOverrides(overrides)
+      .burstSeconds(burstSeconds)
+      .maxServices(maxServices).build();
+  }
+
+  /** When enabled, each collector holds spans until their trace is complete, then samples it. */
+  @Bean
+  @ConditionalOnMissingBean(CollectorTailSampler.class)
+  @ConditionalOnProperty(name = "zipkin.collector.tail-sampler.enabled", havingValue = "true")
+  CollectorTailSampler collectorTailSampler(
+    @Value("${zipkin.collector.tail-sampler.decision-wait-ms:10000}") long decisionWaitMillis,
+    @Value("${zipkin.collector.tail-sampler.max-wait-ms:60000}") long maxWaitMillis,
+    @Value("${zipkin.collector.tail-sampler.max-spans:100000}") int maxSpans,
+    @Value("${zipkin.collector.tail-sampler.latency-threshold-ms:0}") long latencyThresholdMillis,
+    @Value("${zipkin.collector.tail-sampler.services:}") String services,
+    @Value("${zipkin.collector.tail-sampler.sample-rate:0.1}") float sampleRate) {
+    CollectorTailSampler.Builder builder = CollectorTailSampler.newBuilder()
+      .decisionWaitMillis(decisionWaitMillis)
+      .maxWaitMillis(maxWaitMillis)
+      .maxSpans(maxSpans)
+      .latencyThresholdMillis(latencyThresholdMillis)
+      .sampleRate(sampleRate);
+    for (String service : services.split(",")) {
+      if (!service.trim().isEmpty()) builder.addService(service.trim());
+    }
+    return builder.build();
+  }
+
+  /** When enabled, all collectors share this filter of recently stored spans. */
+  @Bean
+  @ConditionalOnMissingBean(CollectorDeduplicator.class)
+  @ConditionalOnProperty(name = "zipkin.collector.dedupe.enabled", havingValue = "true")
+  CollectorDeduplicator collectorDeduplicator(
+    @Value("${zipkin.collector.dedupe.max-bytes:8388608}") int maxBytes,
+    @Value("${zipkin.collector.dedupe.false-positive-rate:0.0001}") double falsePositiveRate,
+    @Value("${zipkin.collector.dedupe.window-ms:300000}") long windowMillis,
+    @Value("${zipkin.collector.dedupe.slices:4}") int slices) {
+    return CollectorDeduplicator.newBuilder()
+      .maxBytes(maxBytes)
+      .falsePositiveRate(falsePositiveRate)
+      .windowMillis(windowMillis)
+      .slices(slices).build();
+  }
+
+  /** When enabled, each collector spools spans to a subdirectory while storage is failing. */
+  @Bean
+  @ConditionalOnMissingBean(CollectorSpool.class)
+  @ConditionalOnProperty(name = "zipkin.collector.spool.enabled", havingValue = "true")
+  CollectorSpool collectorSpool(
+    @Value("${zipkin.collector.spool.directory:zipkin-spool}") String directory,
+    @Value("${zipkin.collector.spool.segment-bytes:67108864}") int segmentBytes,
+    @Value("${zipkin.collector.spool.max-bytes:1073741824}") long maxBytes,
+    @Value("${zipkin.collector.spool.replay-spans-per-second:10000}") int replaySpansPerSecond,
+    @Value("${zipkin.collector.spool.check-interval-ms:1000}") long checkIntervalMillis) {
+    return CollectorSpool.newBuilder(new File(directory))
+      .segmentBytes(segmentBytes)
+      .maxBytes(maxBytes)
+      .replaySpansPerSecond(replaySpansPerSecond)
+      .checkIntervalMillis(checkIntervalMillis).build();
+  }
+
   @Bean
   @ConditionalOnMissingBean(CollectorMetrics.class)
   CollectorMetrics metrics(Optional<CounterBuffers> counterBuffers, Optional<GaugeBuffers> gaugeBuffers) {
@@ -93,15 +195,23 @@ public class ZipkinServerConfiguration {
   static class InMemoryConfiguration {
     @Bean StorageComponent storage(
       @Value("${zipkin.storage.strict-trace-id:true}") boolean strictTraceId,
-      @Value("${zipkin.storage.mem.max-spans:500000}") int maxSpans) {
+      @Value("${zipkin.storage.mem.max-spans:500000}") int maxSpans,
+      @Value("${zipkin.storage.mem.max-bytes:0}") long maxBytes,
+      @Value("${zipkin.storage.mem.off-heap:false}") boolean offHeap) {
       return V2StorageComponent.create(InMemoryStorage.newBuilder()
         .strictTraceId(strictTraceId)
         .maxSpanCount(maxSpans)
+        .maxBytes(maxBytes)
+        .offHeap(offHeap)
         .build());
     }
 
     @Bean InMemoryStorage v2Storage(V2StorageComponent component) {
       return (InMemoryStorage) component.delegate();
     }
+
+    @Bean ActuateInMemoryStorageMetrics inMemoryStorageMetrics(InMemoryStorage v2Storage) {
+      return new ActuateInMemoryStorageMetrics(v2Storage);
+    }
   }
 }
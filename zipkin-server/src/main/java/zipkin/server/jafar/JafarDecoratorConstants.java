@@ -19,10 +19,15 @@ public interface JafarDecoratorConstants {
   // Spans will be passed through without modification
   static final Boolean PASS_THROUGH = Boolean.getBoolean("jafar.proxy.passthrough");
   static final boolean VERBOSE_ENHANCEMENT = Boolean.getBoolean("jafar.proxy.include.details");
+  // Option to tag spans with pod metadata read from the pod; spans are tagged once it is cached
+  static final boolean ENRICH_POD_METADATA = Boolean.getBoolean("jafar.proxy.enrich");
 
   static final String ENHANCER_VERSION = "0.3-es";
   static final String ODX_HEADER_KEY = "X-ODX-PodKey".toLowerCase();
   static final String ODX_POD_KEY = "ODX-Pod-Key";
   static final String ODX_ENHANCER_VERSION_KEY = "ODX-Enhancer-Version";
+  static final String ODX_POD_NAME = "ODX-Pod-Name";
+  static final String ODX_POD_NAMESPACE = "ODX-Pod-Namespace";
+  static final String ODX_POD_IP = "ODX-Pod-IP";
 
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server.jafar;
+
+import com.oracle.odx.jafar.zipkin.JafarForwardingMetrics;
+import com.oracle.odx.jafar.zipkin.JafarProxyComponent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import zipkin.storage.StorageComponent;
+
+/**
+ * Exports the following to the "/metrics" endpoint when storage is the Jafar proxy:
+ *
+ * <pre>
+ * <ul>
+ *     <li>gauge.jafar_proxy.queued_spans - spans waiting to be forwarded</li>
+ *     <li>gauge.jafar_proxy.queued_bytes - encoded size of spans waiting to be forwarded</li>
+ *     <li>counter.jafar_proxy.spans - spans queued for forwarding</li>
+ *     <li>counter.jafar_proxy.spans_dropped - spans dropped as the queue was full, or the message
+ * couldn't be sent or spilled</li>
+ *     <li>counter.jafar_proxy.sends - send attempts, including retries</li>
+ *     <li>counter.jafar_proxy.sends_failed - failed send attempts</li>
+ *     <li>counter.jafar_proxy.messages_spilled - messages kept locally after retries failed</li>
+ *     <li>counter.jafar_proxy.messages_replayed - spilled messages sent later</li>
+ *     <li>gauge.jafar_proxy.send_millis - average send latency</li>
+ *     <li>gauge.jafar_proxy.last_send_millis - latency of the last send</li>
+ * </ul>
+ * </pre>
+ */
+@Component
+public class JafarForwardingPublicMetrics implements PublicMetrics {
+  @Autowired(required = false)
+  StorageComponent storage;
+
+  @Override public Collection<Metric<?>> metrics() {
+    if (!(storage instanceof JafarProxyComponent)) return Collections.emptyList();
+    JafarForwardingMetrics metrics = ((JafarProxyComponent) storage).forwardingMetrics();
+
+    List<Metric<?>> result = new ArrayList<>(10);
+    result.add(new Metric<Number>("gauge.jafar_proxy.queued_spans", metrics.queuedSpans()));
+    result.add(new Metric<Number>("gauge.jafar_proxy.queued_bytes", metrics.queuedBytes()));
+    result.add(new Metric<Number>("counter.jafar_proxy.spans", metrics.spans()));
+    result.add(new Metric<Number>("counter.jafar_proxy.spans_dropped", metrics.spansDropped()));
+    result.add(new Metric<Number>("counter.jafar_proxy.sends", metrics.sends()));
+    result.add(new Metric<Number>("counter.jafar_proxy.sends_failed", metrics.sendsFailed()));
+    result.add(new Metric<Number>("counter.jafar_proxy.messages_spilled",
+        metrics.messagesSpilled()));
+    result.add(new Metric<Number>("counter.jafar_proxy.messages_replayed",
+        metrics.messagesReplayed()));
+    result.add(new Metric<Number>("gauge.jafar_proxy.send_millis", metrics.sendLatencyMillis()));
+    result.add(new Metric<Number>("gauge.jafar_proxy.last_send_millis",
+        metrics.lastSendLatencyMillis()));
+    return result;
+  }
+}
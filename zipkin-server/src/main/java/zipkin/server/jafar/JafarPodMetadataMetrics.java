@@ -0,0 +1,63 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server.jafar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exports pod metadata cache statistics to the "/metrics" endpoint:
+ *
+ * <pre>
+ * <ul>
+ *     <li>gauge.jafar_podinfo.cache.size - pods cached, including failed or in-flight loads</li>
+ *     <li>counter.jafar_podinfo.cache.hits - lookups served from the cache</li>
+ *     <li>counter.jafar_podinfo.cache.misses - lookups that returned no metadata</li>
+ *     <li>counter.jafar_podinfo.loads - successful loads, including refreshes</li>
+ *     <li>counter.jafar_podinfo.loads_failed - failed or rejected loads</li>
+ *     <li>gauge.jafar_podinfo.load_millis - average load latency</li>
+ * </ul>
+ * </pre>
+ */
+@Component
+public class JafarPodMetadataMetrics implements PublicMetrics {
+  final PodMetadataCache cache;
+
+  public JafarPodMetadataMetrics() {
+    this(JafarSpanEnhancer.podInfoCache);
+  }
+
+  JafarPodMetadataMetrics(PodMetadataCache cache) {
+    this.cache = cache;
+  }
+
+  @Override public Collection<Metric<?>> metrics() {
+    long loads = cache.loadSuccesses.sum(), failures = cache.loadFailures.sum();
+    long totalLoads = loads + failures;
+    double loadMillis = totalLoads == 0 ? 0.0d : cache.totalLoadNanos.sum() / 1e6 / totalLoads;
+
+    List<Metric<?>> result = new ArrayList<>(6);
+    result.add(new Metric<Number>("gauge.jafar_podinfo.cache.size", cache.size()));
+    result.add(new Metric<Number>("counter.jafar_podinfo.cache.hits", cache.hits.sum()));
+    result.add(new Metric<Number>("counter.jafar_podinfo.cache.misses", cache.misses.sum()));
+    result.add(new Metric<Number>("counter.jafar_podinfo.loads", loads));
+    result.add(new Metric<Number>("counter.jafar_podinfo.loads_failed", failures));
+    result.add(new Metric<Number>("gauge.jafar_podinfo.load_millis", loadMillis));
+    return result;
+  }
+}
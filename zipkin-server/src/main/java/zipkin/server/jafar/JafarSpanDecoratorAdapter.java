@@ -15,17 +15,18 @@ package zipkin.server.jafar;
 
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Level.FINE;
-//import static zipkin.server.jafar.JafarSpanEnhancer.getPodMetadata;
 
-//import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import zipkin.collector.SpanDecorator;
+import zipkin.collector.TagSpanDecorator;
 
-abstract class JafarSpanDecoratorAdapter<S> implements SpanDecorator<S>, JafarDecoratorConstants {
+/**
+ * Tags spans with the pod key found in the request headers. The collector fuses this with other
+ * tag decorators, so spans are rebuilt once regardless of how many tags are added.
+ */
+abstract class JafarSpanDecoratorAdapter<S> extends TagSpanDecorator<S> implements JafarDecoratorConstants {
 
   private final Logger logger;
 
@@ -34,24 +35,27 @@ abstract class JafarSpanDecoratorAdapter<S> implements SpanDecorator<S>, JafarDe
   }
 
   @Override
-  public List<S> decorate(Map<String, String> allHeaders, List<S> spans) {
-    // Perform massaging here
-    debugMessage("------- Input spans: ", spans);
-    List<S> updatedSpans = spans;
-    if (PASS_THROUGH) {
-      debugMessage("PASS-THROUGH Mode, skip span enhancement");
-    } else {
-      final String podKey = extractPodKey(allHeaders);
-//      Map<String, Object> podMetaData = getPodMetadata(podKey, VERBOSE_ENHANCEMENT);
-//      Map<String, Object> podMetaData = new HashMap<String, Object>(2);
-      if (podKey != null) {
-        updatedSpans = enhanceSpans(spans, podKey); //podMetaData);
-        debugMessage("+++++++++ Output spans: ", updatedSpans);
-      } else {
-        debugMessage("No podkey found, skipping Span enhancement");
-      }
+  public void addTags(Map<String, String> allHeaders, S span, Map<String, String> overlay) {
+    if (PASS_THROUGH) return; // skip span enhancement
+    final String podKey = extractPodKey(allHeaders);
+    if (podKey != null) {
+      overlay.put(ODX_POD_KEY, podKey);
+//      overlay.put(ODX_ENHANCER_VERSION_KEY, ENHANCER_VERSION);
+      if (ENRICH_POD_METADATA) addPodMetadata(podKey, overlay);
     }
-    return updatedSpans;
+  }
+
+  /** Adds tags from cached pod metadata. Until it is loaded, spans only get the pod key. */
+  void addPodMetadata(String podKey, Map<String, String> overlay) {
+    Map<String, Object> podMetadata = JafarSpanEnhancer.podInfoCache.getIfPresent(podKey);
+    if (podMetadata == null) return;
+    putIfPresent(overlay, ODX_POD_NAME, podMetadata.get(JafarSpanEnhancer.POD_NAME));
+    putIfPresent(overlay, ODX_POD_NAMESPACE, podMetadata.get(JafarSpanEnhancer.POD_NAMESPACE));
+    putIfPresent(overlay, ODX_POD_IP, podMetadata.get(JafarSpanEnhancer.POD_IP));
+  }
+
+  static void putIfPresent(Map<String, String> overlay, String key, Object value) {
+    if (value != null) overlay.put(key, value.toString());
   }
   
   void debugMessage(Object... msgParts) {
@@ -68,25 +72,11 @@ abstract class JafarSpanDecoratorAdapter<S> implements SpanDecorator<S>, JafarDe
     logger.log(WARNING, message, e);
   }
 
+  /** Called for each span, so this only logs when fine logging is enabled. */
   protected String extractPodKey(Map<String, String> allHeaders) {
     String headerKey = ODX_HEADER_KEY; 
     final String usePodKey = allHeaders == null ? null : allHeaders.get(headerKey);
-    debugMessage("PodKey: ", usePodKey);
+    if (logger.isLoggable(Level.FINE)) debugMessage("PodKey: ", usePodKey);
     return usePodKey;
   }
-
-  abstract protected List<S> enhanceSpans(List<S> spans, String podKey); //Map<String, Object> podMetaData);
-
-  protected zipkin2.Span enhanceV2Span(String podKey, zipkin2.Span span) {
-      zipkin2.Span.Builder span2Builder = span.toBuilder()
-          .putTag(ODX_POD_KEY, podKey)
-//          .putTag(ODX_ENHANCER_VERSION_KEY,ENHANCER_VERSION)
-          ;
-      //      for (Entry<String, Object> entry : podMetadata.entrySet()) {
-  //        Object value = entry.getValue();
-  //        span2Builder.putTag(entry.getKey(), value == null ? "" : value.toString());
-  //      }
-      zipkin2.Span updatedSpan2 = span2Builder.build();
-      return updatedSpan2;
-    }
 }
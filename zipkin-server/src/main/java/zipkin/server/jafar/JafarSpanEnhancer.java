@@ -24,7 +24,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.*;
@@ -57,52 +61,69 @@ public class JafarSpanEnhancer implements JafarDecoratorConstants {
   public static final String CONTAINER_NAME_ID_MAP = "containerNameIdMap";
   public static final String CONTAINER_PORT_NAME_MAP = "containerPortNameMap";
 
-  // TODO: use WeakReference values and clean up the map periodically?
-  static private Map<String,Map<String,Object>> podInfoCache = new ConcurrentHashMap<String, Map<String,Object>>();
-  
+  // Cache settings, overridable with system properties like the other Jafar options
+  static final int CACHE_MAX_SIZE = Integer.getInteger("jafar.podinfo.cache.max-size", 10000);
+  static final long CACHE_TTL_MS = Long.getLong("jafar.podinfo.cache.ttl-ms", 300000L);
+  static final long CACHE_REFRESH_AHEAD_MS =
+      Long.getLong("jafar.podinfo.cache.refresh-ahead-ms", 60000L);
+  static final long CACHE_NEGATIVE_TTL_MS =
+      Long.getLong("jafar.podinfo.cache.negative-ttl-ms", 30000L);
+  static final int LOADER_THREADS = Integer.getInteger("jafar.podinfo.loader.threads", 2);
+  static final int LOADER_QUEUE_SIZE = Integer.getInteger("jafar.podinfo.loader.queue-size", 1000);
+  static final int HTTP_TIMEOUT_MS = Integer.getInteger("jafar.podinfo.http.timeout-ms", 1000);
+
+  /** Pod metadata is loaded off the request thread, so that enrichment never stalls ingestion. */
+  static final PodMetadataCache podInfoCache = new PodMetadataCache(
+      JafarSpanEnhancer::loadPodMetadata, newLoaderExecutor(), CACHE_MAX_SIZE, CACHE_TTL_MS,
+      CACHE_REFRESH_AHEAD_MS, CACHE_NEGATIVE_TTL_MS);
+
+  static ExecutorService newLoaderExecutor() {
+    AtomicInteger threadCount = new AtomicInteger();
+    // Loads beyond the queue size are rejected, which negatively caches the pod for a while
+    return new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(LOADER_QUEUE_SIZE), r -> {
+          Thread thread = new Thread(r, "jafar-podinfo-loader-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
   /**
-   * Likely just a prototype; we'd likely have to listen for or query for pods coming and
-   * going in order to prevent the cached Map from growing out of bounds over time.
+   * Returns the pod's metadata if it is cached. Otherwise, this starts loading it in the
+   * background and returns only the pod key and enhancer version. This never blocks.
    * 
    * @param podKey
    * @param includeDetails
    * @return
    */
   public static Map<String, Object> getPodMetadata(final String podKey, boolean includeDetails) {
-    Map<String, Object> podInfoMap = null;
+    Map<String, Object> podInfoMap = new HashMap<>();
     if (podKey != null) {
-      Map<String, Object> cachedPodInfo = podInfoCache.get(podKey);
-      if (cachedPodInfo == null || cachedPodInfo.isEmpty()) {
-        debugMessage("+++++++++ Cache MISS for podKey: " + podKey);
-        String[] podKeyList = podKey.split(":");
-        if (podKeyList.length == 3) {
-          String nodeName = podKeyList[0];
-          String podName = podKeyList[1];
-          String podIP = podKeyList[2];
-          debugMessage("+++++++++ Pod name: " + podName + ", node: " + nodeName + ", pod IP: " + podIP);
-          StringBuilder baseURL = new StringBuilder().append("http://").append(podIP).append(":9411/podinfo");
-          cachedPodInfo = buildcontainerMetadata(baseURL.toString(), includeDetails);
-          podInfoCache.put(podKey, cachedPodInfo);
-        } else {
-          logger.warning("Invalid pod key: " + podKey);
-        }
-      } else {
-        debugMessage("Cache HIT for pod key " + podKey + ": " + cachedPodInfo);
+      Map<String, Object> cachedPodInfo = podInfoCache.getIfPresent(podKey);
+      if (cachedPodInfo != null) podInfoMap.putAll(cachedPodInfo);
+      if (!includeDetails) {
+        podInfoMap.remove(CONTAINER_PORT_NAME_MAP);
+        podInfoMap.remove(CONTAINER_NAME_ID_MAP);
       }
-      podInfoMap = new HashMap<>(cachedPodInfo);
-    } else {
-      debugMessage("Podkey was null");
-      podInfoMap = new HashMap<>();
     }
     podInfoMap.put(ODX_ENHANCER_VERSION_KEY, ENHANCER_VERSION);
     podInfoMap.put(ODX_POD_KEY, podKey);
     return podInfoMap;
   }
+
+  /** Loads metadata for a pod key in the format "node:podName:podIP". */
+  static Map<String, Object> loadPodMetadata(String podKey) throws Exception {
+    String[] podKeyList = podKey.split(":");
+    if (podKeyList.length != 3) throw new IllegalArgumentException("Invalid pod key: " + podKey);
+    String podIP = podKeyList[2];
+    String baseURL = new StringBuilder().append("http://").append(podIP).append(":9411/podinfo").toString();
+    return buildcontainerMetadata(baseURL, true);
+  }
   
   public static String readPodInfo(String baseURL) throws IOException {
     String podInfoURL = new StringBuilder(baseURL.toString()).append(CONTAINER_METADATA_URL_PATH).toString();
     URL podURL = new java.net.URL(podInfoURL);
-    URLConnection conn = podURL.openConnection();
+    URLConnection conn = openConnection(podURL);
     Reader inputStreamReader = new InputStreamReader(
                                 conn.getInputStream());
     return readToString(inputStreamReader).toString();   
@@ -111,12 +132,19 @@ public class JafarSpanEnhancer implements JafarDecoratorConstants {
   private static Properties readPodProperties(String baseURL) throws IOException {
     String podPropsURL = new StringBuilder(baseURL.toString()).append(POD_METADATA_PROPERTIES_URL_PATH).toString();
     URL podURL = new URL(podPropsURL);
-    URLConnection conn = podURL.openConnection();
+    URLConnection conn = openConnection(podURL);
     Reader inputStreamReader = new InputStreamReader(
                                 conn.getInputStream());
     return readProps(inputStreamReader);
   }
 
+  private static URLConnection openConnection(URL url) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+    conn.setReadTimeout(HTTP_TIMEOUT_MS);
+    return conn;
+  }
+
   private static Properties readProps(Reader inputStreamReader) throws IOException {
     StringBuilder builder = readToString(inputStreamReader);
     Properties p = new Properties();
@@ -137,59 +165,56 @@ public class JafarSpanEnhancer implements JafarDecoratorConstants {
     return builder;
   }
 
-  private static Map<String,Object> buildcontainerMetadata(String baseURL, boolean includeDetails) {
+  static Map<String,Object> buildcontainerMetadata(String baseURL, boolean includeDetails)
+      throws Exception {
 
     Map<Long,String> containerPortNameMap = new HashMap<Long, String>();
     Map<String,String> containerNameIdMap = new HashMap<String, String>();
 
     Properties podProps = new Properties();
-    try {
-      Object obj = null;
-      if (baseURL == null) {
-        // For debugging, read from a canned path
-        
-        String input = GENERATED_POD_METADATA_PATH;   
-        logger.info("Reading pod info from " + input);
-        obj = new JSONParser().parse(new FileReader(input));
-        
-        Properties readPodProperties = readProps(new FileReader(POD_METADATA_PROPERTIES_PATH));
-        podProps.putAll(readPodProperties);
-
-      } else {
-        logger.info("Reading new pod info from " + baseURL);
-        String jsonMap = readPodInfo(baseURL);
-        obj = new JSONParser().parse(new StringReader(jsonMap));    
-        
-        Properties readPodProperties = readPodProperties(baseURL);
-        podProps.putAll(readPodProperties);
-      }
+    Object obj = null;
+    if (baseURL == null) {
+      // For debugging, read from a canned path
       
-      JSONObject jo = (JSONObject) obj;
-      JSONArray containers = (JSONArray) jo.get("containers");
-      JSONArray containerStatuses = (JSONArray) jo.get("containerStatuses");
+      String input = GENERATED_POD_METADATA_PATH;   
+      logger.info("Reading pod info from " + input);
+      obj = new JSONParser().parse(new FileReader(input));
       
-      for (Object item : containers) {
-        JSONObject container = (JSONObject) item;
-        String name = (String) container.get("name");
-        JSONArray ports = (JSONArray) container.get("ports");
-        for (Object p : ports) {
-          JSONObject port = (JSONObject) p;
-          Long containerPort = (Long) port.get("containerPort");
-          containerPortNameMap.put(containerPort, name);
-        }
-      }
-      debugMessage("containerPortNameMap="+containerPortNameMap);
+      Properties readPodProperties = readProps(new FileReader(POD_METADATA_PROPERTIES_PATH));
+      podProps.putAll(readPodProperties);
+
+    } else {
+      logger.info("Reading new pod info from " + baseURL);
+      String jsonMap = readPodInfo(baseURL);
+      obj = new JSONParser().parse(new StringReader(jsonMap));    
       
-      for (Object item : containerStatuses) {
-        JSONObject status = (JSONObject) item;
-        String name = (String) status.get("name");
-        String id = (String) status.get("containerID");
-        containerNameIdMap.put(name, id);
+      Properties readPodProperties = readPodProperties(baseURL);
+      podProps.putAll(readPodProperties);
+    }
+    
+    JSONObject jo = (JSONObject) obj;
+    JSONArray containers = (JSONArray) jo.get("containers");
+    JSONArray containerStatuses = (JSONArray) jo.get("containerStatuses");
+    
+    for (Object item : containers) {
+      JSONObject container = (JSONObject) item;
+      String name = (String) container.get("name");
+      JSONArray ports = (JSONArray) container.get("ports");
+      for (Object p : ports) {
+        JSONObject port = (JSONObject) p;
+        Long containerPort = (Long) port.get("containerPort");
+        containerPortNameMap.put(containerPort, name);
       }
-      debugMessage("containerNameIdMap="+containerNameIdMap);
-    } catch (Throwable t) {
-      logger.log(Level.SEVERE, "Caught exception processing Pod metadata", t);
     }
+    debugMessage("containerPortNameMap="+containerPortNameMap);
+    
+    for (Object item : containerStatuses) {
+      JSONObject status = (JSONObject) item;
+      String name = (String) status.get("name");
+      String id = (String) status.get("containerID");
+      containerNameIdMap.put(name, id);
+    }
+    debugMessage("containerNameIdMap="+containerNameIdMap);
     
     Map<String,Object> containerMetadata = new HashMap<String, Object>();
     containerMetadata.put(POD_NAMESPACE, podProps.get("MY_POD_NAMESPACE"));
@@ -218,7 +243,7 @@ public class JafarSpanEnhancer implements JafarDecoratorConstants {
     for (String podKey : podList) {
       debugMessage("#################################");
       debugMessage("Getting pod info for: " + podKey);
-      debugMessage("PodInfo: " + getPodMetadata(podKey, true));
+      debugMessage("PodInfo: " + podInfoCache.get(podKey).join());
       debugMessage("#################################");
     }
     debugMessage("Done.");
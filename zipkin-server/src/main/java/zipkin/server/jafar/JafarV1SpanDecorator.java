@@ -13,18 +13,12 @@
  */
 package zipkin.server.jafar;
 
-import java.util.ArrayList;
-import java.util.List;
-//import java.util.Map;
-//import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
-import zipkin.Span;
 import zipkin.collector.SpanDecorator;
-import zipkin.internal.V2SpanConverter;
 
 @Service
 @Qualifier(SpanDecorator.V1_QUALIFIER)
@@ -43,27 +37,4 @@ public class JafarV1SpanDecorator extends JafarSpanDecoratorAdapter<zipkin.Span>
   public boolean isV2SpanSupported() {
     return false;
   }
-  
-  @Override
-  protected List<Span> enhanceSpans(List<Span> spans, String podKey) {
-  //protected List<Span> enhanceSpans(List<Span> spans, Map<String, Object> podMetaData) {
-//    podMetaData.put("Jafar-Enhancer-Version", ENHANCER_VERSION);
-    List<Span> enhancedSpans = new ArrayList<Span>();
-    for (Span inputSpan : spans) {
-      List<zipkin.Span> annotatedSpans = enhanceSpan(inputSpan, podKey); //podMetaData);
-      enhancedSpans.addAll(annotatedSpans);
-    }
-    return enhancedSpans;
-  }
-  
-  protected List<zipkin.Span> enhanceSpan(zipkin.Span sourceSpan, String podKey) { //Map<String, Object> podMetadata) {
-    List<zipkin2.Span> span2Copies = V2SpanConverter.fromSpan(sourceSpan); 
-    List<zipkin.Span> convertedSpans = new ArrayList<zipkin.Span>();
-    for (zipkin2.Span span : span2Copies) {
-      zipkin2.Span enhancedSpan = enhanceV2Span(podKey, span);
-      convertedSpans.add(V2SpanConverter.toSpan(enhancedSpan));   
-    }
-    return convertedSpans;
-  }
-
 }
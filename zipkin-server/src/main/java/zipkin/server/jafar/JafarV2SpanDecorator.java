@@ -13,27 +13,21 @@
  */
 package zipkin.server.jafar;
 
-import java.util.ArrayList;
-import java.util.List;
-//import java.util.Map;
-//import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
 import zipkin.collector.SpanDecorator;
-import zipkin2.Span;
-//import zipkin2.Span.Builder;
 
 @Service
 @Qualifier(SpanDecorator.V2_QUALIFIER)
-public class JafarV2SpanDecorator extends JafarSpanDecoratorAdapter<Span> {
+public class JafarV2SpanDecorator extends JafarSpanDecoratorAdapter<zipkin2.Span> {
 
   public JafarV2SpanDecorator() {
     super(Logger.getLogger(JafarV2SpanDecorator.class.getSimpleName()));
   }
-
+  
   @Override
   public boolean isV1SpanSupported() {
     return false;
@@ -43,24 +37,4 @@ public class JafarV2SpanDecorator extends JafarSpanDecoratorAdapter<Span> {
   public boolean isV2SpanSupported() {
     return true;
   }
-  
-  @Override
-  //protected List<Span> enhanceSpans(List<Span> spans, Map<String, Object> podMetaData) {
-  protected List<Span> enhanceSpans(List<Span> spans, String podKey) {
-    List<Span> enhancedSpans = new ArrayList<Span>(spans.size());
-    for (Span span : spans) {
-      debugMessage("------- Input span: " + span);
-//      Builder enhSpanBuilder = span.toBuilder().putTag(ODX_POD_KEY, podKey).putTag(ODX_ENHANCER_VERSION_KEY,
-//          ENHANCER_VERSION);
-//      //      for (Entry<String, Object> entry : podMetaData.entrySet()) {
-////        Object value = entry.getValue();
-////        enhSpanBuilder.putTag(entry.getKey(), value == null ? "" : value.toString());
-////      }
-//      Span enhancedSpan = enhSpanBuilder.build();
-      zipkin2.Span enhancedSpan = enhanceV2Span(podKey, span);
-      debugMessage("+++++++ Output span: " + enhancedSpan);
-      enhancedSpans.add(enhancedSpan);
-    }
-    return enhancedSpans;
-  }
 }
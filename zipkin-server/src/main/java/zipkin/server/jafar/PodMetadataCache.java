@@ -0,0 +1,227 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server.jafar;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A size and TTL bounded cache of pod metadata, loaded asynchronously.
+ *
+ * <p>{@link #getIfPresent(String)} never blocks: on a miss, it starts a load and returns null, so
+ * callers on the ingestion path proceed without metadata until the load completes. Concurrent
+ * misses for the same pod share one load. Entries are reloaded in the background once they are
+ * within the refresh window of expiry, so that hot pods don't miss. Failed loads are cached for a
+ * shorter time, so an unreachable pod isn't retried for every span.
+ *
+ * <p>When the cache is full, expired entries are purged first, then the oldest loaded entries, down
+ * to 90% of the maximum size. Eviction runs on the executor, and the cache may briefly hold more
+ * entries than its maximum until it does. As each scan evicts a batch, its cost is spread across
+ * many inserts.
+ */
+final class PodMetadataCache {
+  /** Loads metadata for a pod, throwing if it couldn't be read. */
+  interface Loader {
+    Map<String, Object> load(String podKey) throws Exception;
+  }
+
+  static final Logger logger = Logger.getLogger(PodMetadataCache.class.getName());
+
+  final Loader loader;
+  final Executor executor;
+  final int maxSize;
+  /** The size eviction reduces the cache to, leaving room for inserts until the next scan */
+  final int evictedSize;
+  final AtomicBoolean evicting = new AtomicBoolean();
+  final long ttlNanos, refreshNanos, negativeTtlNanos;
+  final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  final LongAdder hits = new LongAdder(), misses = new LongAdder();
+  final LongAdder loadSuccesses = new LongAdder(), loadFailures = new LongAdder();
+  final LongAdder totalLoadNanos = new LongAdder();
+
+  /**
+   * @param ttlMillis how long loaded metadata is served
+   * @param refreshAheadMillis how long before expiry to reload metadata that is being read
+   * @param negativeTtlMillis how long a failed load is cached
+   */
+  PodMetadataCache(Loader loader, Executor executor, int maxSize, long ttlMillis,
+      long refreshAheadMillis, long negativeTtlMillis) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    if (refreshAheadMillis >= ttlMillis) {
+      throw new IllegalArgumentException("refreshAheadMillis >= ttlMillis");
+    }
+    this.loader = loader;
+    this.executor = executor;
+    this.maxSize = maxSize;
+    this.evictedSize = maxSize - maxSize / 10;
+    this.ttlNanos = MILLISECONDS.toNanos(ttlMillis);
+    this.refreshNanos = MILLISECONDS.toNanos(ttlMillis - refreshAheadMillis);
+    this.negativeTtlNanos = MILLISECONDS.toNanos(negativeTtlMillis);
+  }
+
+  /** Returns cached metadata, or null if it isn't loaded yet or couldn't be loaded. */
+  @Nullable Map<String, Object> getIfPresent(String podKey) {
+    long now = System.nanoTime();
+    Entry entry = entries.get(podKey);
+    if (entry == null || entry.isExpired(now)) {
+      misses.increment();
+      load(podKey, entry);
+      return null;
+    }
+    if (!entry.future.isDone() || entry.failed) { // loading, or negatively cached
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    Map<String, Object> result = entry.future.getNow(null);
+    if (result != null && now - entry.loadedNanos >= refreshNanos
+        && entry.refreshing.compareAndSet(false, true)) {
+      refresh(podKey, entry);
+    }
+    return result;
+  }
+
+  /** Returns a future of the metadata, loading it if needed. For callers that can wait. */
+  CompletableFuture<Map<String, Object>> get(String podKey) {
+    Map<String, Object> result = getIfPresent(podKey);
+    if (result != null) return CompletableFuture.completedFuture(result);
+    Entry entry = entries.get(podKey);
+    return entry != null ? entry.future : load(podKey, null).future;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /** Starts a load unless another caller replaced the expired entry first. */
+  Entry load(String podKey, @Nullable Entry expired) {
+    Entry loading = new Entry();
+    Entry existing = expired == null
+        ? entries.putIfAbsent(podKey, loading)
+        : (entries.replace(podKey, expired, loading) ? null : entries.get(podKey));
+    if (existing != null) return existing; // coalesce with the other load
+    if (expired == null && entries.size() > maxSize) scheduleEviction();
+    startLoad(podKey, loading);
+    return loading;
+  }
+
+  /** Reloads in the background, continuing to serve the current entry until done. */
+  void refresh(String podKey, Entry current) {
+    Entry next = new Entry();
+    startLoad(podKey, next);
+    next.future.whenComplete((result, error) -> {
+      // on failure, the current entry is served until it expires, then loaded again
+      if (error == null) entries.replace(podKey, current, next);
+    });
+  }
+
+  void startLoad(String podKey, Entry target) {
+    try {
+      executor.execute(() -> {
+        long start = System.nanoTime();
+        try {
+          Map<String, Object> result = loader.load(podKey);
+          recordLoad(start, true);
+          target.complete(result);
+        } catch (Throwable e) {
+          recordLoad(start, false);
+          if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Could not load metadata for pod " + podKey, e);
+          }
+          target.fail(e);
+        }
+      });
+    } catch (RejectedExecutionException e) { // too many loads in flight
+      loadFailures.increment();
+      target.fail(e);
+    }
+  }
+
+  void recordLoad(long startNanos, boolean success) {
+    totalLoadNanos.add(System.nanoTime() - startNanos);
+    (success ? loadSuccesses : loadFailures).increment();
+  }
+
+  /** Evicts on the executor, unless another eviction is pending. */
+  void scheduleEviction() {
+    if (!evicting.compareAndSet(false, true)) return;
+    try {
+      executor.execute(this::evict);
+    } catch (RejectedExecutionException e) { // the executor is saturated: don't grow unbounded
+      evict();
+    }
+  }
+
+  void evict() {
+    try {
+      long now = System.nanoTime();
+      List<Map.Entry<String, Entry>> loaded = new ArrayList<>();
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        if (!entry.future.isDone()) continue; // don't drop in-flight loads
+        if (entry.isExpired(now)) {
+          entries.remove(e.getKey(), entry);
+        } else {
+          loaded.add(e);
+        }
+      }
+      int excess = entries.size() - evictedSize;
+      if (excess <= 0) return;
+      loaded.sort(Comparator.comparingLong(e -> e.getValue().loadedNanos));
+      for (int i = 0, length = Math.min(excess, loaded.size()); i < length; i++) {
+        Map.Entry<String, Entry> oldest = loaded.get(i);
+        entries.remove(oldest.getKey(), oldest.getValue());
+      }
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  final class Entry {
+    final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+    final AtomicBoolean refreshing = new AtomicBoolean();
+    volatile long loadedNanos;
+    volatile boolean failed;
+
+    void complete(Map<String, Object> result) {
+      loadedNanos = System.nanoTime();
+      future.complete(result);
+    }
+
+    void fail(Throwable error) {
+      failed = true;
+      loadedNanos = System.nanoTime();
+      future.completeExceptionally(error);
+    }
+
+    boolean isExpired(long now) {
+      if (!future.isDone()) return false;
+      return now - loadedNanos >= (failed ? negativeTtlNanos : ttlNanos);
+    }
+  }
+}
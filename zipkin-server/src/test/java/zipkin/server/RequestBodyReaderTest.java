@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.Test;
+import zipkin.Codec;
+import zipkin.TestObjects;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class RequestBodyReaderTest {
+  byte[] spans = Codec.JSON.writeSpans(TestObjects.TRACE);
+
+  @Test public void read_knownLength() throws IOException {
+    assertThat(RequestBodyReader.read(new ByteArrayInputStream(spans), spans.length))
+      .isEqualTo(spans);
+  }
+
+  @Test public void read_unknownLength() throws IOException {
+    assertThat(RequestBodyReader.read(new ByteArrayInputStream(spans), -1))
+      .isEqualTo(spans);
+  }
+
+  @Test public void read_shorterThanContentLength() throws IOException {
+    assertThat(RequestBodyReader.read(new ByteArrayInputStream(spans), spans.length + 10))
+      .isEqualTo(spans);
+  }
+
+  @Test public void read_contentLengthLargerThanRetainedBuffer() throws IOException {
+    byte[] large = new byte[RequestBodyReader.MAX_RETAINED_BUFFER * 3 + 1];
+    new Random(1L).nextBytes(large);
+
+    assertThat(RequestBodyReader.read(new ByteArrayInputStream(large), large.length))
+      .isEqualTo(large);
+  }
+
+  @Test public void read_hugeContentLengthDoesntAllocateUpFront() throws IOException {
+    assertThat(RequestBodyReader.read(new ByteArrayInputStream(spans), Integer.MAX_VALUE))
+      .isEqualTo(spans);
+    assertThat(RequestBodyReader.gunzip(new ByteArrayInputStream(gzip(spans)), Integer.MAX_VALUE))
+      .isEqualTo(spans);
+  }
+
+  @Test public void gunzip() throws IOException {
+    byte[] gzipped = gzip(spans);
+
+    assertThat(RequestBodyReader.gunzip(new ByteArrayInputStream(gzipped), gzipped.length))
+      .isEqualTo(spans);
+    assertThat(RequestBodyReader.gunzip(new ByteArrayInputStream(gzipped), -1))
+      .isEqualTo(spans);
+  }
+
+  /** Makes sure the buffer grows when the input is larger than it. */
+  @Test public void gunzip_largeIncompressible() throws IOException {
+    byte[] random = new byte[100000];
+    new Random(1L).nextBytes(random);
+    byte[] gzipped = gzip(random);
+
+    assertThat(RequestBodyReader.gunzip(new ByteArrayInputStream(gzipped), -1))
+      .isEqualTo(random);
+  }
+
+  @Test public void gunzip_multipleMembers() throws IOException {
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    concatenated.write(gzip(Arrays.copyOf(spans, 10)));
+    concatenated.write(gzip(Arrays.copyOfRange(spans, 10, spans.length)));
+    byte[] gzipped = concatenated.toByteArray();
+
+    assertThat(RequestBodyReader.gunzip(gzipped, gzipped.length))
+      .isEqualTo(spans);
+  }
+
+  /** The size hint in the trailer can be wrong, for example when tampered with */
+  @Test public void gunzip_wrongSizeHint() throws IOException {
+    byte[] gzipped = gzip(spans);
+    gzipped[gzipped.length - 4] = 1;
+    gzipped[gzipped.length - 3] = 0;
+
+    try {
+      RequestBodyReader.gunzip(gzipped, gzipped.length);
+      failBecauseExceptionWasNotThrown(ZipException.class);
+    } catch (ZipException e) {
+      assertThat(e).hasMessage("Corrupt GZIP trailer");
+    }
+  }
+
+  @Test public void gunzip_fileName() throws IOException {
+    byte[] gzipped = gzip(spans);
+    byte[] named = new byte[gzipped.length + 6];
+    System.arraycopy(gzipped, 0, named, 0, 10);
+    named[3] |= RequestBodyReader.FNAME;
+    System.arraycopy(new byte[] {'a', '.', 'j', 's', 'n', 0}, 0, named, 10, 6);
+    System.arraycopy(gzipped, 10, named, 16, gzipped.length - 10);
+
+    assertThat(RequestBodyReader.gunzip(named, named.length))
+      .isEqualTo(spans);
+  }
+
+  @Test public void gunzip_notGzip() {
+    try {
+      RequestBodyReader.gunzip(spans, spans.length);
+      failBecauseExceptionWasNotThrown(ZipException.class);
+    } catch (ZipException e) {
+      assertThat(e).hasMessage("Not in GZIP format");
+    }
+  }
+
+  @Test public void gunzip_truncated() throws IOException {
+    byte[] gzipped = gzip(spans);
+
+    try {
+      RequestBodyReader.gunzip(gzipped, gzipped.length - 20);
+      failBecauseExceptionWasNotThrown(ZipException.class);
+    } catch (ZipException e) {
+      assertThat(e).hasMessage("Unexpected end of ZLIB input stream");
+    }
+  }
+
+  static byte[] gzip(byte[] input) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(input);
+    }
+    return out.toByteArray();
+  }
+}
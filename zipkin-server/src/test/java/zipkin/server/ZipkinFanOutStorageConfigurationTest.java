@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import zipkin.internal.V2StorageComponent;
+import zipkin.storage.StorageComponent;
+import zipkin2.storage.FanOutStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.boot.test.util.EnvironmentTestUtils.addEnvironment;
+
+public class ZipkinFanOutStorageConfigurationTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+  @After
+  public void close() {
+    context.close();
+  }
+
+  @Test
+  public void doesntProvideStorageComponent_whenStorageTypeNotFanOut() {
+    context.register(PropertyPlaceholderAutoConfiguration.class,
+      ZipkinFanOutStorageConfiguration.class);
+    context.refresh();
+
+    assertThat(context.getBeanNamesForType(StorageComponent.class)).isEmpty();
+  }
+
+  @Test
+  public void providesFanOutStorage() {
+    addEnvironment(context,
+      "zipkin.storage.type:fanout",
+      "zipkin.storage.fanout.primary:mem"
+    );
+    context.register(PropertyPlaceholderAutoConfiguration.class,
+      ZipkinFanOutStorageConfiguration.class);
+    context.refresh();
+
+    assertThat(((V2StorageComponent) context.getBean(StorageComponent.class)).delegate())
+      .isInstanceOf(FanOutStorage.class)
+      .hasToString("FanOutStorage{primary=mem, secondaries=[]}");
+  }
+
+  @Test
+  public void unsupportedType() {
+    addEnvironment(context,
+      "zipkin.storage.type:fanout",
+      "zipkin.storage.fanout.primary:mem",
+      "zipkin.storage.fanout.secondaries:bigtable"
+    );
+    context.register(PropertyPlaceholderAutoConfiguration.class,
+      ZipkinFanOutStorageConfiguration.class);
+
+    thrown.expect(BeanCreationException.class);
+    thrown.expectMessage("unsupported storage type: bigtable");
+    context.refresh();
+  }
+}
@@ -109,6 +109,27 @@ public class ZipkinServerIntegrationTest {
       .andExpect(content().string(new String(Codec.JSON.writeSpans(asList(span)), UTF_8)));
   }
 
+  @Test
+  public void writeSpans_proto3() throws Exception {
+    Span span = ApplyTimestampAndDuration.apply(LOTS_OF_SPANS[0]);
+    List<zipkin2.Span> span2s = V2SpanConverter.fromSpan(span);
+
+    performAsync(post("/api/v2/spans")
+      .contentType("application/x-protobuf")
+      .content(SpanBytesEncoder.PROTO3.encodeList(span2s)))
+      .andExpect(status().isAccepted());
+
+    // sleep as the the storage operation is async
+    Thread.sleep(1500);
+
+    // We read it back in proto3 when asked to
+    mockMvc.perform(get(format("/api/v2/trace/" + span.traceIdString()))
+      .header(HttpHeaders.ACCEPT, "application/x-protobuf"))
+      .andExpect(status().isOk())
+      .andExpect(content().contentType("application/x-protobuf"))
+      .andExpect(content().bytes(SpanBytesEncoder.PROTO3.encodeList(span2s)));
+  }
+
   @Test
   public void writeSpans_updatesMetrics() throws Exception {
     List<Span> spans = asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]);
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server.jafar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class PodMetadataCacheTest {
+  @Rule public MockWebServer pod = new MockWebServer();
+
+  static final String CONTAINER_METADATA = "{\"containers\":[{\"name\":\"app\",\"ports\":"
+      + "[{\"containerPort\":8080}]}],\"containerStatuses\":[{\"name\":\"app\","
+      + "\"containerID\":\"docker://abc\"}]}";
+  static final String POD_PROPERTIES =
+      "MY_POD_NAMESPACE=default\nMY_POD_NAME=frontend-1\nMY_POD_IP=10.0.0.5\n";
+
+  List<Runnable> pending = new ArrayList<>();
+  /** Runs loads when {@link #runPending()} is called, to control when they complete */
+  Executor queued = pending::add;
+  AtomicInteger loadCount = new AtomicInteger();
+
+  @Test public void loadsFromPod() throws Exception {
+    pod.enqueue(new MockResponse().setBody(CONTAINER_METADATA));
+    pod.enqueue(new MockResponse().setBody(POD_PROPERTIES));
+    String baseURL = pod.url("/podinfo").toString();
+    PodMetadataCache cache = new PodMetadataCache(
+        podKey -> JafarSpanEnhancer.buildcontainerMetadata(baseURL, true),
+        Runnable::run, 10, 1000L, 100L, 100L);
+
+    assertThat(cache.get("node:frontend-1:10.0.0.5").join()).contains(
+        entry(JafarSpanEnhancer.POD_NAMESPACE, "default"),
+        entry(JafarSpanEnhancer.POD_NAME, "frontend-1"),
+        entry(JafarSpanEnhancer.POD_IP, "10.0.0.5"),
+        entry(JafarSpanEnhancer.CONTAINER_PORT_NAME_MAP, Collections.singletonMap(8080L, "app"))
+    );
+    assertThat(pod.takeRequest().getPath()).isEqualTo("/podinfo/container-metadata.json");
+    assertThat(pod.takeRequest().getPath()).isEqualTo("/podinfo/pod-metadata.properties");
+
+    assertThat(cache.getIfPresent("node:frontend-1:10.0.0.5")).isNotNull();
+    assertThat(pod.getRequestCount()).isEqualTo(2);
+    assertThat(cache.hits.sum()).isEqualTo(1);
+  }
+
+  @Test public void missDoesntBlock() {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), queued, 10, 1000L, 100L, 100L);
+
+    assertThat(cache.getIfPresent("pod")).isNull();
+    assertThat(cache.misses.sum()).isEqualTo(1);
+
+    runPending();
+    assertThat(cache.getIfPresent("pod")).containsEntry("count", 1);
+  }
+
+  @Test public void coalescesConcurrentLoads() {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), queued, 10, 1000L, 100L, 100L);
+
+    for (int i = 0; i < 10; i++) assertThat(cache.getIfPresent("pod")).isNull();
+
+    assertThat(pending).hasSize(1);
+    runPending();
+    assertThat(loadCount).hasValue(1);
+  }
+
+  @Test public void negativelyCachesFailures() throws Exception {
+    pod.enqueue(new MockResponse().setResponseCode(500));
+    String baseURL = pod.url("/podinfo").toString();
+    PodMetadataCache cache = new PodMetadataCache(
+        podKey -> JafarSpanEnhancer.buildcontainerMetadata(baseURL, true),
+        Runnable::run, 10, 1000L, 100L, 50L);
+
+    try {
+      cache.get("pod").join();
+      failBecauseExceptionWasNotThrown(CompletionException.class);
+    } catch (CompletionException e) {
+    }
+    assertThat(cache.getIfPresent("pod")).isNull();
+    assertThat(pod.getRequestCount()).isEqualTo(1);
+    assertThat(cache.loadFailures.sum()).isEqualTo(1);
+
+    Thread.sleep(50L); // the failure expires, so the next lookup loads again
+    pod.enqueue(new MockResponse().setBody(CONTAINER_METADATA));
+    pod.enqueue(new MockResponse().setBody(POD_PROPERTIES));
+    cache.getIfPresent("pod");
+    assertThat(cache.getIfPresent("pod")).containsEntry(JafarSpanEnhancer.POD_NAME, "frontend-1");
+  }
+
+  @Test public void refreshesAheadOfExpiry() throws Exception {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), queued, 10, 1000L, 950L, 100L);
+    cache.getIfPresent("pod");
+    runPending();
+
+    Thread.sleep(50L); // within the refresh window
+    assertThat(cache.getIfPresent("pod")).containsEntry("count", 1);
+    assertThat(cache.getIfPresent("pod")).containsEntry("count", 1); // one refresh at a time
+    assertThat(pending).hasSize(1);
+
+    runPending();
+    assertThat(cache.getIfPresent("pod")).containsEntry("count", 2);
+  }
+
+  @Test public void evictsOldestWhenFull() {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), Runnable::run, 2, 1000L, 100L,
+        100L);
+
+    cache.getIfPresent("a");
+    cache.getIfPresent("b");
+    cache.getIfPresent("c");
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.entries).doesNotContainKey("a");
+  }
+
+  @Test public void evictsOldestInBatches() {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), Runnable::run, 10, 1000L, 100L,
+        100L);
+
+    for (int i = 0; i <= 10; i++) cache.getIfPresent("pod" + i);
+
+    assertThat(cache.size()).isEqualTo(9); // room for more inserts before the next scan
+    assertThat(cache.entries).doesNotContainKeys("pod0", "pod1").containsKey("pod10");
+  }
+
+  @Test public void evictsOnExecutor() {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), queued, 2, 1000L, 100L, 100L);
+    cache.getIfPresent("a");
+    cache.getIfPresent("b");
+    runPending();
+
+    cache.getIfPresent("c");
+    assertThat(cache.size()).isEqualTo(3); // the caller doesn't scan the cache
+
+    runPending();
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.entries).doesNotContainKey("a");
+  }
+
+  @Test public void rejectedLoadsAreNegativelyCached() {
+    PodMetadataCache cache = new PodMetadataCache(podKey -> load(), command -> {
+      throw new java.util.concurrent.RejectedExecutionException();
+    }, 10, 1000L, 100L, 100L);
+
+    assertThat(cache.getIfPresent("pod")).isNull();
+    assertThat(cache.getIfPresent("pod")).isNull();
+    assertThat(cache.loadFailures.sum()).isEqualTo(1);
+  }
+
+  Map<String, Object> load() {
+    return Collections.singletonMap("count", loadCount.incrementAndGet());
+  }
+
+  void runPending() {
+    List<Runnable> toRun = new ArrayList<>(pending);
+    pending.clear();
+    toRun.forEach(Runnable::run);
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.oracle.odx.jafar.zipkin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin.reporter.ReporterMetrics;
+
+/**
+ * Counts what happens to spans forwarded to the remote agent. The reporter updates queue depth and
+ * drop counts, and {@link RetryingSender} records sends, retries and spills.
+ */
+public final class JafarForwardingMetrics implements ReporterMetrics {
+  final AtomicLong messages = new AtomicLong();
+  final AtomicLong messagesDropped = new AtomicLong();
+  final AtomicLong messageBytes = new AtomicLong();
+  final AtomicLong spans = new AtomicLong();
+  final AtomicLong spanBytes = new AtomicLong();
+  final AtomicLong spansDropped = new AtomicLong();
+  final AtomicInteger queuedSpans = new AtomicInteger();
+  final AtomicInteger queuedBytes = new AtomicInteger();
+
+  final AtomicLong sends = new AtomicLong();
+  final AtomicLong sendsFailed = new AtomicLong();
+  final AtomicLong sendNanos = new AtomicLong();
+  final AtomicLong lastSendNanos = new AtomicLong();
+  final AtomicLong retries = new AtomicLong();
+  final AtomicLong messagesSpilled = new AtomicLong();
+  final AtomicLong messagesReplayed = new AtomicLong();
+
+  @Override public void incrementMessages() {
+    messages.incrementAndGet();
+  }
+
+  @Override public void incrementMessagesDropped(Throwable cause) {
+    messagesDropped.incrementAndGet();
+  }
+
+  @Override public void incrementSpans(int quantity) {
+    spans.addAndGet(quantity);
+  }
+
+  @Override public void incrementSpanBytes(int quantity) {
+    spanBytes.addAndGet(quantity);
+  }
+
+  @Override public void incrementMessageBytes(int quantity) {
+    messageBytes.addAndGet(quantity);
+  }
+
+  @Override public void incrementSpansDropped(int quantity) {
+    spansDropped.addAndGet(quantity);
+  }
+
+  @Override public void updateQueuedSpans(int update) {
+    queuedSpans.set(update);
+  }
+
+  @Override public void updateQueuedBytes(int update) {
+    queuedBytes.set(update);
+  }
+
+  void recordSend(long durationNanos, boolean success) {
+    sends.incrementAndGet();
+    if (!success) sendsFailed.incrementAndGet();
+    sendNanos.addAndGet(durationNanos);
+    lastSendNanos.set(durationNanos);
+  }
+
+  public long messages() {
+    return messages.get();
+  }
+
+  public long messagesDropped() {
+    return messagesDropped.get();
+  }
+
+  public long spans() {
+    return spans.get();
+  }
+
+  public long spansDropped() {
+    return spansDropped.get();
+  }
+
+  /** Spans waiting to be sent */
+  public int queuedSpans() {
+    return queuedSpans.get();
+  }
+
+  public int queuedBytes() {
+    return queuedBytes.get();
+  }
+
+  /** Send attempts to the remote agent, including retries and replays from the spill. */
+  public long sends() {
+    return sends.get();
+  }
+
+  public long sendsFailed() {
+    return sendsFailed.get();
+  }
+
+  public long retries() {
+    return retries.get();
+  }
+
+  /** Average duration of a send attempt, or zero if none was made. */
+  public double sendLatencyMillis() {
+    long count = sends.get();
+    return count == 0 ? 0.0d : sendNanos.get() / 1e6 / count;
+  }
+
+  public double lastSendLatencyMillis() {
+    return lastSendNanos.get() / 1e6;
+  }
+
+  /** Messages written to the local spill after the agent couldn't be reached. */
+  public long messagesSpilled() {
+    return messagesSpilled.get();
+  }
+
+  /** Spilled messages sent once the agent was reachable again. */
+  public long messagesReplayed() {
+    return messagesReplayed.get();
+  }
+}
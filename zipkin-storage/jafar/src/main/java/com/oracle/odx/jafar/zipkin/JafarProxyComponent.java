@@ -15,9 +15,15 @@ package com.oracle.odx.jafar.zipkin;
 
 import static zipkin.internal.Util.checkNotNull;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
 
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -26,7 +32,7 @@ import org.springframework.context.annotation.Configuration;
 
 import zipkin.Span;
 import zipkin.reporter.AsyncReporter;
-import zipkin.reporter.Reporter;
+import zipkin.reporter.Sender;
 import zipkin.reporter.urlconnection.URLConnectionSender;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.AsyncSpanStore;
@@ -34,11 +40,21 @@ import zipkin.storage.InMemoryStorage;
 import zipkin.storage.SpanStore;
 import zipkin.storage.StorageComponent;
 
+/**
+ * Stores spans in memory and, when forwarding is enabled, forwards them to the remote agent at
+ * {@code jafar.remote.agent}.
+ *
+ * <p>Forwarded spans are queued in a bounded buffer and sent in gzipped messages, once a message
+ * is full or has waited {@link Builder#messageTimeoutMillis(long)}. Failed sends are retried with
+ * backoff, then spilled to a local directory if configured, to be replayed once the agent is
+ * back. Defaults for each setting can be overridden with system properties named in the builder.
+ */
 @Configuration
 @EnableConfigurationProperties(JafarProxyStorageProperties.class)
 @ConditionalOnProperty(name = "zipkin.storage.type", havingValue = "jafar")
 @ConditionalOnMissingBean(StorageComponent.class)
 public class JafarProxyComponent implements StorageComponent {
+  private static final Logger logger = Logger.getLogger(JafarProxyComponent.class.getName());
 
   private static final String REMOTE_AGENT_URL = System.getProperty("jafar.remote.agent",
       "http://localhost:9511");
@@ -48,15 +64,28 @@ public class JafarProxyComponent implements StorageComponent {
   
   private Executor executor = new ScheduledThreadPoolExecutor(1);
   
-  private Reporter<Span> reporter;
+  private AsyncReporter<Span> reporter;
 
-  private URLConnectionSender sender;
+  private RetryingSender sender;
 
   private InMemoryStorage memStore;
 
+  private final JafarForwardingMetrics metrics = new JafarForwardingMetrics();
+
   public static class Builder implements StorageComponent.Builder {
     
     private Executor executor;
+    boolean forward = Boolean.getBoolean("jafar.proxy.forward");
+    String endpoint = REMOTE_AGENT_ENDPOINT;
+    Sender sender;
+    int queuedMaxSpans = Integer.getInteger("jafar.proxy.queued-max-spans", 10000);
+    int messageMaxBytes = Integer.getInteger("jafar.proxy.message-max-bytes", 1024 * 1024);
+    long messageTimeoutMillis = Long.getLong("jafar.proxy.message-timeout-ms", 1000L);
+    int maxAttempts = Integer.getInteger("jafar.proxy.retry.max-attempts", 3);
+    long initialBackoffMillis = Long.getLong("jafar.proxy.retry.initial-backoff-ms", 100L);
+    long maxBackoffMillis = Long.getLong("jafar.proxy.retry.max-backoff-ms", 2000L);
+    File spillDirectory = spillDirectoryProperty();
+    long spillMaxBytes = Long.getLong("jafar.proxy.spill.max-bytes", 100L * 1024 * 1024);
 
     private Builder() {}
     
@@ -75,23 +104,120 @@ public class JafarProxyComponent implements StorageComponent {
       this.executor = checkNotNull(executor, "executor");
       return this;
     }
+
+    /** When true, spans are forwarded to the remote agent. Defaults to "jafar.proxy.forward" */
+    public Builder forward(boolean forward) {
+      this.forward = forward;
+      return this;
+    }
+
+    /** The agent's span endpoint. Defaults to "jafar.remote.agent" + "jafar.remote.agent.path" */
+    public Builder endpoint(String endpoint) {
+      this.endpoint = checkNotNull(endpoint, "endpoint");
+      return this;
+    }
+
+    /** Overrides the gzipping http sender made from {@link #endpoint(String)}. */
+    public Builder sender(Sender sender) {
+      this.sender = checkNotNull(sender, "sender");
+      return this;
+    }
+
+    /** Spans beyond this are dropped while waiting to send. Defaults to 10000. */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /** Maximum size of a message sent to the agent. Defaults to 1MiB. */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /** How long spans wait for a message to fill before it is sent. Defaults to 1000ms. */
+    public Builder messageTimeoutMillis(long messageTimeoutMillis) {
+      this.messageTimeoutMillis = messageTimeoutMillis;
+      return this;
+    }
+
+    /** Attempts to send a message, including the first. Defaults to 3. */
+    public Builder maxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /** Backoff before the first retry, doubling for each retry after. Defaults to 100ms. */
+    public Builder initialBackoffMillis(long initialBackoffMillis) {
+      this.initialBackoffMillis = initialBackoffMillis;
+      return this;
+    }
+
+    /** Defaults to 2000ms. */
+    public Builder maxBackoffMillis(long maxBackoffMillis) {
+      this.maxBackoffMillis = maxBackoffMillis;
+      return this;
+    }
+
+    /**
+     * Where to keep messages that couldn't be sent, or null to drop them. Defaults to
+     * "jafar.proxy.spill.dir", which is unset.
+     */
+    public Builder spillDirectory(@Nullable File spillDirectory) {
+      this.spillDirectory = spillDirectory;
+      return this;
+    }
+
+    /** Messages are dropped when the spill is this size. Defaults to 100MiB. */
+    public Builder spillMaxBytes(long spillMaxBytes) {
+      this.spillMaxBytes = spillMaxBytes;
+      return this;
+    }
+
+    static File spillDirectoryProperty() {
+      String path = System.getProperty("jafar.proxy.spill.dir");
+      return path != null ? new File(path) : null;
+    }
   }
   
   public JafarProxyComponent(Builder builder) {
-    executor = builder.executor;
-    System.out.println("++++++++++++ Creating Jafar Storage Component");
-    String targetEndpoint = REMOTE_AGENT_ENDPOINT;
-    try {
-//      System.out.println("Creating sender for remote agent " + REMOTE_AGENT_ENDPOINT);
-//      sender = URLConnectionSender.create(targetEndpoint);
-//      reporter = AsyncReporter.create(sender);
-    } catch (Throwable t) {
-      System.out.println("Error initializing reporter to target endpoint " + targetEndpoint);
-      t.printStackTrace();
+    if (builder.executor != null) executor = builder.executor;
+    if (builder.forward) {
+      Sender delegate = builder.sender != null ? builder.sender : URLConnectionSender.builder()
+          .endpoint(builder.endpoint)
+          .compressionEnabled(true)
+          .messageMaxBytes(builder.messageMaxBytes)
+          .build();
+      SpanSpill spill = builder.spillDirectory != null
+          ? new SpanSpill(builder.spillDirectory, builder.spillMaxBytes)
+          : null;
+      sender = new RetryingSender(delegate, builder.maxAttempts, builder.initialBackoffMillis,
+          builder.maxBackoffMillis, spill, metrics);
+      reporter = AsyncReporter.builder(sender)
+          .metrics(metrics)
+          .queuedMaxSpans(builder.queuedMaxSpans)
+          .messageMaxBytes(builder.messageMaxBytes)
+          .messageTimeout(builder.messageTimeoutMillis, TimeUnit.MILLISECONDS)
+          .build();
+      if (logger.isLoggable(Level.INFO)) logger.info("Forwarding spans to " + delegate);
     }
     memStore = InMemoryStorage.builder().build();
   }
 
+  /** Metrics about forwarding spans to the remote agent, even when forwarding is disabled. */
+  public JafarForwardingMetrics forwardingMetrics() {
+    return metrics;
+  }
+
+  /** Sends any queued spans, blocking until done. */
+  public void flush() {
+    if (reporter != null) reporter.flush();
+  }
+
+  /**
+   * Fails only when forwarded spans can neither be sent nor spilled. The remote agent being down
+   * doesn't fail this storage, as spans are still stored locally: see {@link #agentCheck()}.
+   */
   @Override
   public CheckResult check() {
     if (sender != null) 
@@ -99,8 +225,15 @@ public class JafarProxyComponent implements StorageComponent {
     return CheckResult.OK;
   }
 
+  /** Whether the remote agent is reachable, or OK when forwarding is disabled. */
+  public CheckResult agentCheck() {
+    return sender != null ? sender.agentCheck() : CheckResult.OK;
+  }
+
   @Override
   public void close() throws IOException {
+    if (reporter != null)
+      reporter.close();
     if (sender != null)
       sender.close();
   }
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.oracle.odx.jafar.zipkin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import zipkin.reporter.Callback;
+import zipkin.reporter.Encoding;
+import zipkin.reporter.Sender;
+
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Retries failed sends with exponential backoff. When all attempts fail, the message is spilled
+ * locally instead of being dropped. Spilled messages are replayed, oldest first, after the next
+ * successful send.
+ *
+ * <p>Sends block the calling thread, which is the reporter's flush thread. While the agent is down,
+ * the reporter's bounded queue fills and further spans are dropped, rather than blocking
+ * collection.
+ */
+final class RetryingSender implements Sender {
+  static final Logger logger = Logger.getLogger(RetryingSender.class.getName());
+
+  final Sender delegate;
+  final int maxAttempts;
+  final long initialBackoffMillis, maxBackoffMillis;
+  @Nullable final SpanSpill spill;
+  final JafarForwardingMetrics metrics;
+  /** Set while messages that couldn't be sent also couldn't be spilled, so are being dropped. */
+  @Nullable volatile Exception dropping;
+
+  RetryingSender(Sender delegate, int maxAttempts, long initialBackoffMillis,
+      long maxBackoffMillis, @Nullable SpanSpill spill, JafarForwardingMetrics metrics) {
+    if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts < 1");
+    this.delegate = checkNotNull(delegate, "delegate");
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.spill = spill;
+    this.metrics = checkNotNull(metrics, "metrics");
+  }
+
+  @Override public Encoding encoding() {
+    return delegate.encoding();
+  }
+
+  @Override public int messageMaxBytes() {
+    return delegate.messageMaxBytes();
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return delegate.messageSizeInBytes(encodedSpans);
+  }
+
+  @Override public void sendSpans(List<byte[]> encodedSpans, Callback callback) {
+    Throwable error = sendWithRetries(encodedSpans);
+    if (error == null) {
+      dropping = null;
+      callback.onComplete();
+      replaySpill();
+      return;
+    }
+    if (spill != null && spill.offer(encodedSpans)) {
+      dropping = null;
+      metrics.messagesSpilled.incrementAndGet();
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "Spilled " + encodedSpans.size() + " spans after error", error);
+      }
+      callback.onComplete();
+      return;
+    }
+    if (spill != null) dropping = new IllegalStateException("Spill is full or unwritable", error);
+    callback.onError(error);
+  }
+
+  /** Returns null on success, or the last error. */
+  @Nullable Throwable sendWithRetries(List<byte[]> encodedSpans) {
+    long backoff = initialBackoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      Throwable error = sendOnce(encodedSpans);
+      if (error == null || attempt == maxAttempts) return error;
+      metrics.retries.incrementAndGet();
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return error;
+      }
+      backoff = Math.min(backoff * 2, maxBackoffMillis);
+    }
+  }
+
+  /** Sends spilled messages until none are left or a send fails. */
+  void replaySpill() {
+    if (spill == null) return;
+    File file;
+    while ((file = spill.oldest()) != null) {
+      List<byte[]> encodedSpans;
+      try {
+        encodedSpans = SpanSpill.read(file);
+      } catch (IOException | RuntimeException | OutOfMemoryError e) {
+        // corrupt or partially written: don't retry forever
+        if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Dropping " + file, e);
+        spill.remove(file);
+        continue;
+      }
+      if (sendOnce(encodedSpans) != null) return; // try again after the next success
+      spill.remove(file);
+      metrics.messagesReplayed.incrementAndGet();
+    }
+  }
+
+  @Nullable Throwable sendOnce(List<byte[]> encodedSpans) {
+    AwaitableCallback callback = new AwaitableCallback();
+    long start = System.nanoTime();
+    try {
+      delegate.sendSpans(encodedSpans, callback);
+      callback.await();
+    } catch (RuntimeException e) {
+      callback.onError(e);
+    }
+    metrics.recordSend(System.nanoTime() - start, callback.error == null);
+    return callback.error;
+  }
+
+  /**
+   * Fails only while spilling fails. The agent being down isn't a failure of this sender when
+   * messages are kept for replay: see {@link #agentCheck()}.
+   */
+  @Override public CheckResult check() {
+    Exception error = dropping;
+    return error != null ? CheckResult.failed(error) : CheckResult.OK;
+  }
+
+  /** Whether the remote agent is reachable. */
+  CheckResult agentCheck() {
+    return delegate.check();
+  }
+
+  @Override public void close() throws IOException {
+    delegate.close();
+  }
+
+  @Override public String toString() {
+    return "RetryingSender(" + delegate + ")";
+  }
+
+  static final class AwaitableCallback implements Callback {
+    final CountDownLatch latch = new CountDownLatch(1);
+    volatile Throwable error;
+
+    @Override public void onComplete() {
+      latch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      error = t;
+      latch.countDown();
+    }
+
+    void await() {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        error = e;
+      }
+    }
+  }
+}
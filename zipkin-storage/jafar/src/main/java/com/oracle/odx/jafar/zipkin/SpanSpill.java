@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.oracle.odx.jafar.zipkin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Keeps messages that couldn't be sent in a local directory, so they can be sent later.
+ *
+ * <p>Each message is a file holding its encoded spans. File names sort in the order messages were
+ * spilled, so the oldest is replayed first. New messages are dropped once the directory holds
+ * {@code maxBytes}. Methods are synchronized, as the reporter sends from a single thread.
+ *
+ * <p>The directory is only listed when opened. Afterwards, files are tracked in memory, so that
+ * checking for spilled messages after each successful send doesn't touch the filesystem.
+ */
+final class SpanSpill {
+  static final Logger logger = Logger.getLogger(SpanSpill.class.getName());
+  static final String PREFIX = "spans-", SUFFIX = ".spill";
+
+  final File directory;
+  final long maxBytes;
+  /** Spilled files, oldest first. */
+  final ArrayDeque<File> files = new ArrayDeque<>();
+  long bytes;
+  long sequence;
+
+  SpanSpill(File directory, long maxBytes) {
+    this.directory = checkNotNull(directory, "directory");
+    this.maxBytes = maxBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Cannot create spill directory " + directory);
+    }
+    File[] existing = directory.listFiles((dir, name) -> name.startsWith(PREFIX)
+        && name.endsWith(SUFFIX));
+    if (existing != null) { // resume after a restart
+      Arrays.sort(existing);
+      for (File file : existing) {
+        files.add(file);
+        bytes += file.length();
+      }
+    }
+    sequence = System.currentTimeMillis();
+  }
+
+  /** Returns false if the message was dropped, because the spill is full or couldn't be written. */
+  synchronized boolean offer(List<byte[]> encodedSpans) {
+    long size = 4;
+    for (byte[] span : encodedSpans) size += 4 + span.length;
+    if (bytes + size > maxBytes) return false;
+    // zero-padded so that names sort in spill order
+    File file = new File(directory, String.format("%s%020d%s", PREFIX, sequence++, SUFFIX));
+    try (DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(encodedSpans.size());
+      for (byte[] span : encodedSpans) {
+        out.writeInt(span.length);
+        out.write(span);
+      }
+    } catch (IOException e) {
+      if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Cannot spill to " + file, e);
+      file.delete();
+      return false;
+    }
+    files.add(file);
+    bytes += size;
+    return true;
+  }
+
+  /** Returns the oldest spilled message, or null if there are none. */
+  @Nullable synchronized File oldest() {
+    return files.peek();
+  }
+
+  /**
+   * Reads a spilled message. Sizes are checked against the file length, so that a corrupt file
+   * fails with an {@link IOException} instead of a huge allocation.
+   */
+  static List<byte[]> read(File file) throws IOException {
+    long remaining = file.length() - 4;
+    try (DataInputStream in =
+             new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      int count = in.readInt();
+      // each span is prefixed by its length, so there can't be more spans than 4-byte words left
+      if (count < 0 || count > remaining / 4) throw corrupt(file, "span count " + count);
+      List<byte[]> result = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int length = in.readInt();
+        remaining -= 4;
+        if (length < 0 || length > remaining) throw corrupt(file, "span length " + length);
+        byte[] span = new byte[length];
+        in.readFully(span);
+        remaining -= length;
+        result.add(span);
+      }
+      return result;
+    }
+  }
+
+  static IOException corrupt(File file, String detail) {
+    return new IOException("Corrupt spill " + file + ": " + detail);
+  }
+
+  /** Stops tracking the file, even if it couldn't be deleted, so that it isn't replayed again. */
+  synchronized void remove(File file) {
+    if (!files.remove(file)) return;
+    long length = file.length();
+    if (file.delete()) {
+      bytes -= length;
+    } else if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, "Cannot delete " + file);
+    }
+  }
+
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  synchronized boolean isEmpty() {
+    return files.isEmpty();
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.oracle.odx.jafar.zipkin;
+
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.Okio;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin.Codec;
+import zipkin.Span;
+import zipkin.TestObjects;
+import zipkin.internal.CallbackCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JafarProxyComponentTest {
+  @Rule public MockWebServer agent = new MockWebServer();
+
+  @Test public void forwardsGzippedBatches() throws Exception {
+    agent.enqueue(new MockResponse());
+    JafarProxyComponent storage = (JafarProxyComponent) JafarProxyComponent.builder()
+        .forward(true)
+        .endpoint(agent.url("/api/v1/spans").toString())
+        .messageTimeoutMillis(0L) // flushed explicitly
+        .build();
+
+    CallbackCaptor<Void> callback = new CallbackCaptor<>();
+    storage.asyncSpanConsumer().accept(TestObjects.TRACE, callback);
+    callback.get();
+    storage.flush();
+
+    RecordedRequest request = agent.takeRequest();
+    assertThat(request.getHeader("Content-Encoding")).isEqualTo("gzip");
+    assertThat(Codec.THRIFT.readSpans(gunzip(request.getBody())))
+        .containsExactlyElementsOf(TestObjects.TRACE);
+
+    // spans are still stored locally
+    assertThat(storage.spanStore().getTrace(TestObjects.TRACE.get(0).traceId))
+        .isEqualTo(TestObjects.TRACE);
+
+    JafarForwardingMetrics metrics = storage.forwardingMetrics();
+    assertThat(metrics.spans()).isEqualTo(TestObjects.TRACE.size());
+    assertThat(metrics.sends()).isEqualTo(1);
+    assertThat(metrics.queuedSpans()).isZero();
+    storage.close();
+  }
+
+  @Test public void forwardingDisabledByDefault() throws IOException {
+    JafarProxyComponent storage = (JafarProxyComponent) JafarProxyComponent.builder().build();
+
+    CallbackCaptor<Void> callback = new CallbackCaptor<>();
+    storage.asyncSpanConsumer().accept(TestObjects.TRACE, callback);
+    callback.get();
+    storage.flush();
+
+    assertThat(agent.getRequestCount()).isZero();
+    assertThat(storage.forwardingMetrics().spans()).isZero();
+    storage.close();
+  }
+
+  static byte[] gunzip(Buffer body) throws IOException {
+    return Okio.buffer(Okio.source(new GZIPInputStream(body.inputStream()))).readByteArray();
+  }
+}
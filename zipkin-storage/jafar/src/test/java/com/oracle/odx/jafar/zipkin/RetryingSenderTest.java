@@ -0,0 +1,200 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.oracle.odx.jafar.zipkin;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin.reporter.Callback;
+import zipkin.reporter.Encoding;
+import zipkin.reporter.Sender;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryingSenderTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  JafarForwardingMetrics metrics = new JafarForwardingMetrics();
+  FakeSender agent = new FakeSender();
+  List<byte[]> message = asList(new byte[] {1, 2}, new byte[] {3});
+  AtomicInteger completed = new AtomicInteger();
+  List<Throwable> errors = new ArrayList<>();
+  Callback callback = new Callback() {
+    @Override public void onComplete() {
+      completed.incrementAndGet();
+    }
+
+    @Override public void onError(Throwable t) {
+      errors.add(t);
+    }
+  };
+
+  @Test public void retriesUntilSuccess() {
+    agent.failures = 2;
+    RetryingSender sender = new RetryingSender(agent, 3, 1L, 1L, null, metrics);
+
+    sender.sendSpans(message, callback);
+
+    assertThat(completed).hasValue(1);
+    assertThat(agent.sent).hasSize(1);
+    assertThat(metrics.sends()).isEqualTo(3);
+    assertThat(metrics.retries()).isEqualTo(2);
+    assertThat(metrics.sendsFailed()).isEqualTo(2);
+  }
+
+  @Test public void failsAfterMaxAttempts_withoutSpill() {
+    agent.failures = 5;
+    RetryingSender sender = new RetryingSender(agent, 3, 1L, 1L, null, metrics);
+
+    sender.sendSpans(message, callback);
+
+    assertThat(errors).hasSize(1);
+    assertThat(metrics.sends()).isEqualTo(3);
+  }
+
+  @Test public void spillsThenReplaysAfterNextSuccess() throws IOException {
+    SpanSpill spill = new SpanSpill(folder.newFolder(), 1024L);
+    RetryingSender sender = new RetryingSender(agent, 2, 1L, 1L, spill, metrics);
+
+    agent.failures = 4; // both messages exhaust their attempts
+    sender.sendSpans(message, callback);
+    sender.sendSpans(asList(new byte[] {4}), callback);
+    assertThat(completed).hasValue(2);
+    assertThat(metrics.messagesSpilled()).isEqualTo(2);
+    assertThat(agent.sent).isEmpty();
+
+    sender.sendSpans(asList(new byte[] {5}), callback);
+
+    assertThat(agent.sent).extracting(m -> m.get(0)[0])
+        .containsExactly((byte) 5, (byte) 1, (byte) 4); // oldest spill first
+    assertThat(agent.sent.get(1)).containsExactly(message.toArray(new byte[0][]));
+    assertThat(metrics.messagesReplayed()).isEqualTo(2);
+    assertThat(spill.isEmpty()).isTrue();
+    assertThat(spill.bytes()).isZero();
+  }
+
+  @Test public void dropsCorruptSpillFiles() throws IOException {
+    File directory = folder.newFolder();
+    spillFile(directory, 1, Integer.MAX_VALUE); // span count larger than the file
+    spillFile(directory, 2, 1, -1); // negative span length
+    spillFile(directory, 3, 1, 1024); // span length larger than the file
+    SpanSpill spill = new SpanSpill(directory, 1024L);
+    spill.offer(message);
+    RetryingSender sender = new RetryingSender(agent, 1, 1L, 1L, spill, metrics);
+
+    sender.sendSpans(asList(new byte[] {5}), callback);
+
+    assertThat(agent.sent).hasSize(2); // the corrupt files didn't block the valid one
+    assertThat(agent.sent.get(1)).containsExactly(message.toArray(new byte[0][]));
+    assertThat(spill.isEmpty()).isTrue();
+    assertThat(spill.bytes()).isZero();
+  }
+
+  @Test public void dropsWhenSpillIsFull() throws IOException {
+    SpanSpill spill = new SpanSpill(folder.newFolder(), 10L);
+    RetryingSender sender = new RetryingSender(agent, 1, 1L, 1L, spill, metrics);
+
+    agent.failures = 1;
+    sender.sendSpans(Collections.singletonList(new byte[20]), callback);
+
+    assertThat(errors).hasSize(1);
+    assertThat(spill.isEmpty()).isTrue();
+  }
+
+  @Test public void check_okWhileSpilling() throws IOException {
+    SpanSpill spill = new SpanSpill(folder.newFolder(), 1024L);
+    RetryingSender sender = new RetryingSender(agent, 1, 1L, 1L, spill, metrics);
+
+    agent.failures = 2;
+    sender.sendSpans(message, callback);
+
+    assertThat(sender.check().ok).isTrue();
+    assertThat(sender.agentCheck().ok).isFalse();
+  }
+
+  @Test public void check_failsWhileSpillIsFull() throws IOException {
+    SpanSpill spill = new SpanSpill(folder.newFolder(), 10L);
+    RetryingSender sender = new RetryingSender(agent, 1, 1L, 1L, spill, metrics);
+
+    agent.failures = 1;
+    sender.sendSpans(Collections.singletonList(new byte[20]), callback);
+    assertThat(sender.check().ok).isFalse();
+
+    sender.sendSpans(message, callback); // the agent is back
+
+    assertThat(sender.check().ok).isTrue();
+  }
+
+  @Test public void spillSurvivesRestart() throws IOException {
+    File directory = folder.newFolder();
+    new SpanSpill(directory, 1024L).offer(message);
+
+    SpanSpill reopened = new SpanSpill(directory, 1024L);
+    assertThat(reopened.bytes()).isEqualTo(4 + 4 + 2 + 4 + 1);
+    assertThat(SpanSpill.read(reopened.oldest()))
+        .containsExactly(message.toArray(new byte[0][]));
+  }
+
+  /** Writes a spill file holding only the given ints, which sorts before any new spill. */
+  static void spillFile(File directory, long sequence, int... ints) throws IOException {
+    File file = new File(directory,
+        String.format("%s%020d%s", SpanSpill.PREFIX, sequence, SpanSpill.SUFFIX));
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      for (int i : ints) out.writeInt(i);
+    }
+  }
+
+  static final class FakeSender implements Sender {
+    final List<List<byte[]>> sent = new ArrayList<>();
+    int failures;
+
+    @Override public Encoding encoding() {
+      return Encoding.THRIFT;
+    }
+
+    @Override public int messageMaxBytes() {
+      return 1024;
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return Encoding.THRIFT.listSizeInBytes(encodedSpans);
+    }
+
+    @Override public void sendSpans(List<byte[]> encodedSpans, Callback callback) {
+      if (failures > 0) {
+        failures--;
+        callback.onError(new IOException("agent is down"));
+        return;
+      }
+      sent.add(encodedSpans);
+      callback.onComplete();
+    }
+
+    @Override public CheckResult check() {
+      return failures > 0 ? CheckResult.failed(new IOException("agent is down")) : CheckResult.OK;
+    }
+
+    @Override public void close() {
+    }
+  }
+}
@@ -15,7 +15,7 @@ package zipkin;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import zipkin.collector.CollectorMetrics;
+import zipkin.collector.ExtendedCollectorMetrics;
 
 import static zipkin.internal.Util.checkNotNull;
 
@@ -24,7 +24,7 @@ import static zipkin.internal.Util.checkNotNull;
  * "zipkin.collector". Will be removed in Zipkin 2.
  */
 @Deprecated
-public final class InMemoryCollectorMetrics implements CollectorMetrics {
+public final class InMemoryCollectorMetrics implements ExtendedCollectorMetrics {
 
   private final ConcurrentHashMap<String, AtomicInteger> metrics;
   private final String messages;
@@ -32,6 +32,15 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String queuedSpans;
+  private final String queuedBytes;
+  private final String spansRateLimited;
+  private final String bufferedSpans;
+  private final String tracesEvicted;
+  private final String spansDeduplicated;
+  private final String spooledBytes;
+  private final String spoolSegments;
+  private final String spoolReplayLag;
 
   public InMemoryCollectorMetrics() {
     this(new ConcurrentHashMap<>(), null);
@@ -44,6 +53,15 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     this.bytes = scope("bytes", transport);
     this.spans = scope("spans", transport);
     this.spansDropped = scope("spansDropped", transport);
+    this.queuedSpans = scope("queuedSpans", transport);
+    this.queuedBytes = scope("queuedBytes", transport);
+    this.spansRateLimited = scope("spansRateLimited", transport);
+    this.bufferedSpans = scope("bufferedSpans", transport);
+    this.tracesEvicted = scope("tracesEvicted", transport);
+    this.spansDeduplicated = scope("spansDeduplicated", transport);
+    this.spooledBytes = scope("spooledBytes", transport);
+    this.spoolSegments = scope("spoolSegments", transport);
+    this.spoolReplayLag = scope("spoolReplayLag", transport);
   }
 
   @Override public InMemoryCollectorMetrics forTransport(String transportType) {
@@ -91,6 +109,78 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     return get(spansDropped);
   }
 
+  @Override public void updateQueuedSpans(int quantity) {
+    update(queuedSpans, quantity);
+  }
+
+  public int queuedSpans() {
+    return get(queuedSpans);
+  }
+
+  @Override public void updateQueuedBytes(int quantity) {
+    update(queuedBytes, quantity);
+  }
+
+  public int queuedBytes() {
+    return get(queuedBytes);
+  }
+
+  @Override public void incrementSpansRateLimited(String serviceName, int quantity) {
+    increment(spansRateLimited + "." + serviceName, quantity);
+  }
+
+  public int spansRateLimited(String serviceName) {
+    return get(spansRateLimited + "." + serviceName);
+  }
+
+  @Override public void updateBufferedSpans(int quantity) {
+    update(bufferedSpans, quantity);
+  }
+
+  public int bufferedSpans() {
+    return get(bufferedSpans);
+  }
+
+  @Override public void incrementTracesEvicted(int quantity) {
+    increment(tracesEvicted, quantity);
+  }
+
+  public int tracesEvicted() {
+    return get(tracesEvicted);
+  }
+
+  @Override public void incrementSpansDeduplicated(int quantity) {
+    increment(spansDeduplicated, quantity);
+  }
+
+  public int spansDeduplicated() {
+    return get(spansDeduplicated);
+  }
+
+  @Override public void updateSpooledBytes(long quantity) {
+    update(spooledBytes, (int) Math.min(quantity, Integer.MAX_VALUE));
+  }
+
+  public int spooledBytes() {
+    return get(spooledBytes);
+  }
+
+  @Override public void updateSpoolSegments(int quantity) {
+    update(spoolSegments, quantity);
+  }
+
+  public int spoolSegments() {
+    return get(spoolSegments);
+  }
+
+  @Override public void updateSpoolReplayLag(long millis) {
+    update(spoolReplayLag, (int) Math.min(millis, Integer.MAX_VALUE));
+  }
+
+  public int spoolReplayLag() {
+    return get(spoolReplayLag);
+  }
+
   public void clear() {
     metrics.clear();
   }
@@ -117,6 +207,15 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     }
   }
 
+  private void update(String key, int quantity) {
+    AtomicInteger metric = metrics.get(key);
+    if (metric == null) {
+      metric = metrics.putIfAbsent(key, new AtomicInteger(quantity));
+      if (metric == null) return; // won race creating the entry
+    }
+    metric.set(quantity);
+  }
+
   static String scope(String key, String transport) {
     return key + (transport == null ? "" : "." + transport);
   }
@@ -13,12 +13,28 @@
  */
 package zipkin.collector;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import zipkin.Codec;
+import zipkin.Component.CheckResult;
+import zipkin.Constants;
+import zipkin.Endpoint;
 import zipkin.SpanDecoder;
 import zipkin.internal.DetectingSpanDecoder;
+import zipkin.internal.JsonCodec;
+import zipkin.internal.Proto3SpanDecoder;
+import zipkin.internal.SamplingSpanReader;
+import zipkin.internal.SpanDecorators;
+import zipkin.internal.ThriftCodec;
+import zipkin.internal.Util;
+import zipkin.internal.V1SpanBytesDecoder;
 import zipkin.internal.V2Collector;
 import zipkin.internal.V2JsonSpanDecoder;
 import zipkin.internal.V2SpanConverter;
@@ -26,18 +42,23 @@ import zipkin.internal.V2StorageComponent;
 import zipkin.storage.Callback;
 import zipkin.storage.StorageComponent;
 import zipkin2.Span;
+import zipkin2.codec.BytesDecoder;
 import zipkin2.codec.SpanBytesDecoder;
 
-import static zipkin.internal.DetectingSpanDecoder.detectFormat;
 import static zipkin.internal.Util.checkNotNull;
 
 /**
  * This component takes action on spans received from a transport. This includes deserializing,
  * sampling and scheduling for storage.
  *
+ * <p>When the sampler drops traces, spans are sampled before they are decoded, by reading only
+ * their trace IDs from the encoded message. Spans that aren't sampled are never materialized.
+ *
  * <p>Callbacks passed do not propagate to the storage layer. They only return success or failures
  * before storage is attempted. This ensures that calling threads are disconnected from storage
- * threads.
+ * threads. The exception is when a {@link Builder#queue(CollectorQueue) queue} is configured:
+ * callbacks then complete when storage does, so that transports can apply backpressure. {@link
+ * #acceptMessages} callbacks always complete when storage does.
  */
 public class Collector
   extends zipkin.internal.Collector<SpanDecoder, zipkin.Span> {  // not final for mock
@@ -52,8 +73,13 @@ public class Collector
     StorageComponent storage = null;
     CollectorSampler sampler = null;
     CollectorMetrics metrics = null;
-    private List<SpanDecorator<zipkin.Span>> v1Interceptors;
-    private List<SpanDecorator<zipkin2.Span>> v2Interceptors;
+    CollectorQueue queue = null;
+    CollectorRateLimiter rateLimiter = null;
+    CollectorTailSampler tailSampler = null;
+    CollectorDeduplicator deduplicator = null;
+    CollectorSpool spool = null;
+    private List<SpanDecorator<zipkin.Span>> v1Interceptors = Collections.emptyList();
+    private List<SpanDecorator<zipkin2.Span>> v2Interceptors = Collections.emptyList();
 
     Builder(Logger logger) {
       this.logger = logger;
@@ -77,8 +103,52 @@ public class Collector
       return this;
     }
 
+    /**
+     * Bounds spans waiting for storage, and defers callbacks until storage completes. By default,
+     * there's no queue: callbacks complete as soon as storage is scheduled.
+     */
+    public Builder queue(CollectorQueue queue) {
+      this.queue = checkNotNull(queue, "queue");
+      return this;
+    }
+
+    /**
+     * Drops spans over a per-service rate before they are decorated or stored. By default, there's
+     * no rate limit.
+     */
+    public Builder rateLimiter(CollectorRateLimiter rateLimiter) {
+      this.rateLimiter = checkNotNull(rateLimiter, "rateLimiter");
+      return this;
+    }
+
+    /**
+     * Holds spans until their trace is complete, then decides whether to store it. By default,
+     * spans are stored as soon as they are accepted.
+     */
+    public Builder tailSampler(CollectorTailSampler tailSampler) {
+      this.tailSampler = checkNotNull(tailSampler, "tailSampler");
+      return this;
+    }
+
+    /** Drops spans that were recently stored. By default, all spans are stored. */
+    public Builder deduplicator(CollectorDeduplicator deduplicator) {
+      this.deduplicator = checkNotNull(deduplicator, "deduplicator");
+      return this;
+    }
+
+    /**
+     * Writes spans to disk while storage is failing, and replays them once it recovers. By default,
+     * spans that can't be stored are dropped.
+     */
+    public Builder spool(CollectorSpool spool) {
+      this.spool = checkNotNull(spool, "spool");
+      return this;
+    }
+
     public Collector build() {
-      return new Collector(this);
+      Collector result = new Collector(this);
+      result.startSpool();
+      return result;
     }
 
     public Builder v1Interceptors(final List<SpanDecorator<zipkin.Span>> v1InterceptorsList) {
@@ -97,43 +167,138 @@ public class Collector
   final V2Collector storage2;
   final protected List<SpanDecorator<zipkin.Span>> v1Interceptors;
   final protected List<SpanDecorator<zipkin2.Span>> v2Interceptors;
+  final SpanDecorators<zipkin.Span> v1Decorators;
 
   Collector(Builder builder) {
-    super(builder.logger, builder.metrics);
+    // When storage is v2, the v2 collector records spans, so it owns the queue and samplers
+    super(builder.logger, builder.metrics,
+      builder.storage instanceof V2StorageComponent ? null : builder.queue,
+      builder.storage instanceof V2StorageComponent ? null : builder.rateLimiter,
+      builder.storage instanceof V2StorageComponent ? null : builder.tailSampler,
+      builder.storage instanceof V2StorageComponent ? null : builder.deduplicator,
+      builder.storage instanceof V2StorageComponent ? null : builder.spool);
     this.storage = checkNotNull(builder.storage, "storage");
     this.sampler = builder.sampler == null ? CollectorSampler.ALWAYS_SAMPLE : builder.sampler;
     this.v1Interceptors = builder.v1Interceptors;
     this.v2Interceptors = builder.v2Interceptors;
+    this.v1Decorators = SpanDecorators.create(v1Interceptors);
     if (storage instanceof V2StorageComponent) {
       storage2 = new V2Collector(
         builder.logger,
         builder.metrics,
         builder.sampler,
         ((V2StorageComponent) storage).delegate(),
-        v2Interceptors
+        v2Interceptors,
+        builder.queue,
+        builder.rateLimiter,
+        builder.tailSampler,
+        builder.deduplicator,
+        builder.spool
       );
     } else {
       storage2 = null;
     }
   }
   
+  /** Releases the spool and threads, if any. Call this when closing the transport. */
+  @Override public void close() throws IOException {
+    try {
+      if (storage2 != null) storage2.close();
+    } finally {
+      super.close();
+    }
+  }
+
   // MAC -- accept() signature modification
   @Override
   public void acceptSpans(Map<String, String> requestInfo, byte[] serializedSpans, SpanDecoder decoder, Callback<Void> callback) {
     try {
-      if (decoder instanceof DetectingSpanDecoder) decoder = detectFormat(serializedSpans);
+      if (decoder instanceof DetectingSpanDecoder) {
+        decoder = DetectingSpanDecoder.detectFormat(serializedSpans);
+      }
     } catch (RuntimeException e) {
       metrics.incrementBytes(serializedSpans.length);
       callback.onError(errorReading(e));
       return;
     }
-    if (storage2 != null && decoder instanceof V2JsonSpanDecoder) {
-      storage2.acceptSpans(requestInfo, serializedSpans, SpanBytesDecoder.JSON_V2, callback);
+    // decode straight to v2, as opposed to decoding v1 spans, then converting them
+    BytesDecoder<Span> decoder2 = storage2 != null ? toV2Decoder(decoder) : null;
+    if (decoder2 != null) {
+      storage2.acceptSpans(requestInfo, serializedSpans, decoder2, callback);
     } else {
       super.acceptSpans(requestInfo, serializedSpans, decoder, callback);
     }
   }
 
+  /**
+   * Decodes each message on the executor, then stores the spans of all messages in one request.
+   * This is for transports that receive messages in batches, such as a poll of a message queue.
+   *
+   * <p>Messages may be in different encodings. A thrift message may be a single span, as
+   * older reporters sent. Malformed messages are logged and dropped, without failing the others.
+   *
+   * <p>Unlike other methods, the callback completes when storage does, even when there's no
+   * {@link Builder#queue(CollectorQueue) queue}. This allows transports to acknowledge messages
+   * only once their spans are stored. When there's a {@link Builder#tailSampler(CollectorTailSampler)
+   * tail sampler}, the callback completes once spans are buffered.
+   */
+  public void acceptMessages(List<byte[]> messages, final SpanDecoder decoder, Executor executor,
+    Callback<Void> callback) {
+    if (storage2 != null) {
+      storage2.acceptMessages(messages, new V2Collector.MessageDecoder<Span>() {
+        @Override public List<Span> decode(byte[] message) {
+          SpanDecoder detected = detectFormat(message, decoder);
+          if (detected == null) return null;
+          BytesDecoder<Span> decoder2 = toV2Decoder(detected);
+          if (decoder2 != null) return storage2.decodeMessage(message, decoder2);
+          List<zipkin.Span> spans = decodeMessage(message, detected);
+          return spans != null ? toSpan2s(spans) : null;
+        }
+      }, executor, callback);
+    } else {
+      acceptMessages(messages, new MessageDecoder<zipkin.Span>() {
+        @Override public List<zipkin.Span> decode(byte[] message) {
+          SpanDecoder detected = detectFormat(message, decoder);
+          return detected != null ? decodeMessage(message, detected) : null;
+        }
+      }, executor, callback);
+    }
+  }
+
+  /** Returns the decoder for the message, or null after logging why its format is unknown. */
+  @Nullable SpanDecoder detectFormat(byte[] message, SpanDecoder decoder) {
+    if (!(decoder instanceof DetectingSpanDecoder)) return decoder;
+    try {
+      SpanDecoder detected = DetectingSpanDecoder.detectFormat(message);
+      if (detected instanceof ThriftCodec && message[0] != 12 /* not a list */) return THRIFT_SPAN;
+      return detected;
+    } catch (RuntimeException e) {
+      metrics.incrementBytes(message.length);
+      errorReading(e);
+      return null;
+    }
+  }
+
+  /** Decodes a legacy message, which is a single thrift span as opposed to a list. */
+  static final SpanDecoder THRIFT_SPAN = new SpanDecoder() {
+    @Override public zipkin.Span readSpan(byte[] span) {
+      return THRIFT_DECODER.readSpan(span);
+    }
+
+    @Override public List<zipkin.Span> readSpans(byte[] span) {
+      return Collections.singletonList(THRIFT_DECODER.readSpan(span));
+    }
+  };
+
+  /** Returns a decoder straight to v2 spans, or null if there's none. */
+  @Nullable static BytesDecoder<Span> toV2Decoder(SpanDecoder decoder) {
+    if (decoder instanceof V2JsonSpanDecoder) return SpanBytesDecoder.JSON_V2;
+    if (decoder instanceof Proto3SpanDecoder) return SpanBytesDecoder.PROTO3;
+    if (decoder instanceof ThriftCodec) return V1SpanBytesDecoder.THRIFT;
+    if (decoder instanceof JsonCodec) return V1SpanBytesDecoder.JSON_V1;
+    return null;
+  }
+
   /**
    * @deprecated All transports accept encoded lists of spans. Please update reporters to do so.
    */
@@ -162,26 +327,34 @@ public class Collector
   // MAC -- accept() signature modification
   @Override public void accept(Map<String, String> requestInfo, List<zipkin.Span> spans, Callback<Void> callback) {
     if (storage2 != null) {
-      int length = spans.size();
-      List<Span> span2s = new ArrayList<>(length);
-      for (int i = 0; i < length; i++) {
-        span2s.addAll(V2SpanConverter.fromSpan(spans.get(i)));
-      }
-      storage2.accept(requestInfo, span2s, callback);
+      storage2.accept(requestInfo, toSpan2s(spans), callback);
     } else {
       super.accept(requestInfo, spans, callback);
     }
   }
 
+  @Override public void acceptSampled(Map<String, String> requestInfo, List<zipkin.Span> sampled,
+    Callback<Void> callback) {
+    if (storage2 != null) {
+      storage2.acceptSampled(requestInfo, toSpan2s(sampled), callback);
+    } else {
+      super.acceptSampled(requestInfo, sampled, callback);
+    }
+  }
+
+  static List<Span> toSpan2s(List<zipkin.Span> spans) {
+    int length = spans.size();
+    List<Span> span2s = new ArrayList<>(length);
+    for (int i = 0; i < length; i++) {
+      span2s.addAll(V2SpanConverter.fromSpan(spans.get(i)));
+    }
+    return span2s;
+  }
+
   // ############ MAC ###################
   @Override
   protected List<zipkin.Span> decorateSpans(Map<String, String> requestInfo, List<zipkin.Span> sampledSpans) {
-
-    List<zipkin.Span> spansToStore = sampledSpans;
-    for ( SpanDecorator<zipkin.Span> interceptor : v1Interceptors) {
-      spansToStore = interceptor.decorate(requestInfo, spansToStore);
-    }
-    return spansToStore;
+    return v1Decorators.decorate(requestInfo, sampledSpans);
   }
   // ############ MAC ###################
   
@@ -189,6 +362,22 @@ public class Collector
     return decoder.readSpans(serialized);
   }
 
+  @Override @Nullable
+  protected List<zipkin.Span> decodeSampledList(SpanDecoder decoder, byte[] serialized) {
+    if (sampler == CollectorSampler.ALWAYS_SAMPLE) return null; // nothing to skip
+    SamplingSpanReader<zipkin.Span> reader;
+    if (decoder instanceof ThriftCodec) {
+      reader = SamplingSpanReader.THRIFT;
+    } else if (decoder instanceof JsonCodec) {
+      reader = SamplingSpanReader.JSON_V1;
+    } else if (decoder instanceof V2JsonSpanDecoder) {
+      reader = SamplingSpanReader.JSON_V2_AS_V1;
+    } else {
+      return null;
+    }
+    return decodeSampled(reader, sampler, serialized);
+  }
+
   @Override protected boolean isSampled(zipkin.Span span) {
     return sampler.isSampled(span.traceId, span.debug);
   }
@@ -197,7 +386,80 @@ public class Collector
     storage.asyncSpanConsumer().accept(sampled, callback);
   }
 
+  @Override protected byte[] encodeSpooled(List<zipkin.Span> spans) {
+    return Codec.THRIFT.writeSpans(spans);
+  }
+
+  @Override protected List<zipkin.Span> decodeSpooled(byte[] encoded) {
+    return Codec.THRIFT.readSpans(encoded);
+  }
+
+  @Override protected CheckResult checkStorage() {
+    return storage.check();
+  }
+
   @Override protected String idString(zipkin.Span span) {
     return span.idString();
   }
+
+  @Override protected String serviceName(zipkin.Span span) {
+    Endpoint endpoint = SpanDecorators.endpoints(span).get(0);
+    return endpoint != null ? endpoint.serviceName : null;
+  }
+
+  @Override protected boolean isDebug(zipkin.Span span) {
+    return Boolean.TRUE.equals(span.debug);
+  }
+
+  @Override protected String traceId(zipkin.Span span) {
+    return Util.toLowerHex(span.traceIdHigh, span.traceId);
+  }
+
+  /** v1 spans have no kind, so halves of a shared span are told apart by their annotations. */
+  @Override protected long spanKey(zipkin.Span span) {
+    int kind = 0;
+    for (int i = 0, length = span.annotations.size(); i < length; i++) {
+      String value = span.annotations.get(i).value;
+      for (int j = 0; j < CORE_ANNOTATIONS.length; j++) {
+        if (CORE_ANNOTATIONS[j].equals(value)) kind |= 1 << j;
+      }
+    }
+    return CollectorDeduplicator.key(span.traceIdHigh, span.traceId, span.id, kind);
+  }
+
+  static final String[] CORE_ANNOTATIONS = {
+    Constants.CLIENT_SEND, Constants.CLIENT_RECV, Constants.SERVER_SEND, Constants.SERVER_RECV,
+    Constants.MESSAGE_SEND, Constants.MESSAGE_RECV
+  };
+
+  @Override protected boolean isError(zipkin.Span span) {
+    for (int i = 0, length = span.binaryAnnotations.size(); i < length; i++) {
+      if (span.binaryAnnotations.get(i).key.equals(Constants.ERROR)) return true;
+    }
+    return false;
+  }
+
+  @Override protected long timestamp(zipkin.Span span) {
+    return span.timestamp != null ? span.timestamp : 0L;
+  }
+
+  @Override protected long duration(zipkin.Span span) {
+    return span.duration != null ? span.duration : 0L;
+  }
+
+  @Override protected boolean hasService(zipkin.Span span, Set<String> serviceNames) {
+    for (int i = 0, length = span.annotations.size(); i < length; i++) {
+      Endpoint endpoint = span.annotations.get(i).endpoint;
+      if (endpoint != null && serviceNames.contains(endpoint.serviceName)) return true;
+    }
+    for (int i = 0, length = span.binaryAnnotations.size(); i < length; i++) {
+      Endpoint endpoint = span.binaryAnnotations.get(i).endpoint;
+      if (endpoint != null && serviceNames.contains(endpoint.serviceName)) return true;
+    }
+    return false;
+  }
+
+  @Override protected int sizeInBytes(zipkin.Span span) {
+    return Codec.THRIFT.sizeInBytes(span);
+  }
 }
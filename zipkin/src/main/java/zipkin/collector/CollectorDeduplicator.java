@@ -0,0 +1,227 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static zipkin.internal.Util.checkArgument;
+
+/**
+ * Drops spans the collector has recently stored, before they reach storage again.
+ *
+ * <p>Reporters retry, and Kafka consumers replay messages after a rebalance, so the same spans are
+ * often delivered more than once. Each storage write costs the same whether or not it's a
+ * duplicate, and some backends don't overwrite: Elasticsearch indexes a second document, for
+ * example. This remembers the {@link #key(long, long, long, int) key} of each stored span, which is
+ * its trace ID, span ID and kind.
+ *
+ * <p>Keys are held in a Bloom filter, so memory is fixed at {@link Builder#maxBytes(int)
+ * maxBytes}, and a span is wrongly considered a duplicate at most at the {@link
+ * Builder#falsePositiveRate(double) falsePositiveRate}. The filter is split into {@link
+ * Builder#slices(int) slices} that each cover part of the {@link Builder#windowMillis(long)
+ * window}. Keys are added to the newest slice, and the oldest is discarded when the newest is full
+ * or old enough. Spans are remembered for at least the window, unless more arrive than fit in the
+ * filter at the desired false positive rate: then, the window shrinks.
+ *
+ * <p>Keys are only added once the transport's callback succeeds, so a message that failed isn't
+ * considered a duplicate when retried. With a {@link CollectorQueue}, that's when storage
+ * completes. Without one, it is when storage is scheduled. A deduplicator is safe to share between
+ * collectors, so that spans retried over another transport are dropped.
+ */
+public final class CollectorDeduplicator {
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxBytes = 8 * 1024 * 1024;
+    double falsePositiveRate = 0.0001;
+    long windowMillis = TimeUnit.MINUTES.toMillis(5);
+    int slices = 4;
+
+    /** Memory used by the filter. Defaults to 8MiB, which holds about 3 million keys. */
+    public Builder maxBytes(int maxBytes) {
+      checkArgument(maxBytes >= 1024, "maxBytes < 1024");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Maximum likelihood that a span that wasn't seen is dropped as a duplicate. Defaults to
+     * 0.0001.
+     */
+    public Builder falsePositiveRate(double falsePositiveRate) {
+      checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1,
+        "falsePositiveRate should be between 0 and 1 exclusive");
+      this.falsePositiveRate = falsePositiveRate;
+      return this;
+    }
+
+    /** How long spans are remembered, unless the filter fills first. Defaults to 5 minutes. */
+    public Builder windowMillis(long windowMillis) {
+      checkArgument(windowMillis > 0, "windowMillis <= 0");
+      this.windowMillis = windowMillis;
+      return this;
+    }
+
+    /**
+     * Count of parts the filter is split into. More slices discard fewer keys at a time, but each
+     * costs another lookup. Defaults to 4.
+     */
+    public Builder slices(int slices) {
+      checkArgument(slices >= 2 && slices <= 64, "slices should be between 2 and 64");
+      this.slices = slices;
+      return this;
+    }
+
+    public CollectorDeduplicator build() {
+      return new CollectorDeduplicator(this, System.nanoTime());
+    }
+
+    Builder() {
+    }
+  }
+
+  final int maxBytes;
+  final double falsePositiveRate;
+  final long windowMillis, sliceNanos;
+  final int bitsPerSlice, hashCount, keysPerSlice;
+
+  /** Slices from newest to eldest, replaced as a whole when rotating. */
+  volatile Slice[] slices;
+
+  CollectorDeduplicator(Builder builder, long now) {
+    this.maxBytes = builder.maxBytes;
+    this.falsePositiveRate = builder.falsePositiveRate;
+    this.windowMillis = builder.windowMillis;
+    int sliceCount = builder.slices;
+    // the eldest slice is discarded, so the others must cover the window
+    this.sliceNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis) / (sliceCount - 1);
+    // a power of two, so that bit indexes can be masked
+    this.bitsPerSlice = Integer.highestOneBit((int) Math.min(1 << 30, maxBytes * 8L / sliceCount));
+    // each slice is checked, so each needs a proportionally lower false positive rate
+    double sliceRate = falsePositiveRate / sliceCount, ln2 = Math.log(2);
+    this.hashCount = Math.max(1, (int) Math.round(-Math.log(sliceRate) / ln2));
+    this.keysPerSlice = (int) (bitsPerSlice * ln2 * ln2 / -Math.log(sliceRate));
+    Slice[] slices = new Slice[sliceCount];
+    for (int i = 0; i < sliceCount; i++) slices[i] = new Slice(bitsPerSlice, now);
+    this.slices = slices;
+  }
+
+  /** Returns a key for a span, from its 128-bit trace ID, span ID and kind. */
+  public static long key(long traceIdHigh, long traceId, long spanId, int kind) {
+    long h = mix(traceIdHigh ^ 0x9e3779b97f4a7c15L);
+    h = mix(h ^ traceId);
+    h = mix(h ^ spanId);
+    return mix(h ^ kind);
+  }
+
+  /** Returns true if the key was probably added within the window, and false if it wasn't. */
+  public boolean mightContain(long key) {
+    Slice[] slices = this.slices;
+    for (Slice slice : slices) {
+      if (slice.mightContain(key, hashCount)) return true;
+    }
+    return false;
+  }
+
+  /** Remembers keys of spans that were stored. */
+  public void putAll(long[] keys, int length) {
+    if (length == 0) return;
+    putAll(keys, length, System.nanoTime());
+  }
+
+  void putAll(long[] keys, int length, long now) {
+    Slice newest = slices[0];
+    for (int i = 0; i < length; i++) {
+      if (newest.keyCount.get() >= keysPerSlice || now - newest.createdNanos >= sliceNanos) {
+        newest = rotate(newest, now);
+      }
+      newest.put(keys[i], hashCount);
+      newest.keyCount.incrementAndGet();
+    }
+  }
+
+  /** Discards the eldest slice for a new one, unless another thread already did. */
+  synchronized Slice rotate(Slice newest, long now) {
+    Slice[] slices = this.slices;
+    if (slices[0] != newest) return slices[0];
+    Slice[] rotated = new Slice[slices.length];
+    rotated[0] = new Slice(bitsPerSlice, now);
+    System.arraycopy(slices, 0, rotated, 1, slices.length - 1);
+    this.slices = rotated;
+    return rotated[0];
+  }
+
+  /** Count of keys that fit in each slice at the desired false positive rate. */
+  public int keysPerSlice() {
+    return keysPerSlice;
+  }
+
+  @Override public String toString() {
+    return "CollectorDeduplicator{maxBytes=" + maxBytes
+      + ", falsePositiveRate=" + falsePositiveRate + ", windowMillis=" + windowMillis
+      + ", slices=" + slices.length + ", keysPerSlice=" + keysPerSlice + "}";
+  }
+
+  /** Finalizer of MurmurHash3, which spreads each input bit across the output. */
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** One Bloom filter, whose bit indexes are derived from two hashes as Kirsch and Mitzenmacher. */
+  static final class Slice {
+    final AtomicLongArray words;
+    final int mask;
+    final long createdNanos;
+    final AtomicInteger keyCount = new AtomicInteger();
+
+    Slice(int bits, long createdNanos) {
+      this.words = new AtomicLongArray(bits >>> 6);
+      this.mask = bits - 1;
+      this.createdNanos = createdNanos;
+    }
+
+    boolean mightContain(long key, int hashCount) {
+      // the stride is odd, so it's coprime with the power-of-two size and never repeats a bit
+      int h1 = (int) key, h2 = (int) (key >>> 32) | 1;
+      for (int i = 0; i < hashCount; i++) {
+        int bit = (h1 + i * h2) & mask;
+        if ((words.get(bit >>> 6) & (1L << bit)) == 0) return false;
+      }
+      return true;
+    }
+
+    void put(long key, int hashCount) {
+      int h1 = (int) key, h2 = (int) (key >>> 32) | 1; // same as mightContain
+      for (int i = 0; i < hashCount; i++) {
+        int bit = (h1 + i * h2) & mask;
+        long flag = 1L << bit; // shifts only use the low 6 bits
+        int index = bit >>> 6;
+        while (true) {
+          long word = words.get(index);
+          if ((word & flag) != 0 || words.compareAndSet(index, word, word | flag)) break;
+        }
+      }
+    }
+  }
+}
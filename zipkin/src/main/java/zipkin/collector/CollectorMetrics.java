@@ -51,6 +51,9 @@ import zipkin.storage.Callback;
  * </li>
  * </ul>
  * </pre>
+ *
+ * <p>Implement {@link ExtendedCollectorMetrics} as well, to report metrics of optional features
+ * such as a {@link CollectorQueue}.
  */
 public interface CollectorMetrics {
 
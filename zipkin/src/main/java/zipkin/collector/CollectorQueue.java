@@ -0,0 +1,195 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Bounds the spans a collector holds between accepting a message and storage acknowledging it.
+ *
+ * <p>Without a queue, the collector schedules a storage request and immediately reports success to
+ * the transport. When storage slows down, in-flight requests pile up without limit. With a queue,
+ * at most {@link Builder#maxConcurrency(int) maxConcurrency} storage requests are in flight, and
+ * the remaining spans wait, up to {@link Builder#maxSpans(int) maxSpans} or {@link
+ * Builder#maxBytes(int) maxBytes}. Callbacks complete when storage does, which lets transports
+ * apply backpressure. When there's no room, the {@link Overflow overflow policy} decides what
+ * happens to incoming spans.
+ *
+ * <p>Spans waiting in the queue can be merged into fewer, larger storage requests. Messages are
+ * coalesced up to {@link Builder#maxBatchSpans(int) maxBatchSpans} or {@link
+ * Builder#maxBatchBytes(int) maxBatchBytes}. When {@link Builder#maxLingerMillis(long)
+ * maxLingerMillis} is set, a batch that isn't full waits that long for more spans before it is
+ * sent. Each caller's callback still completes when storage has its spans.
+ *
+ * <p>Settings here are immutable: each collector keeps its own queue built from them.
+ */
+public final class CollectorQueue {
+
+  /** Decides what happens to a message when the queue has no room for its spans. */
+  public enum Overflow {
+    /** Blocks the calling thread until storage makes room. This is the default. */
+    BLOCK,
+    /** Drops the incoming message, reporting success to the caller. */
+    DROP_NEWEST,
+    /**
+     * Drops the eldest messages not yet sent to storage until the incoming one fits. When all
+     * queued spans are already in flight, this drops the incoming message instead.
+     */
+    DROP_OLDEST,
+    /**
+     * Fails the callback with a {@link RejectedExecutionException}, so that the transport can
+     * retry later. For example, the HTTP collector responds with status 503.
+     */
+    REJECT
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxSpans = 100000;
+    int maxBytes = Integer.MAX_VALUE;
+    int maxConcurrency = 64;
+    Overflow overflow = Overflow.BLOCK;
+    int maxBatchSpans = 1;
+    int maxBatchBytes = Integer.MAX_VALUE;
+    long maxLingerMillis = 0;
+
+    /** Maximum count of spans queued or in flight to storage. Defaults to 100000. */
+    public Builder maxSpans(int maxSpans) {
+      checkArgument(maxSpans > 0, "maxSpans <= 0");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /**
+     * Maximum size in bytes of spans queued or in flight to storage, estimated from their encoded
+     * size. Defaults to unbounded, as estimating costs a pass over each span.
+     */
+    public Builder maxBytes(int maxBytes) {
+      checkArgument(maxBytes > 0, "maxBytes <= 0");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /** Maximum count of storage requests in flight. Defaults to 64. */
+    public Builder maxConcurrency(int maxConcurrency) {
+      checkArgument(maxConcurrency > 0, "maxConcurrency <= 0");
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /** What to do with incoming spans when the queue is full. Defaults to {@link Overflow#BLOCK}. */
+    public Builder overflow(Overflow overflow) {
+      this.overflow = checkNotNull(overflow, "overflow");
+      return this;
+    }
+
+    /**
+     * Maximum count of spans merged into one storage request. A message larger than this is sent
+     * alone, never split. Defaults to 1, which sends each message in its own request. Can't be
+     * more than {@link #maxSpans(int) maxSpans}.
+     */
+    public Builder maxBatchSpans(int maxBatchSpans) {
+      checkArgument(maxBatchSpans > 0, "maxBatchSpans <= 0");
+      this.maxBatchSpans = maxBatchSpans;
+      return this;
+    }
+
+    /**
+     * Maximum estimated size in bytes of spans merged into one storage request. Can't be more than
+     * {@link #maxBytes(int) maxBytes}, unless unbounded, which is the default: batches are then
+     * bounded by {@link #maxBytes(int) maxBytes} instead.
+     */
+    public Builder maxBatchBytes(int maxBatchBytes) {
+      checkArgument(maxBatchBytes > 0, "maxBatchBytes <= 0");
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    /**
+     * How long a batch that isn't full waits for more spans before it is sent. Defaults to 0,
+     * which only merges messages that queued while storage was busy.
+     */
+    public Builder maxLingerMillis(long maxLingerMillis) {
+      checkArgument(maxLingerMillis >= 0, "maxLingerMillis < 0");
+      this.maxLingerMillis = maxLingerMillis;
+      return this;
+    }
+
+    public CollectorQueue build() {
+      checkArgument(maxBatchSpans <= maxSpans, "maxBatchSpans > maxSpans");
+      checkArgument(maxBatchBytes == Integer.MAX_VALUE || maxBatchBytes <= maxBytes,
+        "maxBatchBytes > maxBytes");
+      return new CollectorQueue(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final int maxSpans, maxBytes, maxConcurrency;
+  final Overflow overflow;
+  final int maxBatchSpans, maxBatchBytes;
+  final long maxLingerMillis;
+
+  CollectorQueue(Builder builder) {
+    this.maxSpans = builder.maxSpans;
+    this.maxBytes = builder.maxBytes;
+    this.maxConcurrency = builder.maxConcurrency;
+    this.overflow = builder.overflow;
+    this.maxBatchSpans = builder.maxBatchSpans;
+    this.maxBatchBytes = Math.min(builder.maxBatchBytes, builder.maxBytes);
+    this.maxLingerMillis = builder.maxLingerMillis;
+  }
+
+  public int maxSpans() {
+    return maxSpans;
+  }
+
+  public int maxBytes() {
+    return maxBytes;
+  }
+
+  public int maxConcurrency() {
+    return maxConcurrency;
+  }
+
+  public Overflow overflow() {
+    return overflow;
+  }
+
+  public int maxBatchSpans() {
+    return maxBatchSpans;
+  }
+
+  public int maxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  public long maxLingerMillis() {
+    return maxLingerMillis;
+  }
+
+  @Override public String toString() {
+    return "CollectorQueue{maxSpans=" + maxSpans + ", maxBytes=" + maxBytes
+      + ", maxConcurrency=" + maxConcurrency + ", overflow=" + overflow
+      + ", maxBatchSpans=" + maxBatchSpans + ", maxBatchBytes=" + maxBatchBytes
+      + ", maxLingerMillis=" + maxLingerMillis + "}";
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Limits the rate of spans stored for each service, so that one noisy service can't crowd out the
+ * others or overload storage.
+ *
+ * <p>Unlike {@link CollectorSampler}, which keeps a fraction of all traces, this keeps up to a
+ * number of spans per second for each {@link zipkin2.Span#localServiceName() local service}. Each
+ * service has a token bucket, which holds up to {@link Builder#burstSeconds(int) burstSeconds} of
+ * spans. Debug spans always pass, and don't take tokens.
+ *
+ * <p>A limiter is safe to share between collectors, so that a service's rate is the same whatever
+ * transport it uses. Tokens are taken once per service per message: each bucket is a single atomic
+ * timestamp, so services don't contend with each other.
+ */
+public final class CollectorRateLimiter {
+  /** Key of the bucket shared by spans without a service name. */
+  public static final String UNKNOWN_SERVICE = "unknown";
+  /** Key of the bucket shared by services seen after {@link Builder#maxServices(int)}. */
+  public static final String OTHER_SERVICES = "other";
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int spansPerSecond = 1000;
+    int burstSeconds = 1;
+    int maxServices = 1000;
+    final Map<String, Integer> overrides = new LinkedHashMap<>();
+
+    /** Maximum spans per second stored for a service without an override. Defaults to 1000. */
+    public Builder spansPerSecond(int spansPerSecond) {
+      checkArgument(spansPerSecond >= 0, "spansPerSecond < 0");
+      this.spansPerSecond = spansPerSecond;
+      return this;
+    }
+
+    /** Overrides the rate for a service. Zero drops all spans that aren't debug. */
+    public Builder override(String serviceName, int spansPerSecond) {
+      checkNotNull(serviceName, "serviceName");
+      checkArgument(spansPerSecond >= 0, "spansPerSecond < 0");
+      overrides.put(serviceName.toLowerCase(Locale.ROOT), spansPerSecond);
+      return this;
+    }
+
+    /** Parses overrides like "frontend=100,backend=500", ignoring empty input. */
+    public Builder parseOverrides(@Nullable String overrides) {
+      if (overrides == null || overrides.trim().isEmpty()) return this;
+      for (String override : overrides.split(",")) {
+        int equals = override.indexOf('=');
+        checkArgument(equals > 0, "expected service=spansPerSecond: %s", override);
+        String spansPerSecond = override.substring(equals + 1).trim();
+        try {
+          override(override.substring(0, equals).trim(), Integer.parseInt(spansPerSecond));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("expected service=spansPerSecond: " + override);
+        }
+      }
+      return this;
+    }
+
+    /** How many seconds of spans a service can send at once after being quiet. Defaults to 1. */
+    public Builder burstSeconds(int burstSeconds) {
+      checkArgument(burstSeconds > 0, "burstSeconds <= 0");
+      this.burstSeconds = burstSeconds;
+      return this;
+    }
+
+    /**
+     * Maximum count of services that get their own bucket, which also bounds metrics. Services
+     * seen after that share the bucket {@link #OTHER_SERVICES}. Defaults to 1000.
+     */
+    public Builder maxServices(int maxServices) {
+      checkArgument(maxServices > 0, "maxServices <= 0");
+      this.maxServices = maxServices;
+      return this;
+    }
+
+    public CollectorRateLimiter build() {
+      return new CollectorRateLimiter(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final int spansPerSecond, burstSeconds, maxServices;
+  final Map<String, Integer> overrides;
+  final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+  final Bucket otherServices;
+
+  CollectorRateLimiter(Builder builder) {
+    spansPerSecond = builder.spansPerSecond;
+    burstSeconds = builder.burstSeconds;
+    maxServices = builder.maxServices;
+    overrides = new LinkedHashMap<>(builder.overrides);
+    otherServices = newBucket(OTHER_SERVICES);
+  }
+
+  /**
+   * Takes up to the requested count of tokens for spans of the service, returning how many were
+   * granted. Spans beyond that should be dropped.
+   *
+   * @param serviceName the bucket key, as returned by {@link #bucketKey(String)}
+   */
+  public int acquire(String serviceName, int spanCount) {
+    return bucket(serviceName).acquire(spanCount, System.nanoTime());
+  }
+
+  /**
+   * Returns the key of the bucket used for this service. This is the service name unless it is
+   * absent or there are too many services.
+   */
+  public String bucketKey(@Nullable String serviceName) {
+    if (serviceName == null || serviceName.isEmpty()) return UNKNOWN_SERVICE;
+    if (buckets.containsKey(serviceName)) return serviceName;
+    return bucket(serviceName).key;
+  }
+
+  Bucket bucket(String serviceName) {
+    Bucket bucket = buckets.get(serviceName);
+    if (bucket != null) return bucket;
+    if (serviceName.equals(OTHER_SERVICES)) return otherServices;
+    if (buckets.size() >= maxServices && !overrides.containsKey(serviceName)) {
+      return otherServices;
+    }
+    bucket = newBucket(serviceName);
+    Bucket existing = buckets.putIfAbsent(serviceName, bucket);
+    return existing != null ? existing : bucket;
+  }
+
+  Bucket newBucket(String key) {
+    Integer override = overrides.get(key);
+    int rate = override != null ? override : spansPerSecond;
+    return new Bucket(key, rate, burstSeconds, System.nanoTime());
+  }
+
+  @Override public String toString() {
+    return "CollectorRateLimiter{spansPerSecond=" + spansPerSecond
+      + ", burstSeconds=" + burstSeconds
+      + ", overrides=" + overrides + "}";
+  }
+
+  /**
+   * A token bucket held as the time it will be full again, also known as the generic cell rate
+   * algorithm. Taking tokens pushes that time forward, and the bucket refills as the clock catches
+   * up: no timer or separate token count is needed.
+   */
+  static final class Bucket {
+    final String key;
+    final long nanosPerSpan, capacityNanos; // capacityNanos is 0 when nothing is allowed
+    final AtomicLong fullAt;
+
+    Bucket(String key, int spansPerSecond, int burstSeconds, long now) {
+      this.key = key;
+      if (spansPerSecond == 0) {
+        nanosPerSpan = 1L;
+        capacityNanos = 0L;
+      } else {
+        nanosPerSpan = Math.max(1L, TimeUnit.SECONDS.toNanos(1) / spansPerSecond);
+        capacityNanos = nanosPerSpan * spansPerSecond * (long) burstSeconds;
+      }
+      fullAt = new AtomicLong(now);
+    }
+
+    int acquire(int spanCount, long now) {
+      while (true) {
+        long current = fullAt.get();
+        long base = current - now > 0 ? current : now; // nanoTime can overflow: compare deltas
+        long available = (capacityNanos - (base - now)) / nanosPerSpan;
+        if (available <= 0) return 0;
+        int granted = (int) Math.min(spanCount, available);
+        if (fullAt.compareAndSet(current, base + granted * nanosPerSpan)) return granted;
+      }
+    }
+  }
+}
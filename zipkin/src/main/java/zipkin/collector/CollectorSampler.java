@@ -33,13 +33,19 @@ import static zipkin.internal.Util.checkArgument;
  * rate of 3% when 100K trace ids are {@link java.util.Random#nextLong random}.
  */
 public abstract class CollectorSampler {
-  public static final CollectorSampler ALWAYS_SAMPLE = CollectorSampler.create(1.0f);
+  public static final CollectorSampler ALWAYS_SAMPLE = new CollectorSampler() {
+    @Override protected long boundary() {
+      return Long.MAX_VALUE;
+    }
+  };
 
   /**
    * @param rate minimum sample rate is 0.0001, or 0.01% of traces
    */
   public static CollectorSampler create(float rate) {
     checkArgument(rate >= 0 && rate <= 1, "rate should be between 0 and 1: was %s", rate);
+    // returning a constant lets collectors skip work when nothing is dropped
+    if (rate == 1.0f) return ALWAYS_SAMPLE;
     final long boundary = (long) (Long.MAX_VALUE * rate); // safe cast as less <= 1
     return new CollectorSampler() {
       @Override protected long boundary() {
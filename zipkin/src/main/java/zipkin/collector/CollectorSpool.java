@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.io.File;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Writes spans to local disk when they can't be stored, then replays them once storage recovers.
+ *
+ * <p>Without a spool, spans that fail to store are logged as "Cannot store spans" and dropped. With
+ * a spool, they are appended to memory-mapped segment files instead, as are spans a {@link
+ * CollectorQueue} has no room for. Once a storage request fails, incoming spans go straight to the
+ * spool, until {@link zipkin.storage.StorageComponent#check() storage check} passes again. Spooled
+ * spans are then replayed in order, at most {@link Builder#replaySpansPerSecond(int)
+ * replaySpansPerSecond}, so that recovering storage isn't overwhelmed. New spans are stored
+ * directly while the spool replays.
+ *
+ * <p>Each collector spools to its own subdirectory, named after its logging category, which it
+ * locks until {@link Collector#close() closed}. A transport builds one collector, shared by all of
+ * its threads or streams, so has one spool. Spans spooled before a restart are replayed when the
+ * collector is next built. As segments are memory-mapped, spooled spans survive a crash of the
+ * process, but not necessarily of the host.
+ *
+ * <p>Settings here are immutable: each collector keeps its own spool built from them.
+ */
+public final class CollectorSpool {
+
+  public static Builder newBuilder(File directory) {
+    return new Builder(directory);
+  }
+
+  public static final class Builder {
+    final File directory;
+    int segmentBytes = 64 * 1024 * 1024;
+    long maxBytes = 1024L * 1024 * 1024;
+    int replaySpansPerSecond = 10000;
+    long checkIntervalMillis = 1000;
+
+    Builder(File directory) {
+      this.directory = checkNotNull(directory, "directory");
+    }
+
+    /**
+     * Size in bytes of each segment file. A message larger than this gets a segment of its own.
+     * Defaults to 64MiB.
+     */
+    public Builder segmentBytes(int segmentBytes) {
+      checkArgument(segmentBytes > 0, "segmentBytes <= 0");
+      this.segmentBytes = segmentBytes;
+      return this;
+    }
+
+    /**
+     * Maximum size in bytes of spans waiting to be replayed. When full, spans that can't be stored
+     * are dropped. Defaults to 1GiB.
+     */
+    public Builder maxBytes(long maxBytes) {
+      checkArgument(maxBytes > 0, "maxBytes <= 0");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /** Maximum rate spooled spans are sent to storage once it recovers. Defaults to 10000. */
+    public Builder replaySpansPerSecond(int replaySpansPerSecond) {
+      checkArgument(replaySpansPerSecond > 0, "replaySpansPerSecond <= 0");
+      this.replaySpansPerSecond = replaySpansPerSecond;
+      return this;
+    }
+
+    /** How often storage is checked while it is failing. Defaults to 1000. */
+    public Builder checkIntervalMillis(long checkIntervalMillis) {
+      checkArgument(checkIntervalMillis > 0, "checkIntervalMillis <= 0");
+      this.checkIntervalMillis = checkIntervalMillis;
+      return this;
+    }
+
+    public CollectorSpool build() {
+      return new CollectorSpool(this);
+    }
+  }
+
+  final File directory;
+  final int segmentBytes;
+  final long maxBytes;
+  final int replaySpansPerSecond;
+  final long checkIntervalMillis;
+
+  CollectorSpool(Builder builder) {
+    this.directory = builder.directory;
+    this.segmentBytes = builder.segmentBytes;
+    this.maxBytes = builder.maxBytes;
+    this.replaySpansPerSecond = builder.replaySpansPerSecond;
+    this.checkIntervalMillis = builder.checkIntervalMillis;
+  }
+
+  public File directory() {
+    return directory;
+  }
+
+  public int segmentBytes() {
+    return segmentBytes;
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  public int replaySpansPerSecond() {
+    return replaySpansPerSecond;
+  }
+
+  public long checkIntervalMillis() {
+    return checkIntervalMillis;
+  }
+
+  @Override public String toString() {
+    return "CollectorSpool{directory=" + directory + ", segmentBytes=" + segmentBytes
+      + ", maxBytes=" + maxBytes + ", replaySpansPerSecond=" + replaySpansPerSecond
+      + ", checkIntervalMillis=" + checkIntervalMillis + "}";
+  }
+}
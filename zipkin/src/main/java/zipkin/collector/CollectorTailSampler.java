@@ -0,0 +1,182 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Decides whether to store a trace after it is complete, as opposed to by trace ID when its first
+ * span arrives.
+ *
+ * <p>{@link CollectorSampler} has to decide without seeing a trace, so keeping all slow or failed
+ * traces means keeping all traces. With a tail sampler, the collector holds spans by trace ID until
+ * no span of that trace has arrived for {@link Builder#decisionWaitMillis(long)
+ * decisionWaitMillis}. The whole trace is then kept if any span:
+ *
+ * <ul>
+ *   <li>has an "error" tag (or binary annotation)</li>
+ *   <li>is debug</li>
+ *   <li>belongs to, or calls, one of the {@link Builder#addService(String) services}</li>
+ * </ul>
+ *
+ * <p>Traces whose spans cover at least {@link Builder#latencyThresholdMillis(long)
+ * latencyThresholdMillis} are also kept. Remaining traces are kept at the {@link
+ * Builder#sampleRate(float) sampleRate}, by trace ID. Spans of a trace that arrive after it was
+ * decided follow that decision, as long as it is recent.
+ *
+ * <p>Held spans are bounded by {@link Builder#maxSpans(int) maxSpans}. When full, the traces that
+ * were quiet the longest are decided early, and counted by {@link
+ * ExtendedCollectorMetrics#incrementTracesEvicted(int)}. A trace that keeps growing is decided once
+ * it is {@link Builder#maxWaitMillis(long) maxWaitMillis} old.
+ *
+ * <p>Spans are held after decoration, and the transport's callback completes once they are held.
+ * Settings here are immutable: each collector keeps its own buffer built from them, so spans of a
+ * trace are only assembled if they arrive on the same transport.
+ */
+public final class CollectorTailSampler {
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    long decisionWaitMillis = 10000;
+    long maxWaitMillis = 60000;
+    int maxSpans = 100000;
+    long latencyThresholdMillis = 0;
+    float sampleRate = 0.1f;
+    final Set<String> services = new LinkedHashSet<>();
+
+    /** How long a trace must be quiet before it is decided. Defaults to 10 seconds. */
+    public Builder decisionWaitMillis(long decisionWaitMillis) {
+      checkArgument(decisionWaitMillis > 0, "decisionWaitMillis <= 0");
+      this.decisionWaitMillis = decisionWaitMillis;
+      return this;
+    }
+
+    /**
+     * Maximum time a trace is held after its first span, even if spans keep arriving. Defaults to
+     * 60 seconds.
+     */
+    public Builder maxWaitMillis(long maxWaitMillis) {
+      checkArgument(maxWaitMillis > 0, "maxWaitMillis <= 0");
+      this.maxWaitMillis = maxWaitMillis;
+      return this;
+    }
+
+    /** Maximum count of spans held while their traces are undecided. Defaults to 100000. */
+    public Builder maxSpans(int maxSpans) {
+      checkArgument(maxSpans > 0, "maxSpans <= 0");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /**
+     * Traces whose spans cover at least this long are kept. Defaults to 0, which doesn't keep
+     * traces based on latency.
+     */
+    public Builder latencyThresholdMillis(long latencyThresholdMillis) {
+      checkArgument(latencyThresholdMillis >= 0, "latencyThresholdMillis < 0");
+      this.latencyThresholdMillis = latencyThresholdMillis;
+      return this;
+    }
+
+    /** Traces that include this service are kept. */
+    public Builder addService(String serviceName) {
+      services.add(checkNotNull(serviceName, "serviceName").toLowerCase(Locale.ROOT));
+      return this;
+    }
+
+    /** @see #addService(String) */
+    public Builder services(Collection<String> serviceNames) {
+      services.clear();
+      for (String serviceName : serviceNames) addService(serviceName);
+      return this;
+    }
+
+    /**
+     * Percentage of other traces to keep, as with {@link CollectorSampler#create(float)}. Defaults
+     * to 0.1.
+     */
+    public Builder sampleRate(float sampleRate) {
+      checkArgument(sampleRate >= 0.0f && sampleRate <= 1, "sampleRate should be between 0 and 1");
+      this.sampleRate = sampleRate;
+      return this;
+    }
+
+    public CollectorTailSampler build() {
+      checkArgument(maxWaitMillis >= decisionWaitMillis, "maxWaitMillis < decisionWaitMillis");
+      return new CollectorTailSampler(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final long decisionWaitMillis, maxWaitMillis;
+  final int maxSpans;
+  final long latencyThresholdMillis;
+  final float sampleRate;
+  final CollectorSampler sampler;
+  final Set<String> services;
+
+  CollectorTailSampler(Builder builder) {
+    this.decisionWaitMillis = builder.decisionWaitMillis;
+    this.maxWaitMillis = builder.maxWaitMillis;
+    this.maxSpans = builder.maxSpans;
+    this.latencyThresholdMillis = builder.latencyThresholdMillis;
+    this.sampleRate = builder.sampleRate;
+    this.sampler = CollectorSampler.create(sampleRate);
+    this.services = Collections.unmodifiableSet(new LinkedHashSet<>(builder.services));
+  }
+
+  public long decisionWaitMillis() {
+    return decisionWaitMillis;
+  }
+
+  public long maxWaitMillis() {
+    return maxWaitMillis;
+  }
+
+  public int maxSpans() {
+    return maxSpans;
+  }
+
+  public long latencyThresholdMillis() {
+    return latencyThresholdMillis;
+  }
+
+  public Set<String> services() {
+    return services;
+  }
+
+  /** Decides whether to keep a trace that has no other reason to be kept. */
+  public CollectorSampler sampler() {
+    return sampler;
+  }
+
+  @Override public String toString() {
+    return "CollectorTailSampler{decisionWaitMillis=" + decisionWaitMillis
+      + ", maxWaitMillis=" + maxWaitMillis + ", maxSpans=" + maxSpans
+      + ", latencyThresholdMillis=" + latencyThresholdMillis + ", services=" + services
+      + ", sampleRate=" + sampleRate + "}";
+  }
+}
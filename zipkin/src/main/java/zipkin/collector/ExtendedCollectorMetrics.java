@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+/**
+ * Metrics of optional collector features, such as a {@link CollectorQueue} or a {@link
+ * CollectorSpool}. Collectors report these only when their {@link CollectorMetrics} also implement
+ * this type, so that implementations written before these features keep working unchanged.
+ */
+public interface ExtendedCollectorMetrics extends CollectorMetrics {
+
+  @Override ExtendedCollectorMetrics forTransport(String transportType);
+
+  /**
+   * Updates the count of spans waiting for, or in flight to storage. This is only reported when a
+   * {@link CollectorQueue} is in use.
+   */
+  void updateQueuedSpans(int quantity);
+
+  /**
+   * Updates the estimated size in bytes of spans waiting for, or in flight to storage. This is only
+   * reported when a {@link CollectorQueue} is bounded by bytes.
+   */
+  void updateQueuedBytes(int quantity);
+
+  /**
+   * Increments the count of spans a {@link CollectorRateLimiter} dropped for a service. These are
+   * also counted by {@link #incrementSpansDropped(int)}.
+   *
+   * @param serviceName the {@link CollectorRateLimiter#bucketKey(String) bucket key} of the spans
+   */
+  void incrementSpansRateLimited(String serviceName, int quantity);
+
+  /**
+   * Updates the count of spans a {@link CollectorTailSampler} holds while their traces are
+   * undecided.
+   */
+  void updateBufferedSpans(int quantity);
+
+  /**
+   * Increments the count of traces a {@link CollectorTailSampler} decided before they went quiet,
+   * because it had no room for more spans.
+   */
+  void incrementTracesEvicted(int quantity);
+
+  /**
+   * Increments the count of spans a {@link CollectorDeduplicator} dropped as already stored. These
+   * are also counted by {@link #incrementSpansDropped(int)}.
+   */
+  void incrementSpansDeduplicated(int quantity);
+
+  /** Updates the size in bytes of spans a {@link CollectorSpool} holds for replay. */
+  void updateSpooledBytes(long quantity);
+
+  /** Updates the count of segment files a {@link CollectorSpool} holds. */
+  void updateSpoolSegments(int quantity);
+
+  /**
+   * Updates how long ago the eldest span a {@link CollectorSpool} holds was spooled, in
+   * milliseconds. This is zero when nothing is left to replay.
+   */
+  void updateSpoolReplayLag(long millis);
+}
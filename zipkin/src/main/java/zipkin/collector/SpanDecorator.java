@@ -47,6 +47,11 @@ import java.util.Map;
  * }
  * </pre>
  * 
+ * <p>
+ * Decorators that only add tags should extend {@link TagSpanDecorator}, which
+ * the collector fuses into one pass, rebuilding each span at most once.
+ * </p>
+ * 
  * @param <S>
  *          The span-type supported by the decorator impl
  * @see zipkin.Span
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import zipkin.internal.SpanDecorators;
+
+/**
+ * A {@link SpanDecorator} that only adds tags, one span at a time.
+ *
+ * <p>Chained decorators each return a new list, usually rebuilding every span to add a tag. The
+ * collector instead fuses adjacent tag decorators into a single pass: each contributes tags to an
+ * overlay for the current span, then the span is rebuilt once with all of them. Spans that get no
+ * new tags are passed through as-is.
+ *
+ * <p>Tags are added to a {@link zipkin2.Span} with {@link zipkin2.Span.Builder#putTag}, replacing
+ * any existing value. A {@link zipkin.Span} gets a string binary annotation per tag, for each
+ * endpoint that logged an annotation.
+ *
+ * @param <S> The span-type supported by the decorator impl
+ */
+public abstract class TagSpanDecorator<S> implements SpanDecorator<S> {
+
+  /**
+   * Puts tags to add to the span into the overlay. The overlay is shared by all tag decorators
+   * that are fused, and is reused for the next span: don't keep a reference to it.
+   *
+   * @param requestInfo request info accompanying the spans, or null if there was none
+   * @param span the span to inspect. It doesn't include tags in the overlay yet.
+   * @param overlay tags to add to the span
+   */
+  public abstract void addTags(@Nullable Map<String, String> requestInfo, S span,
+    Map<String, String> overlay);
+
+  /** Decorates the spans with this decorator alone. Collectors fuse tag decorators instead. */
+  @Override public List<S> decorate(Map<String, String> requestInfo, List<S> spans) {
+    return SpanDecorators.tag(Collections.singletonList(this), requestInfo, spans);
+  }
+}
@@ -13,14 +13,29 @@
  */
 package zipkin.internal;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
+import zipkin.Component.CheckResult;
+import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.collector.ExtendedCollectorMetrics;
 import zipkin.storage.Callback;
 
 import static java.lang.String.format;
@@ -32,10 +47,63 @@ public abstract class Collector<D, S> {
 
   protected final Logger logger;
   protected final CollectorMetrics metrics;
-  
+  /** Same as {@link #metrics}, or an adapter ignoring metrics it doesn't support */
+  final ExtendedCollectorMetrics extendedMetrics;
+  @Nullable final SpanQueue<S> queue;
+  @Nullable final CollectorRateLimiter rateLimiter;
+  @Nullable final TraceBuffer<S> traceBuffer;
+  @Nullable final CollectorDeduplicator deduplicator;
+  @Nullable final SpanSpool<S> spool;
+
   protected Collector(Logger logger, @Nullable CollectorMetrics metrics) {
+    this(logger, metrics, null);
+  }
+
+  protected Collector(Logger logger, @Nullable CollectorMetrics metrics,
+    @Nullable CollectorQueue queue) {
+    this(logger, metrics, queue, null, null, null);
+  }
+
+  protected Collector(Logger logger, @Nullable CollectorMetrics metrics,
+    @Nullable CollectorQueue queue, @Nullable CollectorRateLimiter rateLimiter,
+    @Nullable CollectorTailSampler tailSampler, @Nullable CollectorDeduplicator deduplicator) {
+    this(logger, metrics, queue, rateLimiter, tailSampler, deduplicator, null);
+  }
+
+  protected Collector(Logger logger, @Nullable CollectorMetrics metrics,
+    @Nullable CollectorQueue queue, @Nullable CollectorRateLimiter rateLimiter,
+    @Nullable CollectorTailSampler tailSampler, @Nullable CollectorDeduplicator deduplicator,
+    @Nullable CollectorSpool spool) {
     this.logger = checkNotNull(logger, "logger");
     this.metrics = metrics == null ? CollectorMetrics.NOOP_METRICS : metrics;
+    this.extendedMetrics = ExtendedMetricsAdapter.extend(this.metrics);
+    this.queue = queue == null ? null : new SpanQueue<>(this, queue);
+    this.rateLimiter = rateLimiter;
+    if (tailSampler != null) checkOverridden("tail sample", "traceId", Object.class);
+    this.traceBuffer = tailSampler == null ? null : new TraceBuffer<>(this, tailSampler);
+    if (deduplicator != null) checkOverridden("deduplicate", "spanKey", Object.class);
+    this.deduplicator = deduplicator;
+    if (spool != null) {
+      checkOverridden("spool", "encodeSpooled", List.class);
+      checkOverridden("spool", "decodeSpooled", byte[].class);
+    }
+    this.spool = spool == null ? null : new SpanSpool<>(this, spool);
+  }
+
+  /**
+   * Fails when a feature needs a method this collector inherits, as the default throws. This is
+   * checked on construction, instead of when the first span arrives.
+   */
+  final void checkOverridden(String feature, String method, Class<?>... parameterTypes) {
+    for (Class<?> type = getClass(); type != Collector.class; type = type.getSuperclass()) {
+      try {
+        type.getDeclaredMethod(method, parameterTypes); // overrides of generic methods are bridged
+        return;
+      } catch (NoSuchMethodException e) {
+        // try the superclass
+      }
+    }
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't " + feature);
   }
 
   protected abstract List<S> decodeList(D decoder, byte[] serialized);
@@ -48,6 +116,105 @@ public abstract class Collector<D, S> {
 
   protected abstract String idString(S span);
 
+  /**
+   * The service that reported the span, used by a {@link CollectorRateLimiter}. Not abstract, for
+   * backwards compatibility with alternative collectors.
+   */
+  @Nullable protected String serviceName(S span) {
+    return null;
+  }
+
+  /** Debug spans bypass a {@link CollectorRateLimiter}, and are kept by tail sampling. */
+  protected boolean isDebug(S span) {
+    return false;
+  }
+
+  /**
+   * Groups spans by trace when a {@link CollectorTailSampler} is in use. Collectors that don't
+   * override this can't be built with one.
+   */
+  protected String traceId(S span) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't tail sample");
+  }
+
+  /**
+   * Identifies a span for a {@link CollectorDeduplicator}, usually by trace ID, ID and kind.
+   * Collectors that don't override this can't be built with one.
+   */
+  protected long spanKey(S span) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't deduplicate");
+  }
+
+  /** True if the span has an "error" tag, used by a {@link CollectorTailSampler}. */
+  protected boolean isError(S span) {
+    return false;
+  }
+
+  /** Epoch microseconds the span started, or zero if unknown. */
+  protected long timestamp(S span) {
+    return 0L;
+  }
+
+  /** Duration of the span in microseconds, or zero if unknown. */
+  protected long duration(S span) {
+    return 0L;
+  }
+
+  /** True if the span was reported by, or calls, any of the services. */
+  protected boolean hasService(S span, Set<String> serviceNames) {
+    return serviceNames.contains(serviceName(span));
+  }
+
+  /**
+   * Estimated encoded size of the span, used when a {@link CollectorQueue} is bounded by bytes. Not
+   * abstract, for backwards compatibility with alternative collectors: their queues are bounded by
+   * span count only.
+   */
+  protected int sizeInBytes(S span) {
+    return 0;
+  }
+
+  /**
+   * Encodes spans written to a {@link CollectorSpool}. Collectors that don't override this and
+   * {@link #decodeSpooled(byte[])} can't be built with one.
+   */
+  protected byte[] encodeSpooled(List<S> spans) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't spool");
+  }
+
+  /** Decodes spans {@link #encodeSpooled(List) encoded} by this collector. */
+  protected List<S> decodeSpooled(byte[] encoded) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't spool");
+  }
+
+  /** Used by a {@link CollectorSpool} to tell when storage recovers. */
+  protected CheckResult checkStorage() {
+    return CheckResult.OK;
+  }
+
+  /**
+   * Replays spans left in the {@link CollectorSpool spool} by a previous process. Called once the
+   * collector is fully constructed, as replay calls {@link #record} and {@link #checkStorage}.
+   */
+  protected final void startSpool() {
+    if (spool != null) spool.start();
+  }
+
+  /**
+   * Stops replaying the {@link CollectorSpool spool} and releases its directory, so that another
+   * collector can use it. Spans not yet replayed are kept for the next one. Also stops the thread
+   * deciding traces of a {@link CollectorTailSampler}. Transports call this when they are closed.
+   */
+  public void close() throws IOException {
+    if (traceBuffer != null) traceBuffer.close();
+    if (spool == null) return;
+    try {
+      spool.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   protected void debugMessage(String msg) {
     if (logger.isLoggable(FINE))
       logger.log(FINE, msg);
@@ -66,6 +233,11 @@ public abstract class Collector<D, S> {
     metrics.incrementBytes(serializedSpans.length);
     List<S> spans;
     try {
+      List<S> sampled = decodeSampledList(decoder, serializedSpans);
+      if (sampled != null) {
+        acceptSampled(requestInfo, sampled, callback);
+        return;
+      }
       spans = decodeList(decoder, serializedSpans);
     } catch (RuntimeException e) {
       callback.onError(errorReading(e));
@@ -74,6 +246,88 @@ public abstract class Collector<D, S> {
     accept(requestInfo, spans, callback);
   }
 
+  /**
+   * Override to decode only spans that pass sampling, usually via {@link #decodeSampled}. Returns
+   * null to decode all spans, then sample them.
+   */
+  @Nullable protected List<S> decodeSampledList(D decoder, byte[] serialized) {
+    return null;
+  }
+
+  /**
+   * Decodes the spans that pass sampling, scanning the encoded list for trace IDs first. Returns
+   * null if the list couldn't be scanned.
+   */
+  @Nullable protected final List<S> decodeSampled(SamplingSpanReader<S> reader,
+    CollectorSampler sampler, byte[] serialized) {
+    List<S> sampled = new ArrayList<>();
+    int spanCount = reader.readSampled(serialized, sampler, sampled);
+    if (spanCount == -1) return null;
+    metrics.incrementSpans(spanCount);
+    int dropped = spanCount - sampled.size();
+    if (dropped > 0) metrics.incrementSpansDropped(dropped);
+    return sampled;
+  }
+
+  /** Decodes one message of a batch passed to {@link #acceptMessages}. Called concurrently. */
+  public interface MessageDecoder<S> {
+    /** Returns sampled spans in the message, or null if it was malformed. */
+    @Nullable List<S> decode(byte[] message);
+  }
+
+  /**
+   * Decodes messages on the executor, then accepts all of their spans together. Unlike other
+   * methods, the callback completes when storage does, even when there's no queue.
+   */
+  public final void acceptMessages(final List<byte[]> messages,
+    final MessageDecoder<S> decoder, Executor executor, final Callback<Void> callback) {
+    final int length = messages.size();
+    if (length == 0) {
+      callback.onSuccess(null);
+      return;
+    }
+    final AtomicReferenceArray<List<S>> decoded = new AtomicReferenceArray<>(length);
+    final AtomicInteger remaining = new AtomicInteger(length);
+    for (int i = 0; i < length; i++) {
+      final int index = i;
+      Runnable decode = new Runnable() {
+        @Override public void run() {
+          decoded.set(index, decoder.decode(messages.get(index)));
+          if (remaining.decrementAndGet() != 0) return;
+          List<S> merged = new ArrayList<>();
+          for (int j = 0; j < length; j++) {
+            List<S> spans = decoded.get(j);
+            if (spans != null) merged.addAll(spans);
+          }
+          acceptSampled(null, merged, callback, true);
+        }
+      };
+      try {
+        executor.execute(decode);
+      } catch (RejectedExecutionException e) { // such as on shutdown
+        decode.run();
+      }
+    }
+  }
+
+  /**
+   * Decodes and samples a message for {@link #acceptMessages}, or returns null after logging why
+   * it couldn't be read.
+   */
+  @Nullable public final List<S> decodeMessage(byte[] serialized, D decoder) {
+    metrics.incrementBytes(serialized.length);
+    try {
+      List<S> sampled = decodeSampledList(decoder, serialized);
+      if (sampled != null) return sampled;
+      List<S> spans = decodeList(decoder, serialized);
+      metrics.incrementSpans(spans.size());
+      return sample(spans);
+    } catch (RuntimeException e) {
+      errorReading(e);
+      return null;
+    }
+  }
+
   // MAC - backwards compatibility for alternative collectors
   public void acceptSpans(List<S> serializedSpans, Callback<Void> callback) {
     accept(null, serializedSpans, callback);
@@ -86,7 +340,23 @@ public abstract class Collector<D, S> {
     }
     metrics.incrementSpans(spans.size());
 
-    List<S> sampled = sample(spans);
+    acceptSampled(requestInfo, sample(spans), callback);
+  }
+
+  /** Like {@link #accept}, except the spans were already counted and sampled. */
+  public void acceptSampled(Map<String, String> requestInfo, List<S> sampled,
+    Callback<Void> callback) {
+    acceptSampled(requestInfo, sampled, callback, false);
+  }
+
+  void acceptSampled(Map<String, String> requestInfo, List<S> sampled, Callback<Void> callback,
+    boolean awaitStorage) {
+    if (deduplicator != null && !sampled.isEmpty()) {
+      sampled = dropDuplicates(sampled);
+    }
+    if (rateLimiter != null && !sampled.isEmpty()) {
+      sampled = rateLimit(sampled);
+    }
     if (sampled.isEmpty()) {
       callback.onSuccess(null);
       return;
@@ -94,15 +364,52 @@ public abstract class Collector<D, S> {
 
     try {
       List<S> decoratedSpans = decorateSpans(requestInfo, sampled);
-      debugMessage("Recording spans: " + decoratedSpans);
-      record(decoratedSpans, acceptSpansCallback(decoratedSpans));
-      callback.onSuccess(null);
+      if (traceBuffer != null) { // spans are stored once their trace is decided
+        traceBuffer.add(decoratedSpans);
+        callback.onSuccess(null);
+        return;
+      }
+      store(decoratedSpans, callback, awaitStorage);
     } catch (RuntimeException e) {
       callback.onError(errorStoringSpans(sampled, e));
       return;
     }
   }
 
+  void store(List<S> decoratedSpans, Callback<Void> callback) {
+    store(decoratedSpans, callback, false);
+  }
+
+  void store(final List<S> decoratedSpans, final Callback<Void> callback, boolean awaitStorage) {
+    if (logger.isLoggable(FINE)) debugMessage("Recording spans: " + decoratedSpans);
+    if (spool != null && spool.isStorageFailing() && spool.offer(decoratedSpans)) {
+      callback.onSuccess(null); // spooled until storage recovers
+      return;
+    }
+    if (queue != null) { // the queue completes the callback once storage does
+      queue.offer(decoratedSpans, callback);
+      return;
+    }
+    if (awaitStorage) {
+      recordDeduplicated(decoratedSpans, new Callback<Void>() {
+        @Override public void onSuccess(@Nullable Void value) {
+          callback.onSuccess(value);
+        }
+
+        @Override public void onError(Throwable t) {
+          if (spool != null && spool.offerAfterFailure(decoratedSpans, t)) {
+            callback.onSuccess(null);
+          } else {
+            callback.onError(errorStoringSpans(decoratedSpans, t));
+          }
+        }
+      });
+      return;
+    }
+    recordDeduplicated(decoratedSpans, acceptSpansCallback(decoratedSpans));
+    callback.onSuccess(null);
+  }
+
   List<S> sample(List<S> input) {
     List<S> sampled = new ArrayList<>(input.size());
     for (S s : input) {
@@ -113,12 +420,97 @@ public abstract class Collector<D, S> {
     return sampled;
   }
 
+  /** Drops spans already stored. */
+  List<S> dropDuplicates(List<S> input) {
+    List<S> result = null; // copy-on-write
+    int length = input.size();
+    for (int i = 0; i < length; i++) {
+      S span = input.get(i);
+      if (deduplicator.mightContain(spanKey(span))) {
+        if (result == null) result = new ArrayList<>(input.subList(0, i));
+        continue;
+      }
+      if (result != null) result.add(span);
+    }
+    if (result == null) return input;
+    int dropped = length - result.size();
+    extendedMetrics.incrementSpansDeduplicated(dropped);
+    metrics.incrementSpansDropped(dropped);
+    return result;
+  }
+
+  /**
+   * Calls {@link #record}, remembering the spans for the {@link CollectorDeduplicator} only once
+   * storage succeeds. Spans that are buffered, spooled or dropped aren't remembered, so that their
+   * retries aren't dropped.
+   */
+  void recordDeduplicated(final List<S> spans, final Callback<Void> callback) {
+    if (deduplicator == null) {
+      record(spans, callback);
+      return;
+    }
+    record(spans, new Callback<Void>() {
+      @Override public void onSuccess(@Nullable Void value) {
+        int length = spans.size();
+        long[] keys = new long[length];
+        for (int i = 0; i < length; i++) keys[i] = spanKey(spans.get(i));
+        deduplicator.putAll(keys, length);
+        callback.onSuccess(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        callback.onError(t);
+      }
+
+      @Override public String toString() {
+        return callback.toString();
+      }
+    });
+  }
+
+  /**
+   * Drops spans over the rate of their service. Tokens are taken once per service in the list, and
+   * the first spans of each service are kept.
+   */
+  List<S> rateLimit(List<S> input) {
+    int length = input.size();
+    String[] keys = new String[length]; // null when the span isn't rate limited
+    Map<String, int[]> counts = new LinkedHashMap<>(); // requested, then granted spans per key
+    for (int i = 0; i < length; i++) {
+      S span = input.get(i);
+      if (isDebug(span)) continue;
+      String key = keys[i] = rateLimiter.bucketKey(serviceName(span));
+      int[] count = counts.get(key);
+      if (count == null) counts.put(key, count = new int[2]);
+      count[0]++;
+    }
+
+    boolean limited = false;
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      int[] count = entry.getValue();
+      count[1] = rateLimiter.acquire(entry.getKey(), count[0]);
+      if (count[1] == count[0]) continue;
+      limited = true;
+      extendedMetrics.incrementSpansRateLimited(entry.getKey(), count[0] - count[1]);
+    }
+    if (!limited) return input;
+
+    List<S> result = new ArrayList<>(length);
+    for (int i = 0; i < length; i++) {
+      if (keys[i] != null && counts.get(keys[i])[1]-- <= 0) continue;
+      result.add(input.get(i));
+    }
+    metrics.incrementSpansDropped(length - result.size());
+    return result;
+  }
+
   Callback<Void> acceptSpansCallback(final List<S> spans) {
     return new Callback<Void>() {
       @Override public void onSuccess(@Nullable Void value) {
       }
 
       @Override public void onError(Throwable t) {
+        if (spool != null && spool.offerAfterFailure(spans, t)) return;
         errorStoringSpans(spans, t);
       }
 
@@ -26,10 +26,15 @@ import zipkin.SpanDecoder;
 // .. When serializing a Span (Struct), the first byte will be the type of a field
 // .. When serializing a List[ThriftSpan], the first byte is the member type, TType.STRUCT(12)
 // .. As ThriftSpan has no STRUCT fields: so, if the first byte is TType.STRUCT(12), it is a list.
+//
+// When byte(0) == 10 and byte(1) != 0, assume it is a proto3-encoded ListOfSpans
+// .. A proto3 list starts with the field key 10 (0x0a), then the length of the first span
+// .. A thrift span also starts with TType.I64(10), then the field ID of trace_id: 0x0001
 public final class DetectingSpanDecoder implements SpanDecoder {
   /** zipkin v2 will have this tag, and others won't. */
   static final byte[] LOCAL_ENDPOINT_TAG = "\"localEndpoint\"".getBytes(Util.UTF_8);
   static final SpanDecoder JSON2_DECODER = new V2JsonSpanDecoder();
+  static final SpanDecoder PROTO3_DECODER = new Proto3SpanDecoder();
 
   @Override public Span readSpan(byte[] span) {
     SpanDecoder decoder = detectFormat(span);
@@ -41,14 +46,18 @@ public final class DetectingSpanDecoder implements SpanDecoder {
 
   @Override public List<Span> readSpans(byte[] span) {
     SpanDecoder decoder = detectFormat(span);
-    if (span[0] != 12 /* List[ThriftSpan] */ && span[0] != '[') {
+    if (decoder != PROTO3_DECODER && span[0] != 12 /* List[ThriftSpan] */ && span[0] != '[') {
       throw new IllegalArgumentException("Expected json or thrift list encoding");
     }
     return decoder.readSpans(span);
   }
 
-  /** @throws IllegalArgumentException if the input isn't a json or thrift list or object. */
+  /**
+   * @throws IllegalArgumentException if the input isn't a json or thrift list or object, or a
+   * proto3 list.
+   */
   public static SpanDecoder detectFormat(byte[] bytes) {
+    if (bytes[0] == 10 && bytes.length > 1 && bytes[1] != 0) return PROTO3_DECODER;
     if (bytes[0] <= 16 /* the first byte is the TType, in a range 0-16 */) {
       return THRIFT_DECODER;
     } else if (bytes[0] != '[' && bytes[0] != '{') {
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import zipkin.collector.CollectorMetrics;
+import zipkin.collector.ExtendedCollectorMetrics;
+
+/**
+ * Adapts {@link CollectorMetrics} written before {@link ExtendedCollectorMetrics}, ignoring metrics
+ * of the optional features they don't know about.
+ */
+final class ExtendedMetricsAdapter implements ExtendedCollectorMetrics {
+
+  static ExtendedCollectorMetrics extend(CollectorMetrics metrics) {
+    if (metrics instanceof ExtendedCollectorMetrics) return (ExtendedCollectorMetrics) metrics;
+    return new ExtendedMetricsAdapter(metrics);
+  }
+
+  final CollectorMetrics delegate;
+
+  ExtendedMetricsAdapter(CollectorMetrics delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override public ExtendedCollectorMetrics forTransport(String transportType) {
+    return extend(delegate.forTransport(transportType));
+  }
+
+  @Override public void incrementMessages() {
+    delegate.incrementMessages();
+  }
+
+  @Override public void incrementMessagesDropped() {
+    delegate.incrementMessagesDropped();
+  }
+
+  @Override public void incrementSpans(int quantity) {
+    delegate.incrementSpans(quantity);
+  }
+
+  @Override public void incrementBytes(int quantity) {
+    delegate.incrementBytes(quantity);
+  }
+
+  @Override public void incrementSpansDropped(int quantity) {
+    delegate.incrementSpansDropped(quantity);
+  }
+
+  @Override public void updateQueuedSpans(int quantity) {
+  }
+
+  @Override public void updateQueuedBytes(int quantity) {
+  }
+
+  @Override public void incrementSpansRateLimited(String serviceName, int quantity) {
+  }
+
+  @Override public void updateBufferedSpans(int quantity) {
+  }
+
+  @Override public void incrementTracesEvicted(int quantity) {
+  }
+
+  @Override public void incrementSpansDeduplicated(int quantity) {
+  }
+
+  @Override public void updateSpooledBytes(long quantity) {
+  }
+
+  @Override public void updateSpoolSegments(int quantity) {
+  }
+
+  @Override public void updateSpoolReplayLag(long millis) {
+  }
+
+  @Override public String toString() {
+    return delegate.toString();
+  }
+}
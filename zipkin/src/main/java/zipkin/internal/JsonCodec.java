@@ -390,6 +390,61 @@ public final class JsonCodec implements Codec {
     }
   }
 
+  /**
+   * Like {@link SpanReader}, except converts to v2 spans without building a {@link Span}. Used by
+   * {@link V1SpanBytesDecoder}.
+   */
+  static final class Span2Reader implements JsonReaderAdapter<List<zipkin2.Span>> {
+    final V1Span span = new V1Span();
+
+    @Override public List<zipkin2.Span> fromJson(JsonReader reader) throws IOException {
+      span.clear();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String nextName = reader.nextName();
+        if (nextName.equals("traceId")) {
+          String traceId = reader.nextString();
+          if (traceId.length() == 32) {
+            span.traceIdHigh = lowerHexToUnsignedLong(traceId, 0);
+          }
+          span.traceId(lowerHexToUnsignedLong(traceId));
+        } else if (nextName.equals("name")) {
+          span.name = reader.nextString();
+        } else if (nextName.equals("id")) {
+          span.id(lowerHexToUnsignedLong(reader.nextString()));
+        } else if (nextName.equals("parentId") && reader.peek() != JsonToken.NULL) {
+          span.parentId = lowerHexToUnsignedLong(reader.nextString());
+        } else if (nextName.equals("timestamp") && reader.peek() != JsonToken.NULL) {
+          span.timestamp = reader.nextLong();
+        } else if (nextName.equals("duration") && reader.peek() != JsonToken.NULL) {
+          span.duration = reader.nextLong();
+        } else if (nextName.equals("annotations")) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            span.addAnnotation(ANNOTATION_READER.fromJson(reader));
+          }
+          reader.endArray();
+        } else if (nextName.equals("binaryAnnotations")) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            span.addBinaryAnnotation(BINARY_ANNOTATION_READER.fromJson(reader));
+          }
+          reader.endArray();
+        } else if (nextName.equals("debug") && reader.peek() != JsonToken.NULL) {
+          if (reader.nextBoolean()) span.debug = true;
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return V2SpanConverter.fromSpan(span.finish());
+    }
+
+    @Override public String toString() {
+      return "Span";
+    }
+  }
+
   static final Buffer.Writer<Span> SPAN_WRITER = new Buffer.Writer<Span>() {
     @Override public int sizeInBytes(Span value) {
       int sizeInBytes = 0;
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import zipkin.Codec;
+import zipkin.collector.CollectorSampler;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static zipkin.internal.ThriftCodec.CONTAINER_LENGTH_LIMIT;
+import static zipkin.internal.ThriftCodec.TYPE_STOP;
+import static zipkin.internal.ThriftCodec.TYPE_STRUCT;
+import static zipkin.internal.ThriftCodec.guardLength;
+import static zipkin.internal.ThriftCodec.skip;
+
+/**
+ * Decodes only the spans in a list that pass sampling.
+ *
+ * <p>Each span in the encoded list is scanned for its trace ID and debug flag, skipping other
+ * fields without decoding them. Only spans that pass {@link CollectorSampler#isSampled(long,
+ * Boolean)} are decoded. At low sample rates, this avoids most of the cost of decoding.
+ *
+ * <p>Scanning is best-effort: when input isn't shaped as expected, {@link #readSampled} returns -1,
+ * and the caller should decode the whole list, which reports any error properly.
+ */
+public abstract class SamplingSpanReader<S> {
+
+  public static final SamplingSpanReader<zipkin.Span> THRIFT = new ThriftReader<zipkin.Span>() {
+    @Override void readSpan(byte[] bytes, int offset, int length, List<zipkin.Span> out) {
+      out.add(Codec.THRIFT.readSpan(ByteBuffer.wrap(bytes, offset, length)));
+    }
+
+    @Override public String toString() {
+      return "SamplingSpanReader.THRIFT";
+    }
+  };
+
+  /** Reads the v1 thrift format into v2 spans, as done by {@link V1SpanBytesDecoder#THRIFT}. */
+  public static final SamplingSpanReader<zipkin2.Span> THRIFT_AS_V2 =
+    new ThriftReader<zipkin2.Span>() {
+      @Override void readSpan(byte[] bytes, int offset, int length, List<zipkin2.Span> out) {
+        V1SpanBytesDecoder.decodeThrift(ByteBuffer.wrap(bytes, offset, length), out);
+      }
+
+      @Override public String toString() {
+        return "SamplingSpanReader.THRIFT_AS_V2";
+      }
+    };
+
+  public static final SamplingSpanReader<zipkin.Span> JSON_V1 = new JsonReader<zipkin.Span>() {
+    @Override void readSpan(byte[] bytes, int offset, int length, List<zipkin.Span> out) {
+      out.add(Codec.JSON.readSpan(copyOfRange(bytes, offset, length)));
+    }
+
+    @Override public String toString() {
+      return "SamplingSpanReader.JSON_V1";
+    }
+  };
+
+  public static final SamplingSpanReader<zipkin2.Span> JSON_V2 = new JsonReader<zipkin2.Span>() {
+    @Override void readSpan(byte[] bytes, int offset, int length, List<zipkin2.Span> out) {
+      SpanBytesDecoder.JSON_V2.decode(copyOfRange(bytes, offset, length), out);
+    }
+
+    @Override public String toString() {
+      return "SamplingSpanReader.JSON_V2";
+    }
+  };
+
+  /** Reads the v1 json format into v2 spans, as done by {@link V1SpanBytesDecoder#JSON_V1}. */
+  public static final SamplingSpanReader<zipkin2.Span> JSON_V1_AS_V2 =
+    new JsonReader<zipkin2.Span>() {
+      @Override void readSpan(byte[] bytes, int offset, int length, List<zipkin2.Span> out) {
+        V1SpanBytesDecoder.JSON_V1.decode(copyOfRange(bytes, offset, length), out);
+      }
+
+      @Override public String toString() {
+        return "SamplingSpanReader.JSON_V1_AS_V2";
+      }
+    };
+
+  /** Reads the v2 json format into v1 spans, as done by {@link V2JsonSpanDecoder}. */
+  public static final SamplingSpanReader<zipkin.Span> JSON_V2_AS_V1 =
+    new JsonReader<zipkin.Span>() {
+      @Override void readSpan(byte[] bytes, int offset, int length, List<zipkin.Span> out) {
+        List<zipkin2.Span> span2s = new ArrayList<>(1);
+        SpanBytesDecoder.JSON_V2.decode(copyOfRange(bytes, offset, length), span2s);
+        for (int i = 0, size = span2s.size(); i < size; i++) {
+          out.add(V2SpanConverter.toSpan(span2s.get(i)));
+        }
+      }
+
+      @Override public String toString() {
+        return "SamplingSpanReader.JSON_V2_AS_V1";
+      }
+    };
+
+  /**
+   * Adds spans in the encoded list that pass sampling to the output.
+   *
+   * @return the count of spans in the list, including those not sampled, or -1 if the input
+   * couldn't be scanned.
+   */
+  public abstract int readSampled(byte[] bytes, CollectorSampler sampler, List<S> out);
+
+  abstract void readSpan(byte[] bytes, int offset, int length, List<S> out);
+
+  static abstract class ThriftReader<S> extends SamplingSpanReader<S> {
+    static final ThriftCodec.Field TRACE_ID = ThriftCodec.SpanReader.TRACE_ID;
+    static final ThriftCodec.Field DEBUG = ThriftCodec.SpanReader.DEBUG;
+
+    @Override public int readSampled(byte[] bytes, CollectorSampler sampler, List<S> out) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      int spanCount;
+      try {
+        if (buffer.get() != TYPE_STRUCT) return -1;
+        spanCount = guardLength(buffer, CONTAINER_LENGTH_LIMIT);
+        for (int i = 0; i < spanCount; i++) {
+          int offset = buffer.position();
+          Long traceId = null;
+          Boolean debug = null;
+          while (true) {
+            ThriftCodec.Field field = ThriftCodec.Field.read(buffer);
+            if (field.type == TYPE_STOP) break;
+            if (field.isEqualTo(TRACE_ID)) {
+              traceId = buffer.getLong();
+            } else if (field.isEqualTo(DEBUG)) {
+              debug = buffer.get() == 1;
+            } else {
+              skip(buffer, field.type);
+            }
+          }
+          if (traceId == null) return -1;
+          if (sampler.isSampled(traceId, debug)) {
+            readSpan(bytes, offset, buffer.position() - offset, out);
+          }
+        }
+      } catch (BufferUnderflowException e) {
+        return -1;
+      } catch (IllegalStateException e) {
+        return -1;
+      }
+      return spanCount;
+    }
+  }
+
+  /**
+   * Json v1 and v2 share the fields needed for sampling: a hex "traceId" and a boolean "debug".
+   * This only looks at top-level fields of each span object.
+   */
+  static abstract class JsonReader<S> extends SamplingSpanReader<S> {
+    static final byte[] TRACE_ID = {'t', 'r', 'a', 'c', 'e', 'I', 'd'};
+    static final byte[] DEBUG = {'d', 'e', 'b', 'u', 'g'};
+    static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+
+    @Override public int readSampled(byte[] bytes, CollectorSampler sampler, List<S> out) {
+      try {
+        return new Scanner(bytes).readSampled(this, sampler, out);
+      } catch (ArrayIndexOutOfBoundsException e) {
+        return -1;
+      }
+    }
+
+    /** Not thread-safe: a scanner is created for each message. */
+    final class Scanner {
+      final byte[] bytes;
+      int pos;
+
+      // fields of the current span
+      boolean hasTraceId;
+      long traceId;
+      Boolean debug;
+
+      Scanner(byte[] bytes) {
+        this.bytes = bytes;
+      }
+
+      int readSampled(JsonReader<S> reader, CollectorSampler sampler, List<S> out) {
+        skipWhitespace();
+        if (bytes[pos++] != '[') return -1;
+        int spanCount = 0;
+        skipWhitespace();
+        if (bytes[pos] == ']') return spanCount;
+        while (true) {
+          if (bytes[pos] != '{') return -1;
+          int offset = pos;
+          if (!scanSpan()) return -1;
+          spanCount++;
+          if (sampler.isSampled(traceId, debug)) {
+            reader.readSpan(bytes, offset, pos - offset, out);
+          }
+          skipWhitespace();
+          byte next = bytes[pos++];
+          if (next == ']') return spanCount;
+          if (next != ',') return -1;
+          skipWhitespace();
+        }
+      }
+
+      /** Scans the object at the current position, leaving the position after it. */
+      boolean scanSpan() {
+        hasTraceId = false;
+        debug = null;
+        pos++; // skip '{'
+        skipWhitespace();
+        if (bytes[pos] == '}') return false; // no trace ID
+        while (true) {
+          if (bytes[pos] != '"') return false;
+          int nameOffset = pos + 1;
+          skipString();
+          int nameLength = pos - 1 - nameOffset;
+          skipWhitespace();
+          if (bytes[pos++] != ':') return false;
+          skipWhitespace();
+          if (matches(TRACE_ID, nameOffset, nameLength)) {
+            if (!readTraceId()) return false;
+          } else if (matches(DEBUG, nameOffset, nameLength)) {
+            debug = matches(TRUE, pos, TRUE.length);
+            skipValue();
+          } else {
+            skipValue();
+          }
+          skipWhitespace();
+          byte next = bytes[pos++];
+          if (next == '}') return hasTraceId;
+          if (next != ',') return false;
+          skipWhitespace();
+        }
+      }
+
+      /** Reads the lower 64 bits of a hex trace ID, or returns false if it isn't plain hex. */
+      boolean readTraceId() {
+        if (bytes[pos] != '"') return false;
+        int offset = pos + 1;
+        skipString();
+        int length = pos - 1 - offset;
+        if (length < 1 || length > 32) return false;
+        int lowerOffset = length > 16 ? offset + length - 16 : offset;
+        long result = 0;
+        for (int i = lowerOffset, end = offset + length; i < end; i++) {
+          int digit = Character.digit(bytes[i], 16);
+          if (digit == -1) return false;
+          result = (result << 4) | digit;
+        }
+        traceId = result;
+        hasTraceId = true;
+        return true;
+      }
+
+      boolean matches(byte[] expected, int offset, int length) {
+        if (length != expected.length || offset + length > bytes.length) return false;
+        for (int i = 0; i < length; i++) {
+          if (bytes[offset + i] != expected[i]) return false;
+        }
+        return true;
+      }
+
+      void skipValue() {
+        byte b = bytes[pos];
+        if (b == '"') {
+          skipString();
+        } else if (b == '{' || b == '[') {
+          skipNested();
+        } else { // number or literal
+          while (true) {
+            b = bytes[pos];
+            if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) return;
+            pos++;
+          }
+        }
+      }
+
+      /** Skips a string at the current position, leaving the position after its closing quote. */
+      void skipString() {
+        pos++; // skip opening quote
+        while (true) {
+          byte b = bytes[pos++];
+          if (b == '"') return;
+          if (b == '\\') pos++; // skip the escaped character
+        }
+      }
+
+      void skipNested() {
+        int depth = 0;
+        while (true) {
+          byte b = bytes[pos];
+          if (b == '"') {
+            skipString();
+            continue;
+          }
+          pos++;
+          if (b == '{' || b == '[') {
+            depth++;
+          } else if (b == '}' || b == ']') {
+            if (--depth == 0) return;
+          }
+        }
+      }
+
+      void skipWhitespace() {
+        while (isWhitespace(bytes[pos])) pos++;
+      }
+    }
+
+    static boolean isWhitespace(byte b) {
+      return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+  }
+
+  static byte[] copyOfRange(byte[] bytes, int offset, int length) {
+    return Arrays.copyOfRange(bytes, offset, offset + length);
+  }
+
+  SamplingSpanReader() {
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import zipkin.Annotation;
+import zipkin.BinaryAnnotation;
+import zipkin.Endpoint;
+import zipkin.collector.SpanDecorator;
+import zipkin.collector.TagSpanDecorator;
+
+/**
+ * Applies {@link SpanDecorator span decorators} in order, fusing adjacent {@link TagSpanDecorator
+ * tag decorators} so that each span is rebuilt at most once for them.
+ */
+public final class SpanDecorators<S> {
+
+  /** Fuses adjacent tag decorators in the input, retaining the order of all decorators. */
+  public static <S> SpanDecorators<S> create(List<? extends SpanDecorator<S>> decorators) {
+    List<SpanDecorator<S>> stages = new ArrayList<>(decorators.size());
+    List<TagSpanDecorator<S>> taggers = null;
+    for (SpanDecorator<S> decorator : decorators) {
+      if (decorator instanceof TagSpanDecorator) {
+        if (taggers == null) taggers = new ArrayList<>();
+        taggers.add((TagSpanDecorator<S>) decorator);
+        continue;
+      }
+      if (taggers != null) stages.add(new Fused<>(taggers));
+      taggers = null;
+      stages.add(decorator);
+    }
+    if (taggers != null) stages.add(new Fused<>(taggers));
+    return new SpanDecorators<>(stages);
+  }
+
+  final List<SpanDecorator<S>> stages;
+
+  SpanDecorators(List<SpanDecorator<S>> stages) {
+    this.stages = stages;
+  }
+
+  public List<S> decorate(@Nullable Map<String, String> requestInfo, List<S> spans) {
+    for (int i = 0, length = stages.size(); i < length; i++) {
+      spans = stages.get(i).decorate(requestInfo, spans);
+    }
+    return spans;
+  }
+
+  /**
+   * Adds tags from all decorators to each span in one pass. The input list is returned when no
+   * span changed.
+   */
+  public static <S> List<S> tag(List<? extends TagSpanDecorator<S>> taggers,
+    @Nullable Map<String, String> requestInfo, List<S> spans) {
+    int taggerCount = taggers.size(), length = spans.size();
+    if (taggerCount == 0 || length == 0) return spans;
+
+    Map<String, String> overlay = new LinkedHashMap<>();
+    List<S> result = null; // copy-on-write
+    for (int i = 0; i < length; i++) {
+      S span = spans.get(i);
+      for (int j = 0; j < taggerCount; j++) {
+        taggers.get(j).addTags(requestInfo, span, overlay);
+      }
+      if (overlay.isEmpty()) continue;
+      S tagged = withTags(span, overlay);
+      overlay.clear();
+      if (tagged == span) continue;
+      if (result == null) result = new ArrayList<>(spans);
+      result.set(i, tagged);
+    }
+    return result != null ? result : spans;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <S> S withTags(S span, Map<String, String> overlay) {
+    if (span instanceof zipkin2.Span) return (S) withTags((zipkin2.Span) span, overlay);
+    return (S) withTags((zipkin.Span) span, overlay);
+  }
+
+  static zipkin2.Span withTags(zipkin2.Span span, Map<String, String> overlay) {
+    Map<String, String> tags = span.tags();
+    boolean changed = false;
+    for (Map.Entry<String, String> tag : overlay.entrySet()) {
+      if (!tag.getValue().equals(tags.get(tag.getKey()))) {
+        changed = true;
+        break;
+      }
+    }
+    if (!changed) return span;
+    zipkin2.Span.Builder builder = span.toBuilder();
+    for (Map.Entry<String, String> tag : overlay.entrySet()) {
+      builder.putTag(tag.getKey(), tag.getValue());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Tags each endpoint in the span, as converting to v2, tagging and converting back would: a tag
+   * already in the span is replaced. The input is returned when it already has every tag.
+   */
+  static zipkin.Span withTags(zipkin.Span span, Map<String, String> overlay) {
+    List<Endpoint> endpoints = endpoints(span);
+    List<BinaryAnnotation> binaryAnnotations = new ArrayList<>(
+      span.binaryAnnotations.size() + overlay.size() * endpoints.size());
+    boolean changed = false;
+    for (int i = 0, length = span.binaryAnnotations.size(); i < length; i++) {
+      BinaryAnnotation b = span.binaryAnnotations.get(i);
+      String value = b.type == BinaryAnnotation.Type.STRING ? overlay.get(b.key) : null;
+      // keep other annotations, and tags that already have the new value where it is added
+      if (value == null
+        || (endpoints.contains(b.endpoint) && value.equals(new String(b.value, Util.UTF_8)))) {
+        binaryAnnotations.add(b);
+      } else {
+        changed = true;
+      }
+    }
+    for (Map.Entry<String, String> tag : overlay.entrySet()) {
+      for (int i = 0, length = endpoints.size(); i < length; i++) {
+        BinaryAnnotation b = BinaryAnnotation.create(tag.getKey(), tag.getValue(), endpoints.get(i));
+        if (binaryAnnotations.contains(b)) continue;
+        binaryAnnotations.add(b);
+        changed = true;
+      }
+    }
+    return changed ? span.toBuilder().binaryAnnotations(binaryAnnotations).build() : span;
+  }
+
+  /**
+   * Returns distinct endpoints that logged annotations, or else the first endpoint of a tag. When
+   * there's no endpoint at all, a single null entry is returned.
+   */
+  public static List<Endpoint> endpoints(zipkin.Span span) {
+    List<Endpoint> result = null;
+    for (int i = 0, length = span.annotations.size(); i < length; i++) {
+      Annotation a = span.annotations.get(i);
+      if (a.endpoint == null) continue;
+      if (result == null) result = new ArrayList<>(2);
+      if (!result.contains(a.endpoint)) result.add(a.endpoint);
+    }
+    if (result != null) return result;
+    for (int i = 0, length = span.binaryAnnotations.size(); i < length; i++) {
+      BinaryAnnotation b = span.binaryAnnotations.get(i);
+      if (b.endpoint != null && b.type != BinaryAnnotation.Type.BOOL) {
+        return Collections.singletonList(b.endpoint);
+      }
+    }
+    return Collections.singletonList(null);
+  }
+
+  static final class Fused<S> implements SpanDecorator<S> {
+    final List<TagSpanDecorator<S>> taggers;
+
+    Fused(List<TagSpanDecorator<S>> taggers) {
+      this.taggers = taggers;
+    }
+
+    @Override public List<S> decorate(Map<String, String> requestInfo, List<S> spans) {
+      return tag(taggers, requestInfo, spans);
+    }
+
+    @Override public boolean isV1SpanSupported() {
+      return taggers.get(0).isV1SpanSupported();
+    }
+
+    @Override public boolean isV2SpanSupported() {
+      return taggers.get(0).isV2SpanSupported();
+    }
+
+    @Override public String toString() {
+      return "Fused" + taggers;
+    }
+  }
+}
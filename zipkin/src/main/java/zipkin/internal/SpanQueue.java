@@ -0,0 +1,304 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorQueue.Overflow;
+import zipkin.collector.ExtendedCollectorMetrics;
+import zipkin.storage.Callback;
+
+/**
+ * Implements {@link CollectorQueue} for a single collector.
+ *
+ * <p>Messages are admitted when their spans fit, then sent to storage in arrival order as long as
+ * fewer than {@link CollectorQueue#maxConcurrency()} requests are in flight. Capacity is released
+ * when storage completes the request, which is also when the caller's callback completes.
+ *
+ * <p>Consecutive pending entries are merged into one storage request, up to {@link
+ * CollectorQueue#maxBatchSpans()} and {@link CollectorQueue#maxBatchBytes()}. When a linger is set,
+ * a batch that isn't full is held until its eldest entry has waited that long.
+ *
+ * <p>When the collector has a {@link SpanSpool spool}, entries that would be dropped or rejected,
+ * and batches that fail to store, are spooled instead.
+ */
+final class SpanQueue<S> {
+  final Collector<?, S> collector;
+  final ExtendedCollectorMetrics metrics;
+  final int maxSpans, maxBytes, maxConcurrency, maxBatchSpans, maxBatchBytes;
+  final long lingerNanos;
+  final boolean sizeSpans;
+  final Overflow overflow;
+
+  // guarded by this
+  final LinkedList<Entry<S>> pending = new LinkedList<>();
+  int spanCount, byteCount, inFlight;
+  @Nullable ScheduledFuture<?> scheduledFlush; // pending linger flush, if any
+
+  /** Work-in-progress counter, so that only one thread at a time sends pending entries. */
+  final AtomicInteger wip = new AtomicInteger();
+
+  SpanQueue(Collector<?, S> collector, CollectorQueue settings) {
+    this.collector = collector;
+    this.metrics = collector.extendedMetrics;
+    this.maxSpans = settings.maxSpans();
+    this.maxBytes = settings.maxBytes();
+    this.maxConcurrency = settings.maxConcurrency();
+    this.overflow = settings.overflow();
+    this.maxBatchSpans = settings.maxBatchSpans();
+    this.maxBatchBytes = settings.maxBatchBytes();
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(settings.maxLingerMillis());
+    // don't pay for sizing when bytes are unbounded
+    this.sizeSpans = maxBytes != Integer.MAX_VALUE || maxBatchBytes != Integer.MAX_VALUE;
+  }
+
+  void offer(List<S> spans, Callback<Void> callback) {
+    Entry<S> entry = new Entry<>(spans, sizeInBytes(spans), System.nanoTime(), callback);
+    List<Entry<S>> evicted = Collections.emptyList();
+    boolean admitted = true;
+    synchronized (this) {
+      while (!hasRoomFor(entry)) {
+        if (overflow == Overflow.BLOCK) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+            break;
+          }
+        } else if (overflow == Overflow.DROP_OLDEST && !pending.isEmpty()) {
+          if (evicted.isEmpty()) evicted = new ArrayList<>();
+          Entry<S> eldest = pending.removeFirst();
+          spanCount -= eldest.spans.size();
+          byteCount -= eldest.sizeInBytes;
+          evicted.add(eldest);
+        } else {
+          admitted = false;
+          break;
+        }
+      }
+      if (admitted) {
+        pending.add(entry);
+        spanCount += spans.size();
+        byteCount += entry.sizeInBytes;
+      }
+      updateGauges();
+    }
+
+    for (Entry<S> eldest : evicted) drop(eldest);
+    if (admitted) {
+      drain();
+    } else {
+      drop(entry);
+    }
+  }
+
+  /** An empty queue admits any message, even one larger than the bounds. */
+  boolean hasRoomFor(Entry<S> entry) {
+    if (spanCount == 0) return true;
+    return (long) spanCount + entry.spans.size() <= maxSpans
+      && (long) byteCount + entry.sizeInBytes <= maxBytes;
+  }
+
+  int sizeInBytes(List<S> spans) {
+    if (!sizeSpans) return 0;
+    int result = 0;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      result += collector.sizeInBytes(spans.get(i));
+    }
+    return result;
+  }
+
+  void drop(Entry<S> entry) {
+    if (collector.spool != null && collector.spool.offer(entry.spans)) {
+      entry.callback.onSuccess(null); // spooled until storage catches up
+      return;
+    }
+    metrics.incrementSpansDropped(entry.spans.size());
+    if (overflow == Overflow.DROP_NEWEST || overflow == Overflow.DROP_OLDEST) {
+      collector.debugMessage("Collector queue is full: dropped " + entry.spans.size() + " spans");
+      entry.callback.onSuccess(null);
+    } else {
+      entry.callback.onError(new RejectedExecutionException("Collector queue is full"));
+    }
+  }
+
+  /** Sends pending entries to storage until the concurrency limit is reached. */
+  void drain() {
+    if (wip.getAndIncrement() != 0) return; // another thread, or a caller up the stack, is draining
+    do {
+      Batch<S> next;
+      while ((next = poll()) != null) {
+        record(next);
+      }
+    } while (wip.decrementAndGet() != 0);
+  }
+
+  /** Returns the next batch to store, or null if storage is saturated or the batch should linger */
+  @Nullable synchronized Batch<S> poll() {
+    if (inFlight >= maxConcurrency || pending.isEmpty()) return null;
+
+    // Find how many entries fit in the next batch. The first entry is always taken, even if large.
+    int entryCount = 0, batchSpans = 0, batchBytes = 0;
+    boolean full = false;
+    for (Entry<S> entry : pending) {
+      if (entryCount > 0 && (batchSpans + entry.spans.size() > maxBatchSpans
+        || (long) batchBytes + entry.sizeInBytes > maxBatchBytes)) {
+        full = true;
+        break;
+      }
+      entryCount++;
+      batchSpans += entry.spans.size();
+      batchBytes += entry.sizeInBytes;
+      if (batchSpans >= maxBatchSpans || batchBytes >= maxBatchBytes) {
+        full = true;
+        break;
+      }
+    }
+
+    if (!full && lingerNanos > 0) {
+      long waited = System.nanoTime() - pending.getFirst().queuedNanos;
+      if (waited < lingerNanos) {
+        scheduleFlush(lingerNanos - waited);
+        return null;
+      }
+    }
+
+    List<Entry<S>> entries = new ArrayList<>(entryCount);
+    for (int i = 0; i < entryCount; i++) entries.add(pending.removeFirst());
+    inFlight++;
+    return new Batch<>(entries, batchSpans, batchBytes);
+  }
+
+  // guarded by this
+  void scheduleFlush(long delayNanos) {
+    if (scheduledFlush != null) return;
+    scheduledFlush = LINGER_TIMER.schedule(new Runnable() {
+      @Override public void run() {
+        synchronized (SpanQueue.this) {
+          scheduledFlush = null;
+        }
+        try {
+          drain();
+        } catch (RuntimeException e) { // otherwise only visible via the future, which no-one reads
+          collector.warn("Unexpected error flushing lingering spans", e);
+        }
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void record(final Batch<S> batch) {
+    Callback<Void> whenStored = new Callback<Void>() {
+      @Override public void onSuccess(@Nullable Void value) {
+        release(batch);
+        for (Entry<S> entry : batch.entries) entry.callback.onSuccess(null);
+        drain();
+      }
+
+      @Override public void onError(Throwable t) {
+        release(batch);
+        if (collector.spool != null && collector.spool.offerAfterFailure(batch.spans, t)) {
+          for (Entry<S> entry : batch.entries) entry.callback.onSuccess(null);
+          drain();
+          return;
+        }
+        RuntimeException error = collector.errorStoringSpans(batch.spans, t);
+        for (Entry<S> entry : batch.entries) entry.callback.onError(error);
+        drain();
+      }
+
+      @Override public String toString() {
+        return collector.appendSpanIds(batch.spans, new StringBuilder("QueuedSpans("))
+          .append(")").toString();
+      }
+    };
+    try {
+      collector.recordDeduplicated(batch.spans, whenStored);
+    } catch (RuntimeException e) {
+      whenStored.onError(e);
+    }
+  }
+
+  synchronized void release(Batch<S> batch) {
+    inFlight--;
+    spanCount -= batch.spans.size();
+    byteCount -= batch.sizeInBytes;
+    updateGauges();
+    notifyAll(); // wake any callers blocked waiting for room
+  }
+
+  // guarded by this
+  void updateGauges() {
+    metrics.updateQueuedSpans(spanCount);
+    metrics.updateQueuedBytes(byteCount);
+  }
+
+  @Override public synchronized String toString() {
+    return "SpanQueue{spans=" + spanCount + ", bytes=" + byteCount + ", inFlight=" + inFlight + "}";
+  }
+
+  static final class Entry<S> {
+    final List<S> spans;
+    final int sizeInBytes;
+    final long queuedNanos;
+    final Callback<Void> callback;
+
+    Entry(List<S> spans, int sizeInBytes, long queuedNanos, Callback<Void> callback) {
+      this.spans = spans;
+      this.sizeInBytes = sizeInBytes;
+      this.queuedNanos = queuedNanos;
+      this.callback = callback;
+    }
+  }
+
+  /** Entries sent to storage together, in arrival order. */
+  static final class Batch<S> {
+    final List<Entry<S>> entries;
+    final List<S> spans;
+    final int sizeInBytes;
+
+    Batch(List<Entry<S>> entries, int spanCount, int sizeInBytes) {
+      this.entries = entries;
+      this.sizeInBytes = sizeInBytes;
+      if (entries.size() == 1) {
+        this.spans = entries.get(0).spans;
+      } else {
+        List<S> spans = new ArrayList<>(spanCount);
+        for (Entry<S> entry : entries) spans.addAll(entry.spans);
+        this.spans = spans;
+      }
+    }
+  }
+
+  /** Flushes lingering batches. Shared, as its tasks only schedule storage requests. */
+  static final ScheduledExecutorService LINGER_TIMER =
+    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "zipkin-collector-linger");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+}
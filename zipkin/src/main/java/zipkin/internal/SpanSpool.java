@@ -0,0 +1,454 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import zipkin.Component.CheckResult;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.ExtendedCollectorMetrics;
+import zipkin.storage.Callback;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Implements {@link CollectorSpool} for a single collector.
+ *
+ * <p>Records are appended to the newest segment, and replayed from the eldest. Each record has a
+ * 16-byte header: the length of the encoded spans, their CRC32, and the epoch millis they were
+ * spooled. Files are zero-filled when mapped, so a zero length marks the end of a segment. Once a
+ * record is replayed, its length is negated in place, so that it is skipped after a restart.
+ * Records after a checksum mismatch were torn by a crash, and are overwritten.
+ *
+ * <p>One thread replays records while any are left, waiting for each storage request to complete.
+ * Spans found after a restart are only replayed once {@link #start() started}, and storage check
+ * passes.
+ */
+final class SpanSpool<S> {
+  static final int HEADER_SIZE = 16;
+  static final String SUFFIX = ".spool";
+
+  final Collector<?, S> collector;
+  final ExtendedCollectorMetrics metrics;
+  final File directory;
+  final int segmentBytes;
+  final long maxBytes, nanosPerSpan, checkIntervalMillis;
+  final FileLock lock;
+
+  // guarded by this
+  final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  long nextSegmentId, spooledBytes;
+  boolean storageFailing, replaying, closed;
+  Thread replayThread;
+
+  /** Only accessed by the replay thread */
+  long nextReplayNanos;
+
+  SpanSpool(Collector<?, S> collector, CollectorSpool settings) {
+    this.collector = collector;
+    this.metrics = collector.extendedMetrics;
+    this.directory = new File(settings.directory(), collector.logger.getName());
+    this.segmentBytes = settings.segmentBytes();
+    this.maxBytes = settings.maxBytes();
+    this.nanosPerSpan = TimeUnit.SECONDS.toNanos(1) / settings.replaySpansPerSecond();
+    this.checkIntervalMillis = settings.checkIntervalMillis();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalStateException("Could not create spool directory " + directory);
+    }
+    try {
+      FileChannel lockChannel = new RandomAccessFile(new File(directory, ".lock"), "rw").getChannel();
+      FileLock lock;
+      try {
+        lock = lockChannel.tryLock();
+      } catch (OverlappingFileLockException e) { // locked by another collector in this process
+        lock = null;
+      }
+      if (lock == null) {
+        lockChannel.close();
+        throw new IllegalStateException("Spool directory " + directory + " is in use");
+      }
+      this.lock = lock;
+      synchronized (this) {
+        recover();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not open spool directory " + directory, e);
+    }
+  }
+
+  /** Maps existing segments, resuming after the last record replayed. */
+  // guarded by this
+  void recover() throws IOException {
+    String[] names = directory.list(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    Arrays.sort(names); // ids are zero-padded
+    for (String name : names) {
+      File file = new File(directory, name);
+      Segment segment = new Segment(file, map(file, 0));
+      segment.scan();
+      spooledBytes += segment.writePosition - segment.readPosition;
+      segments.add(segment);
+      nextSegmentId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1;
+    }
+    // drop fully replayed segments, except the newest, which may have room for more
+    while (segments.size() > 1 && segments.peekFirst().isReplayed()) {
+      segments.removeFirst().delete();
+    }
+    updateGauges();
+    if (spooledBytes > 0) {
+      collector.logger.log(INFO, "Found " + spooledBytes + " bytes spooled to " + directory);
+      storageFailing = true; // replays once storage check passes
+    }
+  }
+
+  /**
+   * Replays spans found when opening the directory. This is separate from construction, as replay
+   * calls back into the collector, which isn't fully constructed until then.
+   */
+  synchronized void start() {
+    if (!closed && spooledBytes > 0) startReplay();
+  }
+
+  synchronized boolean isStorageFailing() {
+    return storageFailing;
+  }
+
+  /**
+   * Spools spans that failed to store, and sends further spans to the spool until storage check
+   * passes. Returns false if there was no room.
+   */
+  boolean offerAfterFailure(List<S> spans, Throwable error) {
+    storageFailed(error);
+    return offer(spans);
+  }
+
+  synchronized void storageFailed(Throwable error) {
+    if (storageFailing) return;
+    storageFailing = true;
+    collector.warn("Spooling spans to " + directory + " until storage recovers", error);
+  }
+
+  /** Returns false if there was no room for the spans. */
+  boolean offer(List<S> spans) {
+    byte[] encoded;
+    try {
+      encoded = collector.encodeSpooled(spans);
+    } catch (RuntimeException e) {
+      collector.warn("Cannot spool spans", e);
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(encoded, 0, encoded.length);
+    int recordSize = HEADER_SIZE + encoded.length;
+    synchronized (this) {
+      if (closed || spooledBytes + recordSize > maxBytes) return false;
+      Segment segment = segments.peekLast();
+      try {
+        if (segment == null || segment.remaining() < recordSize) segment = roll(recordSize);
+      } catch (IOException e) {
+        collector.warn("Cannot spool spans", e);
+        return false;
+      }
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int position = segment.writePosition;
+      buffer.putInt(position + 4, (int) crc.getValue());
+      buffer.putLong(position + 8, System.currentTimeMillis());
+      buffer.position(position + HEADER_SIZE);
+      buffer.put(encoded);
+      buffer.putInt(position, encoded.length); // written last, as it publishes the record
+      segment.writePosition += recordSize;
+      spooledBytes += recordSize;
+      updateGauges();
+      startReplay();
+    }
+    return true;
+  }
+
+  // guarded by this
+  Segment roll(int recordSize) throws IOException {
+    Segment previous = segments.peekLast();
+    if (previous != null) previous.buffer.force();
+    File file = new File(directory, String.format("%020d%s", nextSegmentId++, SUFFIX));
+    Segment segment = new Segment(file, map(file, Math.max(segmentBytes, recordSize)));
+    segments.add(segment);
+    return segment;
+  }
+
+  // guarded by this
+  void startReplay() {
+    if (replaying) return;
+    replaying = true;
+    replayThread = new Thread(new Runnable() {
+      @Override public void run() {
+        replay();
+      }
+    }, "zipkin-collector-spool");
+    replayThread.setDaemon(true);
+    replayThread.start();
+  }
+
+  /** Replays records in order until none are left. */
+  void replay() {
+    try {
+      Record record;
+      while ((record = next()) != null) {
+        if (isStorageFailing() && !awaitStorage()) return;
+
+        List<S> spans;
+        try {
+          spans = collector.decodeSpooled(record.encoded);
+        } catch (RuntimeException e) {
+          collector.warn("Dropping unreadable spool record", e);
+          consume(record);
+          continue;
+        }
+        pace(spans.size());
+        Throwable error = store(spans);
+        if (error == null) {
+          consume(record);
+        } else {
+          storageFailed(error);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      synchronized (this) {
+        replaying = false;
+      }
+    }
+  }
+
+  /** Returns false if interrupted before storage check passed. */
+  boolean awaitStorage() throws InterruptedException {
+    while (true) {
+      TimeUnit.MILLISECONDS.sleep(checkIntervalMillis);
+      synchronized (this) {
+        updateGauges(); // the replay lag grows while waiting
+      }
+      CheckResult result;
+      try {
+        result = collector.checkStorage();
+      } catch (RuntimeException e) {
+        result = CheckResult.failed(e);
+      }
+      if (!result.ok) continue;
+      synchronized (this) {
+        storageFailing = false;
+      }
+      collector.logger.log(INFO, "Storage recovered: replaying spans spooled to " + directory);
+      return true;
+    }
+  }
+
+  /** Sleeps as needed to keep replay under the configured rate. */
+  void pace(int spanCount) throws InterruptedException {
+    long now = System.nanoTime();
+    if (nextReplayNanos - now > 0) {
+      TimeUnit.NANOSECONDS.sleep(nextReplayNanos - now);
+      now = nextReplayNanos;
+    }
+    nextReplayNanos = now + spanCount * nanosPerSpan;
+  }
+
+  /** Returns the error storing the spans, or null if they were stored. */
+  @Nullable Throwable store(List<S> spans) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    try {
+      collector.recordDeduplicated(spans, new Callback<Void>() {
+        @Override public void onSuccess(@Nullable Void value) {
+          done.countDown();
+        }
+
+        @Override public void onError(Throwable t) {
+          error.set(t);
+          done.countDown();
+        }
+      });
+    } catch (RuntimeException e) {
+      return e;
+    }
+    done.await();
+    return error.get();
+  }
+
+  /** Returns the eldest record not yet replayed, or null after stopping replay. */
+  @Nullable synchronized Record next() {
+    while (!closed) {
+      Segment segment = segments.peekFirst();
+      if (segment == null) break;
+      if (!segment.isReplayed()) {
+        int position = segment.readPosition;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        byte[] encoded = new byte[buffer.getInt(position)];
+        buffer.position(position + HEADER_SIZE);
+        buffer.get(encoded);
+        return new Record(segment, position, encoded);
+      }
+      if (segments.size() == 1) break; // the newest segment is still written to
+      segments.removeFirst().delete();
+      updateGauges();
+    }
+    replaying = false;
+    updateGauges();
+    return null;
+  }
+
+  synchronized void consume(Record record) {
+    int length = record.encoded.length;
+    record.segment.buffer.putInt(record.position, -length);
+    record.segment.readPosition = record.position + HEADER_SIZE + length;
+    spooledBytes -= HEADER_SIZE + length;
+    updateGauges();
+  }
+
+  // guarded by this
+  void updateGauges() {
+    metrics.updateSpooledBytes(spooledBytes);
+    metrics.updateSpoolSegments(segments.size());
+    long lag = 0;
+    Segment eldest = segments.peekFirst();
+    if (eldest != null && !eldest.isReplayed()) {
+      long spooled = eldest.buffer.getLong(eldest.readPosition + 8);
+      lag = Math.max(0, System.currentTimeMillis() - spooled);
+    }
+    metrics.updateSpoolReplayLag(lag);
+  }
+
+  /** Stops replay and releases the directory. Spooled spans are replayed when it is next opened. */
+  void close() throws IOException, InterruptedException {
+    Thread thread;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      thread = replayThread;
+    }
+    if (thread != null) {
+      thread.interrupt();
+      thread.join();
+    }
+    synchronized (this) {
+      for (Segment segment : segments) segment.buffer.force();
+      lock.channel().close(); // releases the lock
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return "SpanSpool{directory=" + directory + ", bytes=" + spooledBytes
+      + ", segments=" + segments.size() + ", storageFailing=" + storageFailing + "}";
+  }
+
+  static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (size == 0) size = raf.length();
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  static final class Segment {
+    final File file;
+    final MappedByteBuffer buffer;
+    int readPosition, writePosition;
+
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    int remaining() {
+      return buffer.capacity() - writePosition;
+    }
+
+    boolean isReplayed() {
+      return readPosition == writePosition;
+    }
+
+    /** Finds the first record not yet replayed, and the end of the last intact record. */
+    void scan() {
+      int position = 0, capacity = buffer.capacity();
+      boolean replayed = true;
+      CRC32 crc = new CRC32();
+      while (position + HEADER_SIZE <= capacity) {
+        int length = buffer.getInt(position);
+        int size = HEADER_SIZE + Math.abs(length);
+        if (length == 0 || position + size > capacity) break;
+        if (length > 0) {
+          byte[] encoded = new byte[length];
+          ByteBuffer view = buffer.duplicate();
+          view.position(position + HEADER_SIZE);
+          view.get(encoded);
+          crc.reset();
+          crc.update(encoded, 0, length);
+          if ((int) crc.getValue() != buffer.getInt(position + 4)) break; // torn by a crash
+          replayed = false;
+        } else if (replayed) {
+          readPosition = position + size;
+        }
+        position += size;
+      }
+      writePosition = position; // overwrites a torn record, if any
+    }
+
+    void delete() {
+      unmap(buffer);
+      if (!file.delete()) file.deleteOnExit();
+    }
+  }
+
+  static final class Record {
+    final Segment segment;
+    final int position;
+    final byte[] encoded;
+
+    Record(Segment segment, int position, byte[] encoded) {
+      this.segment = segment;
+      this.position = position;
+      this.encoded = encoded;
+    }
+  }
+
+  /**
+   * Releases the mapping before deleting its file, as otherwise it lasts until garbage collection.
+   * There's no public api for this until Java 9, so failure is ignored.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+    } catch (Exception | LinkageError ignored) {
+    }
+  }
+}
@@ -366,6 +366,62 @@ public final class ThriftCodec implements Codec {
     }
   }
 
+  /**
+   * Like {@link SpanReader}, except converts to v2 spans without building a {@link Span}. Used by
+   * {@link V1SpanBytesDecoder}.
+   */
+  static final class Span2Reader implements ThriftReader<List<zipkin2.Span>> {
+    final V1Span span = new V1Span();
+
+    @Override public List<zipkin2.Span> read(ByteBuffer bytes) {
+      span.clear();
+      Field field;
+
+      while (true) {
+        field = Field.read(bytes);
+        if (field.type == TYPE_STOP) break;
+
+        if (field.isEqualTo(SpanReader.TRACE_ID_HIGH)) {
+          span.traceIdHigh = bytes.getLong();
+        } else if (field.isEqualTo(SpanReader.TRACE_ID)) {
+          span.traceId(bytes.getLong());
+        } else if (field.isEqualTo(SpanReader.NAME)) {
+          span.name = readUtf8(bytes);
+        } else if (field.isEqualTo(SpanReader.ID)) {
+          span.id(bytes.getLong());
+        } else if (field.isEqualTo(SpanReader.PARENT_ID)) {
+          span.parentId = bytes.getLong();
+        } else if (field.isEqualTo(SpanReader.ANNOTATIONS)) {
+          byte ignoredType = bytes.get();
+          int length = guardLength(bytes, CONTAINER_LENGTH_LIMIT);
+          for (int i = 0; i < length; i++) {
+            span.addAnnotation(ANNOTATION_ADAPTER.read(bytes));
+          }
+        } else if (field.isEqualTo(SpanReader.BINARY_ANNOTATIONS)) {
+          byte ignoredType = bytes.get();
+          int length = guardLength(bytes, CONTAINER_LENGTH_LIMIT);
+          for (int i = 0; i < length; i++) {
+            span.addBinaryAnnotation(BINARY_ANNOTATION_ADAPTER.read(bytes));
+          }
+        } else if (field.isEqualTo(SpanReader.DEBUG)) {
+          span.debug = bytes.get() == 1;
+        } else if (field.isEqualTo(SpanReader.TIMESTAMP)) {
+          span.timestamp = bytes.getLong();
+        } else if (field.isEqualTo(SpanReader.DURATION)) {
+          span.duration = bytes.getLong();
+        } else {
+          skip(bytes, field.type);
+        }
+      }
+
+      return V2SpanConverter.fromSpan(span.finish());
+    }
+
+    @Override public String toString() {
+      return "Span";
+    }
+  }
+
   static final Buffer.Writer<Span> SPAN_WRITER = new Buffer.Writer<Span>() {
     @Override public int sizeInBytes(Span value) {
       int sizeInBytes = 0;
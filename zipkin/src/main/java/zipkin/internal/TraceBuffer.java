@@ -0,0 +1,265 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.collector.ExtendedCollectorMetrics;
+import zipkin.storage.Callback;
+
+/**
+ * Implements {@link CollectorTailSampler} for a single collector.
+ *
+ * <p>Traces are held in a map ordered by when they last received a span, so the traces quiet the
+ * longest are always first. Deciding quiet traces, or evicting when full, only looks at the head of
+ * the map. Facts needed for the decision are accumulated as spans arrive, so deciding doesn't
+ * revisit spans. Quiet traces are decided and stored on a thread of this buffer's own.
+ */
+final class TraceBuffer<S> {
+  /** Count of recent decisions kept, so that late spans of a trace follow its decision. */
+  static final int DECISION_CACHE_SIZE = 10000;
+
+  final Collector<?, S> collector;
+  final ExtendedCollectorMetrics metrics;
+  final long decisionWaitNanos, maxWaitNanos, latencyThresholdMicros;
+  final int maxSpans;
+  final Set<String> services;
+  final CollectorSampler sampler;
+
+  // guarded by this
+  final LinkedHashMap<String, Trace<S>> traces = new LinkedHashMap<>(16, 0.75f, true);
+  final Map<String, Boolean> decisions = new LinkedHashMap<String, Boolean>() {
+    @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > DECISION_CACHE_SIZE;
+    }
+  };
+  int spanCount;
+  @Nullable ScheduledFuture<?> scheduledFlush; // pending flush, if any
+
+  /**
+   * Decides quiet traces and stores those kept. The linger timer is shared by all queues, so it
+   * only hands flushes to this, as storing can block when the collector has a queue.
+   */
+  final ThreadPoolExecutor flusher;
+  final Runnable flush = new Runnable() {
+    @Override public void run() {
+      flush();
+    }
+  };
+
+  TraceBuffer(Collector<?, S> collector, CollectorTailSampler settings) {
+    this.collector = collector;
+    this.metrics = collector.extendedMetrics;
+    this.decisionWaitNanos = TimeUnit.MILLISECONDS.toNanos(settings.decisionWaitMillis());
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(settings.maxWaitMillis());
+    this.latencyThresholdMicros = TimeUnit.MILLISECONDS.toMicros(settings.latencyThresholdMillis());
+    this.maxSpans = settings.maxSpans();
+    this.services = settings.services();
+    this.sampler = settings.sampler();
+    this.flusher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "zipkin-collector-tail-sampler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.allowCoreThreadTimeOut(true); // so that an idle buffer doesn't keep a thread
+  }
+
+  /** Holds the spans until their traces are decided, storing any that already are. */
+  void add(List<S> spans) {
+    Decision<S> decision = new Decision<>();
+    synchronized (this) {
+      add(spans, System.nanoTime(), decision);
+      scheduleFlush();
+    }
+    complete(decision);
+  }
+
+  /** Decides traces that are quiet, storing those kept. */
+  void flush() {
+    Decision<S> decision = new Decision<>();
+    synchronized (this) {
+      scheduledFlush = null;
+      flush(System.nanoTime(), decision);
+      scheduleFlush();
+    }
+    complete(decision);
+  }
+
+  // guarded by this
+  void add(List<S> spans, long now, Decision<S> decision) {
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      S span = spans.get(i);
+      String traceId = collector.traceId(span);
+      Boolean decided = decisions.get(traceId);
+      if (decided != null) {
+        decision.add(span, decided);
+        continue;
+      }
+      Trace<S> trace = traces.get(traceId); // moves the trace to the end
+      if (trace == null) traces.put(traceId, trace = new Trace<>(traceId, now));
+      trace.add(collector, span, services, now);
+      spanCount++;
+      if (now - trace.firstNanos >= maxWaitNanos) decide(trace, decision);
+    }
+
+    Iterator<Trace<S>> eldest = traces.values().iterator();
+    while (spanCount > maxSpans) {
+      Trace<S> trace = eldest.next();
+      eldest.remove();
+      decide(trace, decision);
+      decision.evicted++;
+    }
+    metrics.updateBufferedSpans(spanCount);
+  }
+
+  // guarded by this
+  void flush(long now, Decision<S> decision) {
+    for (Iterator<Trace<S>> i = traces.values().iterator(); i.hasNext(); ) {
+      Trace<S> trace = i.next();
+      if (now - trace.lastNanos < decisionWaitNanos) break; // the rest were updated later
+      i.remove();
+      decide(trace, decision);
+    }
+    metrics.updateBufferedSpans(spanCount);
+  }
+
+  // guarded by this
+  void decide(Trace<S> trace, Decision<S> decision) {
+    traces.remove(trace.traceId); // no-op when removed by an iterator
+    spanCount -= trace.spans.size();
+    boolean keep = isKept(trace);
+    decisions.put(trace.traceId, keep);
+    decision.addAll(trace.spans, keep);
+  }
+
+  boolean isKept(Trace<S> trace) {
+    if (trace.error || trace.debug || trace.service) return true;
+    if (latencyThresholdMicros > 0 && trace.latencyMicros() >= latencyThresholdMicros) return true;
+    return sampler.isSampled(Util.lowerHexToUnsignedLong(trace.traceId), null);
+  }
+
+  // guarded by this
+  void scheduleFlush() {
+    if (scheduledFlush != null || traces.isEmpty()) return;
+    long delayNanos = traces.values().iterator().next().lastNanos + decisionWaitNanos
+      - System.nanoTime();
+    scheduledFlush = SpanQueue.LINGER_TIMER.schedule(new Runnable() {
+      @Override public void run() {
+        try {
+          flusher.execute(flush);
+        } catch (RejectedExecutionException e) { // closed
+        }
+      }
+    }, Math.max(0L, delayNanos), TimeUnit.NANOSECONDS);
+  }
+
+  /** Stops flushing. Spans still held are dropped. */
+  void close() {
+    synchronized (this) {
+      if (scheduledFlush != null) scheduledFlush.cancel(false); // don't wait for the timer
+    }
+    flusher.shutdownNow();
+  }
+
+  /** Reports outside the lock, as storing can block when the collector has a queue. */
+  void complete(Decision<S> decision) {
+    if (decision.dropped > 0) metrics.incrementSpansDropped(decision.dropped);
+    if (decision.evicted > 0) metrics.incrementTracesEvicted(decision.evicted);
+    if (decision.kept.isEmpty()) return;
+    try {
+      collector.store(decision.kept, Callback.NOOP);
+    } catch (RuntimeException e) {
+      collector.errorStoringSpans(decision.kept, e);
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return "TraceBuffer{traces=" + traces.size() + ", spans=" + spanCount + "}";
+  }
+
+  /** Spans of one trace, and what's known about them so far. */
+  static final class Trace<S> {
+    final String traceId;
+    final long firstNanos;
+    final List<S> spans = new ArrayList<>();
+    long lastNanos;
+    boolean error, debug, service;
+    long minTimestamp = Long.MAX_VALUE, maxEnd = Long.MIN_VALUE, maxDuration; // micros
+
+    Trace(String traceId, long now) {
+      this.traceId = traceId;
+      this.firstNanos = this.lastNanos = now;
+    }
+
+    void add(Collector<?, S> collector, S span, Set<String> services, long now) {
+      spans.add(span);
+      lastNanos = now;
+      if (!error) error = collector.isError(span);
+      if (!debug) debug = collector.isDebug(span);
+      if (!service && !services.isEmpty()) service = collector.hasService(span, services);
+      long timestamp = collector.timestamp(span), duration = collector.duration(span);
+      if (duration > maxDuration) maxDuration = duration;
+      if (timestamp == 0L) return;
+      if (timestamp < minTimestamp) minTimestamp = timestamp;
+      if (timestamp + duration > maxEnd) maxEnd = timestamp + duration;
+    }
+
+    /** The time covered by spans, or the longest span if they lack timestamps. */
+    long latencyMicros() {
+      if (minTimestamp == Long.MAX_VALUE) return maxDuration;
+      return Math.max(maxEnd - minTimestamp, maxDuration);
+    }
+  }
+
+  /** Spans decided while holding the lock, to report after releasing it. */
+  static final class Decision<S> {
+    List<S> kept = Collections.emptyList();
+    int dropped, evicted;
+
+    void add(S span, boolean keep) {
+      if (!keep) {
+        dropped++;
+        return;
+      }
+      if (kept.isEmpty()) kept = new ArrayList<>();
+      kept.add(span);
+    }
+
+    void addAll(List<S> spans, boolean keep) {
+      if (!keep) {
+        dropped += spans.size();
+        return;
+      }
+      if (kept.isEmpty()) kept = new ArrayList<>(spans.size());
+      kept.addAll(spans);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import zipkin.Annotation;
+import zipkin.BinaryAnnotation;
+
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * The fields of a v1 span, as read by {@link V2SpanConverter}.
+ *
+ * <p>This allows v1 encoded spans to be converted to v2 without first building a {@link
+ * zipkin.Span}. Readers fill and {@link #clear()} an instance per message, so it isn't thread-safe.
+ */
+final class V1Span {
+  long traceIdHigh, traceId, id;
+  @Nullable Long traceIdBoxed, idBoxed, parentId, timestamp, duration;
+  @Nullable String name;
+  @Nullable Boolean debug;
+  List<Annotation> annotations = Collections.emptyList();
+  List<BinaryAnnotation> binaryAnnotations = Collections.emptyList();
+
+  /** Views the span without copying. */
+  static V1Span fromSpan(zipkin.Span source) {
+    V1Span result = new V1Span();
+    result.traceIdHigh = source.traceIdHigh;
+    result.traceId = source.traceId;
+    result.id = source.id;
+    result.parentId = source.parentId;
+    result.name = source.name;
+    result.timestamp = source.timestamp;
+    result.duration = source.duration;
+    result.debug = source.debug;
+    result.annotations = source.annotations;
+    result.binaryAnnotations = source.binaryAnnotations;
+    return result;
+  }
+
+  V1Span traceId(long traceId) {
+    this.traceId = traceId;
+    this.traceIdBoxed = traceId; // to check it was set
+    return this;
+  }
+
+  V1Span id(long id) {
+    this.id = id;
+    this.idBoxed = id; // to check it was set
+    return this;
+  }
+
+  void addAnnotation(Annotation annotation) {
+    if (annotations.isEmpty()) annotations = new ArrayList<>(4);
+    annotations.add(annotation);
+  }
+
+  void addBinaryAnnotation(BinaryAnnotation binaryAnnotation) {
+    if (binaryAnnotations.isEmpty()) binaryAnnotations = new ArrayList<>(4);
+    binaryAnnotations.add(binaryAnnotation);
+  }
+
+  /**
+   * Validates required fields as {@link zipkin.Span.Builder#build()} would, and sorts annotations,
+   * so that conversion results are the same as when converting a {@link zipkin.Span}.
+   */
+  V1Span finish() {
+    checkNotNull(traceIdBoxed, "traceId");
+    checkNotNull(idBoxed, "id");
+    checkNotNull(name, "name");
+    if (timestamp != null && timestamp == 0L) timestamp = null;
+    if (duration != null && duration == 0L) duration = null;
+    if (annotations.size() > 1) Collections.sort(annotations);
+    if (binaryAnnotations.size() > 1) Collections.sort(binaryAnnotations);
+    return this;
+  }
+
+  String traceIdString() {
+    return Util.toLowerHex(traceIdHigh, traceId);
+  }
+
+  void clear() {
+    traceIdHigh = traceId = id = 0L;
+    traceIdBoxed = idBoxed = parentId = timestamp = duration = null;
+    name = null;
+    debug = null;
+    // don't reuse lists, as they may be referenced by a previous conversion
+    annotations = Collections.emptyList();
+    binaryAnnotations = Collections.emptyList();
+  }
+}
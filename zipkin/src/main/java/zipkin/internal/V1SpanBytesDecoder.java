@@ -0,0 +1,120 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import com.google.gson.stream.JsonReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.annotation.Nullable;
+import zipkin2.Span;
+import zipkin2.codec.BytesDecoder;
+import zipkin2.codec.Encoding;
+
+import static zipkin.internal.ThriftCodec.CONTAINER_LENGTH_LIMIT;
+import static zipkin.internal.ThriftCodec.guardLength;
+
+/**
+ * Decodes v1 encoded spans directly into v2 spans.
+ *
+ * <p>This gives the same result as decoding a {@link zipkin.Span} and converting it with {@link
+ * V2SpanConverter#fromSpan(zipkin.Span)}, but skips building the intermediate v1 model. Like that
+ * conversion, one encoded span can result in two v2 spans when it was shared between a client and
+ * server.
+ */
+public enum V1SpanBytesDecoder implements BytesDecoder<Span> {
+  /** Corresponds to the Zipkin v1 thrift format */
+  THRIFT {
+    @Override public Encoding encoding() {
+      return Encoding.THRIFT;
+    }
+
+    @Override public boolean decode(byte[] span, Collection<Span> out) {
+      return decodeThrift(ByteBuffer.wrap(span), out);
+    }
+
+    @Override public boolean decodeList(byte[] spans, Collection<Span> out) {
+      if (spans.length == 0) {
+        throw new IllegalArgumentException("Empty input reading List<Span> from TBinary");
+      }
+      ByteBuffer bytes = ByteBuffer.wrap(spans);
+      ThriftCodec.Span2Reader reader = new ThriftCodec.Span2Reader();
+      try {
+        byte ignoredType = bytes.get();
+        int length = guardLength(bytes, CONTAINER_LENGTH_LIMIT);
+        if (length == 0) return false;
+        for (int i = 0; i < length; i++) {
+          out.addAll(reader.read(bytes));
+        }
+        return true;
+      } catch (RuntimeException e) {
+        throw ThriftCodec.exceptionReading("List<" + reader + ">", e);
+      }
+    }
+  },
+  /** Corresponds to the Zipkin v1 json format */
+  JSON_V1 {
+    @Override public Encoding encoding() {
+      return Encoding.JSON;
+    }
+
+    @Override public boolean decode(byte[] span, Collection<Span> out) {
+      List<Span> result = JsonCodec.read(new JsonCodec.Span2Reader(), span);
+      out.addAll(result);
+      return !result.isEmpty();
+    }
+
+    @Override public boolean decodeList(byte[] spans, Collection<Span> out) {
+      if (spans.length == 0) {
+        throw new IllegalArgumentException("Empty input reading List<Span>");
+      }
+      JsonCodec.Span2Reader adapter = new JsonCodec.Span2Reader();
+      JsonReader reader = JsonCodec.jsonReader(spans);
+      try {
+        reader.beginArray();
+        boolean decoded = false;
+        while (reader.hasNext()) {
+          out.addAll(adapter.fromJson(reader));
+          decoded = true;
+        }
+        reader.endArray();
+        return decoded;
+      } catch (Exception e) {
+        throw JsonCodec.exceptionReading("List<" + adapter + ">", spans, e);
+      }
+    }
+  };
+
+  /** Visible for testing. This returns the first span parsed from the serialized object or null */
+  @Override @Nullable public Span decodeOne(byte[] span) {
+    List<Span> out = new ArrayList<>(2);
+    if (!decode(span, out)) return null;
+    return out.get(0);
+  }
+
+  /** Convenience method for {@link #decodeList(byte[], Collection)} */
+  @Override public List<Span> decodeList(byte[] spans) {
+    List<Span> out = new ArrayList<>();
+    decodeList(spans, out);
+    return out;
+  }
+
+  /** Decodes a single thrift span at the buffer's position, as found in a list */
+  static boolean decodeThrift(ByteBuffer span, Collection<Span> out) {
+    List<Span> result = ThriftCodec.read(new ThriftCodec.Span2Reader(), span);
+    out.addAll(result);
+    return !result.isEmpty();
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import zipkin.storage.AsyncSpanConsumer;
+import zipkin.storage.AsyncSpanStore;
+import zipkin.storage.Callback;
+import zipkin2.Call;
+import zipkin2.CheckResult;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+import static zipkin.internal.Util.lowerHexToUnsignedLong;
+
+/**
+ * This is an internal type used to bridge two versions of the storage component, the reverse of
+ * {@link V2StorageComponent}. It allows v1 storage, such as Cassandra or MySQL, to be composed with
+ * v2 storage, for example in a {@link zipkin2.storage.FanOutStorage}.
+ *
+ * <p>Writes convert each span to the v1 model. Reads of a trace return its raw spans, as v2 storage
+ * doesn't merge or correct them.
+ */
+public final class V1StorageAdapter extends StorageComponent {
+
+  /** Returns the v2 storage wrapped by the input, or an adapter of it. */
+  public static StorageComponent create(zipkin.storage.StorageComponent delegate) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    if (delegate instanceof V2StorageComponent) {
+      return ((V2StorageComponent) delegate).delegate();
+    }
+    return new V1StorageAdapter(delegate);
+  }
+
+  final zipkin.storage.StorageComponent delegate;
+
+  V1StorageAdapter(zipkin.storage.StorageComponent delegate) {
+    this.delegate = delegate;
+  }
+
+  public zipkin.storage.StorageComponent delegate() {
+    return delegate;
+  }
+
+  @Override public SpanStore spanStore() {
+    return new V1SpanStoreAdapter(delegate.asyncSpanStore());
+  }
+
+  @Override public SpanConsumer spanConsumer() {
+    return new V1SpanConsumerAdapter(delegate.asyncSpanConsumer());
+  }
+
+  @Override public CheckResult check() {
+    zipkin.Component.CheckResult result = delegate.check();
+    return result.ok ? CheckResult.OK : CheckResult.failed(result.exception);
+  }
+
+  @Override public void close() throws IOException {
+    delegate.close();
+  }
+
+  @Override public String toString() {
+    return delegate.toString();
+  }
+
+  static final class V1SpanConsumerAdapter implements SpanConsumer {
+    final AsyncSpanConsumer delegate;
+
+    V1SpanConsumerAdapter(AsyncSpanConsumer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public Call<Void> accept(List<Span> spans) {
+      if (spans.isEmpty()) return Call.create(null);
+      List<zipkin.Span> span1s = new ArrayList<>(spans.size());
+      for (int i = 0, length = spans.size(); i < length; i++) {
+        span1s.add(V2SpanConverter.toSpan(spans.get(i)));
+      }
+      return new V1Call<>(callback -> delegate.accept(span1s, callback));
+    }
+  }
+
+  static final class V1SpanStoreAdapter implements SpanStore {
+    final AsyncSpanStore delegate;
+
+    V1SpanStoreAdapter(AsyncSpanStore delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
+      zipkin.storage.QueryRequest v1Request = convertRequest(request);
+      return new V1Call<List<List<zipkin.Span>>>(
+        callback -> delegate.getTraces(v1Request, callback)
+      ).map(trace1s -> {
+        if (trace1s.isEmpty()) return Collections.emptyList();
+        List<List<Span>> trace2s = new ArrayList<>(trace1s.size());
+        for (List<zipkin.Span> trace1 : trace1s) trace2s.add(V2SpanConverter.fromSpans(trace1));
+        return trace2s;
+      });
+    }
+
+    @Override public Call<List<Span>> getTrace(String traceId) {
+      int length = traceId.length();
+      long traceIdHigh =
+        length > 16 ? lowerHexToUnsignedLong(traceId.substring(0, length - 16)) : 0L;
+      long traceIdLow = lowerHexToUnsignedLong(traceId);
+      return new V1Call<List<zipkin.Span>>(
+        callback -> delegate.getRawTrace(traceIdHigh, traceIdLow, callback)
+      ).map(span1s -> span1s == null
+        ? Collections.<Span>emptyList()
+        : V2SpanConverter.fromSpans(span1s));
+    }
+
+    @Override public Call<List<String>> getServiceNames() {
+      return new V1Call<>(delegate::getServiceNames);
+    }
+
+    @Override public Call<List<String>> getSpanNames(String serviceName) {
+      return new V1Call<>(callback -> delegate.getSpanNames(serviceName, callback));
+    }
+
+    @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+      return new V1Call<List<zipkin.DependencyLink>>(
+        callback -> delegate.getDependencies(endTs, lookback, callback)
+      ).map(V2SpanConverter::fromLinks);
+    }
+  }
+
+  static zipkin.storage.QueryRequest convertRequest(QueryRequest v2Request) {
+    zipkin.storage.QueryRequest.Builder result = zipkin.storage.QueryRequest.builder()
+      .serviceName(v2Request.serviceName())
+      .spanName(v2Request.spanName())
+      .minDuration(v2Request.minDuration())
+      .maxDuration(v2Request.maxDuration())
+      .endTs(v2Request.endTs())
+      .lookback(v2Request.lookback())
+      .limit(v2Request.limit());
+    for (Map.Entry<String, String> entry : v2Request.annotationQuery().entrySet()) {
+      if (entry.getValue().isEmpty()) {
+        result.addAnnotation(entry.getKey());
+      } else {
+        result.addBinaryAnnotation(entry.getKey(), entry.getValue());
+      }
+    }
+    return result.build();
+  }
+
+  interface AsyncOperation<V> {
+    void invoke(Callback<V> callback);
+  }
+
+  /** Adapts a v1 async operation, which begins when the call is executed or enqueued. */
+  static final class V1Call<V> extends Call<V> {
+    final AsyncOperation<V> operation;
+    volatile boolean canceled;
+    boolean executed; // guarded by this
+
+    V1Call(AsyncOperation<V> operation) {
+      this.operation = operation;
+    }
+
+    @Override public V execute() throws IOException {
+      markExecuted();
+      if (canceled) throw new IOException("Canceled");
+      CallbackCaptor<V> captor = new CallbackCaptor<>();
+      operation.invoke(captor);
+      return captor.get();
+    }
+
+    @Override public void enqueue(zipkin2.Callback<V> callback) {
+      markExecuted();
+      if (canceled) {
+        callback.onError(new IOException("Canceled"));
+        return;
+      }
+      try {
+        operation.invoke(new Callback<V>() {
+          @Override public void onSuccess(@Nullable V value) {
+            callback.onSuccess(value);
+          }
+
+          @Override public void onError(Throwable t) {
+            callback.onError(t);
+          }
+        });
+      } catch (RuntimeException | Error e) {
+        Call.propagateIfFatal(e);
+        callback.onError(e);
+      }
+    }
+
+    synchronized void markExecuted() {
+      if (executed) throw new IllegalStateException("Already Executed");
+      executed = true;
+    }
+
+    /** v1 operations can't be interrupted: this only prevents one that hasn't started. */
+    @Override public void cancel() {
+      canceled = true;
+    }
+
+    @Override public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override public Call<V> clone() {
+      return new V1Call<>(operation);
+    }
+  }
+}
@@ -17,14 +17,25 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
+import zipkin.Component;
+import zipkin.Constants;
+import zipkin.collector.CollectorDeduplicator;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorRateLimiter;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
 import zipkin.collector.SpanDecorator;
 import zipkin.storage.Callback;
+import zipkin2.CheckResult;
 import zipkin2.Span;
 import zipkin2.codec.BytesDecoder;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.storage.StorageComponent;
 import static zipkin.internal.Util.checkNotNull;
 
@@ -32,15 +43,33 @@ public final class V2Collector extends Collector<BytesDecoder<Span>, Span> {
   final StorageComponent storage;
   final CollectorSampler sampler;
 
-  final List<SpanDecorator<Span>> interceptors;
+  final SpanDecorators<Span> decorators;
   
   public V2Collector(Logger logger, @Nullable CollectorMetrics metrics,
     @Nullable CollectorSampler sampler, StorageComponent storage,
-    List<SpanDecorator<Span>> v2Interceptors) {
-    super(logger, metrics);
+    List<SpanDecorator<Span>> v2Interceptors, @Nullable CollectorQueue queue) {
+    this(logger, metrics, sampler, storage, v2Interceptors, queue, null, null, null);
+  }
+
+  public V2Collector(Logger logger, @Nullable CollectorMetrics metrics,
+    @Nullable CollectorSampler sampler, StorageComponent storage,
+    List<SpanDecorator<Span>> v2Interceptors, @Nullable CollectorQueue queue,
+    @Nullable CollectorRateLimiter rateLimiter, @Nullable CollectorTailSampler tailSampler,
+    @Nullable CollectorDeduplicator deduplicator) {
+    this(logger, metrics, sampler, storage, v2Interceptors, queue, rateLimiter, tailSampler,
+      deduplicator, null);
+  }
+
+  public V2Collector(Logger logger, @Nullable CollectorMetrics metrics,
+    @Nullable CollectorSampler sampler, StorageComponent storage,
+    List<SpanDecorator<Span>> v2Interceptors, @Nullable CollectorQueue queue,
+    @Nullable CollectorRateLimiter rateLimiter, @Nullable CollectorTailSampler tailSampler,
+    @Nullable CollectorDeduplicator deduplicator, @Nullable CollectorSpool spool) {
+    super(logger, metrics, queue, rateLimiter, tailSampler, deduplicator, spool);
     this.storage = checkNotNull(storage, "storage");
     this.sampler = sampler == null ? CollectorSampler.ALWAYS_SAMPLE : sampler;
-    this.interceptors = v2Interceptors;
+    this.decorators = SpanDecorators.create(v2Interceptors);
+    startSpool(); // this class is final, so it is fully constructed
   }
 
   // MAC -- accept() signature modification
@@ -53,12 +82,7 @@ public final class V2Collector extends Collector<BytesDecoder<Span>, Span> {
   // ############ MAC ###################
   @Override
   protected List<Span> decorateSpans(Map<String, String> requestInfo, List<Span> sampledSpans) {
-    
-    List<Span> spansToStore = sampledSpans;
-    for ( SpanDecorator<Span> interceptor : interceptors) {
-      spansToStore = interceptor.decorate(requestInfo, spansToStore);
-    }
-    return spansToStore;
+    return decorators.decorate(requestInfo, sampledSpans);
   }
   // ############ MAC ###################
   
@@ -69,6 +93,22 @@ public final class V2Collector extends Collector<BytesDecoder<Span>, Span> {
     return out;
   }
 
+  @Override @Nullable
+  protected List<Span> decodeSampledList(BytesDecoder<Span> decoder, byte[] serialized) {
+    if (sampler == CollectorSampler.ALWAYS_SAMPLE) return null; // nothing to skip
+    SamplingSpanReader<Span> reader;
+    if (decoder == SpanBytesDecoder.JSON_V2) {
+      reader = SamplingSpanReader.JSON_V2;
+    } else if (decoder == V1SpanBytesDecoder.THRIFT) {
+      reader = SamplingSpanReader.THRIFT_AS_V2;
+    } else if (decoder == V1SpanBytesDecoder.JSON_V1) {
+      reader = SamplingSpanReader.JSON_V1_AS_V2;
+    } else {
+      return null;
+    }
+    return decodeSampled(reader, sampler, serialized);
+  }
+
   @Override protected boolean isSampled(Span span) {
     return sampler.isSampled(Util.lowerHexToUnsignedLong(span.traceId()), span.debug());
   }
@@ -77,7 +117,66 @@ public final class V2Collector extends Collector<BytesDecoder<Span>, Span> {
     storage.spanConsumer().accept(sampled).enqueue(new V2CallbackAdapter<>(callback));
   }
 
+  @Override protected byte[] encodeSpooled(List<Span> spans) {
+    return SpanBytesEncoder.JSON_V2.encodeList(spans);
+  }
+
+  @Override protected List<Span> decodeSpooled(byte[] encoded) {
+    return SpanBytesDecoder.JSON_V2.decodeList(encoded);
+  }
+
+  @Override protected Component.CheckResult checkStorage() {
+    CheckResult result = storage.check();
+    if (result.ok()) return Component.CheckResult.OK;
+    Throwable error = result.error();
+    return Component.CheckResult.failed(
+      error instanceof Exception ? (Exception) error : new RuntimeException(error));
+  }
+
   @Override protected String idString(Span span) {
     return span.traceId() + "/" + span.id();
   }
+
+  @Override protected String serviceName(Span span) {
+    return span.localServiceName();
+  }
+
+  @Override protected boolean isDebug(Span span) {
+    return Boolean.TRUE.equals(span.debug());
+  }
+
+  @Override protected String traceId(Span span) {
+    return span.traceId();
+  }
+
+  @Override protected long spanKey(Span span) {
+    String traceId = span.traceId();
+    long traceIdHigh = traceId.length() == 32 ? Util.lowerHexToUnsignedLong(traceId, 0) : 0L;
+    Span.Kind kind = span.kind();
+    return CollectorDeduplicator.key(traceIdHigh, Util.lowerHexToUnsignedLong(traceId),
+      Util.lowerHexToUnsignedLong(span.id()), kind != null ? kind.ordinal() + 1 : 0);
+  }
+
+  @Override protected boolean isError(Span span) {
+    return span.tags().containsKey(Constants.ERROR);
+  }
+
+  @Override protected long timestamp(Span span) {
+    Long timestamp = span.timestamp();
+    return timestamp != null ? timestamp : 0L;
+  }
+
+  @Override protected long duration(Span span) {
+    Long duration = span.duration();
+    return duration != null ? duration : 0L;
+  }
+
+  @Override protected boolean hasService(Span span, Set<String> serviceNames) {
+    return serviceNames.contains(span.localServiceName())
+      || serviceNames.contains(span.remoteServiceName());
+  }
+
+  @Override protected int sizeInBytes(Span span) {
+    return SpanBytesEncoder.JSON_V2.sizeInBytes(span);
+  }
 }
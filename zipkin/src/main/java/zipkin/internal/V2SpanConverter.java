@@ -45,6 +45,11 @@ public final class V2SpanConverter {
    * @return a span for each unique {@link Annotation#endpoint annotation endpoint} service name.
    */
   public static List<Span> fromSpan(zipkin.Span source) {
+    return fromSpan(V1Span.fromSpan(source));
+  }
+
+  /** Used by {@link V1SpanBytesDecoder} to convert without building a {@link zipkin.Span}. */
+  static List<Span> fromSpan(V1Span source) {
     Builders builders = new Builders(source);
     // add annotations unless they are "core"
     builders.processAnnotations(source);
@@ -57,12 +62,15 @@ public final class V2SpanConverter {
     final List<Span.Builder> spans = new ArrayList<>();
     Annotation cs = null, sr = null, ss = null, cr = null, ms = null, mr = null, ws = null, wr =
       null;
+    // Decoded spans usually repeat the same endpoint on each annotation. Convert each once.
+    zipkin.Endpoint lastEndpoint;
+    Endpoint lastConverted;
 
-    Builders(zipkin.Span source) {
+    Builders(V1Span source) {
       this.spans.add(newBuilder(source));
     }
 
-    void processAnnotations(zipkin.Span source) {
+    void processAnnotations(V1Span source) {
       for (int i = 0, length = source.annotations.size(); i < length; i++) {
         Annotation a = source.annotations.get(i);
         Span.Builder currentSpan = forEndpoint(source, a.endpoint);
@@ -176,7 +184,7 @@ public final class V2SpanConverter {
       }
     }
 
-    void maybeTimestampDuration(zipkin.Span source, Annotation begin, @Nullable Annotation end) {
+    void maybeTimestampDuration(V1Span source, Annotation begin, @Nullable Annotation end) {
       Span.Builder span2 = forEndpoint(source, begin.endpoint);
       if (source.timestamp != null && source.duration != null) {
         span2.timestamp(source.timestamp).duration(source.duration);
@@ -186,7 +194,7 @@ public final class V2SpanConverter {
       }
     }
 
-    void processBinaryAnnotations(zipkin.Span source) {
+    void processBinaryAnnotations(V1Span source) {
       zipkin.Endpoint ca = null, sa = null, ma = null;
       for (int i = 0, length = source.binaryAnnotations.size(); i < length; i++) {
         BinaryAnnotation b = source.binaryAnnotations.get(i);
@@ -253,28 +261,36 @@ public final class V2SpanConverter {
       }
     }
 
-    Span.Builder forEndpoint(zipkin.Span source, @Nullable zipkin.Endpoint e) {
+    Span.Builder forEndpoint(V1Span source, @Nullable zipkin.Endpoint e) {
       if (e == null) return spans.get(0); // allocate missing endpoint data to first span
-      Endpoint converted = e.toV2();
+      Endpoint converted = toV2(e);
       for (int i = 0, length = spans.size(); i < length; i++) {
         Span.Builder next = spans.get(i);
         Endpoint nextLocalEndpoint = next.localEndpoint();
         if (nextLocalEndpoint == null) {
           next.localEndpoint(converted);
           return next;
-        } else if (closeEnough(toEndpoint(nextLocalEndpoint), e)) {
+        } else if (closeEnough(nextLocalEndpoint, e)) {
           return next;
         }
       }
       return newSpanBuilder(source, converted);
     }
 
-    Span.Builder newSpanBuilder(zipkin.Span source, Endpoint e) {
+    Span.Builder newSpanBuilder(V1Span source, Endpoint e) {
       Span.Builder result = newBuilder(source).localEndpoint(e);
       spans.add(result);
       return result;
     }
 
+    Endpoint toV2(zipkin.Endpoint e) {
+      if (!e.equals(lastEndpoint)) { // equals checks identity first
+        lastEndpoint = e;
+        lastConverted = e.toV2();
+      }
+      return lastConverted;
+    }
+
     List<Span> build() {
       int length = spans.size();
       if (length == 1) return Collections.singletonList(spans.get(0).build());
@@ -290,7 +306,13 @@ public final class V2SpanConverter {
     return left.serviceName.equals(right.serviceName);
   }
 
-  static Span.Builder newBuilder(zipkin.Span source) {
+  /** Same as converting the left side to v1 first, but without allocating. */
+  static boolean closeEnough(Endpoint left, zipkin.Endpoint right) {
+    String leftServiceName = left.serviceName();
+    return right.serviceName.equals(leftServiceName != null ? leftServiceName : "");
+  }
+
+  static Span.Builder newBuilder(V1Span source) {
     return Span.newBuilder()
       .traceId(source.traceIdString())
       .parentId(source.parentId != null ? Util.toLowerHex(source.parentId) : null)
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectorDeduplicatorTest {
+  static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+  CollectorDeduplicator deduplicator = new CollectorDeduplicator(CollectorDeduplicator.newBuilder()
+    .maxBytes(64 * 1024).windowMillis(TimeUnit.MINUTES.toMillis(3)).slices(4), 0L);
+
+  @Test public void remembersKeys() {
+    long key = CollectorDeduplicator.key(0L, 1L, 2L, 0);
+    assertThat(deduplicator.mightContain(key)).isFalse();
+
+    deduplicator.putAll(new long[] {key}, 1, 0L);
+
+    assertThat(deduplicator.mightContain(key)).isTrue();
+  }
+
+  /** A key whose high bits are zero would otherwise probe the same bit each time. */
+  @Test public void zeroStride_probesDistinctBits() {
+    long key = 5L, sameFirstBit = (2L << 32) | 5L;
+    deduplicator.putAll(new long[] {sameFirstBit}, 1, 0L);
+
+    assertThat(deduplicator.mightContain(key)).isFalse();
+  }
+
+  @Test public void putAll_onlyLength() {
+    long key = CollectorDeduplicator.key(0L, 1L, 2L, 0);
+
+    deduplicator.putAll(new long[] {key}, 0, 0L);
+
+    assertThat(deduplicator.mightContain(key)).isFalse();
+  }
+
+  @Test public void key_differsOnEachField() {
+    long key = CollectorDeduplicator.key(1L, 2L, 3L, 1);
+
+    assertThat(key)
+      .isNotEqualTo(CollectorDeduplicator.key(0L, 2L, 3L, 1))
+      .isNotEqualTo(CollectorDeduplicator.key(1L, 0L, 3L, 1))
+      .isNotEqualTo(CollectorDeduplicator.key(1L, 2L, 0L, 1))
+      .isNotEqualTo(CollectorDeduplicator.key(1L, 2L, 3L, 2));
+  }
+
+  /** Keys are remembered for at least the window, and forgotten a slice after that. */
+  @Test public void forgetsKeysAfterWindow() {
+    long key = CollectorDeduplicator.key(0L, 1L, 2L, 0);
+    deduplicator.putAll(new long[] {key}, 1, 0L);
+
+    for (int minute = 1; minute <= 3; minute++) { // each minute rotates a slice
+      deduplicator.putAll(new long[] {minute}, 1, minute * MINUTE);
+      assertThat(deduplicator.mightContain(key)).isTrue();
+    }
+
+    deduplicator.putAll(new long[] {4L}, 1, 4 * MINUTE);
+    assertThat(deduplicator.mightContain(key)).isFalse();
+  }
+
+  @Test public void rotatesWhenSliceIsFull() {
+    long[] keys = randomKeys(deduplicator.keysPerSlice() * 4 + 1, 1);
+    deduplicator.putAll(keys, keys.length, 0L);
+
+    assertThat(deduplicator.mightContain(keys[0])).isFalse();
+    assertThat(deduplicator.mightContain(keys[keys.length - 1])).isTrue();
+  }
+
+  @Test public void falsePositiveRateWhenFull() {
+    long[] keys = randomKeys(deduplicator.keysPerSlice() * 4, 1);
+    deduplicator.putAll(keys, keys.length, 0L);
+
+    int falsePositives = 0, tries = 100000;
+    for (long key : randomKeys(tries, 2)) {
+      if (deduplicator.mightContain(key)) falsePositives++;
+    }
+
+    // allow for variance, as the test rate is small
+    assertThat(falsePositives / (double) tries).isLessThan(deduplicator.falsePositiveRate * 3);
+  }
+
+  static long[] randomKeys(int count, long seed) {
+    Random random = new Random(seed);
+    long[] keys = new long[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = CollectorDeduplicator.key(0L, random.nextLong(), random.nextLong(), 0);
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectorQueueTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test public void maxBatchSpans_cantExceedMaxSpans() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("maxBatchSpans > maxSpans");
+
+    CollectorQueue.newBuilder().maxSpans(10).maxBatchSpans(11).build();
+  }
+
+  @Test public void maxBatchBytes_cantExceedMaxBytes() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("maxBatchBytes > maxBytes");
+
+    CollectorQueue.newBuilder().maxBytes(1024).maxBatchBytes(1025).build();
+  }
+
+  @Test public void maxBatchBytes_unboundedIsLimitedByMaxBytes() {
+    CollectorQueue queue = CollectorQueue.newBuilder()
+      .maxBytes(1024).maxBatchBytes(Integer.MAX_VALUE).build();
+
+    assertThat(queue.maxBatchBytes()).isEqualTo(1024);
+  }
+}
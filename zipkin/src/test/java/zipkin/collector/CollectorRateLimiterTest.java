@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin.collector.CollectorRateLimiter.Bucket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class CollectorRateLimiterTest {
+  static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test public void bucket_grantsUpToCapacity() {
+    Bucket bucket = new Bucket("frontend", 10, 1, 0L);
+
+    assertThat(bucket.acquire(4, 0L)).isEqualTo(4);
+    assertThat(bucket.acquire(10, 0L)).isEqualTo(6);
+    assertThat(bucket.acquire(1, 0L)).isZero();
+  }
+
+  @Test public void bucket_refillsOverTime() {
+    Bucket bucket = new Bucket("frontend", 10, 1, 0L);
+    bucket.acquire(10, 0L);
+
+    assertThat(bucket.acquire(10, SECOND / 2)).isEqualTo(5);
+    assertThat(bucket.acquire(10, 10 * SECOND)).isEqualTo(10); // doesn't exceed capacity
+  }
+
+  @Test public void bucket_burstSeconds() {
+    Bucket bucket = new Bucket("frontend", 10, 3, 0L);
+
+    assertThat(bucket.acquire(100, 0L)).isEqualTo(30);
+  }
+
+  @Test public void bucket_zeroRateGrantsNothing() {
+    Bucket bucket = new Bucket("frontend", 0, 1, 0L);
+
+    assertThat(bucket.acquire(1, 0L)).isZero();
+    assertThat(bucket.acquire(1, 10 * SECOND)).isZero();
+  }
+
+  /** System.nanoTime can be negative or wrap around */
+  @Test public void bucket_nanoTimeOverflow() {
+    long now = Long.MAX_VALUE - SECOND / 4;
+    Bucket bucket = new Bucket("frontend", 10, 1, now);
+    bucket.acquire(10, now);
+
+    assertThat(bucket.acquire(10, now + SECOND / 2)).isEqualTo(5);
+  }
+
+  @Test public void bucketKey() {
+    CollectorRateLimiter limiter = CollectorRateLimiter.newBuilder().build();
+
+    assertThat(limiter.bucketKey(null)).isEqualTo(CollectorRateLimiter.UNKNOWN_SERVICE);
+    assertThat(limiter.bucketKey("")).isEqualTo(CollectorRateLimiter.UNKNOWN_SERVICE);
+    assertThat(limiter.bucketKey("frontend")).isEqualTo("frontend");
+  }
+
+  @Test public void maxServices_othersShareABucket() {
+    CollectorRateLimiter limiter = CollectorRateLimiter.newBuilder()
+      .spansPerSecond(10)
+      .override("backend", 100)
+      .maxServices(1).build();
+
+    assertThat(limiter.bucketKey("frontend")).isEqualTo("frontend");
+    assertThat(limiter.bucketKey("db")).isEqualTo(CollectorRateLimiter.OTHER_SERVICES);
+    assertThat(limiter.bucketKey("cache")).isEqualTo(CollectorRateLimiter.OTHER_SERVICES);
+    assertThat(limiter.bucketKey("backend")).isEqualTo("backend"); // overrides always get one
+
+    assertThat(limiter.acquire("db", 100)).isEqualTo(10);
+    assertThat(limiter.acquire("other", 100)).isZero();
+  }
+
+  @Test public void overrides() {
+    CollectorRateLimiter limiter = CollectorRateLimiter.newBuilder()
+      .spansPerSecond(10)
+      .parseOverrides(" Frontend=100, batch=0").build();
+
+    assertThat(limiter.acquire("frontend", 1000)).isEqualTo(100);
+    assertThat(limiter.acquire("batch", 1)).isZero();
+    assertThat(limiter.acquire("backend", 1000)).isEqualTo(10);
+  }
+
+  @Test public void overrides_lowercaseIndependentOfDefaultLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr")); // where "I".toLowerCase() is a dotless i
+    try {
+      CollectorRateLimiter limiter = CollectorRateLimiter.newBuilder()
+        .override("INBOX", 100).build();
+
+      assertThat(limiter.overrides).containsOnlyKeys("inbox");
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  @Test public void parseOverrides_empty() {
+    CollectorRateLimiter limiter = CollectorRateLimiter.newBuilder().parseOverrides("").build();
+
+    assertThat(limiter.overrides).isEmpty();
+  }
+
+  @Test public void parseOverrides_malformed() {
+    try {
+      CollectorRateLimiter.newBuilder().parseOverrides("frontend=fast");
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("expected service=spansPerSecond: frontend=fast");
+    }
+  }
+}
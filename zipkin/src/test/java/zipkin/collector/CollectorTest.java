@@ -14,21 +14,34 @@
 package zipkin.collector;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import zipkin.Annotation;
+import zipkin.Codec;
+import zipkin.Constants;
 import zipkin.SpanDecoder;
 import zipkin.internal.ApplyTimestampAndDuration;
+import zipkin.storage.AsyncSpanConsumer;
+import zipkin.storage.Callback;
 import zipkin.internal.DetectingSpanDecoder;
 import zipkin.internal.Util;
 import zipkin.internal.V2SpanConverter;
 import zipkin.internal.V2StorageComponent;
+import zipkin2.Call;
 import zipkin2.Span;
 import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.StorageComponent;
 
 import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -37,9 +50,14 @@ import static org.mockito.Mockito.when;
 import static zipkin.TestObjects.LOTS_OF_SPANS;
 import static zipkin.storage.Callback.NOOP;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 public class CollectorTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   zipkin.storage.StorageComponent storage = mock(zipkin.storage.StorageComponent.class);
   Collector collector;
   zipkin.Span span1 = ApplyTimestampAndDuration.apply(LOTS_OF_SPANS[0]);
@@ -61,6 +79,24 @@ public class CollectorTest {
     collector.accept(new HashMap<String,String>(), asList(span1), NOOP);
   }
 
+  @Test public void unsampledSpansArentDecoded() {
+    CollectorMetrics metrics = mock(CollectorMetrics.class);
+    when(storage.asyncSpanConsumer()).thenThrow(new AssertionError());
+
+    collector = spy(Collector.builder(Collector.class)
+      .sampler(CollectorSampler.create(0.0f))
+      .metrics(metrics)
+      .storage(storage).build());
+
+    byte[] bytes = Codec.THRIFT.writeSpans(asList(span1));
+    collector.acceptSpans(new HashMap<String, String>(), bytes, Codec.THRIFT, NOOP);
+
+    verify(collector, never()).decodeList(any(SpanDecoder.class), any(byte[].class));
+    verify(collector, never()).isSampled(any(zipkin.Span.class));
+    verify(metrics).incrementSpans(1);
+    verify(metrics).incrementSpansDropped(1);
+  }
+
   @Test public void doesntCallDeprecatedSampleMethod() {
     CollectorSampler sampler = mock(CollectorSampler.class);
     when(sampler.isSampled(span1)).thenThrow(new AssertionError());
@@ -115,4 +151,236 @@ public class CollectorTest {
     verify(collector, never()).isSampled(any(zipkin.Span.class)); // skips v1 processing
     verify(span2Consumer).accept(eq(asList(span2_1))); // goes to v2 instead
   }
+
+  @Test public void routesProto3DirectlyToSpan2Collector() {
+    StorageComponent storage = mock(StorageComponent.class);
+    SpanConsumer span2Consumer = mock(SpanConsumer.class);
+    when(storage.spanConsumer()).thenReturn(span2Consumer);
+
+    collector = spy(Collector.builder(Collector.class)
+      .storage(V2StorageComponent.create(storage)).build());
+
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(asList(span2_1));
+    collector.acceptSpans(new HashMap<String, String>(), bytes, SpanDecoder.DETECTING_DECODER, NOOP);
+
+    verify(collector, never()).decodeList(any(SpanDecoder.class), any(byte[].class));
+    verify(span2Consumer).accept(eq(asList(span2_1)));
+  }
+
+  @Test public void routesThriftDirectlyToSpan2Collector() {
+    StorageComponent storage = mock(StorageComponent.class);
+    SpanConsumer span2Consumer = mock(SpanConsumer.class);
+    when(storage.spanConsumer()).thenReturn(span2Consumer);
+
+    collector = spy(Collector.builder(Collector.class)
+      .storage(V2StorageComponent.create(storage)).build());
+
+    byte[] bytes = Codec.THRIFT.writeSpans(asList(span1));
+    collector.acceptSpans(new HashMap<String, String>(), bytes, SpanDecoder.DETECTING_DECODER, NOOP);
+
+    verify(collector, never()).decodeList(any(SpanDecoder.class), any(byte[].class));
+    verify(span2Consumer).accept(eq(asList(span2_1)));
+  }
+
+  @Test public void rateLimitedSpansArentStored() {
+    ExtendedCollectorMetrics metrics = mock(ExtendedCollectorMetrics.class);
+    when(storage.asyncSpanConsumer()).thenThrow(new AssertionError());
+
+    collector = Collector.builder(Collector.class)
+      .rateLimiter(CollectorRateLimiter.newBuilder().spansPerSecond(0).build())
+      .metrics(metrics)
+      .storage(storage).build();
+
+    collector.accept(new HashMap<String, String>(), asList(span1), NOOP);
+
+    verify(metrics).incrementSpansDropped(1);
+    verify(metrics).incrementSpansRateLimited(span2_1.localServiceName(), 1);
+  }
+
+  @Test public void rateLimiterPassesDebugSpans() {
+    ExtendedCollectorMetrics metrics = mock(ExtendedCollectorMetrics.class);
+    AsyncSpanConsumer consumer = mock(AsyncSpanConsumer.class);
+    when(storage.asyncSpanConsumer()).thenReturn(consumer);
+    zipkin.Span debug = span1.toBuilder().debug(true).build();
+
+    collector = Collector.builder(Collector.class)
+      .rateLimiter(CollectorRateLimiter.newBuilder().spansPerSecond(0).build())
+      .metrics(metrics)
+      .storage(storage).build();
+
+    collector.accept(new HashMap<String, String>(), asList(debug), NOOP);
+
+    verify(consumer).accept(eq(asList(debug)), any(zipkin.storage.Callback.class));
+    verify(metrics, never()).incrementSpansRateLimited(anyString(), anyInt());
+  }
+
+  @Test public void rateLimitsSpan2Collector() {
+    ExtendedCollectorMetrics metrics = mock(ExtendedCollectorMetrics.class);
+    StorageComponent storage = mock(StorageComponent.class);
+    when(storage.spanConsumer()).thenThrow(new AssertionError());
+
+    collector = Collector.builder(Collector.class)
+      .rateLimiter(CollectorRateLimiter.newBuilder()
+        .override(span2_1.localServiceName(), 0).build())
+      .metrics(metrics)
+      .storage(V2StorageComponent.create(storage)).build();
+
+    byte[] bytes = SpanBytesEncoder.JSON_V2.encodeList(asList(span2_1));
+    collector.acceptSpans(new HashMap<String, String>(), bytes, SpanDecoder.DETECTING_DECODER, NOOP);
+
+    verify(metrics).incrementSpansRateLimited(span2_1.localServiceName(), 1);
+  }
+
+  @Test public void dropsDuplicateSpans() {
+    ExtendedCollectorMetrics metrics = mock(ExtendedCollectorMetrics.class);
+    StorageComponent storage = mock(StorageComponent.class);
+    SpanConsumer span2Consumer = mock(SpanConsumer.class);
+    when(storage.spanConsumer()).thenReturn(span2Consumer);
+    when(span2Consumer.accept(any(List.class))).thenReturn(Call.<Void>create(null));
+
+    collector = Collector.builder(Collector.class)
+      .deduplicator(CollectorDeduplicator.newBuilder().build())
+      .metrics(metrics)
+      .storage(V2StorageComponent.create(storage)).build();
+
+    byte[] bytes = SpanBytesEncoder.JSON_V2.encodeList(asList(span2_1));
+    collector.acceptSpans(new HashMap<String, String>(), bytes, SpanDecoder.DETECTING_DECODER, NOOP);
+    collector.acceptSpans(new HashMap<String, String>(), bytes, SpanDecoder.DETECTING_DECODER, NOOP);
+
+    verify(span2Consumer).accept(eq(asList(span2_1))); // only once
+    verify(metrics).incrementSpansDeduplicated(1);
+    verify(metrics).incrementSpansDropped(1);
+  }
+
+  @Test public void doesntDeduplicateSpansThatFailed() {
+    CollectorDeduplicator deduplicator = CollectorDeduplicator.newBuilder().build();
+    when(storage.asyncSpanConsumer()).thenThrow(new IllegalStateException("storage down"));
+
+    collector = Collector.builder(Collector.class)
+      .deduplicator(deduplicator)
+      .storage(storage).build();
+
+    collector.accept(new HashMap<String, String>(), asList(span1), NOOP);
+
+    assertThat(deduplicator.mightContain(collector.spanKey(span1))).isFalse();
+  }
+
+  @Test public void doesntDeduplicateSpansBufferedForTailSampling() throws IOException {
+    CollectorDeduplicator deduplicator = CollectorDeduplicator.newBuilder().build();
+    AsyncSpanConsumer consumer = mock(AsyncSpanConsumer.class);
+    when(storage.asyncSpanConsumer()).thenReturn(consumer);
+
+    collector = Collector.builder(Collector.class)
+      .tailSampler(CollectorTailSampler.newBuilder().build())
+      .deduplicator(deduplicator)
+      .storage(storage).build();
+
+    collector.accept(new HashMap<String, String>(), asList(span1), NOOP);
+
+    verify(consumer, never()).accept(any(List.class), any(Callback.class)); // trace is undecided
+    assertThat(deduplicator.mightContain(collector.spanKey(span1))).isFalse();
+    collector.close();
+  }
+
+  @Test public void doesntDeduplicateSpansThatWereSpooled() throws IOException {
+    CollectorDeduplicator deduplicator = CollectorDeduplicator.newBuilder().build();
+    AsyncSpanConsumer consumer = mock(AsyncSpanConsumer.class);
+    doAnswer(invocation -> {
+      ((Callback) invocation.getArguments()[1]).onError(new IllegalStateException("storage down"));
+      return null;
+    }).when(consumer).accept(any(List.class), any(Callback.class));
+    when(storage.asyncSpanConsumer()).thenReturn(consumer);
+
+    collector = Collector.builder(Collector.class)
+      .spool(CollectorSpool.newBuilder(folder.newFolder()).build())
+      .deduplicator(deduplicator)
+      .storage(storage).build();
+
+    collector.accept(new HashMap<String, String>(), asList(span1), NOOP);
+
+    assertThat(deduplicator.mightContain(collector.spanKey(span1))).isFalse();
+    collector.close();
+  }
+
+  @Test public void spanKey_v1HalvesOfSharedSpanDiffer() {
+    zipkin.Span client = span1.toBuilder().annotations(asList(
+      Annotation.create(1L, Constants.CLIENT_SEND, null))).build();
+    zipkin.Span server = span1.toBuilder().annotations(asList(
+      Annotation.create(1L, Constants.SERVER_RECV, null))).build();
+
+    assertThat(collector.spanKey(client)).isNotEqualTo(collector.spanKey(server));
+  }
+
+  @Test public void acceptMessages_storesAllMessagesTogether() {
+    CollectorMetrics metrics = mock(CollectorMetrics.class);
+    AsyncSpanConsumer consumer = mock(AsyncSpanConsumer.class);
+    when(storage.asyncSpanConsumer()).thenReturn(consumer);
+    collector = Collector.builder(Collector.class).metrics(metrics).storage(storage).build();
+
+    collector.acceptMessages(asList(
+      Codec.THRIFT.writeSpans(asList(span1)),
+      "foo".getBytes(Util.UTF_8),
+      Codec.JSON.writeSpans(asList(span1)),
+      Codec.THRIFT.writeSpan(span1) // legacy single span
+    ), SpanDecoder.DETECTING_DECODER, Runnable::run, NOOP);
+
+    verify(consumer).accept(eq(asList(span1, span1, span1)), any(Callback.class));
+    verify(metrics).incrementMessagesDropped();
+  }
+
+  @Test public void acceptMessages_completesWhenStored() {
+    AsyncSpanConsumer consumer = mock(AsyncSpanConsumer.class);
+    when(storage.asyncSpanConsumer()).thenReturn(consumer);
+    collector = Collector.builder(Collector.class).storage(storage).build();
+
+    Callback<Void> callback = mock(Callback.class);
+    collector.acceptMessages(asList(Codec.THRIFT.writeSpans(asList(span1))),
+      SpanDecoder.DETECTING_DECODER, Runnable::run, callback);
+
+    ArgumentCaptor<Callback> stored = ArgumentCaptor.forClass(Callback.class);
+    verify(consumer).accept(eq(asList(span1)), stored.capture());
+    verify(callback, never()).onSuccess(null);
+
+    stored.getValue().onSuccess(null);
+    verify(callback).onSuccess(null);
+  }
+
+  @Test public void acceptMessages_routesToSpan2Collector() {
+    StorageComponent storage = mock(StorageComponent.class);
+    SpanConsumer span2Consumer = mock(SpanConsumer.class);
+    when(storage.spanConsumer()).thenReturn(span2Consumer);
+    when(span2Consumer.accept(any(List.class))).thenReturn(Call.<Void>create(null));
+    collector = Collector.builder(Collector.class)
+      .storage(V2StorageComponent.create(storage)).build();
+
+    Callback<Void> callback = mock(Callback.class);
+    collector.acceptMessages(asList(
+      SpanBytesEncoder.JSON_V2.encodeList(asList(span2_1)),
+      Codec.THRIFT.writeSpans(asList(span1))
+    ), SpanDecoder.DETECTING_DECODER, Runnable::run, callback);
+
+    verify(span2Consumer).accept(eq(asList(span2_1, span2_1)));
+    verify(callback).onSuccess(null);
+  }
+
+  @Test public void acceptMessages_decodesOnCallerWhenRejected() {
+    AsyncSpanConsumer consumer = mock(AsyncSpanConsumer.class);
+    when(storage.asyncSpanConsumer()).thenReturn(consumer);
+    collector = Collector.builder(Collector.class).storage(storage).build();
+
+    collector.acceptMessages(asList(Codec.THRIFT.writeSpans(asList(span1))),
+      SpanDecoder.DETECTING_DECODER, command -> {
+        throw new RejectedExecutionException("shutdown");
+      }, NOOP);
+
+    verify(consumer).accept(eq(asList(span1)), any(Callback.class));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void acceptMessages_doesntHideExecutorBugs() {
+    collector.acceptMessages(asList(Codec.THRIFT.writeSpans(asList(span1))),
+      SpanDecoder.DETECTING_DECODER, command -> {
+        throw new IllegalStateException("bug");
+      }, NOOP);
+  }
 }
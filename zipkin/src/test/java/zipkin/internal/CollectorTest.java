@@ -13,12 +13,24 @@
  */
 package zipkin.internal;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import zipkin.Codec;
 import zipkin.Span;
 import zipkin.SpanDecoder;
+import zipkin.collector.CollectorDeduplicator;
+import zipkin.collector.CollectorMetrics;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.collector.ExtendedCollectorMetrics;
+import zipkin.collector.InMemoryCollectorMetrics;
 import zipkin.storage.Callback;
 
 import static java.util.Arrays.asList;
@@ -30,11 +42,15 @@ import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static zipkin.TestObjects.LOTS_OF_SPANS;
 import static zipkin.storage.Callback.NOOP;
 
 public class CollectorTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   Collector collector;
   Span span1 = ApplyTimestampAndDuration.apply(LOTS_OF_SPANS[0]);
   Span span2 = ApplyTimestampAndDuration.apply(LOTS_OF_SPANS[1]);
@@ -54,10 +70,19 @@ public class CollectorTest {
         throw new UnsupportedOperationException();
       }
 
+      @Override
+      protected List<Span> decorateSpans(Map<String, String> requestInfo, List<Span> spans) {
+        return spans;
+      }
+
       @Override protected String idString(Span span) {
         return "1";
       }
 
+      @Override protected int sizeInBytes(Span span) {
+        throw new UnsupportedOperationException();
+      }
+
       @Override void warn(String message, Throwable e) {
       }
     });
@@ -139,7 +164,7 @@ public class CollectorTest {
   @Test public void sampledSpansAreStored() {
     doReturn(true).when(collector).isSampled(span1);
 
-    collector.accept(asList(span1), NOOP);
+    collector.accept(null, asList(span1), NOOP);
 
     verify(collector).record(eq(asList(span1)), any(Callback.class));
   }
@@ -148,6 +173,99 @@ public class CollectorTest {
     doThrow(new AssertionError()).when(collector).record(any(List.class), any(Callback.class));
     doReturn(false).when(collector).isSampled(span1);
 
-    collector.accept(asList(span1), NOOP);
+    collector.accept(null, asList(span1), NOOP);
+  }
+
+  @Test
+  public void extendedMetrics_adaptsMetricsWithoutOptionalFeatures() {
+    CollectorMetrics metrics = mock(CollectorMetrics.class);
+    ExtendedCollectorMetrics extended = ExtendedMetricsAdapter.extend(metrics);
+
+    extended.incrementSpansRateLimited("web", 2); // not supported, so ignored
+    extended.incrementSpansDropped(2);
+
+    verify(metrics).incrementSpansDropped(2);
+    verifyNoMoreInteractions(metrics);
+  }
+
+  @Test
+  public void extendedMetrics_usesExtendedMetricsAsIs() {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+
+    assertThat(ExtendedMetricsAdapter.extend(metrics)).isSameAs(metrics);
+  }
+
+  @Test
+  public void tailSampler_failsFastWhenTraceIdIsntOverridden() {
+    thrown.expect(UnsupportedOperationException.class);
+    thrown.expectMessage("PlainCollector can't tail sample");
+
+    new PlainCollector(CollectorTailSampler.newBuilder().build(), null, null);
+  }
+
+  @Test
+  public void tailSampler_acceptsCollectorThatOverridesTraceId() throws IOException {
+    new PlainCollector(CollectorTailSampler.newBuilder().build(), null, null) {
+      @Override protected String traceId(Span span) {
+        return span.idString();
+      }
+    }.close();
+  }
+
+  @Test
+  public void deduplicator_failsFastWhenSpanKeyIsntOverridden() {
+    thrown.expect(UnsupportedOperationException.class);
+    thrown.expectMessage("PlainCollector can't deduplicate");
+
+    new PlainCollector(null, CollectorDeduplicator.newBuilder().build(), null);
+  }
+
+  @Test
+  public void spool_failsFastWhenCodecIsntOverridden() throws IOException {
+    thrown.expect(UnsupportedOperationException.class);
+    thrown.expectMessage("PlainCollector can't spool");
+
+    new PlainCollector(null, null, CollectorSpool.newBuilder(folder.newFolder()).build());
+  }
+
+  @Test
+  public void spool_failsFastWhenOnlyEncodingIsOverridden() throws IOException {
+    thrown.expect(UnsupportedOperationException.class);
+    thrown.expectMessage("can't spool");
+
+    new PlainCollector(null, null, CollectorSpool.newBuilder(folder.newFolder()).build()) {
+      @Override protected byte[] encodeSpooled(List<Span> spans) {
+        return Codec.THRIFT.writeSpans(spans);
+      }
+    };
+  }
+
+  /** Implements only the abstract methods, so lacks what optional features need. */
+  static class PlainCollector extends Collector<SpanDecoder, Span> {
+    PlainCollector(CollectorTailSampler tailSampler, CollectorDeduplicator deduplicator,
+      CollectorSpool spool) {
+      super(mock(Logger.class), null, null, null, tailSampler, deduplicator, spool);
+    }
+
+    @Override protected List<Span> decodeList(SpanDecoder decoder, byte[] serialized) {
+      return decoder.readSpans(serialized);
+    }
+
+    @Override protected boolean isSampled(Span span) {
+      return true;
+    }
+
+    @Override protected void record(List<Span> spans, Callback<Void> callback) {
+      callback.onSuccess(null);
+    }
+
+    @Override
+    protected List<Span> decorateSpans(Map<String, String> requestInfo, List<Span> spans) {
+      return spans;
+    }
+
+    @Override protected String idString(Span span) {
+      return span.idString();
+    }
   }
 }
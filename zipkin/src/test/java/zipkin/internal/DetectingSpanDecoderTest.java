@@ -67,6 +67,19 @@ public class DetectingSpanDecoderTest {
     decoder.readSpans(Codec.THRIFT.writeSpan(span1));
   }
 
+  @Test public void readSpans_proto3() {
+    assertThat(decoder.readSpans(SpanBytesEncoder.PROTO3.encodeList(asList(span2_1, span2_2))))
+      .containsExactly(span1, span2);
+  }
+
+  /** A thrift span starts with the same byte as a proto3 list */
+  @Test public void detectFormat_proto3_notThriftSpan() {
+    assertThat(DetectingSpanDecoder.detectFormat(SpanBytesEncoder.PROTO3.encode(span2_1)))
+      .isInstanceOf(Proto3SpanDecoder.class);
+    assertThat(DetectingSpanDecoder.detectFormat(Codec.THRIFT.writeSpan(span1)))
+      .isSameAs(SpanDecoder.THRIFT_DECODER);
+  }
+
   /** Single-element reads were for legacy non-list encoding. Don't add new code that does this */
   @Test(expected = UnsupportedOperationException.class) public void readSpan_json2() {
     decoder.readSpan(SpanBytesEncoder.JSON_V2.encode(span2_1));
@@ -61,6 +61,43 @@ public class ITV2InMemoryStorage {
     }
   }
 
+  public static class MaxBytesSpanStoreTest extends zipkin.storage.SpanStoreTest {
+    final InMemoryStorage storage = InMemoryStorage.newBuilder().maxBytes(64 * 1024 * 1024).build();
+
+    @Override protected StorageComponent storage() {
+      return V2StorageComponent.create(storage);
+    }
+
+    @Override public void clear() throws IOException {
+      storage.clear();
+    }
+  }
+
+  public static class MaxBytesDependenciesTest extends zipkin.storage.DependenciesTest {
+    final InMemoryStorage storage = InMemoryStorage.newBuilder().maxBytes(64 * 1024 * 1024).build();
+
+    @Override protected StorageComponent storage() {
+      return V2StorageComponent.create(storage);
+    }
+
+    @Override public void clear() {
+      storage.clear();
+    }
+  }
+
+  public static class OffHeapSpanStoreTest extends zipkin.storage.SpanStoreTest {
+    final InMemoryStorage storage =
+      InMemoryStorage.newBuilder().maxBytes(64 * 1024 * 1024).offHeap(true).build();
+
+    @Override protected StorageComponent storage() {
+      return V2StorageComponent.create(storage);
+    }
+
+    @Override public void clear() throws IOException {
+      storage.clear();
+    }
+  }
+
   public static class StrictTraceIdFalseTest extends zipkin.storage.StrictTraceIdFalseTest {
     final InMemoryStorage storage = InMemoryStorage.newBuilder().strictTraceId(false).build();
 
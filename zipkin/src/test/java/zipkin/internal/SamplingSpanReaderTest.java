@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin.Codec;
+import zipkin.collector.CollectorSampler;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.LOTS_OF_SPANS;
+
+public class SamplingSpanReaderTest {
+  CollectorSampler sampler = CollectorSampler.create(0.5f);
+  List<zipkin.Span> spans = asList(LOTS_OF_SPANS).subList(0, 100);
+  List<zipkin.Span> expected = new ArrayList<>();
+  List<zipkin.Span> out = new ArrayList<>();
+
+  {
+    for (zipkin.Span span : spans) {
+      if (sampler.isSampled(span.traceId, span.debug)) expected.add(span);
+    }
+  }
+
+  @Test public void thrift() {
+    assertThat(SamplingSpanReader.THRIFT.readSampled(Codec.THRIFT.writeSpans(spans), sampler, out))
+      .isEqualTo(100);
+    assertThat(out).isEqualTo(expected);
+  }
+
+  @Test public void json() {
+    assertThat(SamplingSpanReader.JSON_V1.readSampled(Codec.JSON.writeSpans(spans), sampler, out))
+      .isEqualTo(100);
+    assertThat(out).isEqualTo(expected);
+  }
+
+  @Test public void json2() {
+    List<Span> span2s = new ArrayList<>(), expected2 = new ArrayList<>(), out2 = new ArrayList<>();
+    for (zipkin.Span span : spans) span2s.addAll(V2SpanConverter.fromSpan(span));
+    for (zipkin.Span span : expected) expected2.addAll(V2SpanConverter.fromSpan(span));
+
+    assertThat(SamplingSpanReader.JSON_V2.readSampled(
+      SpanBytesEncoder.JSON_V2.encodeList(span2s), sampler, out2)
+    ).isEqualTo(span2s.size());
+    assertThat(out2).isEqualTo(expected2);
+  }
+
+  @Test public void json2_asV1() {
+    List<Span> span2s = new ArrayList<>();
+    for (zipkin.Span span : spans) span2s.addAll(V2SpanConverter.fromSpan(span));
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(span2s);
+
+    assertThat(SamplingSpanReader.JSON_V2_AS_V1.readSampled(message, sampler, out))
+      .isEqualTo(span2s.size());
+    List<zipkin.Span> expected = new ArrayList<>();
+    for (zipkin.Span span : new V2JsonSpanDecoder().readSpans(message)) {
+      if (sampler.isSampled(span.traceId, span.debug)) expected.add(span);
+    }
+    assertThat(out).isEqualTo(expected);
+  }
+
+  @Test public void json2_usesLower64BitsOfTraceId() {
+    Span span = Span.newBuilder().traceId("463ac35c9f6413ad48485a3953bb6124").id("a").build();
+    CollectorSampler sampler = new CollectorSampler() {
+      @Override protected long boundary() {
+        return 0L;
+      }
+
+      @Override public boolean isSampled(long traceId, Boolean debug) {
+        return traceId == 0x48485a3953bb6124L;
+      }
+    };
+    List<Span> out2 = new ArrayList<>();
+
+    SamplingSpanReader.JSON_V2.readSampled(
+      SpanBytesEncoder.JSON_V2.encodeList(asList(span)), sampler, out2);
+    assertThat(out2).containsExactly(span);
+  }
+
+  @Test public void ignoresNestedTraceIdFields() {
+    Span span = Span.newBuilder().traceId("a").id("a").putTag("traceId", "b").build();
+    CollectorSampler onlyA = new CollectorSampler() {
+      @Override protected long boundary() {
+        return 0L;
+      }
+
+      @Override public boolean isSampled(long traceId, Boolean debug) {
+        return traceId == 0xaL;
+      }
+    };
+    List<Span> out2 = new ArrayList<>();
+
+    SamplingSpanReader.JSON_V2.readSampled(
+      SpanBytesEncoder.JSON_V2.encodeList(asList(span)), onlyA, out2);
+    assertThat(out2).containsExactly(span);
+  }
+
+  @Test public void debugAlwaysSampled() {
+    zipkin.Span debug = spans.get(0).toBuilder().debug(true).build();
+    CollectorSampler never = CollectorSampler.create(0.0f);
+
+    SamplingSpanReader.THRIFT.readSampled(Codec.THRIFT.writeSpans(asList(debug)), never, out);
+    SamplingSpanReader.JSON_V1.readSampled(Codec.JSON.writeSpans(asList(debug)), never, out);
+    assertThat(out).containsExactly(debug, debug);
+  }
+
+  @Test public void emptyList() {
+    assertThat(SamplingSpanReader.JSON_V1.readSampled("[]".getBytes(Util.UTF_8), sampler, out))
+      .isZero();
+    assertThat(SamplingSpanReader.THRIFT.readSampled(Codec.THRIFT.writeSpans(asList()), sampler,
+      out)).isZero();
+  }
+
+  /** Callers decode the whole message when the scanner can't, which reports the real error. */
+  @Test public void unscannable() {
+    byte[] notList = Codec.JSON.writeSpan(spans.get(0));
+    assertThat(SamplingSpanReader.JSON_V1.readSampled(notList, sampler, out)).isEqualTo(-1);
+    assertThat(SamplingSpanReader.JSON_V1.readSampled("[{".getBytes(Util.UTF_8), sampler, out))
+      .isEqualTo(-1);
+    assertThat(SamplingSpanReader.THRIFT.readSampled(Codec.THRIFT.writeSpan(spans.get(0)), sampler,
+      out)).isEqualTo(-1);
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import zipkin.BinaryAnnotation;
+import zipkin.TestObjects;
+import zipkin.collector.SpanDecorator;
+import zipkin.collector.TagSpanDecorator;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SpanDecoratorsTest {
+  List<Span> spans = asList(
+    Span.newBuilder().traceId("a").id("a").name("get").build(),
+    Span.newBuilder().traceId("a").parentId("a").id("b").name("get").putTag("b", "2").build()
+  );
+
+  @Test public void fusesTagDecorators() {
+    SpanDecorators<Span> decorators = SpanDecorators.create(asList(tag("a", "1"), tag("b", "2")));
+
+    assertThat(decorators.stages).hasSize(1);
+    for (Span span : decorators.decorate(Collections.<String, String>emptyMap(), spans)) {
+      assertThat(span.tags()).containsOnly(entry("a", "1"), entry("b", "2"));
+    }
+  }
+
+  @Test public void retainsOrderOfOtherDecorators() {
+    final List<Map<String, String>> seen = new ArrayList<>();
+    SpanDecorator<Span> other = new SpanDecorator<Span>() {
+      @Override public List<Span> decorate(Map<String, String> requestInfo, List<Span> spans) {
+        for (Span span : spans) seen.add(span.tags());
+        return spans;
+      }
+
+      @Override public boolean isV1SpanSupported() {
+        return false;
+      }
+
+      @Override public boolean isV2SpanSupported() {
+        return true;
+      }
+    };
+    SpanDecorators<Span> decorators =
+      SpanDecorators.create(asList(tag("a", "1"), other, tag("c", "3")));
+
+    assertThat(decorators.stages).hasSize(3);
+    assertThat(decorators.decorate(null, spans).get(0).tags())
+      .containsOnly(entry("a", "1"), entry("c", "3"));
+    assertThat(seen.get(0)).containsOnly(entry("a", "1"));
+  }
+
+  @Test public void returnsInputWhenNothingChanged() {
+    List<Span> input = spans.subList(1, 2); // already has the tag
+    assertThat(SpanDecorators.tag(asList(tag("b", "2")), null, input))
+      .isSameAs(input);
+    assertThat(SpanDecorators.tag(asList(tag("b", "3")), null, input))
+      .isNotSameAs(input);
+    assertThat(input.get(0).tags()).containsOnly(entry("b", "2"));
+  }
+
+  @Test public void tagsEachEndpointOfV1Span() {
+    zipkin.Span shared = TestObjects.TRACE.get(1);
+
+    zipkin.Span tagged = v1Tag("a", "1").decorate(null, asList(shared)).get(0);
+    assertThat(tagged.binaryAnnotations).containsAll(asList(
+      BinaryAnnotation.create("a", "1", TestObjects.WEB_ENDPOINT),
+      BinaryAnnotation.create("a", "1", TestObjects.APP_ENDPOINT)
+    ));
+  }
+
+  @Test public void replacesExistingTagOfV1Span() {
+    BinaryAnnotation path = BinaryAnnotation.create("http.path", "/api", TestObjects.WEB_ENDPOINT);
+    zipkin.Span span = TestObjects.TRACE.get(0).toBuilder().addBinaryAnnotation(path).build();
+
+    zipkin.Span tagged = v1Tag("http.path", "/foo").decorate(null, asList(span)).get(0);
+    assertThat(tagged.binaryAnnotations)
+      .doesNotContain(path)
+      .containsOnlyOnce(BinaryAnnotation.create("http.path", "/foo", TestObjects.WEB_ENDPOINT));
+  }
+
+  @Test public void returnsInputWhenNothingChanged_v1() {
+    BinaryAnnotation path = BinaryAnnotation.create("http.path", "/api", TestObjects.WEB_ENDPOINT);
+    List<zipkin.Span> input =
+      asList(TestObjects.TRACE.get(0).toBuilder().addBinaryAnnotation(path).build());
+
+    assertThat(v1Tag("http.path", "/api").decorate(null, input))
+      .isSameAs(input);
+  }
+
+  static TagSpanDecorator<zipkin.Span> v1Tag(final String key, final String value) {
+    return new TagSpanDecorator<zipkin.Span>() {
+      @Override public void addTags(Map<String, String> requestInfo, zipkin.Span span,
+        Map<String, String> overlay) {
+        overlay.put(key, value);
+      }
+
+      @Override public boolean isV1SpanSupported() {
+        return true;
+      }
+
+      @Override public boolean isV2SpanSupported() {
+        return false;
+      }
+    };
+  }
+
+  static TagSpanDecorator<Span> tag(final String key, final String value) {
+    return new TagSpanDecorator<Span>() {
+      @Override public void addTags(Map<String, String> requestInfo, Span span,
+        Map<String, String> overlay) {
+        overlay.put(key, value);
+      }
+
+      @Override public boolean isV1SpanSupported() {
+        return false;
+      }
+
+      @Override public boolean isV2SpanSupported() {
+        return true;
+      }
+    };
+  }
+}
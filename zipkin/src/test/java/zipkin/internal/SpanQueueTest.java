@@ -0,0 +1,293 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import zipkin.Span;
+import zipkin.SpanDecoder;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorQueue.Overflow;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.storage.Callback;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.LOTS_OF_SPANS;
+
+public class SpanQueueTest {
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  List<List<Span>> recorded = new ArrayList<>();
+  List<Callback<Void>> storageCallbacks = new ArrayList<>();
+  Span span1 = LOTS_OF_SPANS[0], span2 = LOTS_OF_SPANS[1], span3 = LOTS_OF_SPANS[2];
+
+  @Test public void callbackCompletesWhenStorageDoes() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder().build());
+    CallbackCaptor<Void> captor = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), captor);
+    assertThat(metrics.queuedSpans()).isEqualTo(1);
+
+    storageCallbacks.get(0).onSuccess(null);
+    captor.get(); // doesn't block
+    assertThat(metrics.queuedSpans()).isZero();
+  }
+
+  @Test public void storageErrorPropagatesToCallback() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder().build());
+    CallbackCaptor<Void> captor = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), captor);
+    storageCallbacks.get(0).onError(new IllegalStateException("storage down"));
+
+    try {
+      captor.get();
+      throw new AssertionError("expected an exception");
+    } catch (RuntimeException e) {
+      assertThat(e).hasMessageStartingWith("Cannot store spans");
+    }
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+    assertThat(metrics.queuedSpans()).isZero();
+  }
+
+  @Test public void limitsConcurrency() {
+    Collector<SpanDecoder, Span> collector =
+      collector(CollectorQueue.newBuilder().maxConcurrency(1).build());
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+    assertThat(recorded).containsExactly(asList(span1));
+
+    storageCallbacks.get(0).onSuccess(null);
+    assertThat(recorded).containsExactly(asList(span1), asList(span2));
+  }
+
+  @Test public void dropNewest() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxSpans(2).overflow(Overflow.DROP_NEWEST).build());
+    CallbackCaptor<Void> dropped = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+    collector.accept(null, asList(span3), dropped);
+
+    dropped.get(); // success, even though it was dropped
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+
+    storageCallbacks.get(0).onSuccess(null);
+    assertThat(recorded).containsExactly(asList(span1), asList(span2));
+  }
+
+  @Test public void dropOldest() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxSpans(2).overflow(Overflow.DROP_OLDEST).build());
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+    collector.accept(null, asList(span3), Callback.NOOP);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+
+    storageCallbacks.get(0).onSuccess(null);
+    assertThat(recorded).containsExactly(asList(span1), asList(span3));
+  }
+
+  @Test public void reject() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxSpans(1).overflow(Overflow.REJECT).build());
+    CallbackCaptor<Void> rejected = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), rejected);
+
+    try {
+      rejected.get();
+      throw new AssertionError("expected an exception");
+    } catch (RejectedExecutionException e) {
+      assertThat(e).hasMessage("Collector queue is full");
+    }
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+  }
+
+  @Test public void boundedByBytes() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxBytes(1).overflow(Overflow.REJECT).build());
+
+    collector.accept(null, asList(span1, span2), Callback.NOOP); // empty queue admits oversized
+    assertThat(metrics.queuedBytes()).isEqualTo(2);
+
+    collector.accept(null, asList(span3), Callback.NOOP);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+  }
+
+  @Test public void block() throws Exception {
+    final Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxSpans(1).build());
+    final CountDownLatch accepted = new CountDownLatch(1);
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    Thread blocked = new Thread(() -> {
+      collector.accept(null, asList(span2), Callback.NOOP);
+      accepted.countDown();
+    });
+    blocked.start();
+    assertThat(accepted.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    storageCallbacks.get(0).onSuccess(null);
+    assertThat(accepted.await(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test public void mergesMessagesQueuedWhileStorageIsBusy() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxBatchSpans(10).build());
+    CallbackCaptor<Void> captor2 = new CallbackCaptor<>(), captor3 = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), captor2);
+    collector.accept(null, asList(span3), captor3);
+
+    storageCallbacks.get(0).onSuccess(null);
+    assertThat(recorded).containsExactly(asList(span1), asList(span2, span3));
+
+    storageCallbacks.get(1).onSuccess(null);
+    captor2.get(); // doesn't block
+    captor3.get();
+  }
+
+  @Test public void batchBoundedBySpans() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxBatchSpans(2).build());
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+    collector.accept(null, asList(span3), Callback.NOOP);
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+
+    storageCallbacks.get(0).onSuccess(null);
+    storageCallbacks.get(1).onSuccess(null);
+    assertThat(recorded)
+      .containsExactly(asList(span1), asList(span2, span3), asList(span1, span2));
+  }
+
+  @Test public void batchBoundedByBytes() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxBatchSpans(10).maxBatchBytes(2).build());
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+    collector.accept(null, asList(span3), Callback.NOOP);
+    collector.accept(null, asList(span1), Callback.NOOP);
+
+    storageCallbacks.get(0).onSuccess(null);
+    storageCallbacks.get(1).onSuccess(null);
+    assertThat(recorded)
+      .containsExactly(asList(span1), asList(span2, span3), asList(span1));
+  }
+
+  @Test public void batchErrorFailsEachCallback() {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxBatchSpans(10).build());
+    CallbackCaptor<Void> captor2 = new CallbackCaptor<>(), captor3 = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), captor2);
+    collector.accept(null, asList(span3), captor3);
+    storageCallbacks.get(0).onSuccess(null);
+    storageCallbacks.get(1).onError(new IllegalStateException("storage down"));
+
+    for (CallbackCaptor<Void> captor : asList(captor2, captor3)) {
+      try {
+        captor.get();
+        throw new AssertionError("expected an exception");
+      } catch (RuntimeException e) {
+        assertThat(e).hasMessageStartingWith("Cannot store spans");
+      }
+    }
+    assertThat(metrics.spansDropped()).isEqualTo(2);
+  }
+
+  @Test public void lingersUntilBatchIsFull() throws Exception {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxBatchSpans(2).maxLingerMillis(TimeUnit.MINUTES.toMillis(1)).build());
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    assertThat(recorded).isEmpty();
+
+    collector.accept(null, asList(span2), Callback.NOOP);
+    assertThat(recorded).containsExactly(asList(span1, span2));
+  }
+
+  @Test public void sendsPartialBatchAfterLinger() throws Exception {
+    Collector<SpanDecoder, Span> collector = collector(CollectorQueue.newBuilder()
+      .maxBatchSpans(10).maxLingerMillis(10).build());
+    CallbackCaptor<Void> captor = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), captor);
+
+    for (int i = 0; i < 100 && recorded().isEmpty(); i++) Thread.sleep(10);
+    assertThat(recorded()).containsExactly(asList(span1, span2));
+    storageCallbacks().get(0).onSuccess(null);
+    captor.get();
+  }
+
+  synchronized List<List<Span>> recorded() {
+    return new ArrayList<>(recorded);
+  }
+
+  synchronized List<Callback<Void>> storageCallbacks() {
+    return new ArrayList<>(storageCallbacks);
+  }
+
+  Collector<SpanDecoder, Span> collector(CollectorQueue queue) {
+    return new Collector<SpanDecoder, Span>(Logger.getAnonymousLogger(), metrics, queue) {
+      @Override protected List<Span> decodeList(SpanDecoder decoder, byte[] serialized) {
+        return decoder.readSpans(serialized);
+      }
+
+      @Override protected boolean isSampled(Span span) {
+        return true;
+      }
+
+      @Override protected void record(List<Span> spans, Callback<Void> callback) {
+        synchronized (SpanQueueTest.this) {
+          recorded.add(spans);
+          storageCallbacks.add(callback);
+        }
+      }
+
+      @Override
+      protected List<Span> decorateSpans(Map<String, String> requestInfo, List<Span> spans) {
+        return spans;
+      }
+
+      @Override protected String idString(Span span) {
+        return span.idString();
+      }
+
+      @Override protected int sizeInBytes(Span span) {
+        return 1;
+      }
+
+      @Override void warn(String message, Throwable e) {
+      }
+    };
+  }
+}
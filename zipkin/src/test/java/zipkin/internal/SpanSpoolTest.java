@@ -0,0 +1,269 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin.Codec;
+import zipkin.Component.CheckResult;
+import zipkin.Span;
+import zipkin.SpanDecoder;
+import zipkin.collector.CollectorQueue;
+import zipkin.collector.CollectorQueue.Overflow;
+import zipkin.collector.CollectorSpool;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.storage.Callback;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static zipkin.TestObjects.LOTS_OF_SPANS;
+
+public class SpanSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  List<List<Span>> recorded = new CopyOnWriteArrayList<>();
+  List<Callback<Void>> heldCallbacks = new ArrayList<>();
+  volatile boolean storageUp, holdStorage;
+  List<Collector<SpanDecoder, Span>> collectors = new ArrayList<>();
+  Span span1 = LOTS_OF_SPANS[0], span2 = LOTS_OF_SPANS[1], span3 = LOTS_OF_SPANS[2];
+
+  @After public void close() throws Exception {
+    for (Collector<SpanDecoder, Span> collector : collectors) collector.close();
+  }
+
+  @Test public void spoolsWhileStorageFails_thenReplaysInOrder() {
+    Collector<SpanDecoder, Span> collector = collector(spool().build(), null);
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    assertThat(recorded).isEmpty(); // the attempt failed
+    collector.accept(null, asList(span2), Callback.NOOP); // goes straight to the spool
+    assertThat(metrics.spooledBytes()).isPositive();
+    assertThat(metrics.spoolSegments()).isEqualTo(1);
+
+    storageUp = true;
+    await(() -> recorded.size() == 2);
+    assertThat(recorded).containsExactly(asList(span1), asList(span2));
+    await(() -> metrics.spooledBytes() == 0);
+    assertThat(metrics.spoolReplayLag()).isZero();
+    assertThat(metrics.spansDropped()).isZero();
+  }
+
+  @Test public void newSpansAreStoredDirectlyOnceStorageRecovers() {
+    Collector<SpanDecoder, Span> collector = collector(spool().build(), null);
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    storageUp = true;
+    await(() -> recorded.size() == 1);
+
+    collector.accept(null, asList(span2), Callback.NOOP);
+    assertThat(recorded).containsExactly(asList(span1), asList(span2));
+  }
+
+  @Test public void queueOverflowIsSpooled() {
+    storageUp = true;
+    holdStorage = true;
+    Collector<SpanDecoder, Span> collector = collector(spool().build(), CollectorQueue.newBuilder()
+      .maxConcurrency(1).maxSpans(1).overflow(Overflow.DROP_NEWEST).build());
+    CallbackCaptor<Void> overflowed = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), overflowed);
+    overflowed.get(); // success, as the spool has the spans
+
+    await(() -> recorded.size() == 2); // replayed without waiting for the queue
+    assertThat(recorded).containsExactly(asList(span1), asList(span2));
+    assertThat(metrics.spansDropped()).isZero();
+    synchronized (this) {
+      for (Callback<Void> callback : heldCallbacks) callback.onSuccess(null);
+    }
+  }
+
+  @Test public void queuedBatchThatFailsIsSpooled() {
+    Collector<SpanDecoder, Span> collector =
+      collector(spool().build(), CollectorQueue.newBuilder().build());
+    CallbackCaptor<Void> captor = new CallbackCaptor<>();
+
+    collector.accept(null, asList(span1), captor);
+    captor.get(); // success, as the spool has the spans
+
+    storageUp = true;
+    await(() -> recorded.size() == 1);
+    assertThat(recorded).containsExactly(asList(span1));
+    assertThat(metrics.spansDropped()).isZero();
+  }
+
+  @Test public void replaysRemainingSpansAfterRestart() throws Exception {
+    CollectorSpool settings = spool().build();
+    Collector<SpanDecoder, Span> collector = collector(settings, null);
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    storageUp = true;
+    await(() -> recorded.size() == 1);
+    storageUp = false;
+    collector.accept(null, asList(span2), Callback.NOOP);
+    collector.accept(null, asList(span3), Callback.NOOP);
+    collector.close();
+    collectors.remove(collector);
+
+    recorded.clear();
+    collector = collector(settings, null, false);
+    assertThat(metrics.spooledBytes()).isPositive();
+    storageUp = true;
+    Thread.sleep(50);
+    assertThat(recorded).isEmpty(); // replay waits for the collector to be constructed
+
+    collector.startSpool();
+    await(() -> recorded.size() == 2);
+    assertThat(recorded).containsExactly(asList(span2), asList(span3)); // span1 isn't replayed
+  }
+
+  @Test public void deletesReplayedSegments() {
+    Collector<SpanDecoder, Span> collector = collector(spool().segmentBytes(1).build(), null);
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    collector.accept(null, asList(span2), Callback.NOOP);
+    collector.accept(null, asList(span3), Callback.NOOP);
+    assertThat(metrics.spoolSegments()).isEqualTo(3);
+
+    storageUp = true;
+    await(() -> recorded.size() == 3);
+    await(() -> metrics.spoolSegments() == 1); // the newest is kept for writing
+    assertThat(directory().list((dir, name) -> name.endsWith(SpanSpool.SUFFIX))).hasSize(1);
+  }
+
+  @Test public void dropsSpansWhenFull() {
+    Collector<SpanDecoder, Span> collector = collector(spool().maxBytes(1).build(), null);
+
+    collector.accept(null, asList(span1), Callback.NOOP);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+    assertThat(metrics.spooledBytes()).isZero();
+  }
+
+  @Test public void directoryReleasedOnClose() throws Exception {
+    CollectorSpool settings = spool().build();
+    Collector<SpanDecoder, Span> collector = collector(settings, null);
+    collector.close();
+    collectors.remove(collector);
+
+    collector(settings, null); // doesn't throw "is in use"
+  }
+
+  @Test public void directoryInUse() {
+    CollectorSpool settings = spool().build();
+    collector(settings, null);
+
+    try {
+      collector(settings, null);
+      failBecauseExceptionWasNotThrown(IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageEndingWith("is in use");
+    }
+  }
+
+  CollectorSpool.Builder spool() {
+    return CollectorSpool.newBuilder(folder.getRoot()).checkIntervalMillis(10);
+  }
+
+  File directory() {
+    return new File(folder.getRoot(), SpanSpoolTest.class.getName());
+  }
+
+  static void await(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) throw new AssertionError("timed out");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  Collector<SpanDecoder, Span> collector(CollectorSpool spool, CollectorQueue queue) {
+    return collector(spool, queue, true);
+  }
+
+  Collector<SpanDecoder, Span> collector(CollectorSpool spool, CollectorQueue queue,
+    boolean start) {
+    Collector<SpanDecoder, Span> result = new Collector<SpanDecoder, Span>(
+      Logger.getLogger(SpanSpoolTest.class.getName()), metrics, queue, null, null, null, spool) {
+      @Override protected List<Span> decodeList(SpanDecoder decoder, byte[] serialized) {
+        return decoder.readSpans(serialized);
+      }
+
+      @Override protected boolean isSampled(Span span) {
+        return true;
+      }
+
+      @Override protected void record(List<Span> spans, Callback<Void> callback) {
+        if (!storageUp) {
+          callback.onError(new IllegalStateException("storage down"));
+          return;
+        }
+        synchronized (SpanSpoolTest.this) {
+          recorded.add(spans);
+          if (holdStorage) {
+            heldCallbacks.add(callback);
+            return;
+          }
+        }
+        callback.onSuccess(null);
+      }
+
+      @Override
+      protected List<Span> decorateSpans(Map<String, String> requestInfo, List<Span> spans) {
+        return spans;
+      }
+
+      @Override protected String idString(Span span) {
+        return span.idString();
+      }
+
+      @Override protected int sizeInBytes(Span span) {
+        return 1;
+      }
+
+      @Override protected byte[] encodeSpooled(List<Span> spans) {
+        return Codec.THRIFT.writeSpans(spans);
+      }
+
+      @Override protected List<Span> decodeSpooled(byte[] encoded) {
+        return Codec.THRIFT.readSpans(encoded);
+      }
+
+      @Override protected CheckResult checkStorage() {
+        return storageUp ? CheckResult.OK : CheckResult.failed(new IllegalStateException("down"));
+      }
+
+      @Override void warn(String message, Throwable e) {
+      }
+    };
+    collectors.add(result);
+    if (start) result.startSpool();
+    return result;
+  }
+}
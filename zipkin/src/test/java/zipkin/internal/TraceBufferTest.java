@@ -0,0 +1,247 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import zipkin.collector.CollectorTailSampler;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.collector.SpanDecorator;
+import zipkin.internal.TraceBuffer.Decision;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceBufferTest {
+  static final long WAIT = TimeUnit.MILLISECONDS.toNanos(1000);
+  static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+  static final Endpoint BACKEND = Endpoint.newBuilder().serviceName("backend").build();
+
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  CollectorTailSampler.Builder settings = CollectorTailSampler.newBuilder()
+    .decisionWaitMillis(1000).maxWaitMillis(5000).sampleRate(0.0f);
+
+  Span root = span("a", "1").timestamp(1000000L).duration(10000L).build();
+  Span child = span("a", "2").parentId("1").timestamp(1001000L).duration(5000L).build();
+
+  @Test public void holdsTraceUntilQuiet() {
+    TraceBuffer<Span> buffer = buffer(settings.sampleRate(1.0f));
+
+    assertThat(add(buffer, asList(root), 0L).kept).isEmpty();
+    assertThat(add(buffer, asList(child), WAIT / 2).kept).isEmpty();
+    assertThat(flush(buffer, WAIT).kept).isEmpty(); // the child arrived later
+
+    assertThat(flush(buffer, WAIT / 2 + WAIT).kept).containsExactly(root, child);
+    assertThat(buffer.spanCount).isZero();
+  }
+
+  @Test public void dropsOtherTraces() {
+    TraceBuffer<Span> buffer = buffer(settings);
+
+    add(buffer, asList(root, child), 0L);
+    Decision<Span> decision = flush(buffer, WAIT);
+
+    assertThat(decision.kept).isEmpty();
+    assertThat(decision.dropped).isEqualTo(2);
+  }
+
+  @Test public void keepsErrorTraces() {
+    TraceBuffer<Span> buffer = buffer(settings);
+    Span error = child.toBuilder().putTag("error", "timeout").build();
+
+    add(buffer, asList(root, error), 0L);
+
+    assertThat(flush(buffer, WAIT).kept).containsExactly(root, error);
+  }
+
+  @Test public void keepsDebugTraces() {
+    TraceBuffer<Span> buffer = buffer(settings);
+    Span debug = child.toBuilder().debug(true).build();
+
+    add(buffer, asList(root, debug), 0L);
+
+    assertThat(flush(buffer, WAIT).kept).containsExactly(root, debug);
+  }
+
+  @Test public void keepsSlowTraces() {
+    TraceBuffer<Span> buffer = buffer(settings.latencyThresholdMillis(100));
+    Span slow = span("b", "1").timestamp(1000000L).duration(50000L).build();
+    Span slowChild = span("b", "2").timestamp(1100000L).duration(50000L).build();
+
+    add(buffer, asList(root, child, slow, slowChild), 0L);
+
+    // neither span is slow, but together they cover 150ms
+    assertThat(flush(buffer, WAIT).kept).containsExactly(slow, slowChild);
+  }
+
+  @Test public void keepsTracesTouchingServices() {
+    TraceBuffer<Span> buffer = buffer(settings.addService("Backend"));
+    Span client = span("b", "1").remoteEndpoint(BACKEND).build();
+
+    add(buffer, asList(root, client), 0L);
+
+    assertThat(flush(buffer, WAIT).kept).containsExactly(client);
+  }
+
+  @Test public void services_lowercaseIndependentOfDefaultLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr")); // where "I".toLowerCase() is a dotless i
+    try {
+      TraceBuffer<Span> buffer = buffer(settings.addService("INBOX"));
+      Span client = span("b", "1")
+        .remoteEndpoint(Endpoint.newBuilder().serviceName("INBOX").build()).build();
+
+      add(buffer, asList(root, client), 0L);
+
+      assertThat(flush(buffer, WAIT).kept).containsExactly(client);
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  @Test public void lateSpansFollowDecision() {
+    TraceBuffer<Span> buffer = buffer(settings);
+    Span error = span("b", "1").putTag("error", "").build();
+    add(buffer, asList(root, error), 0L);
+    flush(buffer, WAIT);
+
+    Decision<Span> decision =
+      add(buffer, asList(child, span("b", "2").build()), WAIT * 2);
+
+    assertThat(decision.kept).containsExactly(span("b", "2").build());
+    assertThat(decision.dropped).isEqualTo(1);
+    assertThat(buffer.spanCount).isZero();
+  }
+
+  @Test public void decidesAtMaxWait() {
+    TraceBuffer<Span> buffer = buffer(settings.sampleRate(1.0f));
+
+    add(buffer, asList(root), 0L);
+    assertThat(add(buffer, asList(child), WAIT * 5).kept).containsExactly(root, child);
+  }
+
+  @Test public void evictsTracesQuietLongestWhenFull() {
+    TraceBuffer<Span> buffer = buffer(settings.maxSpans(2).sampleRate(1.0f));
+    Span b = span("b", "1").build(), c = span("c", "1").build();
+
+    add(buffer, asList(root), 0L);
+    add(buffer, asList(b), 1L);
+    Decision<Span> decision = add(buffer, asList(child), 2L); // trace a is now the most recent
+
+    assertThat(decision.kept).containsExactly(b);
+    assertThat(decision.evicted).isEqualTo(1);
+
+    decision = add(buffer, asList(c), 3L);
+
+    assertThat(decision.kept).containsExactly(root, child);
+    assertThat(decision.evicted).isEqualTo(1);
+    assertThat(buffer.spanCount).isEqualTo(1);
+  }
+
+  @Test public void collectorStoresKeptTraces() throws IOException {
+    V2Collector collector = new V2Collector(Logger.getAnonymousLogger(), metrics, null, storage,
+      Collections.<SpanDecorator<Span>>emptyList(), null, null, settings.build(), null);
+    CallbackCaptor<Void> captor = new CallbackCaptor<>();
+    Span error = child.toBuilder().putTag("error", "").build();
+
+    collector.accept(null, asList(root, error, span("b", "1").build()), captor);
+    captor.get(); // completes once spans are held
+    assertThat(metrics.bufferedSpans()).isEqualTo(3);
+    assertThat(storage.spanStore().getTrace("000000000000000a").execute()).isEmpty();
+
+    collector.traceBuffer.complete(flush(collector.traceBuffer, System.nanoTime() + WAIT));
+
+    assertThat(storage.spanStore().getTrace("000000000000000a").execute())
+      .containsOnly(root, error);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+    assertThat(metrics.bufferedSpans()).isZero();
+  }
+
+  @Test public void blockingStoreDoesntStallLingerTimer() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingQueue<String> storingThreads = new LinkedBlockingQueue<>();
+    StorageComponent blocking = new StorageComponent() {
+      @Override public SpanStore spanStore() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public SpanConsumer spanConsumer() {
+        return spans -> {
+          storingThreads.add(Thread.currentThread().getName());
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return Call.create(null);
+        };
+      }
+    };
+    V2Collector collector = new V2Collector(Logger.getAnonymousLogger(), metrics, null, blocking,
+      Collections.<SpanDecorator<Span>>emptyList(), null, null,
+      settings.decisionWaitMillis(10).sampleRate(1.0f).build(), null);
+    try {
+      collector.accept(null, asList(root), new CallbackCaptor<>());
+
+      assertThat(storingThreads.take()).isEqualTo("zipkin-collector-tail-sampler");
+      SpanQueue.LINGER_TIMER.submit(() -> {
+      }).get(1, TimeUnit.SECONDS); // still runs while storage blocks
+    } finally {
+      release.countDown();
+      collector.close();
+    }
+  }
+
+  Span.Builder span(String traceId, String id) {
+    return Span.newBuilder().traceId(traceId).id(id).name("get").localEndpoint(FRONTEND);
+  }
+
+  TraceBuffer<Span> buffer(CollectorTailSampler.Builder settings) {
+    V2Collector collector = new V2Collector(Logger.getAnonymousLogger(), metrics, null, storage,
+      Collections.<SpanDecorator<Span>>emptyList(), null, null, null, null);
+    return new TraceBuffer<>(collector, settings.build());
+  }
+
+  static Decision<Span> add(TraceBuffer<Span> buffer, List<Span> spans, long now) {
+    Decision<Span> decision = new Decision<>();
+    synchronized (buffer) {
+      buffer.add(spans, now, decision);
+    }
+    return decision;
+  }
+
+  static Decision<Span> flush(TraceBuffer<Span> buffer, long now) {
+    Decision<Span> decision = new Decision<>();
+    synchronized (buffer) {
+      buffer.flush(now, decision);
+    }
+    return decision;
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin.Annotation;
+import zipkin.BinaryAnnotation;
+import zipkin.Codec;
+import zipkin.Constants;
+import zipkin.Endpoint;
+import zipkin.TestObjects;
+import zipkin.TraceKeys;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class V1SpanBytesDecoderTest {
+  Endpoint frontend = Endpoint.create("frontend", 127 << 24 | 1);
+  Endpoint backend = Endpoint.builder()
+    .serviceName("backend")
+    .ipv4(192 << 24 | 168 << 16 | 99 << 8 | 101)
+    .port(9000)
+    .build();
+
+  zipkin.Span shared = zipkin.Span.builder()
+    .traceIdHigh(Util.lowerHexToUnsignedLong("7180c278b62e8f6a"))
+    .traceId(Util.lowerHexToUnsignedLong("216a2aea45d08fc9"))
+    .parentId(Util.lowerHexToUnsignedLong("6b221d5bc9e6496c"))
+    .id(Util.lowerHexToUnsignedLong("5b4185666d50f68b"))
+    .name("get")
+    .timestamp(1472470996199000L)
+    .duration(207000L)
+    .addAnnotation(Annotation.create(1472470996199000L, Constants.CLIENT_SEND, frontend))
+    .addAnnotation(Annotation.create(1472470996250000L, Constants.SERVER_RECV, backend))
+    .addAnnotation(Annotation.create(1472470996350000L, Constants.SERVER_SEND, backend))
+    .addAnnotation(Annotation.create(1472470996406000L, Constants.CLIENT_RECV, frontend))
+    .addBinaryAnnotation(BinaryAnnotation.create(TraceKeys.HTTP_PATH, "/api", frontend))
+    .addBinaryAnnotation(BinaryAnnotation.address(Constants.CLIENT_ADDR, frontend))
+    .addBinaryAnnotation(BinaryAnnotation.address(Constants.SERVER_ADDR, backend))
+    .debug(true)
+    .build();
+
+  List<zipkin.Span> spans = new ArrayList<>(TestObjects.TRACE);
+
+  {
+    spans.add(shared);
+  }
+
+  @Test public void thrift_sameAsConvertingDecodedSpans() {
+    byte[] message = Codec.THRIFT.writeSpans(spans);
+
+    assertThat(V1SpanBytesDecoder.THRIFT.decodeList(message))
+      .isEqualTo(convert(Codec.THRIFT.readSpans(message)));
+  }
+
+  @Test public void json_sameAsConvertingDecodedSpans() {
+    byte[] message = Codec.JSON.writeSpans(spans);
+
+    assertThat(V1SpanBytesDecoder.JSON_V1.decodeList(message))
+      .isEqualTo(convert(Codec.JSON.readSpans(message)));
+  }
+
+  @Test public void decode_sharedSpanResultsInTwo() {
+    assertThat(V1SpanBytesDecoder.THRIFT.decodeOne(Codec.THRIFT.writeSpan(shared)))
+      .isEqualTo(V2SpanConverter.fromSpan(shared).get(0));
+
+    List<Span> out = new ArrayList<>();
+    assertThat(V1SpanBytesDecoder.JSON_V1.decode(Codec.JSON.writeSpan(shared), out)).isTrue();
+    assertThat(out).isEqualTo(V2SpanConverter.fromSpan(shared));
+  }
+
+  /** Annotations are sorted, as they would be when building a v1 span */
+  @Test public void json_unsortedAnnotations() {
+    byte[] message = ("[{\"traceId\":\"000000000000000a\",\"id\":\"000000000000000b\","
+      + "\"name\":\"GET\",\"annotations\":["
+      + "{\"timestamp\":2,\"value\":\"ss\",\"endpoint\":{\"serviceName\":\"app\"}},"
+      + "{\"timestamp\":1,\"value\":\"sr\",\"endpoint\":{\"serviceName\":\"app\"}}"
+      + "]}]").getBytes(Util.UTF_8);
+
+    assertThat(V1SpanBytesDecoder.JSON_V1.decodeList(message))
+      .isEqualTo(convert(Codec.JSON.readSpans(message)));
+  }
+
+  @Test public void emptyList() {
+    List<Span> out = new ArrayList<>();
+    assertThat(V1SpanBytesDecoder.THRIFT.decodeList(Codec.THRIFT.writeSpans(asList()), out))
+      .isFalse();
+    assertThat(V1SpanBytesDecoder.JSON_V1.decodeList("[]".getBytes(Util.UTF_8), out))
+      .isFalse();
+    assertThat(out).isEmpty();
+  }
+
+  @Test public void missingName() {
+    try {
+      V1SpanBytesDecoder.JSON_V1.decodeList(
+        "[{\"traceId\":\"000000000000000a\",\"id\":\"000000000000000b\"}]".getBytes(Util.UTF_8));
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageStartingWith("name reading List<Span> from json");
+    }
+  }
+
+  @Test public void malformedThrift() {
+    try {
+      V1SpanBytesDecoder.THRIFT.decodeList(new byte[] {12, 0, 0, 0, 1, 10});
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Malformed reading List<Span> from TBinary");
+    }
+  }
+
+  @Test public void encoding() {
+    assertThat(V1SpanBytesDecoder.THRIFT.encoding()).isEqualTo(Encoding.THRIFT);
+    assertThat(V1SpanBytesDecoder.JSON_V1.encoding()).isEqualTo(Encoding.JSON);
+  }
+
+  static List<Span> convert(List<zipkin.Span> spans) {
+    List<Span> result = new ArrayList<>();
+    for (zipkin.Span span : spans) result.addAll(V2SpanConverter.fromSpan(span));
+    return result;
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+import zipkin.TestObjects;
+import zipkin.storage.InMemoryStorage;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.DAY;
+import static zipkin.TestObjects.TODAY;
+
+public class V1StorageAdapterTest {
+  InMemoryStorage v1 = InMemoryStorage.builder().build();
+  StorageComponent storage = V1StorageAdapter.create(v1);
+  List<Span> trace = V2SpanConverter.fromSpans(TestObjects.TRACE);
+
+  @Test public void create_unwrapsV2() {
+    zipkin2.storage.InMemoryStorage v2 = zipkin2.storage.InMemoryStorage.newBuilder().build();
+
+    assertThat(V1StorageAdapter.create(V2StorageComponent.create(v2))).isSameAs(v2);
+  }
+
+  @Test public void accept_storesV1Spans() throws IOException {
+    storage.spanConsumer().accept(trace).execute();
+
+    assertThat(v1.spanStore().getRawTrace(0L, TestObjects.TRACE.get(0).traceId))
+      .containsExactlyElementsOf(V2SpanConverter.toSpans(trace));
+  }
+
+  @Test public void getTrace_returnsRawSpans() throws IOException {
+    v1.spanConsumer().accept(TestObjects.TRACE);
+
+    assertThat(storage.spanStore().getTrace(trace.get(0).traceId()).execute())
+      .containsOnlyElementsOf(trace).hasSameSizeAs(trace);
+  }
+
+  @Test public void getTrace_missingIsEmpty() throws IOException {
+    assertThat(storage.spanStore().getTrace("463ac35c9f6413ad48485a3953bb6124").execute())
+      .isEmpty();
+  }
+
+  @Test public void getTraces_convertsRequest() throws IOException {
+    v1.spanConsumer().accept(TestObjects.TRACE);
+
+    assertThat(storage.spanStore().getTraces(QueryRequest.newBuilder()
+      .serviceName("app")
+      .parseAnnotationQuery("error and http.path=/api")
+      .endTs(TODAY + DAY).lookback(DAY).limit(10).build()).execute())
+      .isEmpty();
+    assertThat(storage.spanStore().getTraces(QueryRequest.newBuilder()
+      .serviceName("app")
+      .endTs(TODAY + DAY).lookback(DAY).limit(10).build()).execute())
+      .hasSize(1);
+  }
+
+  @Test public void getServiceNames() throws IOException {
+    v1.spanConsumer().accept(TestObjects.TRACE);
+
+    assertThat(storage.spanStore().getServiceNames().execute())
+      .isEqualTo(v1.spanStore().getServiceNames());
+  }
+
+  @Test public void convertRequest() {
+    QueryRequest request = QueryRequest.newBuilder()
+      .serviceName("app")
+      .spanName("get")
+      .parseAnnotationQuery("error and http.path=/api")
+      .minDuration(1L).maxDuration(2L)
+      .endTs(TODAY).lookback(DAY).limit(5).build();
+
+    assertThat(V1StorageAdapter.convertRequest(request)).isEqualTo(zipkin.storage.QueryRequest
+      .builder()
+      .serviceName("app")
+      .spanName("get")
+      .parseAnnotationQuery("error and http.path=/api")
+      .minDuration(1L).maxDuration(2L)
+      .endTs(TODAY).lookback(DAY).limit(5).build());
+  }
+}
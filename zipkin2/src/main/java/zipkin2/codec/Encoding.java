@@ -26,6 +26,36 @@ public enum Encoding {
       }
       return sizeInBytes;
     }
+  },
+  /**
+   * The first format of Zipkin was TBinaryProtocol, big-endian thrift. It is no longer used, but
+   * defined here as legacy transports still send it.
+   */
+  THRIFT {
+    /** Encoding overhead is thrift type plus 32-bit length prefix */
+    @Override public int listSizeInBytes(List<byte[]> values) {
+      int sizeInBytes = 5;
+      for (int i = 0, length = values.size(); i < length; i++) {
+        sizeInBytes += values.get(i).length;
+      }
+      return sizeInBytes;
+    }
+  },
+  /**
+   * Repeated (type 2) fields are length-prefixed, the value is a concatenation with no additional
+   * overhead.
+   *
+   * <p>See https://developers.google.com/protocol-buffers/docs/encoding#optional
+   */
+  PROTO3 {
+    /** Returns the input as it has no encoding overhead */
+    @Override public int listSizeInBytes(List<byte[]> values) {
+      int sizeInBytes = 0;
+      for (int i = 0, length = values.size(); i < length; i++) {
+        sizeInBytes += values.get(i).length;
+      }
+      return sizeInBytes;
+    }
   };
 
   public abstract int listSizeInBytes(List<byte[]> values);
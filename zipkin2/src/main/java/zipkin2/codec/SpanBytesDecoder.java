@@ -13,12 +13,16 @@
  */
 package zipkin2.codec;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import javax.annotation.Nullable;
 import zipkin2.Span;
-import zipkin2.internal.JsonCodec;
-import zipkin2.internal.V2SpanReader;
+import zipkin2.internal.Proto3Codec;
+import zipkin2.internal.SpanStreamReader;
+import zipkin2.internal.V2SpanBytesReader;
 
 /** This is separate from {@link SpanBytesEncoder}, as it isn't needed for instrumentation */
 public enum SpanBytesDecoder implements BytesDecoder<Span> {
@@ -30,21 +34,99 @@ public enum SpanBytesDecoder implements BytesDecoder<Span> {
 
     @Override
     public boolean decode(byte[] span, Collection<Span> out) { // ex decode span in dependencies job
-      return JsonCodec.read(new V2SpanReader(), span, out);
+      return V2SpanBytesReader.read(span, out);
     }
 
     @Override public boolean decodeList(byte[] spans, Collection<Span> out) { // ex getTrace
-      return JsonCodec.readList(new V2SpanReader(), spans, out);
+      return V2SpanBytesReader.readList(spans, out);
     }
 
     /** Visible for testing. This returns the first span parsed from the serialized object or null */
     @Nullable public Span decodeOne(byte[] span) {
-      return JsonCodec.readOne(new V2SpanReader(), span);
+      return V2SpanBytesReader.readOne(span);
     }
 
     /** Convenience method for {@link #decode(byte[], Collection)} */
     public List<Span> decodeList(byte[] spans) {
-      return JsonCodec.readList(new V2SpanReader(), spans);
+      return V2SpanBytesReader.readList(spans);
     }
+
+    @Override SpanStreamReader streamReader(InputStream stream) {
+      return SpanStreamReader.json(stream);
+    }
+
+    @Override SpanStreamReader streamReader(ByteBuffer buffer) {
+      return SpanStreamReader.json(buffer);
+    }
+  },
+  /** Corresponds to the Zipkin v2 proto3 format, a ListOfSpans message */
+  PROTO3 {
+    @Override public Encoding encoding() {
+      return Encoding.PROTO3;
+    }
+
+    @Override public boolean decode(byte[] span, Collection<Span> out) {
+      return Proto3Codec.read(span, out);
+    }
+
+    @Override public boolean decodeList(byte[] spans, Collection<Span> out) {
+      return Proto3Codec.readList(spans, out);
+    }
+
+    /** Visible for testing. This returns the first span parsed from the serialized object or null */
+    @Nullable public Span decodeOne(byte[] span) {
+      return Proto3Codec.readOne(span);
+    }
+
+    /** Convenience method for {@link #decode(byte[], Collection)} */
+    public List<Span> decodeList(byte[] spans) {
+      return Proto3Codec.readList(spans);
+    }
+
+    @Override SpanStreamReader streamReader(InputStream stream) {
+      return SpanStreamReader.proto3(stream);
+    }
+
+    @Override SpanStreamReader streamReader(ByteBuffer buffer) {
+      return SpanStreamReader.proto3(buffer);
+    }
+  };
+
+  /**
+   * Decodes a list of spans from the stream, passing each to the sink as soon as it is read.
+   *
+   * <p>Unlike {@link #decodeList(byte[], Collection)}, only one span is buffered at a time. This
+   * allows large messages to be processed incrementally. The stream isn't closed.
+   *
+   * @return the count of spans decoded
+   * @throws IllegalArgumentException if a span couldn't be decoded. Spans before it were already
+   * passed to the sink.
+   */
+  public int decodeStream(InputStream stream, SpanSink sink) throws IOException {
+    return drain(streamReader(stream), sink);
+  }
+
+  /**
+   * Like {@link #decodeStream(InputStream, SpanSink)}, except this reads the buffer's remaining
+   * bytes in place, advancing its position. This avoids copying a direct buffer into a byte array.
+   */
+  public int decodeStream(ByteBuffer buffer, SpanSink sink) {
+    try {
+      return drain(streamReader(buffer), sink);
+    } catch (IOException e) {
+      throw new AssertionError(e); // byte buffers aren't read with I/O
+    }
+  }
+
+  abstract SpanStreamReader streamReader(InputStream stream);
+
+  abstract SpanStreamReader streamReader(ByteBuffer buffer);
+
+  static int drain(SpanStreamReader reader, SpanSink sink) throws IOException {
+    int count = 0;
+    for (Span span; (span = reader.nextSpan()) != null; count++) {
+      sink.accept(span);
+    }
+    return count;
   }
 }
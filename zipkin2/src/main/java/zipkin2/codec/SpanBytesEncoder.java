@@ -18,6 +18,7 @@ import javax.annotation.concurrent.Immutable;
 import zipkin2.Span;
 import zipkin2.internal.Buffer;
 import zipkin2.internal.JsonCodec;
+import zipkin2.internal.Proto3Codec;
 import zipkin2.internal.V1SpanWriter;
 import zipkin2.internal.V2SpanWriter;
 
@@ -71,6 +72,31 @@ public enum SpanBytesEncoder implements BytesEncoder<Span> {
     @Override public int encodeList(List<Span> spans, byte[] out, int pos) {
       return JsonCodec.writeList(writer, spans, out, pos);
     }
+  },
+  /**
+   * Corresponds to the Zipkin v2 proto3 format. A span is encoded as a ListOfSpans message of one,
+   * so that a list is the concatenation of its encoded spans.
+   */
+  PROTO3 {
+    @Override public Encoding encoding() {
+      return Encoding.PROTO3;
+    }
+
+    @Override public int sizeInBytes(Span input) {
+      return Proto3Codec.sizeInBytes(input);
+    }
+
+    @Override public byte[] encode(Span span) {
+      return Proto3Codec.write(span);
+    }
+
+    @Override public byte[] encodeList(List<Span> spans) {
+      return Proto3Codec.writeList(spans);
+    }
+
+    @Override public int encodeList(List<Span> spans, byte[] out, int pos) {
+      return Proto3Codec.writeList(spans, out, pos);
+    }
   };
 
   /** Allows you to encode a list of spans onto a specific offset. For example, when nesting */
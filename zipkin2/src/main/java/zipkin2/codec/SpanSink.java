@@ -0,0 +1,30 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.codec;
+
+import zipkin2.Span;
+
+/**
+ * Receives spans one at a time, as {@link SpanBytesDecoder#decodeStream} reads them.
+ *
+ * <p>For example, this can sample or batch spans from a large message without holding all of them
+ * in memory at once.
+ */
+public interface SpanSink {
+  /**
+   * Called for each span in the order they were encoded. Throwing stops decoding and propagates
+   * to the caller.
+   */
+  void accept(Span span);
+}
@@ -156,6 +156,53 @@ public final class Buffer {
 
   static final byte[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
 
+  /** Returns the size of an unsigned protocol buffers varint. */
+  static int varintSizeInBytes(int v) {
+    if ((v & (0xffffffff << 7)) == 0) return 1;
+    if ((v & (0xffffffff << 14)) == 0) return 2;
+    if ((v & (0xffffffff << 21)) == 0) return 3;
+    if ((v & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  /** Returns the size of an unsigned protocol buffers varint. */
+  static int varintSizeInBytes(long v) {
+    int sizeInBytes = 1;
+    while ((v & ~0x7fL) != 0) {
+      v >>>= 7;
+      sizeInBytes++;
+    }
+    return sizeInBytes;
+  }
+
+  /** Writes an unsigned protocol buffers varint, 7 bits at a time from least significant. */
+  public Buffer writeVarint(int v) {
+    while ((v & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+    return this;
+  }
+
+  public Buffer writeVarint(long v) {
+    while ((v & ~0x7fL) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+    return this;
+  }
+
+  /** Writes a protocol buffers fixed64, which is little-endian. */
+  public Buffer writeLongLe(long v) {
+    for (int i = 0; i < 8; i++) {
+      buf[pos++] = (byte) (v & 0xff);
+      v >>>= 8;
+    }
+    return this;
+  }
+
   public byte[] toByteArray() {
     //assert pos == buf.length;
     return buf;
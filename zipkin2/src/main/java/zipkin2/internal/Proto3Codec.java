@@ -0,0 +1,388 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.lang.String.format;
+import static zipkin2.internal.Proto3SpanWriter.ANNOTATION_TIMESTAMP;
+import static zipkin2.internal.Proto3SpanWriter.ANNOTATION_VALUE;
+import static zipkin2.internal.Proto3SpanWriter.ENDPOINT_IPV4;
+import static zipkin2.internal.Proto3SpanWriter.ENDPOINT_IPV6;
+import static zipkin2.internal.Proto3SpanWriter.ENDPOINT_PORT;
+import static zipkin2.internal.Proto3SpanWriter.ENDPOINT_SERVICE_NAME;
+import static zipkin2.internal.Proto3SpanWriter.ENTRY_KEY;
+import static zipkin2.internal.Proto3SpanWriter.ENTRY_VALUE;
+import static zipkin2.internal.Proto3SpanWriter.LIST_OF_SPANS_SPAN;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_ANNOTATION;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_DEBUG;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_DURATION;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_ID;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_KIND;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_LOCAL_ENDPOINT;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_NAME;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_PARENT_ID;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_REMOTE_ENDPOINT;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_SHARED;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_TAG;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_TIMESTAMP;
+import static zipkin2.internal.Proto3SpanWriter.SPAN_TRACE_ID;
+
+/**
+ * Reads and writes spans in the proto3 format of zipkin2.proto, without a dependency on protocol
+ * buffers libraries.
+ *
+ * <p>A message is a {@code ListOfSpans}: each span is the field key {@code 0x0a}, followed by its
+ * length and fields. Fields not defined here are skipped, so that newer writers can add them.
+ */
+public final class Proto3Codec {
+  static final Proto3SpanWriter WRITER = new Proto3SpanWriter();
+
+  public static int sizeInBytes(Span value) {
+    return WRITER.sizeInBytes(value);
+  }
+
+  public static byte[] write(Span value) {
+    Buffer b = new Buffer(WRITER.sizeInBytes(value));
+    WRITER.write(value, b);
+    return b.toByteArray();
+  }
+
+  public static byte[] writeList(List<Span> value) {
+    int sizeInBytes = 0;
+    for (int i = 0, length = value.size(); i < length; i++) {
+      sizeInBytes += WRITER.sizeInBytes(value.get(i));
+    }
+    Buffer b = new Buffer(sizeInBytes);
+    for (int i = 0, length = value.size(); i < length; i++) {
+      WRITER.write(value.get(i), b);
+    }
+    return b.toByteArray();
+  }
+
+  public static int writeList(List<Span> value, byte[] out, int pos) {
+    Buffer b = new Buffer(out, pos);
+    for (int i = 0, length = value.size(); i < length; i++) {
+      WRITER.write(value.get(i), b);
+    }
+    return b.pos - pos;
+  }
+
+  /** Reads the first span in the message, or returns false if there is none. */
+  public static boolean read(byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    try {
+      Reader reader = new Reader(bytes);
+      Span span = reader.nextSpan();
+      if (span == null) return false;
+      out.add(span);
+      return true;
+    } catch (RuntimeException e) {
+      throw exceptionReading("Span", e);
+    }
+  }
+
+  public static @Nullable Span readOne(byte[] bytes) {
+    List<Span> out = new ArrayList<>(1);
+    if (!read(bytes, out)) return null;
+    return out.get(0);
+  }
+
+  public static boolean readList(byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    int size = out.size();
+    try {
+      Reader reader = new Reader(bytes);
+      Span span;
+      while ((span = reader.nextSpan()) != null) out.add(span);
+    } catch (RuntimeException e) {
+      throw exceptionReading("List<Span>", e);
+    }
+    return out.size() > size;
+  }
+
+  public static List<Span> readList(byte[] bytes) {
+    List<Span> out = new ArrayList<>();
+    if (!readList(bytes, out)) return Collections.emptyList();
+    return out;
+  }
+
+  /** Reads a span message, without its key or length, from the start of the buffer. */
+  static Span readSpan(byte[] buf, int length) {
+    try {
+      return new Reader(buf, length).readSpan(length);
+    } catch (RuntimeException e) {
+      throw exceptionReading("Span", e);
+    }
+  }
+
+  static IllegalArgumentException exceptionReading(String type, Exception e) {
+    String cause = e.getMessage() == null ? "Error" : e.getMessage();
+    if (e instanceof ArrayIndexOutOfBoundsException) cause = "Truncated";
+    String message = format("%s reading %s from proto3", cause, type);
+    throw new IllegalArgumentException(message, e);
+  }
+
+  /** Reads fields in place from the encoded message. */
+  static final class Reader {
+    final byte[] buf;
+    final int limit;
+    int pos;
+
+    Reader(byte[] buf) {
+      this(buf, buf.length);
+    }
+
+    Reader(byte[] buf, int limit) {
+      this.buf = buf;
+      this.limit = limit;
+    }
+
+    /** Returns the next span in the list, or null at the end of the message. */
+    @Nullable Span nextSpan() {
+      while (pos < limit) {
+        int key = readKey();
+        if (key != LIST_OF_SPANS_SPAN) {
+          skip(key);
+          continue;
+        }
+        return readSpan(readEnd());
+      }
+      return null;
+    }
+
+    Span readSpan(int end) {
+      Span.Builder builder = Span.newBuilder();
+      while (pos < end) {
+        int key = readKey();
+        switch (key) {
+          case SPAN_TRACE_ID:
+            builder.traceId(readHex());
+            break;
+          case SPAN_PARENT_ID:
+            builder.parentId(readHex());
+            break;
+          case SPAN_ID:
+            builder.id(readHex());
+            break;
+          case SPAN_KIND:
+            int kind = (int) readVarint();
+            Span.Kind[] kinds = Span.Kind.values();
+            if (kind > 0 && kind <= kinds.length) builder.kind(kinds[kind - 1]);
+            break;
+          case SPAN_NAME:
+            builder.name(readString());
+            break;
+          case SPAN_TIMESTAMP:
+            builder.timestamp(readLongLe());
+            break;
+          case SPAN_DURATION:
+            builder.duration(readVarint());
+            break;
+          case SPAN_LOCAL_ENDPOINT:
+            builder.localEndpoint(readEndpoint(readEnd()));
+            break;
+          case SPAN_REMOTE_ENDPOINT:
+            builder.remoteEndpoint(readEndpoint(readEnd()));
+            break;
+          case SPAN_ANNOTATION:
+            readAnnotation(readEnd(), builder);
+            break;
+          case SPAN_TAG:
+            readTag(readEnd(), builder);
+            break;
+          case SPAN_DEBUG:
+            if (readVarint() != 0) builder.debug(true);
+            break;
+          case SPAN_SHARED:
+            if (readVarint() != 0) builder.shared(true);
+            break;
+          default:
+            skip(key);
+        }
+      }
+      checkEnd(end);
+      return builder.build();
+    }
+
+    @Nullable Endpoint readEndpoint(int end) {
+      Endpoint.Builder builder = Endpoint.newBuilder();
+      while (pos < end) {
+        int key = readKey();
+        switch (key) {
+          case ENDPOINT_SERVICE_NAME:
+            builder.serviceName(readString());
+            break;
+          case ENDPOINT_IPV4:
+          case ENDPOINT_IPV6:
+            builder.ip(readAddress());
+            break;
+          case ENDPOINT_PORT:
+            builder.port((int) readVarint());
+            break;
+          default:
+            skip(key);
+        }
+      }
+      checkEnd(end);
+      Endpoint result = builder.build();
+      return result.equals(EMPTY_ENDPOINT) ? null : result;
+    }
+
+    void readAnnotation(int end, Span.Builder builder) {
+      long timestamp = 0L;
+      String value = null;
+      while (pos < end) {
+        int key = readKey();
+        if (key == ANNOTATION_TIMESTAMP) {
+          timestamp = readLongLe();
+        } else if (key == ANNOTATION_VALUE) {
+          value = readString();
+        } else {
+          skip(key);
+        }
+      }
+      checkEnd(end);
+      if (value != null) builder.addAnnotation(timestamp, value);
+    }
+
+    void readTag(int end, Span.Builder builder) {
+      String key = null, value = "";
+      while (pos < end) {
+        int fieldKey = readKey();
+        if (fieldKey == ENTRY_KEY) {
+          key = readString();
+        } else if (fieldKey == ENTRY_VALUE) {
+          value = readString();
+        } else {
+          skip(fieldKey);
+        }
+      }
+      checkEnd(end);
+      if (key != null) builder.putTag(key, value);
+    }
+
+    int readKey() {
+      int key = (int) readVarint();
+      if (key == 0) throw new IllegalArgumentException("Malformed: invalid field key");
+      return key;
+    }
+
+    int readLength() {
+      long length = readVarint();
+      if (length > limit - pos) {
+        throw new IllegalArgumentException(
+          "Truncated: length " + length + " > bytes remaining " + (limit - pos));
+      }
+      return (int) length;
+    }
+
+    /** Reads the length of a nested message, returning the position after it. */
+    int readEnd() {
+      int length = readLength();
+      return pos + length;
+    }
+
+    long readVarint() {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = buf[pos++];
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return result;
+      }
+      throw new IllegalArgumentException("Malformed: varint is over 10 bytes");
+    }
+
+    long readLongLe() {
+      if (limit - pos < 8) throw new ArrayIndexOutOfBoundsException();
+      long result = 0;
+      for (int i = 0; i < 8; i++) {
+        result |= (buf[pos++] & 0xffL) << (i * 8);
+      }
+      return result;
+    }
+
+    String readString() {
+      int length = readLength();
+      String result = new String(buf, pos, length, Buffer.UTF_8);
+      pos += length;
+      return result;
+    }
+
+    String readHex() {
+      int length = readLength();
+      if (length != 8 && length != 16) {
+        throw new IllegalArgumentException("Malformed: id is " + length + " bytes");
+      }
+      char[] result = new char[length * 2];
+      for (int i = 0; i < length; i++) {
+        byte b = buf[pos++];
+        result[2 * i] = HEX_DIGITS[(b >> 4) & 0xf];
+        result[2 * i + 1] = HEX_DIGITS[b & 0xf];
+      }
+      return new String(result);
+    }
+
+    InetAddress readAddress() {
+      int length = readLength();
+      if (length != 4 && length != 16) {
+        throw new IllegalArgumentException("Malformed: address is " + length + " bytes");
+      }
+      byte[] address = new byte[length];
+      System.arraycopy(buf, pos, address, 0, length);
+      pos += length;
+      try { // doesn't resolve, as there's no host name
+        return InetAddress.getByAddress(address);
+      } catch (UnknownHostException e) {
+        throw new AssertionError(e); // the length is checked above
+      }
+    }
+
+    void skip(int key) {
+      switch (key & 7) {
+        case 0:
+          readVarint();
+          break;
+        case 1:
+          pos += 8;
+          break;
+        case 2:
+          pos = readEnd();
+          break;
+        case 5:
+          pos += 4;
+          break;
+        default:
+          throw new IllegalArgumentException("Malformed: invalid wire type " + (key & 7));
+      }
+      if (pos > limit) throw new ArrayIndexOutOfBoundsException();
+    }
+
+    void checkEnd(int end) {
+      if (pos != end) throw new IllegalArgumentException("Malformed: field overran its message");
+    }
+  }
+
+  static final Endpoint EMPTY_ENDPOINT = Endpoint.newBuilder().build();
+  static final char[] HEX_DIGITS =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.Immutable;
+import zipkin2.Annotation;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static zipkin2.internal.Buffer.utf8SizeInBytes;
+import static zipkin2.internal.Buffer.varintSizeInBytes;
+
+/**
+ * Writes a span in the proto3 format of zipkin2.proto, as the field {@code spans} of the message
+ * {@code ListOfSpans}. This means a list of spans is the concatenation of each span written alone.
+ *
+ * <p>Like the json writers, sizes are computed up front, so that each span is written into an array
+ * of the exact size. Fields at their default value are omitted, as proto3 does.
+ */
+@Immutable
+public final class Proto3SpanWriter implements Buffer.Writer<Span> {
+  // field keys are (field number << 3) | wire type, where 0 is varint, 1 is fixed64, 2 is length
+  static final int LIST_OF_SPANS_SPAN = 1 << 3 | 2;
+
+  static final int SPAN_TRACE_ID = 1 << 3 | 2;
+  static final int SPAN_PARENT_ID = 2 << 3 | 2;
+  static final int SPAN_ID = 3 << 3 | 2;
+  static final int SPAN_KIND = 4 << 3;
+  static final int SPAN_NAME = 5 << 3 | 2;
+  static final int SPAN_TIMESTAMP = 6 << 3 | 1;
+  static final int SPAN_DURATION = 7 << 3;
+  static final int SPAN_LOCAL_ENDPOINT = 8 << 3 | 2;
+  static final int SPAN_REMOTE_ENDPOINT = 9 << 3 | 2;
+  static final int SPAN_ANNOTATION = 10 << 3 | 2;
+  static final int SPAN_TAG = 11 << 3 | 2;
+  static final int SPAN_DEBUG = 12 << 3;
+  static final int SPAN_SHARED = 13 << 3;
+
+  static final int ENDPOINT_SERVICE_NAME = 1 << 3 | 2;
+  static final int ENDPOINT_IPV4 = 2 << 3 | 2;
+  static final int ENDPOINT_IPV6 = 3 << 3 | 2;
+  static final int ENDPOINT_PORT = 4 << 3;
+
+  static final int ANNOTATION_TIMESTAMP = 1 << 3 | 1;
+  static final int ANNOTATION_VALUE = 2 << 3 | 2;
+
+  static final int ENTRY_KEY = 1 << 3 | 2;
+  static final int ENTRY_VALUE = 2 << 3 | 2;
+
+  @Override public int sizeInBytes(Span value) {
+    return sizeOfField(spanSizeInBytes(value));
+  }
+
+  @Override public void write(Span value, Buffer b) {
+    b.writeByte(LIST_OF_SPANS_SPAN).writeVarint(spanSizeInBytes(value));
+    writeHex(SPAN_TRACE_ID, value.traceId(), b);
+    if (value.parentId() != null) writeHex(SPAN_PARENT_ID, value.parentId(), b);
+    writeHex(SPAN_ID, value.id(), b);
+    if (value.kind() != null) b.writeByte(SPAN_KIND).writeVarint(value.kind().ordinal() + 1);
+    if (value.name() != null && !value.name().isEmpty()) writeString(SPAN_NAME, value.name(), b);
+    if (value.timestamp() != null && value.timestamp() != 0L) {
+      b.writeByte(SPAN_TIMESTAMP).writeLongLe(value.timestamp());
+    }
+    if (value.duration() != null && value.duration() != 0L) {
+      b.writeByte(SPAN_DURATION).writeVarint(value.duration());
+    }
+    if (value.localEndpoint() != null) {
+      writeEndpoint(SPAN_LOCAL_ENDPOINT, value.localEndpoint(), b);
+    }
+    if (value.remoteEndpoint() != null) {
+      writeEndpoint(SPAN_REMOTE_ENDPOINT, value.remoteEndpoint(), b);
+    }
+    List<Annotation> annotations = value.annotations();
+    for (int i = 0, length = annotations.size(); i < length; i++) {
+      Annotation a = annotations.get(i);
+      b.writeByte(SPAN_ANNOTATION).writeVarint(annotationSizeInBytes(a));
+      if (a.timestamp() != 0L) b.writeByte(ANNOTATION_TIMESTAMP).writeLongLe(a.timestamp());
+      writeString(ANNOTATION_VALUE, a.value(), b);
+    }
+    for (Map.Entry<String, String> tag : value.tags().entrySet()) {
+      b.writeByte(SPAN_TAG).writeVarint(entrySizeInBytes(tag.getKey(), tag.getValue()));
+      writeString(ENTRY_KEY, tag.getKey(), b);
+      if (!tag.getValue().isEmpty()) writeString(ENTRY_VALUE, tag.getValue(), b);
+    }
+    if (Boolean.TRUE.equals(value.debug())) b.writeByte(SPAN_DEBUG).writeByte(1);
+    if (Boolean.TRUE.equals(value.shared())) b.writeByte(SPAN_SHARED).writeByte(1);
+  }
+
+  @Override public String toString() {
+    return "Span";
+  }
+
+  /** Size of the span message, excluding its field key and length prefix. */
+  static int spanSizeInBytes(Span value) {
+    int sizeInBytes = sizeOfField(value.traceId().length() / 2);
+    if (value.parentId() != null) sizeInBytes += sizeOfField(8);
+    sizeInBytes += sizeOfField(8); // id
+    if (value.kind() != null) sizeInBytes += 2; // key and an enum value under 128
+    if (value.name() != null && !value.name().isEmpty()) {
+      sizeInBytes += sizeOfField(utf8SizeInBytes(value.name()));
+    }
+    if (value.timestamp() != null && value.timestamp() != 0L) sizeInBytes += 9; // key and fixed64
+    if (value.duration() != null && value.duration() != 0L) {
+      sizeInBytes += 1 + varintSizeInBytes(value.duration());
+    }
+    if (value.localEndpoint() != null) {
+      sizeInBytes += sizeOfField(endpointSizeInBytes(value.localEndpoint()));
+    }
+    if (value.remoteEndpoint() != null) {
+      sizeInBytes += sizeOfField(endpointSizeInBytes(value.remoteEndpoint()));
+    }
+    List<Annotation> annotations = value.annotations();
+    for (int i = 0, length = annotations.size(); i < length; i++) {
+      sizeInBytes += sizeOfField(annotationSizeInBytes(annotations.get(i)));
+    }
+    for (Map.Entry<String, String> tag : value.tags().entrySet()) {
+      sizeInBytes += sizeOfField(entrySizeInBytes(tag.getKey(), tag.getValue()));
+    }
+    if (Boolean.TRUE.equals(value.debug())) sizeInBytes += 2;
+    if (Boolean.TRUE.equals(value.shared())) sizeInBytes += 2;
+    return sizeInBytes;
+  }
+
+  static int endpointSizeInBytes(Endpoint value) {
+    int sizeInBytes = 0;
+    if (value.serviceName() != null && !value.serviceName().isEmpty()) {
+      sizeInBytes += sizeOfField(utf8SizeInBytes(value.serviceName()));
+    }
+    if (value.ipv4() != null) sizeInBytes += sizeOfField(4);
+    if (value.ipv6() != null) sizeInBytes += sizeOfField(16);
+    if (value.port() != null) sizeInBytes += 1 + varintSizeInBytes(value.port());
+    return sizeInBytes;
+  }
+
+  static void writeEndpoint(int key, Endpoint value, Buffer b) {
+    b.writeByte(key).writeVarint(endpointSizeInBytes(value));
+    if (value.serviceName() != null && !value.serviceName().isEmpty()) {
+      writeString(ENDPOINT_SERVICE_NAME, value.serviceName(), b);
+    }
+    if (value.ipv4() != null) {
+      b.writeByte(ENDPOINT_IPV4).writeByte(4);
+      String ipv4 = value.ipv4();
+      for (int i = 0, octet = 0, length = ipv4.length(); i <= length; i++) {
+        char c = i < length ? ipv4.charAt(i) : '.';
+        if (c == '.') {
+          b.writeByte(octet);
+          octet = 0;
+        } else {
+          octet = octet * 10 + (c - '0');
+        }
+      }
+    }
+    if (value.ipv6() != null) {
+      b.writeByte(ENDPOINT_IPV6).writeByte(16);
+      try { // a literal, so this parses as opposed to resolving
+        b.write(InetAddress.getByName(value.ipv6()).getAddress());
+      } catch (UnknownHostException e) {
+        throw new AssertionError(e); // Endpoint only accepts valid addresses
+      }
+    }
+    if (value.port() != null) b.writeByte(ENDPOINT_PORT).writeVarint(value.port());
+  }
+
+  static int annotationSizeInBytes(Annotation value) {
+    int sizeInBytes = value.timestamp() != 0L ? 9 : 0;
+    return sizeInBytes + sizeOfField(utf8SizeInBytes(value.value()));
+  }
+
+  static int entrySizeInBytes(String key, String value) {
+    int sizeInBytes = sizeOfField(utf8SizeInBytes(key));
+    if (!value.isEmpty()) sizeInBytes += sizeOfField(utf8SizeInBytes(value));
+    return sizeInBytes;
+  }
+
+  /** Size of a length-delimited field: its key, the length prefix and the value. */
+  static int sizeOfField(int length) {
+    return 1 + varintSizeInBytes(length) + length;
+  }
+
+  static void writeString(int key, String value, Buffer b) {
+    b.writeByte(key).writeVarint(utf8SizeInBytes(value)).writeUtf8(value);
+  }
+
+  /** Writes lower-hex as the bytes it encodes. */
+  static void writeHex(int key, String hex, Buffer b) {
+    int length = hex.length();
+    b.writeByte(key).writeByte(length / 2);
+    for (int i = 0; i < length; i += 2) {
+      b.writeByte(digit(hex.charAt(i)) << 4 | digit(hex.charAt(i + 1)));
+    }
+  }
+
+  static int digit(char c) {
+    return c <= '9' ? c - '0' : c - 'a' + 10;
+  }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import zipkin2.Span;
+
+import static zipkin2.internal.Proto3SpanWriter.LIST_OF_SPANS_SPAN;
+
+/**
+ * Reads a list of spans from a stream one span at a time, so that memory use is bounded by the
+ * largest span, as opposed to the whole message.
+ *
+ * <p>Each span is copied into a buffer reused for the next one, then read with the same code as
+ * {@link V2SpanBytesReader} or {@link Proto3Codec}. A {@link ByteBuffer} is read in place, so
+ * direct buffers aren't copied to the heap beyond one span at a time.
+ */
+public abstract class SpanStreamReader {
+  public static SpanStreamReader json(InputStream stream) {
+    return new Json(new StreamSource(stream));
+  }
+
+  public static SpanStreamReader json(ByteBuffer buffer) {
+    return new Json(new BufferSource(buffer));
+  }
+
+  public static SpanStreamReader proto3(InputStream stream) {
+    return new Proto3(new StreamSource(stream));
+  }
+
+  public static SpanStreamReader proto3(ByteBuffer buffer) {
+    return new Proto3(new BufferSource(buffer));
+  }
+
+  final Source source;
+  byte[] span = new byte[1024]; // holds the span being read
+
+  SpanStreamReader(Source source) {
+    this.source = source;
+  }
+
+  /**
+   * Returns the next span in the list, or null at the end of it.
+   *
+   * @throws IllegalArgumentException if the span couldn't be decoded
+   */
+  @Nullable public abstract Span nextSpan() throws IOException;
+
+  /** Reads the elements of a json array, buffering each object until its closing brace. */
+  static final class Json extends SpanStreamReader {
+    boolean started, done;
+    int length;
+
+    Json(Source source) {
+      super(source);
+    }
+
+    @Override @Nullable public Span nextSpan() throws IOException {
+      if (done) return null;
+      int b = nextToken();
+      if (!started) {
+        started = true;
+        if (b == -1) { // empty input, like an empty byte array
+          done = true;
+          return null;
+        }
+        if (b != '[') throw exceptionReading("Malformed");
+        b = nextToken();
+        if (b == ']') {
+          done = true;
+          return null;
+        }
+      } else if (b == ']') {
+        done = true;
+        return null;
+      } else if (b == ',') {
+        b = nextToken();
+      } else {
+        throw exceptionReading(b == -1 ? "Truncated" : "Malformed");
+      }
+      if (b != '{') throw exceptionReading(b == -1 ? "Truncated" : "Malformed");
+      readObject();
+      return V2SpanBytesReader.readSpan(span, length);
+    }
+
+    /** Copies an object into {@link #span}, counting brackets outside of strings. */
+    void readObject() throws IOException {
+      length = 0;
+      append('{');
+      boolean inString = false;
+      for (int depth = 1; depth > 0; ) {
+        int b = source.read();
+        if (b == -1) throw exceptionReading("Truncated");
+        append(b);
+        if (inString) {
+          if (b == '\\') {
+            if ((b = source.read()) == -1) throw exceptionReading("Truncated");
+            append(b);
+          } else if (b == '"') {
+            inString = false;
+          }
+        } else if (b == '"') {
+          inString = true;
+        } else if (b == '{' || b == '[') {
+          depth++;
+        } else if (b == '}' || b == ']') {
+          depth--;
+        }
+      }
+    }
+
+    void append(int b) {
+      if (length == span.length) span = Arrays.copyOf(span, length * 2);
+      span[length++] = (byte) b;
+    }
+
+    int nextToken() throws IOException {
+      int b;
+      while ((b = source.read()) == ' ' || b == '\n' || b == '\r' || b == '\t') ;
+      return b;
+    }
+
+    static IllegalArgumentException exceptionReading(String cause) {
+      return new IllegalArgumentException(cause + " reading List<Span> from json");
+    }
+  }
+
+  /** Reads the fields of a {@code ListOfSpans} message, buffering each span field. */
+  static final class Proto3 extends SpanStreamReader {
+
+    Proto3(Source source) {
+      super(source);
+    }
+
+    @Override @Nullable public Span nextSpan() throws IOException {
+      int b;
+      while ((b = source.read()) != -1) {
+        int key = (int) readVarint(b);
+        if (key == 0) throw exceptionReading("Malformed: invalid field key");
+        if (key != LIST_OF_SPANS_SPAN) {
+          skip(key);
+          continue;
+        }
+        int length = readLength();
+        try {
+          span = source.readFully(span, length);
+        } catch (EOFException e) {
+          throw exceptionReading("Truncated");
+        }
+        return Proto3Codec.readSpan(span, length);
+      }
+      return null;
+    }
+
+    long readVarint(int b) throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (b == -1) throw exceptionReading("Truncated");
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return result;
+        b = source.read();
+      }
+      throw exceptionReading("Malformed: varint is over 10 bytes");
+    }
+
+    int readLength() throws IOException {
+      long length = readVarint(source.read());
+      if (length > Integer.MAX_VALUE) throw exceptionReading("Malformed: length " + length);
+      return (int) length;
+    }
+
+    void skip(int key) throws IOException {
+      int wireType = key & 7;
+      if (wireType == 0) {
+        readVarint(source.read());
+        return;
+      }
+      int length;
+      if (wireType == 1) {
+        length = 8;
+      } else if (wireType == 2) {
+        length = readLength();
+      } else if (wireType == 5) {
+        length = 4;
+      } else {
+        throw exceptionReading("Malformed: invalid wire type " + wireType);
+      }
+      try {
+        source.skip(length);
+      } catch (EOFException e) {
+        throw exceptionReading("Truncated");
+      }
+    }
+
+    static IllegalArgumentException exceptionReading(String cause) {
+      return new IllegalArgumentException(cause + " reading List<Span> from proto3");
+    }
+  }
+
+  abstract static class Source {
+    /** Returns the next byte, or -1 at the end of input. */
+    abstract int read() throws IOException;
+
+    /**
+     * Reads exactly length bytes into the start of the array, returning a larger one if it didn't
+     * fit. The array grows as bytes are read, so a corrupt length doesn't allocate up front.
+     *
+     * @throws EOFException if there are less than length bytes left
+     */
+    abstract byte[] readFully(byte[] dest, int length) throws IOException;
+
+    /** @throws EOFException if there are less than length bytes left */
+    abstract void skip(int length) throws IOException;
+  }
+
+  /** Reads the stream through a small buffer, as reading it a byte at a time is slow. */
+  static final class StreamSource extends Source {
+    final InputStream stream;
+    final byte[] buf = new byte[8192];
+    int pos, limit;
+
+    StreamSource(InputStream stream) {
+      this.stream = stream;
+    }
+
+    @Override int read() throws IOException {
+      if (pos == limit && !fill()) return -1;
+      return buf[pos++] & 0xff;
+    }
+
+    @Override byte[] readFully(byte[] dest, int length) throws IOException {
+      for (int copied = 0; copied < length; ) {
+        if (pos == limit && !fill()) throw new EOFException();
+        if (copied == dest.length) dest = Arrays.copyOf(dest, Math.min(length, copied * 2));
+        int count = Math.min(Math.min(length, dest.length) - copied, limit - pos);
+        System.arraycopy(buf, pos, dest, copied, count);
+        pos += count;
+        copied += count;
+      }
+      return dest;
+    }
+
+    @Override void skip(int length) throws IOException {
+      for (int skipped = 0; skipped < length; ) {
+        if (pos == limit && !fill()) throw new EOFException();
+        int count = Math.min(length - skipped, limit - pos);
+        pos += count;
+        skipped += count;
+      }
+    }
+
+    boolean fill() throws IOException {
+      int read = stream.read(buf, 0, buf.length);
+      if (read == -1) return false;
+      pos = 0;
+      limit = read;
+      return true;
+    }
+  }
+
+  /** Reads from the buffer's position, advancing it as bytes are read. */
+  static final class BufferSource extends Source {
+    final ByteBuffer buffer;
+
+    BufferSource(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override byte[] readFully(byte[] dest, int length) throws EOFException {
+      if (buffer.remaining() < length) throw new EOFException();
+      if (dest.length < length) dest = new byte[length];
+      buffer.get(dest, 0, length);
+      return dest;
+    }
+
+    @Override void skip(int length) throws EOFException {
+      if (buffer.remaining() < length) throw new EOFException();
+      buffer.position(buffer.position() + length);
+    }
+  }
+}
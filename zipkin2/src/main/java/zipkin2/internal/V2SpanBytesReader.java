@@ -0,0 +1,474 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * Reads v2 json spans directly from their UTF-8 bytes, instead of decoding characters for Gson.
+ *
+ * <p>Field names are matched against their bytes, and IDs and numbers are parsed in place. Only
+ * values such as names and tags become strings. This covers json as zipkin libraries write it.
+ * Other input, including invalid input, is re-read with {@link V2SpanReader}. This means results
+ * and error messages are the same as when Gson reads everything.
+ */
+public final class V2SpanBytesReader {
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  static final byte[]
+    TRACE_ID = ascii("traceId"),
+    PARENT_ID = ascii("parentId"),
+    ID = ascii("id"),
+    KIND = ascii("kind"),
+    NAME = ascii("name"),
+    TIMESTAMP = ascii("timestamp"),
+    DURATION = ascii("duration"),
+    LOCAL_ENDPOINT = ascii("localEndpoint"),
+    REMOTE_ENDPOINT = ascii("remoteEndpoint"),
+    ANNOTATIONS = ascii("annotations"),
+    TAGS = ascii("tags"),
+    DEBUG = ascii("debug"),
+    SHARED = ascii("shared"),
+    VALUE = ascii("value"),
+    SERVICE_NAME = ascii("serviceName"),
+    IPV4 = ascii("ipv4"),
+    IPV6 = ascii("ipv6"),
+    PORT = ascii("port");
+
+  /** Thrown when the input isn't in the subset read here. It never escapes this class. */
+  static final RuntimeException UNSUPPORTED = new IllegalStateException("unsupported json");
+
+  public static boolean read(byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    Span span;
+    try {
+      span = new V2SpanBytesReader(bytes).readSpan();
+    } catch (RuntimeException e) {
+      return JsonCodec.read(new V2SpanReader(), bytes, out);
+    }
+    out.add(span);
+    return true;
+  }
+
+  public static @Nullable Span readOne(byte[] bytes) {
+    List<Span> out = new ArrayList<>(1);
+    if (!read(bytes, out)) return null;
+    return out.get(0);
+  }
+
+  public static boolean readList(byte[] bytes, Collection<Span> out) {
+    if (bytes.length == 0) return false;
+    List<Span> spans;
+    try {
+      spans = new V2SpanBytesReader(bytes).readSpans();
+    } catch (RuntimeException e) {
+      return JsonCodec.readList(new V2SpanReader(), bytes, out);
+    }
+    if (spans.isEmpty()) return false;
+    out.addAll(spans);
+    return true;
+  }
+
+  public static List<Span> readList(byte[] bytes) {
+    if (bytes.length == 0) return Collections.emptyList();
+    try {
+      return new V2SpanBytesReader(bytes).readSpans();
+    } catch (RuntimeException e) {
+      return JsonCodec.readList(new V2SpanReader(), bytes);
+    }
+  }
+
+  /** Reads a span from the start of the buffer, which holds a json object of the given length. */
+  static Span readSpan(byte[] buf, int length) {
+    try {
+      return new V2SpanBytesReader(buf).readSpan();
+    } catch (RuntimeException e) {
+      List<Span> out = new ArrayList<>(1);
+      JsonCodec.read(new V2SpanReader(), Arrays.copyOf(buf, length), out);
+      return out.get(0);
+    }
+  }
+
+  final byte[] buf;
+  int pos, nameStart, nameEnd;
+  Span.Builder builder;
+
+  V2SpanBytesReader(byte[] buf) {
+    this.buf = buf;
+  }
+
+  List<Span> readSpans() {
+    if (nextToken() != '[') throw UNSUPPORTED;
+    List<Span> result = new ArrayList<>();
+    for (boolean first = true; nextElement(first); first = false) {
+      result.add(readSpan());
+    }
+    return result;
+  }
+
+  Span readSpan() {
+    if (nextToken() != '{') throw UNSUPPORTED;
+    if (builder == null) {
+      builder = Span.newBuilder();
+    } else {
+      builder.clear();
+    }
+    for (boolean first = true; nextName(first); first = false) {
+      if (nameEquals(TRACE_ID)) {
+        builder.traceId(readHex());
+        continue;
+      } else if (nameEquals(ID)) {
+        builder.id(readHex());
+        continue;
+      } else if (peekNull()) {
+        continue;
+      }
+
+      // read any optional fields
+      if (nameEquals(PARENT_ID)) {
+        builder.parentId(readHex());
+      } else if (nameEquals(KIND)) {
+        builder.kind(Span.Kind.valueOf(readString()));
+      } else if (nameEquals(NAME)) {
+        builder.name(readString());
+      } else if (nameEquals(TIMESTAMP)) {
+        builder.timestamp(readLong());
+      } else if (nameEquals(DURATION)) {
+        builder.duration(readLong());
+      } else if (nameEquals(LOCAL_ENDPOINT)) {
+        builder.localEndpoint(readEndpoint());
+      } else if (nameEquals(REMOTE_ENDPOINT)) {
+        builder.remoteEndpoint(readEndpoint());
+      } else if (nameEquals(ANNOTATIONS)) {
+        if (nextToken() != '[') throw UNSUPPORTED;
+        for (boolean firstElement = true; nextElement(firstElement); firstElement = false) {
+          readAnnotation();
+        }
+      } else if (nameEquals(TAGS)) {
+        if (nextToken() != '{') throw UNSUPPORTED;
+        for (boolean firstEntry = true; nextName(firstEntry); firstEntry = false) {
+          String key = string(nameStart, nameEnd);
+          if (peekNull()) throw UNSUPPORTED;
+          builder.putTag(key, readString());
+        }
+      } else if (nameEquals(DEBUG)) {
+        if (readBoolean()) builder.debug(true);
+      } else if (nameEquals(SHARED)) {
+        if (readBoolean()) builder.shared(true);
+      } else {
+        skipValue();
+      }
+    }
+    return builder.build();
+  }
+
+  void readAnnotation() {
+    if (nextToken() != '{') throw UNSUPPORTED;
+    long timestamp = 0L;
+    String value = null;
+    boolean readTimestamp = false;
+    for (boolean first = true; nextName(first); first = false) {
+      if (nameEquals(TIMESTAMP)) {
+        timestamp = readLong();
+        readTimestamp = true;
+      } else if (nameEquals(VALUE)) {
+        value = readString();
+      } else {
+        skipValue();
+      }
+    }
+    if (!readTimestamp || value == null) throw UNSUPPORTED;
+    builder.addAnnotation(timestamp, value);
+  }
+
+  Endpoint readEndpoint() {
+    if (nextToken() != '{') throw UNSUPPORTED;
+    Endpoint.Builder result = Endpoint.newBuilder();
+    boolean readField = false;
+    for (boolean first = true; nextName(first); first = false) {
+      if (peekNull()) continue;
+      if (nameEquals(SERVICE_NAME)) {
+        result.serviceName(readString());
+        readField = true;
+      } else if (nameEquals(IPV4) || nameEquals(IPV6)) {
+        result.parseIp(readString());
+        readField = true;
+      } else if (nameEquals(PORT)) {
+        long port = readLong();
+        if (port != (int) port) throw UNSUPPORTED;
+        result.port((int) port);
+        readField = true;
+      } else {
+        skipValue();
+      }
+    }
+    if (!readField) throw UNSUPPORTED;
+    return result.build();
+  }
+
+  /**
+   * Reads up to the value of the next field in an object, or returns false at the end of it. The
+   * name is left between {@link #nameStart} and {@link #nameEnd}.
+   */
+  boolean nextName(boolean first) {
+    byte b = nextToken();
+    if (b == '}') return false;
+    if (!first) {
+      if (b != ',') throw UNSUPPORTED;
+      b = nextToken();
+    }
+    if (b != '"') throw UNSUPPORTED;
+    nameStart = pos;
+    while ((b = buf[pos]) != '"') {
+      if (b == '\\') throw UNSUPPORTED;
+      pos++;
+    }
+    nameEnd = pos++;
+    if (nextToken() != ':') throw UNSUPPORTED;
+    return true;
+  }
+
+  /** Reads up to the next value in an array, or returns false at the end of it. */
+  boolean nextElement(boolean first) {
+    byte b = peekToken();
+    if (b == ']') {
+      pos++;
+      return false;
+    }
+    if (!first) {
+      if (b != ',') throw UNSUPPORTED;
+      pos++;
+    }
+    return true;
+  }
+
+  boolean nameEquals(byte[] name) {
+    int length = name.length;
+    if (nameEnd - nameStart != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (buf[nameStart + i] != name[i]) return false;
+    }
+    return true;
+  }
+
+  /** Returns true and consumes the value if it is null. */
+  boolean peekNull() {
+    if (peekToken() != 'n') return false;
+    if (buf[pos + 1] != 'u' || buf[pos + 2] != 'l' || buf[pos + 3] != 'l') throw UNSUPPORTED;
+    pos += 4;
+    return true;
+  }
+
+  boolean readBoolean() {
+    byte b = nextToken();
+    if (b == 't' && buf[pos] == 'r' && buf[pos + 1] == 'u' && buf[pos + 2] == 'e') {
+      pos += 3;
+      return true;
+    } else if (b == 'f' && buf[pos] == 'a' && buf[pos + 1] == 'l' && buf[pos + 2] == 's'
+      && buf[pos + 3] == 'e') {
+      pos += 4;
+      return false;
+    }
+    throw UNSUPPORTED;
+  }
+
+  /** Reads a json integer, leaving anything with a fraction, exponent or overflow to Gson. */
+  long readLong() {
+    byte b = nextToken();
+    boolean negative = b == '-';
+    if (negative) b = buf[pos++];
+    if (b < '0' || b > '9') throw UNSUPPORTED;
+    long result = b - '0';
+    int digits = 1;
+    while ((b = buf[pos]) >= '0' && b <= '9') {
+      if (result == 0 || ++digits > 18) throw UNSUPPORTED; // leading zero or could overflow
+      result = result * 10 + (b - '0');
+      pos++;
+    }
+    if (b == '.' || b == 'e' || b == 'E') throw UNSUPPORTED;
+    return negative ? -result : result;
+  }
+
+  /** Reads a lower-hex string, such as an ID, without decoding characters. */
+  String readHex() {
+    if (nextToken() != '"') throw UNSUPPORTED;
+    int start = pos;
+    byte b;
+    while ((b = buf[pos]) != '"') {
+      if ((b < '0' || b > '9') && (b < 'a' || b > 'f')) throw UNSUPPORTED;
+      pos++;
+    }
+    return ascii(start, pos++);
+  }
+
+  String readString() {
+    if (nextToken() != '"') throw UNSUPPORTED;
+    int start = pos;
+    byte b;
+    while ((b = buf[pos]) != '"') {
+      if (b == '\\') return readEscapedString(start);
+      pos++;
+    }
+    return string(start, pos++);
+  }
+
+  /** Slow path for a string which has escapes. {@link #pos} is at the first backslash. */
+  String readEscapedString(int start) {
+    StringBuilder result = new StringBuilder();
+    int segmentStart = start;
+    byte b;
+    while ((b = buf[pos]) != '"') {
+      if (b != '\\') {
+        pos++;
+        continue;
+      }
+      result.append(string(segmentStart, pos));
+      b = buf[pos + 1];
+      pos += 2;
+      switch (b) {
+        case '"':
+        case '\\':
+        case '/':
+          result.append((char) b);
+          break;
+        case 'b':
+          result.append('\b');
+          break;
+        case 'f':
+          result.append('\f');
+          break;
+        case 'n':
+          result.append('\n');
+          break;
+        case 'r':
+          result.append('\r');
+          break;
+        case 't':
+          result.append('\t');
+          break;
+        case 'u':
+          char c = 0;
+          for (int i = 0; i < 4; i++) {
+            c = (char) ((c << 4) | hexValue(buf[pos++]));
+          }
+          result.append(c);
+          break;
+        default:
+          throw UNSUPPORTED;
+      }
+      segmentStart = pos;
+    }
+    result.append(string(segmentStart, pos++));
+    return result.toString();
+  }
+
+  static int hexValue(byte b) {
+    if (b >= '0' && b <= '9') return b - '0';
+    if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+    if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+    throw UNSUPPORTED;
+  }
+
+  void skipValue() {
+    byte b = peekToken();
+    switch (b) {
+      case '"':
+        readString();
+        break;
+      case '{':
+        pos++;
+        for (boolean first = true; nextName(first); first = false) skipValue();
+        break;
+      case '[':
+        pos++;
+        for (boolean first = true; nextElement(first); first = false) skipValue();
+        break;
+      case 't':
+      case 'f':
+        readBoolean();
+        break;
+      case 'n':
+        if (!peekNull()) throw UNSUPPORTED;
+        break;
+      default:
+        skipNumber();
+    }
+  }
+
+  void skipNumber() {
+    if (buf[pos] == '-') pos++;
+    if (buf[pos] == '0') {
+      pos++;
+    } else {
+      skipDigits();
+    }
+    if (buf[pos] == '.') {
+      pos++;
+      skipDigits();
+    }
+    if (buf[pos] == 'e' || buf[pos] == 'E') {
+      pos++;
+      if (buf[pos] == '+' || buf[pos] == '-') pos++;
+      skipDigits();
+    }
+  }
+
+  void skipDigits() {
+    int start = pos;
+    while (buf[pos] >= '0' && buf[pos] <= '9') pos++;
+    if (pos == start) throw UNSUPPORTED;
+  }
+
+  /** Skips whitespace, returning and consuming the next byte. */
+  byte nextToken() {
+    byte b = peekToken();
+    pos++;
+    return b;
+  }
+
+  /** Skips whitespace, returning the next byte without consuming it. */
+  byte peekToken() {
+    byte b;
+    while ((b = buf[pos]) == ' ' || b == '\n' || b == '\r' || b == '\t') pos++;
+    return b;
+  }
+
+  /** Decodes UTF-8, avoiding the charset decoder when all bytes are ASCII. */
+  String string(int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buf[i] < 0) return new String(buf, start, end - start, UTF_8);
+    }
+    return ascii(start, end);
+  }
+
+  String ascii(int start, int end) {
+    char[] chars = new char[end - start];
+    for (int i = 0, length = chars.length; i < length; i++) {
+      chars[i] = (char) buf[start + i];
+    }
+    return new String(chars);
+  }
+
+  static byte[] ascii(String string) {
+    return string.getBytes(UTF_8);
+  }
+}
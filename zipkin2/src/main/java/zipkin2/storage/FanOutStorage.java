@@ -0,0 +1,481 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+
+/**
+ * Writes spans to several storage components concurrently, reading from one of them.
+ *
+ * <p>Each delegate has its own bounded queue and threads, so a slow or failing backend doesn't
+ * stall the others. The call returned by {@link SpanConsumer#accept(List)} completes when the
+ * primary has stored the spans: writes to secondaries are fire-and-forget. When a secondary's queue
+ * is full, its copy of the spans is dropped, and when it fails, the error is logged. Both are
+ * counted, see {@link #droppedMessages(String)} and {@link #failedMessages(String)}. When the
+ * primary's queue is full, the call fails with {@link RejectedExecutionException}.
+ *
+ * <p>Reads go to the primary. If a {@link Builder#readFallback(String) fallback} is set, reads
+ * that fail on the primary are retried against it.
+ *
+ * <p>Ex. to dual-write during a migration, reading from the old backend until the new one is
+ * populated:
+ * <pre>{@code
+ * storage = FanOutStorage.newBuilder()
+ *   .primary("cassandra", cassandra)
+ *   .addSecondary("elasticsearch", elasticsearch)
+ *   .build();
+ * }</pre>
+ */
+public final class FanOutStorage extends StorageComponent {
+  static final Logger LOG = Logger.getLogger(FanOutStorage.class.getName());
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    final Map<String, StorageComponent> delegates = new LinkedHashMap<>();
+    String primary, readFallback;
+    int queueSize = 1000, concurrency = 1;
+    long closeTimeoutMillis = 1000;
+
+    /** Sets the component that reads are served from and whose writes are waited for. */
+    public Builder primary(String name, StorageComponent primary) {
+      if (this.primary != null) throw new IllegalStateException("primary already set");
+      add(name, primary);
+      this.primary = name;
+      return this;
+    }
+
+    /** Adds a component that is written to without waiting. */
+    public Builder addSecondary(String name, StorageComponent secondary) {
+      add(name, secondary);
+      return this;
+    }
+
+    /** Names a secondary to read from when a read from the primary fails. Defaults to none. */
+    public Builder readFallback(@Nullable String readFallback) {
+      this.readFallback = readFallback;
+      return this;
+    }
+
+    /** Maximum count of writes waiting for each component. Defaults to 1000. */
+    public Builder queueSize(int queueSize) {
+      if (queueSize <= 0) throw new IllegalArgumentException("queueSize <= 0");
+      this.queueSize = queueSize;
+      return this;
+    }
+
+    /** Count of threads writing to each component. Defaults to 1. */
+    public Builder concurrency(int concurrency) {
+      if (concurrency <= 0) throw new IllegalArgumentException("concurrency <= 0");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /** How long {@link #close()} waits for queued writes before dropping them. Defaults to 1s. */
+    public Builder closeTimeout(long closeTimeout, TimeUnit unit) {
+      if (closeTimeout < 0) throw new IllegalArgumentException("closeTimeout < 0");
+      this.closeTimeoutMillis = unit.toMillis(closeTimeout);
+      return this;
+    }
+
+    public FanOutStorage build() {
+      if (primary == null) throw new IllegalStateException("primary not set");
+      if (readFallback != null && !delegates.containsKey(readFallback)) {
+        throw new IllegalStateException("readFallback " + readFallback + " isn't a secondary");
+      }
+      if (primary.equals(readFallback)) {
+        throw new IllegalStateException("readFallback " + readFallback + " is the primary");
+      }
+      return new FanOutStorage(this);
+    }
+
+    void add(String name, StorageComponent delegate) {
+      if (name == null) throw new NullPointerException("name == null");
+      if (delegate == null) throw new NullPointerException(name + " == null");
+      if (delegates.containsKey(name)) throw new IllegalArgumentException(name + " already added");
+      delegates.put(name, delegate);
+    }
+
+    Builder() {
+    }
+  }
+
+  final Delegate primary;
+  @Nullable final Delegate readFallback;
+  final List<Delegate> secondaries;
+  final long closeTimeoutMillis;
+  final FanOutSpanConsumer spanConsumer = new FanOutSpanConsumer();
+
+  FanOutStorage(Builder builder) {
+    Delegate primary = null, readFallback = null;
+    List<Delegate> secondaries = new ArrayList<>();
+    for (Map.Entry<String, StorageComponent> entry : builder.delegates.entrySet()) {
+      Delegate delegate = new Delegate(entry.getKey(), entry.getValue(), builder);
+      if (entry.getKey().equals(builder.primary)) {
+        primary = delegate;
+      } else {
+        secondaries.add(delegate);
+      }
+      if (entry.getKey().equals(builder.readFallback)) readFallback = delegate;
+    }
+    this.primary = primary;
+    this.readFallback = readFallback;
+    this.secondaries = secondaries;
+    this.closeTimeoutMillis = builder.closeTimeoutMillis;
+  }
+
+  @Override public SpanStore spanStore() {
+    SpanStore primaryStore = primary.storage.spanStore();
+    if (readFallback == null) return primaryStore;
+    return new FallbackSpanStore(primaryStore, readFallback.storage.spanStore());
+  }
+
+  @Override public SpanConsumer spanConsumer() {
+    return spanConsumer;
+  }
+
+  /** Returns the count of writes to the named component dropped because its queue was full. */
+  public long droppedMessages(String name) {
+    return delegate(name).dropped.get();
+  }
+
+  /** Returns the count of writes to the named component that failed. */
+  public long failedMessages(String name) {
+    return delegate(name).failed.get();
+  }
+
+  Delegate delegate(String name) {
+    if (primary.name.equals(name)) return primary;
+    for (Delegate secondary : secondaries) {
+      if (secondary.name.equals(name)) return secondary;
+    }
+    throw new IllegalArgumentException("unknown storage " + name);
+  }
+
+  /**
+   * Returns the result of the primary. Secondaries are isolated from failures in the write path,
+   * so they aren't considered here.
+   */
+  @Override public CheckResult check() {
+    return primary.storage.check();
+  }
+
+  /** Waits for queued writes, up to the close timeout, then closes all delegates. */
+  @Override public void close() throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(closeTimeoutMillis);
+    primary.executor.shutdown();
+    for (Delegate secondary : secondaries) secondary.executor.shutdown();
+    boolean interrupted = false;
+    IOException error = null;
+    for (Delegate delegate : all()) {
+      try {
+        long remaining = deadline - System.nanoTime();
+        if (!delegate.executor.awaitTermination(Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+          int dropped = delegate.executor.shutdownNow().size();
+          if (dropped > 0) LOG.warning("dropped " + dropped + " writes to " + delegate.name);
+        }
+      } catch (InterruptedException e) {
+        delegate.executor.shutdownNow();
+        interrupted = true;
+      }
+      try {
+        delegate.storage.close();
+      } catch (IOException e) {
+        if (error == null) error = e;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    if (error != null) throw error;
+  }
+
+  List<Delegate> all() {
+    List<Delegate> result = new ArrayList<>(secondaries.size() + 1);
+    result.add(primary);
+    result.addAll(secondaries);
+    return result;
+  }
+
+  @Override public String toString() {
+    List<String> names = new ArrayList<>();
+    for (Delegate secondary : secondaries) names.add(secondary.name);
+    return "FanOutStorage{primary=" + primary.name + ", secondaries=" + names
+      + (readFallback != null ? ", readFallback=" + readFallback.name : "") + "}";
+  }
+
+  static final class Delegate implements ThreadFactory {
+    final String name;
+    final StorageComponent storage;
+    final ThreadPoolExecutor executor;
+    final AtomicInteger threadCount = new AtomicInteger();
+    final AtomicLong dropped = new AtomicLong(), failed = new AtomicLong();
+
+    Delegate(String name, StorageComponent storage, Builder builder) {
+      this.name = name;
+      this.storage = storage;
+      this.executor = new ThreadPoolExecutor(builder.concurrency, builder.concurrency,
+        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(builder.queueSize), this);
+    }
+
+    @Override public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "zipkin-fanout-" + name + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+
+    /**
+     * Writes without waiting, counting and logging any failure. The call is made on this delegate's
+     * threads, as some span consumers store or convert spans when it is made.
+     */
+    void acceptAsync(final List<Span> spans) {
+      try {
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            try {
+              storage.spanConsumer().accept(spans).execute();
+            } catch (Throwable t) {
+              Call.propagateIfFatal(t);
+              failed.incrementAndGet();
+              LOG.log(Level.WARNING, "Cannot store spans in " + name + ": " + t.getMessage(), t);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        dropped.incrementAndGet();
+        if (LOG.isLoggable(Level.FINE)) LOG.fine("queue full: dropped spans for " + name);
+      }
+    }
+
+    /** Writes on this delegate's threads, invoking the callback when done. */
+    void accept(final FanOutCall fanOutCall, final Callback<Void> callback) {
+      try {
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            try {
+              Call<Void> call = storage.spanConsumer().accept(fanOutCall.spans);
+              fanOutCall.primaryCall = call;
+              if (fanOutCall.canceled) throw new IOException("Canceled");
+              call.execute();
+            } catch (Throwable t) {
+              Call.propagateIfFatal(t);
+              failed.incrementAndGet();
+              callback.onError(t);
+              return;
+            }
+            callback.onSuccess(null);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        dropped.incrementAndGet();
+        callback.onError(new RejectedExecutionException("queue full: " + name));
+      }
+    }
+  }
+
+  final class FanOutSpanConsumer implements SpanConsumer {
+    @Override public Call<Void> accept(List<Span> spans) {
+      if (spans.isEmpty()) return Call.create(null);
+      return new FanOutCall(spans);
+    }
+
+    @Override public String toString() {
+      return FanOutStorage.this.toString();
+    }
+  }
+
+  /**
+   * Nothing is done on the calling thread but queueing: each delegate makes its call to its span
+   * consumer on its own threads.
+   */
+  final class FanOutCall extends Call<Void> {
+    final List<Span> spans;
+    /** Set once the primary's call is made, so that it can be canceled */
+    @Nullable volatile Call<Void> primaryCall;
+    volatile boolean canceled;
+    boolean executed; // guarded by this
+
+    FanOutCall(List<Span> spans) {
+      this.spans = spans;
+    }
+
+    @Override public Void execute() throws IOException {
+      final CountDownLatch done = new CountDownLatch(1);
+      final AtomicReference<Throwable> error = new AtomicReference<>();
+      enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          done.countDown();
+        }
+
+        @Override public void onError(Throwable t) {
+          error.set(t);
+          done.countDown();
+        }
+      });
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        cancel();
+        throw new IOException("interrupted waiting for " + primary.name);
+      }
+      Throwable t = error.get();
+      if (t == null) return null;
+      if (t instanceof IOException) throw (IOException) t;
+      if (t instanceof RuntimeException) throw (RuntimeException) t;
+      if (t instanceof Error) throw (Error) t;
+      throw new IOException(t);
+    }
+
+    @Override public void enqueue(Callback<Void> callback) {
+      synchronized (this) {
+        if (executed) throw new IllegalStateException("Already Executed");
+        executed = true;
+      }
+      if (canceled) {
+        callback.onError(new IOException("Canceled"));
+        return;
+      }
+      for (int i = 0, length = secondaries.size(); i < length; i++) {
+        secondaries.get(i).acceptAsync(spans);
+      }
+      primary.accept(this, callback);
+    }
+
+    /** Cancels the write to the primary. Writes to secondaries already queued aren't affected. */
+    @Override public void cancel() {
+      canceled = true;
+      Call<Void> primaryCall = this.primaryCall;
+      if (primaryCall != null) primaryCall.cancel();
+    }
+
+    @Override public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override public Call<Void> clone() {
+      return new FanOutCall(spans);
+    }
+
+    @Override public String toString() {
+      return "FanOutCall{" + FanOutStorage.this + ", spans=" + spans.size() + "}";
+    }
+  }
+
+  static final class FallbackSpanStore implements SpanStore {
+    final SpanStore primary, fallback;
+
+    FallbackSpanStore(SpanStore primary, SpanStore fallback) {
+      this.primary = primary;
+      this.fallback = fallback;
+    }
+
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
+      return new FallbackCall<>(primary.getTraces(request), fallback.getTraces(request));
+    }
+
+    @Override public Call<List<Span>> getTrace(String traceId) {
+      return new FallbackCall<>(primary.getTrace(traceId), fallback.getTrace(traceId));
+    }
+
+    @Override public Call<List<String>> getServiceNames() {
+      return new FallbackCall<>(primary.getServiceNames(), fallback.getServiceNames());
+    }
+
+    @Override public Call<List<String>> getSpanNames(String serviceName) {
+      return new FallbackCall<>(primary.getSpanNames(serviceName),
+        fallback.getSpanNames(serviceName));
+    }
+
+    @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+      return new FallbackCall<>(primary.getDependencies(endTs, lookback),
+        fallback.getDependencies(endTs, lookback));
+    }
+  }
+
+  /** Invokes the fallback call when the primary one fails, unless it was canceled. */
+  static final class FallbackCall<V> extends Call<V> {
+    final Call<V> primary, fallback;
+
+    FallbackCall(Call<V> primary, Call<V> fallback) {
+      this.primary = primary;
+      this.fallback = fallback;
+    }
+
+    @Override public V execute() throws IOException {
+      try {
+        return primary.execute();
+      } catch (IOException | RuntimeException e) {
+        if (primary.isCanceled()) throw e;
+        LOG.log(Level.FINE, "falling back after read error", e);
+        return fallback.execute();
+      }
+    }
+
+    @Override public void enqueue(final Callback<V> callback) {
+      primary.enqueue(new Callback<V>() {
+        @Override public void onSuccess(@Nullable V value) {
+          callback.onSuccess(value);
+        }
+
+        @Override public void onError(Throwable t) {
+          if (primary.isCanceled()) {
+            callback.onError(t);
+            return;
+          }
+          LOG.log(Level.FINE, "falling back after read error", t);
+          fallback.enqueue(callback);
+        }
+      });
+    }
+
+    @Override public void cancel() {
+      primary.cancel();
+      fallback.cancel();
+    }
+
+    @Override public boolean isCanceled() {
+      return primary.isCanceled();
+    }
+
+    @Override public Call<V> clone() {
+      return new FallbackCall<>(primary.clone(), fallback.clone());
+    }
+
+    @Override public String toString() {
+      return "FallbackCall{" + primary + ", " + fallback + "}";
+    }
+  }
+}
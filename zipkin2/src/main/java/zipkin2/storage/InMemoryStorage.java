@@ -26,13 +26,19 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 import zipkin2.Call;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.internal.DependencyLinker;
+import zipkin2.internal.Proto3Codec;
 
 /**
  * Test storage component that keeps all spans in memory, accepting them on the calling thread.
@@ -54,16 +60,37 @@ import zipkin2.internal.DependencyLinker;
  *    bbbb --> [ <bbbb,July 5>, <bbbb,July 6> ]
  *    cccc --> [ <cccc,July 4> ]
  *
- * serviceToTraceIds:
- *    foo --> [ <aaaa>, <cccc>, <bbbb> ]
- *    bar --> [ <aaaa> ]
- *    biz --> [ <bbbb> ]
+ * serviceToTraceIdTimeStamps:
+ *    foo --> [ <bbbb,July 6>, <cccc,July 4>, <aaaa,July 4> ]
+ *    bar --> [ <aaaa,July 4> ]
+ *    biz --> [ <bbbb,July 5> ]
  *
  * serviceToSpanNames:
  *    bar --> ( GET )
  *    biz --> ( GET )
  *    foo --> ( GET, POST )
+ *
+ * traceIdToServiceNames:
+ *    aaaa --> [ foo, bar ]
+ *    bbbb --> [ biz, foo ]
+ *    cccc --> [ foo ]
  * }</pre>
+ *
+ * <p>Indexes are concurrent maps, so queries don't block ingestion. A trace's entries are changed
+ * while holding a lock chosen by its trace ID, and a service's entries while holding one chosen by
+ * its name. Queries hold the same locks only long enough to copy a trace or a service's entries,
+ * so each trace returned is consistent. A trace lock is always taken before a service lock.
+ *
+ * <p>Queries scan only the part of a timestamp-ordered index that is within their time window,
+ * newest first, and stop once they have found enough traces.
+ *
+ * <p>When {@link Builder#maxBytes(long)} is set, spans are stored in proto3 encoding and decoded
+ * when read. This is usually several times smaller than a span object, notably when spans have
+ * many tags, so the same heap holds more traces.
+ *
+ * <p>When {@link Builder#offHeap(boolean)} is also set, encoded spans are written to direct
+ * buffers instead, and only indexes stay on the heap. This reduces garbage collection pauses when
+ * millions of spans are retained.
  */
 public final class InMemoryStorage extends StorageComponent implements SpanStore, SpanConsumer {
 
@@ -74,6 +101,8 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
   public static final class Builder extends StorageComponent.Builder {
     boolean strictTraceId = true;
     int maxSpanCount = 500000;
+    long maxBytes;
+    boolean offHeap;
 
     /** {@inheritDoc} */
     @Override public Builder strictTraceId(boolean strictTraceId) {
@@ -88,7 +117,31 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
       return this;
     }
 
+    /**
+     * When set, spans are stored encoded, and eldest traces are removed to ensure their encoded
+     * size doesn't exceed this value. This doesn't include the size of indexes. The span count is
+     * still limited by {@link #maxSpanCount(int)}. Defaults to zero, which stores span objects.
+     */
+    public Builder maxBytes(long maxBytes) {
+      if (maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * When true, {@link #maxBytes(long) maxBytes} of direct memory are split into segments, which
+     * hold encoded spans in the order they were accepted. When all are full, the oldest segment is
+     * dropped, along with all traces that had spans in it. Spans larger than a segment are dropped,
+     * as keeping them on the heap would be unbounded: see {@link #oversizedSpanCount()}. Defaults
+     * to false.
+     */
+    public Builder offHeap(boolean offHeap) {
+      this.offHeap = offHeap;
+      return this;
+    }
+
     @Override public InMemoryStorage build() {
+      if (offHeap && maxBytes == 0L) throw new IllegalArgumentException("offHeap requires maxBytes");
       return new InMemoryStorage(this);
     }
   }
@@ -97,10 +150,13 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
    * Primary source of data is this map, which includes spans ordered descending by timestamp. All
    * other maps are derived from the span values here. This uses a list for the spans, so that it is
    * visible (via /api/v2/trace/id?raw) when instrumentation report the same spans multiple times.
+   *
+   * <p>Values are spans, or their proto3 encoding when {@link #maxBytes} is set. When {@link
+   * #segments} are in use, values are references to encoded spans in them.
    */
-  private final SortedMultimap<TraceIdTimestamp, Span> spansByTraceIdTimeStamp =
+  private final SortedMultimap<TraceIdTimestamp, Object> spansByTraceIdTimeStamp =
     new SortedMultimap(TIMESTAMP_DESCENDING) {
-      @Override Collection<Span> valueContainer() {
+      @Override Collection<Object> valueContainer() {
         return new LinkedList<>();
       }
     };
@@ -112,8 +168,17 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
         return new LinkedHashSet<>();
       }
     };
-  /** This is an index of {@link Span#traceId} by {@link zipkin.Endpoint#serviceName service name} */
-  private final ServiceNameToTraceIds serviceToTraceIds = new ServiceNameToTraceIds();
+  /**
+   * This is an index of {@link Span#traceId} by {@link zipkin.Endpoint#serviceName service name},
+   * ordered like {@link #spansByTraceIdTimeStamp}. Values are concurrent sets, so that queries can
+   * scan them without holding the service lock.
+   */
+  private final SortedMultimap<String, TraceIdTimestamp> serviceToTraceIdTimeStamps =
+    new SortedMultimap<String, TraceIdTimestamp>(String::compareTo) {
+      @Override Collection<TraceIdTimestamp> valueContainer() {
+        return new ConcurrentSkipListSet<>(TIMESTAMP_DESCENDING);
+      }
+    };
   /** This is an index of {@link Span#name} by {@link zipkin.Endpoint#serviceName service name} */
   private final SortedMultimap<String, String> serviceToSpanNames =
     new SortedMultimap<String, String>(String::compareTo) {
@@ -121,49 +186,135 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
         return new LinkedHashSet<>();
       }
     };
+  /**
+   * This is the reverse of {@link #serviceToTraceIdTimeStamps}, so that evicting a trace only visits the
+   * services it contributed to. Span names are indexed by service, so they are removed with it.
+   */
+  private final SortedMultimap<String, String> traceIdToServiceNames =
+    new SortedMultimap<String, String>(String::compareTo) {
+      @Override Collection<String> valueContainer() {
+        return new LinkedHashSet<>();
+      }
+    };
+
+  /** Locks are chosen by hash code, so they are shared by unrelated keys. A power of two. */
+  static final int LOCK_STRIPES = 64;
 
+  final Object[] traceLocks = newLocks(), serviceLocks = newLocks();
+  /** Only one thread evicts at a time, while others keep accepting spans */
+  final Object evictionLock = new Object();
   final boolean strictTraceId;
   final int maxSpanCount;
-  volatile int acceptedSpanCount;
+  final long maxBytes;
+  final AtomicInteger acceptedSpanCount = new AtomicInteger();
+  /** Sum of encoded span sizes on the heap, when {@link #maxBytes} is set */
+  final AtomicLong storedBytes = new AtomicLong();
+  /** Off-heap storage of encoded spans, or null to store them on the heap */
+  @Nullable final SpanSegments segments;
+  final AtomicLong evictions = new AtomicLong(), evictedTraces = new AtomicLong(),
+    evictedSpans = new AtomicLong(), evictionNanos = new AtomicLong();
+  final AtomicLong oversizedSpans = new AtomicLong();
 
   InMemoryStorage(Builder builder) {
     this.strictTraceId = builder.strictTraceId;
     this.maxSpanCount = builder.maxSpanCount;
+    this.maxBytes = builder.maxBytes;
+    this.segments = builder.offHeap ? new SpanSegments(maxBytes, OFF_HEAP_SEGMENTS) : null;
   }
 
-  public synchronized void clear() {
-    acceptedSpanCount = 0;
-    traceIdToTraceIdTimeStamps.clear();
-    spansByTraceIdTimeStamp.clear();
-    serviceToTraceIds.clear();
-    serviceToSpanNames.clear();
+  /** Count of off-heap segments, so a sixteenth of spans is dropped at a time. */
+  static final int OFF_HEAP_SEGMENTS = 16;
+
+  /** Used for testing. Spans accepted concurrently with this might not be cleared. */
+  public void clear() {
+    synchronized (evictionLock) {
+      acceptedSpanCount.set(0);
+      storedBytes.set(0);
+      traceIdToTraceIdTimeStamps.clear();
+      spansByTraceIdTimeStamp.clear();
+      serviceToTraceIdTimeStamps.clear();
+      serviceToSpanNames.clear();
+      traceIdToServiceNames.clear();
+      if (segments != null) segments.clear();
+    }
   }
 
-  @Override synchronized public Call<Void> accept(List<Span> spans) {
+  /**
+   * When concurrent calls are evicting at the same time, the span count can briefly exceed {@link
+   * Builder#maxSpanCount(int)} by the size of their input. Likewise {@link Builder#maxBytes(long)}.
+   */
+  @Override public Call<Void> accept(List<Span> spans) {
     int delta = spans.size();
-    int spansToRecover = (spansByTraceIdTimeStamp.size() + delta) - maxSpanCount;
-    evictToRecoverSpans(spansToRecover);
-    for (Span span : spans) {
+    long deltaBytes = 0L;
+    Object[] values = new Object[delta];
+    List<String> droppedTraces = null;
+    for (int i = 0; i < delta; i++) {
+      if (maxBytes == 0L) {
+        values[i] = spans.get(i);
+        continue;
+      }
+      byte[] encoded = Proto3Codec.write(spans.get(i));
+      if (segments != null) {
+        if (droppedTraces == null) droppedTraces = new ArrayList<>();
+        // null when larger than a segment, so the span is dropped below
+        values[i] = segments.write(lowTraceId(spans.get(i).traceId()), encoded, droppedTraces);
+        continue;
+      }
+      deltaBytes += encoded.length;
+      values[i] = encoded;
+    }
+    Set<String> evictedTraces = null;
+    if (droppedTraces != null && !droppedTraces.isEmpty()) {
+      synchronized (evictionLock) {
+        evictTraces(droppedTraces);
+      }
+      evictedTraces = new LinkedHashSet<>(droppedTraces);
+    }
+    if (isFull(delta, deltaBytes)) {
+      synchronized (evictionLock) {
+        evict(delta, deltaBytes);
+      }
+    }
+    for (int i = 0; i < delta; i++) {
+      Span span = spans.get(i);
       Long timestamp = span.timestamp() != null ? span.timestamp() : Long.MIN_VALUE;
       String lowTraceId = lowTraceId(span.traceId());
-      TraceIdTimestamp traceIdTimeStamp = TraceIdTimestamp.create(lowTraceId, timestamp);
-      spansByTraceIdTimeStamp.put(traceIdTimeStamp, span);
-      traceIdToTraceIdTimeStamps.put(lowTraceId, traceIdTimeStamp);
-      acceptedSpanCount++;
-
-      String spanName = span.name();
-      if (span.localServiceName() != null) {
-        serviceToTraceIds.put(span.localServiceName(), lowTraceId);
-        serviceToSpanNames.put(span.localServiceName(), spanName);
+      acceptedSpanCount.incrementAndGet();
+      if (values[i] == null) {
+        oversizedSpans.incrementAndGet();
+        continue;
       }
-      if (span.remoteServiceName() != null) {
-        serviceToTraceIds.put(span.remoteServiceName(), lowTraceId);
-        serviceToSpanNames.put(span.remoteServiceName(), spanName);
+      if (evictedTraces != null && evictedTraces.contains(lowTraceId)) {
+        evictedSpans.incrementAndGet(); // don't index what's left of a trace that was just evicted
+        continue;
+      }
+      TraceIdTimestamp traceIdTimeStamp = TraceIdTimestamp.create(lowTraceId, timestamp);
+      synchronized (traceLock(lowTraceId)) {
+        spansByTraceIdTimeStamp.put(traceIdTimeStamp, values[i]);
+        if (values[i] instanceof byte[]) storedBytes.addAndGet(((byte[]) values[i]).length);
+        traceIdToTraceIdTimeStamps.put(lowTraceId, traceIdTimeStamp);
+
+        String spanName = span.name();
+        if (span.localServiceName() != null) {
+          traceIdToServiceNames.put(lowTraceId, span.localServiceName());
+          putService(span.localServiceName(), traceIdTimeStamp, spanName);
+        }
+        if (span.remoteServiceName() != null) {
+          traceIdToServiceNames.put(lowTraceId, span.remoteServiceName());
+          putService(span.remoteServiceName(), traceIdTimeStamp, spanName);
+        }
       }
     }
     return Call.create(null /* Void == null */);
   }
 
+  void putService(String serviceName, TraceIdTimestamp traceIdTimeStamp, String spanName) {
+    synchronized (serviceLock(serviceName)) {
+      serviceToTraceIdTimeStamps.put(serviceName, traceIdTimeStamp);
+      serviceToSpanNames.put(serviceName, spanName);
+    }
+  }
+
   @AutoValue
   static abstract class TraceIdTimestamp {
     static TraceIdTimestamp create(String traceId, long timestamp) {
@@ -175,48 +326,126 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     abstract long timestamp();
   }
 
-  /** Returns the count of spans evicted. */
-  int evictToRecoverSpans(int spansToRecover) {
-    int spansEvicted = 0;
-    while (spansToRecover > 0) {
-      int spansInOldestTrace = deleteOldestTrace();
-      spansToRecover -= spansInOldestTrace;
+  /** Returns true if adding the input would exceed the span count or byte limit. */
+  boolean isFull(int delta, long deltaBytes) {
+    if (spansByTraceIdTimeStamp.size() + delta > maxSpanCount) return true;
+    // off-heap, bytes are limited by dropping segments instead
+    return maxBytes != 0L && segments == null && storedBytes.get() + deltaBytes > maxBytes;
+  }
+
+  /**
+   * Evicts the eldest traces until the input fits, returning the count of spans evicted. Call this
+   * while holding the eviction lock.
+   */
+  int evict(int delta, long deltaBytes) {
+    long start = System.nanoTime();
+    int spansEvicted = 0, tracesEvicted = 0;
+    while (isFull(delta, deltaBytes)) {
+      TraceIdTimestamp oldest = spansByTraceIdTimeStamp.lastKey();
+      if (oldest == null) break; // nothing left to evict
+      int spansInOldestTrace = deleteTrace(oldest.lowTraceId());
+      if (spansInOldestTrace == 0) break; // cleared concurrently
       spansEvicted += spansInOldestTrace;
+      tracesEvicted++;
     }
+    recordEviction(start, tracesEvicted, spansEvicted);
     return spansEvicted;
   }
 
+  /**
+   * Evicts traces that had spans in a dropped segment, as they would otherwise be incomplete. Call
+   * this while holding the eviction lock.
+   */
+  void evictTraces(List<String> lowTraceIds) {
+    long start = System.nanoTime();
+    int spansEvicted = 0, tracesEvicted = 0;
+    for (int i = 0, length = lowTraceIds.size(); i < length; i++) {
+      int spansInTrace = deleteTrace(lowTraceIds.get(i));
+      if (spansInTrace == 0) continue; // already evicted
+      spansEvicted += spansInTrace;
+      tracesEvicted++;
+    }
+    recordEviction(start, tracesEvicted, spansEvicted);
+  }
+
+  void recordEviction(long start, int tracesEvicted, int spansEvicted) {
+    evictionNanos.addAndGet(System.nanoTime() - start);
+    evictions.incrementAndGet();
+    evictedTraces.addAndGet(tracesEvicted);
+    evictedSpans.addAndGet(spansEvicted);
+  }
+
+  /** Count of times spans were evicted to stay under the span count or byte limits. */
+  public long evictionCount() {
+    return evictions.get();
+  }
+
+  /** Count of traces evicted to stay under the span count or byte limits. */
+  public long evictedTraceCount() {
+    return evictedTraces.get();
+  }
+
+  /** Count of spans evicted to stay under the span count or byte limits. */
+  public long evictedSpanCount() {
+    return evictedSpans.get();
+  }
+
+  /** Count of spans dropped because they are larger than an off-heap segment. */
+  public long oversizedSpanCount() {
+    return oversizedSpans.get();
+  }
+
+  /** Time spent evicting, which accepting threads wait for. */
+  public long evictionNanos() {
+    return evictionNanos.get();
+  }
+
   /** Returns the count of spans evicted. */
-  private int deleteOldestTrace() {
+  private int deleteTrace(String lowTraceId) {
     int spansEvicted = 0;
-    String lowTraceId = spansByTraceIdTimeStamp.delegate.lastKey().lowTraceId();
-    Collection<TraceIdTimestamp> traceIdTimeStamps = traceIdToTraceIdTimeStamps.remove(lowTraceId);
-    for (Iterator<TraceIdTimestamp> traceIdTimeStampIter = traceIdTimeStamps.iterator();
-      traceIdTimeStampIter.hasNext(); ) {
-      TraceIdTimestamp traceIdTimeStamp = traceIdTimeStampIter.next();
-      Collection<Span> spans = spansByTraceIdTimeStamp.remove(traceIdTimeStamp);
-      spansEvicted += spans.size();
-    }
-    for (String orphanedService : serviceToTraceIds.removeServiceIfTraceId(lowTraceId)) {
-      serviceToSpanNames.remove(orphanedService);
+    synchronized (traceLock(lowTraceId)) {
+      Collection<TraceIdTimestamp> traceIdTimeStamps =
+        traceIdToTraceIdTimeStamps.remove(lowTraceId);
+      if (traceIdTimeStamps == null) return 0; // cleared concurrently
+      for (TraceIdTimestamp traceIdTimeStamp : traceIdTimeStamps) {
+        Collection<Object> values = spansByTraceIdTimeStamp.remove(traceIdTimeStamp);
+        if (values == null) continue;
+        spansEvicted += values.size();
+        if (maxBytes == 0L) continue;
+        for (Object value : values) {
+          if (value instanceof byte[]) storedBytes.addAndGet(-((byte[]) value).length);
+        }
+      }
+      Collection<String> serviceNames = traceIdToServiceNames.remove(lowTraceId);
+      if (serviceNames == null) return spansEvicted; // no span had a service name
+      for (String serviceName : serviceNames) {
+        synchronized (serviceLock(serviceName)) {
+          if (serviceToTraceIdTimeStamps.removeAll(serviceName, traceIdTimeStamps)) { // orphaned
+            serviceToSpanNames.remove(serviceName);
+          }
+        }
+      }
     }
     return spansEvicted;
   }
 
   @Override
-  public synchronized Call<List<List<Span>>> getTraces(QueryRequest request) {
+  public Call<List<List<Span>>> getTraces(QueryRequest request) {
     return getTraces(request, strictTraceId);
   }
 
-  synchronized Call<List<List<Span>>> getTraces(QueryRequest request, boolean strictTraceId) {
-    Set<String> traceIdsInTimerange = traceIdsDescendingByTimestamp(request);
-    if (traceIdsInTimerange.isEmpty()) return Call.emptyList();
+  Call<List<List<Span>>> getTraces(QueryRequest request, boolean strictTraceId) {
+    Collection<TraceIdTimestamp> traceIdTimestamps = traceIdTimestampsDescending(request);
+    if (traceIdTimestamps.isEmpty()) return Call.emptyList();
 
     List<List<Span>> result = new ArrayList<>();
-    for (Iterator<String> lowTraceId = traceIdsInTimerange.iterator();
-      lowTraceId.hasNext() && result.size() < request.limit(); ) {
-      List<Span> next = spansByTraceId(lowTraceId.next());
-      if (!request.test(next)) continue;
+    Set<String> visited = new LinkedHashSet<>(); // a trace can have spans at many timestamps
+    for (Iterator<TraceIdTimestamp> i = traceIdTimestamps.iterator();
+      i.hasNext() && result.size() < request.limit(); ) {
+      String lowTraceId = i.next().lowTraceId();
+      if (!visited.add(lowTraceId)) continue;
+      List<Span> next = spansByTraceId(lowTraceId);
+      if (next.isEmpty() || !request.test(next)) continue; // empty when evicted concurrently
       if (!strictTraceId) {
         result.add(next);
         continue;
@@ -244,10 +473,11 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
   }
 
   /** Used for testing. Returns all traces unconditionally. */
-  public synchronized List<List<Span>> getTraces() {
+  public List<List<Span>> getTraces() {
     List<List<Span>> result = new ArrayList<>();
     for (String lowTraceId : traceIdToTraceIdTimeStamps.keySet()) {
       List<Span> sameTraceId = spansByTraceId(lowTraceId);
+      if (sameTraceId.isEmpty()) continue; // evicted concurrently
       if (strictTraceId) {
         result.addAll(strictByTraceId(sameTraceId));
       } else {
@@ -257,25 +487,27 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     return result;
   }
 
-  Set<String> traceIdsDescendingByTimestamp(QueryRequest request) {
-    Collection<TraceIdTimestamp> traceIdTimestamps = request.serviceName() != null
-      ? traceIdTimestampsByServiceName(request.serviceName())
-      : spansByTraceIdTimeStamp.keySet();
-
+  /**
+   * Returns a view of the index entries between {@link QueryRequest#endTs()} and its lookback,
+   * newest first. The view is read lazily, so callers only pay for the entries they consume.
+   */
+  Collection<TraceIdTimestamp> traceIdTimestampsDescending(QueryRequest request) {
     long endTs = request.endTs() * 1000;
     long startTs = endTs - request.lookback() * 1000;
+    // within a timestamp, trace IDs are descending: these sort before and after any real ID
+    TraceIdTimestamp newest = TraceIdTimestamp.create("\uffff", endTs);
+    TraceIdTimestamp oldest = TraceIdTimestamp.create("", startTs);
 
-    if (traceIdTimestamps == null || traceIdTimestamps.isEmpty()) return Collections.emptySet();
-    Set<String> result = new LinkedHashSet<>();
-    for (TraceIdTimestamp traceIdTimestamp : traceIdTimestamps) {
-      if (traceIdTimestamp.timestamp() >= startTs || traceIdTimestamp.timestamp() <= endTs) {
-        result.add(traceIdTimestamp.lowTraceId());
-      }
+    if (request.serviceName() == null) {
+      return spansByTraceIdTimeStamp.keySet(newest, oldest);
     }
-    return result;
+    Collection<TraceIdTimestamp> byService =
+      serviceToTraceIdTimeStamps.get(request.serviceName());
+    if (!(byService instanceof NavigableSet)) return Collections.emptySet(); // unknown service
+    return ((NavigableSet<TraceIdTimestamp>) byService).subSet(newest, true, oldest, true);
   }
 
-  @Override public synchronized Call<List<Span>> getTrace(String traceId) {
+  @Override public Call<List<Span>> getTrace(String traceId) {
     traceId = Span.normalizeTraceId(traceId);
     List<Span> spans = spansByTraceId(lowTraceId(traceId));
     if (spans == null || spans.isEmpty()) return Call.emptyList();
@@ -291,18 +523,19 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     return Call.create(filtered);
   }
 
-  @Override public synchronized Call<List<String>> getServiceNames() {
-    return Call.create(new ArrayList<>(serviceToTraceIds.keySet()));
+  @Override public Call<List<String>> getServiceNames() {
+    return Call.create(new ArrayList<>(serviceToTraceIdTimeStamps.keySet()));
   }
 
-  @Override public synchronized Call<List<String>> getSpanNames(String service) {
+  @Override public Call<List<String>> getSpanNames(String service) {
     if (service.isEmpty()) return Call.emptyList();
     service = service.toLowerCase(Locale.ROOT); // service names are always lowercase!
-    return Call.create(new ArrayList<>(serviceToSpanNames.get(service)));
+    synchronized (serviceLock(service)) {
+      return Call.create(new ArrayList<>(serviceToSpanNames.get(service)));
+    }
   }
 
-  @Override
-  public synchronized Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+  @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
     QueryRequest request = QueryRequest.newBuilder()
       .endTs(endTs)
       .lookback(lookback)
@@ -328,36 +561,16 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     return right.lowTraceId().compareTo(left.lowTraceId());
   };
 
-  static final class ServiceNameToTraceIds extends SortedMultimap<String, String> {
-    ServiceNameToTraceIds() {
-      super(String::compareTo);
-    }
-
-    @Override Set<String> valueContainer() {
-      return new LinkedHashSet<>();
-    }
-
-    /** Returns service names orphaned by removing the trace ID */
-    Set<String> removeServiceIfTraceId(String lowTraceId) {
-      Set<String> result = new LinkedHashSet<>();
-      for (Map.Entry<String, Collection<String>> entry : delegate.entrySet()) {
-        Collection<String> lowTraceIds = entry.getValue();
-        if (lowTraceIds.remove(lowTraceId) && lowTraceIds.isEmpty()) {
-          result.add(entry.getKey());
-        }
-      }
-      delegate.keySet().removeAll(result);
-      return result;
-    }
-  }
-
-  // Not synchronized as every exposed method on the enclosing type is
+  /**
+   * Keys can be read at any time, but values of a key must only be changed while holding the lock
+   * for that key. Unless the value container is concurrent, they must also only be read then.
+   */
   static abstract class SortedMultimap<K, V> {
-    final SortedMap<K, Collection<V>> delegate;
-    int size = 0;
+    final ConcurrentNavigableMap<K, Collection<V>> delegate;
+    final AtomicInteger size = new AtomicInteger();
 
     SortedMultimap(Comparator<K> comparator) {
-      delegate = new TreeMap<>(comparator);
+      delegate = new ConcurrentSkipListMap<>(comparator);
     }
 
     abstract Collection<V> valueContainer();
@@ -367,7 +580,17 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     }
 
     int size() {
-      return size;
+      return size.get();
+    }
+
+    /** Returns a view of keys from the first to the last, inclusive. */
+    NavigableSet<K> keySet(K first, K last) {
+      return delegate.subMap(first, true, last, true).navigableKeySet();
+    }
+
+    @Nullable K lastKey() {
+      Map.Entry<K, Collection<V>> last = delegate.lastEntry();
+      return last != null ? last.getKey() : null;
     }
 
     void put(K key, V value) {
@@ -375,18 +598,33 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
       if (valueContainer == null) {
         delegate.put(key, valueContainer = valueContainer());
       }
-      if (valueContainer.add(value)) size++;
+      if (valueContainer.add(value)) size.incrementAndGet();
     }
 
-    Collection<V> remove(K key) {
+    @Nullable Collection<V> remove(K key) {
       Collection<V> value = delegate.remove(key);
-      if (value != null) size -= value.size();
+      if (value != null) size.addAndGet(-value.size());
       return value;
     }
 
+    /** Returns true if the values were the last ones for the key, which is then removed. */
+    boolean removeAll(K key, Collection<V> values) {
+      Collection<V> valueContainer = delegate.get(key);
+      if (valueContainer == null) return false;
+      boolean removed = false;
+      for (V value : values) {
+        if (!valueContainer.remove(value)) continue;
+        size.decrementAndGet();
+        removed = true;
+      }
+      if (!removed || !valueContainer.isEmpty()) return false;
+      delegate.remove(key);
+      return true;
+    }
+
     void clear() {
       delegate.clear();
-      size = 0;
+      size.set(0);
     }
 
     Collection<V> get(K key) {
@@ -397,19 +635,36 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
 
   private List<Span> spansByTraceId(String lowTraceId) {
     List<Span> sameTraceId = new ArrayList<>();
-    for (TraceIdTimestamp traceIdTimestamp : traceIdToTraceIdTimeStamps.get(lowTraceId)) {
-      sameTraceId.addAll(spansByTraceIdTimeStamp.get(traceIdTimestamp));
+    synchronized (traceLock(lowTraceId)) {
+      for (TraceIdTimestamp traceIdTimestamp : traceIdToTraceIdTimeStamps.get(lowTraceId)) {
+        for (Object value : spansByTraceIdTimeStamp.get(traceIdTimestamp)) {
+          Span span = decode(value);
+          if (span != null) sameTraceId.add(span);
+        }
+      }
     }
     return sameTraceId;
   }
 
-  private Collection<TraceIdTimestamp> traceIdTimestampsByServiceName(String serviceName) {
-    List<TraceIdTimestamp> traceIdTimestamps = new ArrayList<>();
-    for (String lowTraceId : serviceToTraceIds.get(serviceName)) {
-      traceIdTimestamps.addAll(traceIdToTraceIdTimeStamps.get(lowTraceId));
-    }
-    Collections.sort(traceIdTimestamps, TIMESTAMP_DESCENDING);
-    return traceIdTimestamps;
+  /** Returns the span, or null if it was in a segment that was dropped. */
+  @Nullable static Span decode(Object value) {
+    if (value instanceof Span) return (Span) value;
+    byte[] encoded = value instanceof byte[] ? (byte[]) value : ((SpanSegments.Ref) value).read();
+    return encoded != null ? Proto3Codec.readOne(encoded) : null;
+  }
+
+  Object traceLock(String lowTraceId) {
+    return traceLocks[lowTraceId.hashCode() & (LOCK_STRIPES - 1)];
+  }
+
+  Object serviceLock(String serviceName) {
+    return serviceLocks[serviceName.hashCode() & (LOCK_STRIPES - 1)];
+  }
+
+  static Object[] newLocks() {
+    Object[] result = new Object[LOCK_STRIPES];
+    for (int i = 0; i < LOCK_STRIPES; i++) result[i] = new Object();
+    return result;
   }
 
   static String lowTraceId(String traceId) {
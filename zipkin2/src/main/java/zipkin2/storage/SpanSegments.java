@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Encoded spans in fixed-size direct buffers, which are outside the heap. Spans are appended to the
+ * newest segment. When all segments are full, the oldest is dropped whole and written over, so
+ * there is no per-span cleanup of memory.
+ *
+ * <p>Each segment remembers the traces written to it, so that the caller can remove them from its
+ * indexes once the segment is dropped. Until then, reading a dropped span returns null.
+ */
+final class SpanSegments {
+  final int segmentSize, segmentCount;
+  /** Oldest first. The last segment is the one written to. */
+  final ArrayDeque<Segment> ring = new ArrayDeque<>();
+  final ArrayDeque<Segment> free = new ArrayDeque<>();
+
+  SpanSegments(long maxBytes, int segmentCount) {
+    if (maxBytes / segmentCount < 1) throw new IllegalArgumentException("maxBytes < segmentCount");
+    this.segmentSize = (int) Math.min(maxBytes / segmentCount, Integer.MAX_VALUE);
+    this.segmentCount = segmentCount;
+  }
+
+  /**
+   * Returns a reference to the span written, or null if it is larger than a segment. If the oldest
+   * segment was dropped to make room, the traces that were in it are added to the list.
+   */
+  synchronized @Nullable Ref write(String lowTraceId, byte[] encoded, List<String> droppedTraces) {
+    if (encoded.length > segmentSize) return null;
+    Segment current = ring.peekLast();
+    if (current == null || !current.hasRoom(encoded.length)) {
+      current = nextSegment(droppedTraces);
+      ring.addLast(current);
+    }
+    return current.write(lowTraceId, encoded);
+  }
+
+  Segment nextSegment(List<String> droppedTraces) {
+    if (!free.isEmpty()) return free.removeFirst();
+    if (ring.size() < segmentCount) return new Segment(ByteBuffer.allocateDirect(segmentSize));
+    Segment oldest = ring.removeFirst();
+    oldest.recycle(droppedTraces);
+    return oldest;
+  }
+
+  /** Drops all segments, keeping their memory for reuse. */
+  synchronized void clear() {
+    List<String> ignored = new ArrayList<>();
+    while (!ring.isEmpty()) {
+      Segment segment = ring.removeFirst();
+      segment.recycle(ignored);
+      ignored.clear();
+      free.addLast(segment);
+    }
+  }
+
+  static final class Segment {
+    final ByteBuffer buffer;
+    final List<String> lowTraceIds = new ArrayList<>();
+    /** Incremented when the segment is dropped, which invalidates references to it. */
+    int generation;
+
+    Segment(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    synchronized boolean hasRoom(int length) {
+      return buffer.remaining() >= length;
+    }
+
+    synchronized Ref write(String lowTraceId, byte[] encoded) {
+      int offset = buffer.position();
+      buffer.put(encoded);
+      // spans of a trace are often reported together, so this avoids most duplicates
+      int last = lowTraceIds.size() - 1;
+      if (last < 0 || !lowTraceIds.get(last).equals(lowTraceId)) lowTraceIds.add(lowTraceId);
+      return new Ref(this, generation, offset, encoded.length);
+    }
+
+    synchronized void recycle(List<String> droppedTraces) {
+      generation++;
+      buffer.clear();
+      droppedTraces.addAll(lowTraceIds);
+      lowTraceIds.clear();
+    }
+
+    synchronized @Nullable byte[] read(int generation, int offset, int length) {
+      if (generation != this.generation) return null;
+      byte[] result = new byte[length];
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset);
+      view.get(result);
+      return result;
+    }
+  }
+
+  /** The location of an encoded span, which is all that is kept on the heap. */
+  static final class Ref {
+    final Segment segment;
+    final int generation, offset, length;
+
+    Ref(Segment segment, int generation, int offset, int length) {
+      this.segment = segment;
+      this.generation = generation;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /** Returns the encoded span, or null if its segment was dropped. */
+    @Nullable byte[] read() {
+      return segment.read(generation, offset, length);
+    }
+  }
+}
@@ -39,4 +39,16 @@ public class EncodingTest {
     assertThat(Encoding.JSON.listSizeInBytes(encoded))
       .isEqualTo(2 /* [] */ + 3 + 1 /* , */ + 4 + 1  /* , */ + 5);
   }
+
+  @Test public void emptyList_proto3() throws IOException {
+    List<byte[]> encoded = Arrays.asList();
+    assertThat(Encoding.PROTO3.listSizeInBytes(encoded))
+      .isEqualTo(0);
+  }
+
+  @Test public void multiItemList_proto3() throws IOException {
+    List<byte[]> encoded = Arrays.asList(new byte[3], new byte[4], new byte[5]);
+    assertThat(Encoding.PROTO3.listSizeInBytes(encoded))
+      .isEqualTo(3 + 4 + 5);
+  }
 }
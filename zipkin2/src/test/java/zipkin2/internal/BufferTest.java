@@ -68,6 +68,33 @@ public class BufferTest {
       .isEqualTo("123456789");
   }
 
+  @Test public void writeVarint() {
+    assertThat(new Buffer(1).writeVarint(1).toByteArray()).containsExactly(0x01);
+    assertThat(new Buffer(2).writeVarint(300).toByteArray()).containsExactly(0xac, 0x02);
+    assertThat(new Buffer(5).writeVarint(-1).toByteArray())
+      .containsExactly(0xff, 0xff, 0xff, 0xff, 0x0f);
+    assertThat(new Buffer(10).writeVarint(-1L).toByteArray())
+      .containsExactly(0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0x01);
+  }
+
+  @Test public void varintSizeInBytes() {
+    for (int v : new int[] {0, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1}) {
+      byte[] buf = new byte[5];
+      Buffer b = new Buffer(buf, 0).writeVarint(v);
+      assertThat(Buffer.varintSizeInBytes(v)).isEqualTo(b.pos);
+    }
+    for (long v : new long[] {0L, 1472470996199000L, Long.MAX_VALUE, -1L}) {
+      byte[] buf = new byte[10];
+      Buffer b = new Buffer(buf, 0).writeVarint(v);
+      assertThat(Buffer.varintSizeInBytes(v)).isEqualTo(b.pos);
+    }
+  }
+
+  @Test public void writeLongLe() {
+    assertThat(new Buffer(8).writeLongLe(0x0102030405060708L).toByteArray())
+      .containsExactly(0x08, 0x07, 0x06, 0x05, 0x04, 0x03, 0x02, 0x01);
+  }
+
   static String writeAscii(long v) {
     byte[] buffered = new Buffer(Buffer.asciiSizeInBytes(v)).writeAscii(v).toByteArray();
     return new String(buffered, UTF_8);
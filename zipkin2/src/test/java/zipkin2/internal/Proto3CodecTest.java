@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.UTF_8;
+
+public class Proto3CodecTest {
+  Span minimal = Span.newBuilder().traceId("1").id("2").name("a").build();
+
+  @Test public void write_matchesProtocolBuffersEncoding() {
+    assertThat(Proto3Codec.write(minimal)).containsExactly(
+      0x0a, 23, // ListOfSpans.spans, length
+      0x0a, 8, 0, 0, 0, 0, 0, 0, 0, 1, // traceId
+      0x1a, 8, 0, 0, 0, 0, 0, 0, 0, 2, // id
+      0x2a, 1, 'a' // name
+    );
+  }
+
+  @Test public void sizeInBytes() {
+    for (Span span : asList(minimal, CLIENT_SPAN, CLIENT_SPAN.toBuilder().shared(true).debug(true)
+      .traceId(CLIENT_SPAN.traceId().substring(16)).build())) {
+      assertThat(Proto3Codec.sizeInBytes(span))
+        .isEqualTo(Proto3Codec.write(span).length);
+    }
+  }
+
+  @Test public void roundTrip() {
+    assertThat(Proto3Codec.readOne(Proto3Codec.write(CLIENT_SPAN)))
+      .isEqualTo(CLIENT_SPAN);
+  }
+
+  @Test public void roundTrip_allFields() {
+    Span span = CLIENT_SPAN.toBuilder()
+      .kind(Span.Kind.CONSUMER)
+      .localEndpoint(Endpoint.newBuilder().serviceName("app").ip("2001:db8::c001").port(443).build())
+      .debug(true)
+      .shared(true)
+      .putTag("empty", "")
+      .addAnnotation(1472470996250000L, "caf\u00e9 \ud83d\ude01")
+      .build();
+
+    assertThat(Proto3Codec.readOne(Proto3Codec.write(span)))
+      .isEqualTo(span);
+  }
+
+  @Test public void listIsConcatenationOfSpans() {
+    byte[] one = Proto3Codec.write(minimal), two = Proto3Codec.write(CLIENT_SPAN);
+    byte[] list = Proto3Codec.writeList(asList(minimal, CLIENT_SPAN));
+
+    byte[] concatenated = Arrays.copyOf(one, one.length + two.length);
+    System.arraycopy(two, 0, concatenated, one.length, two.length);
+    assertThat(list).containsExactly(concatenated);
+    assertThat(Proto3Codec.readList(list)).containsExactly(minimal, CLIENT_SPAN);
+  }
+
+  @Test public void writeList_offset() {
+    byte[] out = new byte[2 + Proto3Codec.sizeInBytes(CLIENT_SPAN)];
+    assertThat(Proto3Codec.writeList(asList(CLIENT_SPAN), out, 2))
+      .isEqualTo(out.length - 2);
+    assertThat(Proto3Codec.readOne(Arrays.copyOfRange(out, 2, out.length)))
+      .isEqualTo(CLIENT_SPAN);
+  }
+
+  @Test public void emptyInput() {
+    List<Span> out = new ArrayList<>();
+    assertThat(Proto3Codec.readList(new byte[0], out)).isFalse();
+    assertThat(Proto3Codec.read(new byte[0], out)).isFalse();
+    assertThat(Proto3Codec.writeList(asList())).isEmpty();
+  }
+
+  /** Newer writers may add fields, which are skipped */
+  @Test public void skipsUnknownFields() {
+    byte[] span = Proto3Codec.write(minimal);
+    byte[] withUnknown = Arrays.copyOf(span, span.length + 4);
+    withUnknown[1] += 4; // span length
+    withUnknown[span.length] = (byte) (20 << 3); // varint field 20
+    withUnknown[span.length + 1] = 1;
+    withUnknown[span.length + 2] = (byte) (21 << 3 | 2); // length-delimited field 21
+    withUnknown[span.length + 3] = 0;
+
+    assertThat(Proto3Codec.readOne(withUnknown)).isEqualTo(minimal);
+  }
+
+  @Test public void truncated() {
+    byte[] span = Proto3Codec.write(CLIENT_SPAN);
+    try {
+      Proto3Codec.readList(Arrays.copyOf(span, span.length - 3));
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageStartingWith("Truncated")
+        .hasMessageEndingWith("reading List<Span> from proto3");
+    }
+  }
+
+  @Test public void malformed() {
+    try {
+      Proto3Codec.readList("[{\"traceId\":\"1\"}]".getBytes(UTF_8));
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageEndingWith("reading List<Span> from proto3");
+    }
+  }
+
+  @Test public void missingId() {
+    byte[] span = Proto3Codec.write(minimal);
+    span[12] = 0x7a; // rename id to an unknown field 15
+    try {
+      Proto3Codec.readOne(span);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("id").hasMessageEndingWith("reading Span from proto3");
+    }
+  }
+}
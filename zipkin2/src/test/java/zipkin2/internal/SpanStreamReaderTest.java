@@ -0,0 +1,178 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.UTF_8;
+
+public class SpanStreamReaderTest {
+  List<Span> spans = new ArrayList<>();
+
+  {
+    for (int i = 1; i <= 100; i++) {
+      spans.add(CLIENT_SPAN.toBuilder().id(Long.toHexString(i)).putTag("i", "}" + i).build());
+    }
+  }
+
+  @Test public void json_stream() throws IOException {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    List<Span> out = new ArrayList<>();
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeStream(new ByteArrayInputStream(message), out::add))
+      .isEqualTo(spans.size());
+    assertThat(out).isEqualTo(spans);
+  }
+
+  @Test public void json_directBuffer() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(message.length);
+    buffer.put(message).flip();
+    List<Span> out = new ArrayList<>();
+
+    SpanBytesDecoder.JSON_V2.decodeStream(buffer, out::add);
+    assertThat(out).isEqualTo(spans);
+    assertThat(buffer.hasRemaining()).isFalse();
+  }
+
+  @Test public void proto3_stream() throws IOException {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(spans);
+    List<Span> out = new ArrayList<>();
+
+    assertThat(SpanBytesDecoder.PROTO3.decodeStream(new ByteArrayInputStream(message), out::add))
+      .isEqualTo(spans.size());
+    assertThat(out).isEqualTo(spans);
+  }
+
+  @Test public void proto3_directBuffer() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(spans);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(message.length);
+    buffer.put(message).flip();
+    List<Span> out = new ArrayList<>();
+
+    SpanBytesDecoder.PROTO3.decodeStream(buffer, out::add);
+    assertThat(out).isEqualTo(spans);
+  }
+
+  /** The first span is decoded before the rest of the message is read */
+  @Test public void emitsSpansBeforeReadingTheWholeStream() throws IOException {
+    for (SpanBytesDecoder decoder : SpanBytesDecoder.values()) {
+      byte[] message = decoder == SpanBytesDecoder.PROTO3
+        ? SpanBytesEncoder.PROTO3.encodeList(spans)
+        : SpanBytesEncoder.JSON_V2.encodeList(spans);
+      ByteArrayInputStream stream = new ByteArrayInputStream(message);
+      int[] remainingAtFirstSpan = {-1};
+
+      decoder.decodeStream(stream, span -> {
+        if (remainingAtFirstSpan[0] == -1) remainingAtFirstSpan[0] = stream.available();
+      });
+
+      assertThat(remainingAtFirstSpan[0]).as(decoder.name()).isGreaterThan(0);
+    }
+  }
+
+  @Test public void spanLargerThanBuffers() throws IOException {
+    char[] name = new char[20000];
+    Arrays.fill(name, 'a');
+    Span span = CLIENT_SPAN.toBuilder().name(new String(name)).build();
+
+    List<Span> out = new ArrayList<>();
+    SpanBytesDecoder.JSON_V2.decodeStream(
+      new ByteArrayInputStream(SpanBytesEncoder.JSON_V2.encodeList(asList(span, span))), out::add);
+    SpanBytesDecoder.PROTO3.decodeStream(
+      new ByteArrayInputStream(SpanBytesEncoder.PROTO3.encodeList(asList(span, span))), out::add);
+
+    assertThat(out).containsExactly(span, span, span, span);
+  }
+
+  @Test public void empty() throws IOException {
+    for (String json : asList("", "[]", " [ ] ")) {
+      assertThat(SpanBytesDecoder.JSON_V2.decodeStream(
+        new ByteArrayInputStream(json.getBytes(UTF_8)), span -> {
+        })).isZero();
+    }
+    assertThat(SpanBytesDecoder.PROTO3.decodeStream(ByteBuffer.allocate(0), span -> {
+    })).isZero();
+  }
+
+  /** Gson reads what the byte reader can't, the same as for byte arrays */
+  @Test public void json_fallsBackToGson() throws IOException {
+    byte[] message = "[{\"traceId\":\"a\",\"id\":\"b\",\"timestamp\":\"1\"}]".getBytes(UTF_8);
+    List<Span> out = new ArrayList<>();
+
+    SpanBytesDecoder.JSON_V2.decodeStream(new ByteArrayInputStream(message), out::add);
+    assertThat(out).isEqualTo(SpanBytesDecoder.JSON_V2.decodeList(message));
+  }
+
+  @Test public void json_truncated() throws IOException {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    List<Span> out = new ArrayList<>();
+    try {
+      SpanBytesDecoder.JSON_V2.decodeStream(
+        new ByteArrayInputStream(Arrays.copyOf(message, message.length / 2)), out::add);
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Truncated reading List<Span> from json");
+    }
+    assertThat(out).isNotEmpty(); // spans before the error were emitted
+  }
+
+  @Test public void json_malformed() throws IOException {
+    try {
+      SpanBytesDecoder.JSON_V2.decodeStream(
+        new ByteArrayInputStream("hello".getBytes(UTF_8)), span -> {
+        });
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Malformed reading List<Span> from json");
+    }
+  }
+
+  @Test public void proto3_truncated() throws IOException {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(spans);
+    try {
+      SpanBytesDecoder.PROTO3.decodeStream(
+        new ByteArrayInputStream(Arrays.copyOf(message, message.length - 1)), span -> {
+        });
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Truncated reading List<Span> from proto3");
+    }
+  }
+
+  /** A corrupt length shouldn't allocate an array of that size before reading it */
+  @Test public void proto3_corruptLength() throws IOException {
+    byte[] message = {0x0a, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x0a};
+    try {
+      SpanBytesDecoder.PROTO3.decodeStream(new ByteArrayInputStream(message), span -> {
+      });
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Truncated reading List<Span> from proto3");
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.UTF_8;
+
+public class V2SpanBytesReaderTest {
+  Span localSpan = Span.newBuilder()
+    .traceId("216a2aea45d08fc9")
+    .id("1")
+    .name("encode")
+    .localEndpoint(Endpoint.newBuilder().serviceName("frontend").ip("::1").build())
+    .timestamp(1472470996199000L)
+    .duration(207L)
+    .debug(true)
+    .shared(true)
+    .build();
+
+  @Test public void readsEncodedSpans() {
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(asList(CLIENT_SPAN, localSpan));
+
+    assertThat(new V2SpanBytesReader(json).readSpans())
+      .containsExactly(CLIENT_SPAN, localSpan)
+      .isEqualTo(JsonCodec.readList(new V2SpanReader(), json));
+  }
+
+  @Test public void readsEscapesAndUnicode() {
+    Span span = CLIENT_SPAN.toBuilder()
+      .name("caf\u00e9 \ud83d\ude01")
+      .putTag("error", "\"quoted\"\t\\ and \u2028")
+      .build();
+    byte[] json = SpanBytesEncoder.JSON_V2.encode(span);
+
+    assertThat(new V2SpanBytesReader(json).readSpan())
+      .isEqualTo(span);
+  }
+
+  @Test public void readsUnicodeEscapes() {
+    byte[] json = ("{\"traceId\":\"a\",\"id\":\"b\",\"name\":\"caf\\u00E9 \\ud83d\\ude01\"}")
+      .getBytes(UTF_8);
+
+    assertThat(new V2SpanBytesReader(json).readSpan().name())
+      .isEqualTo("caf\u00e9 \ud83d\ude01");
+  }
+
+  @Test public void skipsWhitespaceNullsAndUnknownFields() {
+    byte[] json = ("[ {\n"
+      + "  \"traceId\" : \"a\",\n"
+      + "  \"id\" : \"b\",\n"
+      + "  \"parentId\" : null,\n"
+      + "  \"foo\" : {\"bar\": [1, -2.5e+3, true, false, null, \"\\\"\", {}]},\n"
+      + "  \"localEndpoint\" : {\"serviceName\": \"app\", \"ipv4\": null, \"baz\": 0},\n"
+      + "  \"annotations\" : [ {\"timestamp\": 1, \"value\": \"foo\", \"qux\": []} ]\n"
+      + "} ]").getBytes(UTF_8);
+
+    assertThat(new V2SpanBytesReader(json).readSpans())
+      .isEqualTo(JsonCodec.readList(new V2SpanReader(), json));
+  }
+
+  @Test public void emptyList() {
+    assertThat(V2SpanBytesReader.readList("[ ]".getBytes(UTF_8), new ArrayList<>()))
+      .isFalse();
+    assertThat(V2SpanBytesReader.readList(new byte[0]))
+      .isEmpty();
+  }
+
+  /** Gson reads input outside what zipkin libraries write, such as a quoted number. */
+  @Test public void fallsBackToGson() {
+    byte[] json = ("{\"traceId\":\"a\",\"id\":\"b\",\"timestamp\":\"1\",\"duration\":1.0}")
+      .getBytes(UTF_8);
+
+    try {
+      new V2SpanBytesReader(json).readSpan();
+      failBecauseExceptionWasNotThrown(IllegalStateException.class);
+    } catch (IllegalStateException e) {
+    }
+
+    assertThat(V2SpanBytesReader.readOne(json))
+      .isEqualTo(Span.newBuilder().traceId("a").id("b").timestamp(1L).duration(1L).build());
+  }
+
+  @Test public void fallsBackToGson_errorMessages() {
+    List<String> malformed = asList(
+      "[{\"traceId\":\"a\",\"id\":\"b\"},]",
+      "[{\"traceId\":\"a\",\"id\":\"b\"}",
+      "[{\"traceId\":\"a\",\"id\":\"B\"}]",
+      "[{\"traceId\":\"a\",\"id\":\"b\",\"timestamp\":01}]"
+    );
+    for (String json : malformed) {
+      byte[] bytes = json.getBytes(UTF_8);
+      String expected = null;
+      try {
+        JsonCodec.readList(new V2SpanReader(), bytes);
+      } catch (IllegalArgumentException e) {
+        expected = e.getMessage();
+      }
+      assertThat(expected).as(json).isNotNull();
+
+      try {
+        V2SpanBytesReader.readList(bytes);
+        failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).as(json).hasMessage(expected);
+      }
+    }
+  }
+}
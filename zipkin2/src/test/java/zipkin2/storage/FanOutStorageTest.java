@@ -0,0 +1,272 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.CheckResult;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+public class FanOutStorageTest {
+  InMemoryStorage primary = InMemoryStorage.newBuilder().build();
+  InMemoryStorage secondary = InMemoryStorage.newBuilder().build();
+  FanOutStorage storage;
+
+  @After public void close() throws IOException {
+    if (storage != null) storage.close();
+  }
+
+  @Test public void accept_writesToAll() throws Exception {
+    storage = FanOutStorage.newBuilder()
+      .primary("primary", primary)
+      .addSecondary("secondary", secondary)
+      .build();
+
+    storage.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+    storage.close(); // drains the secondary's queue
+
+    assertThat(primary.getTraces()).containsExactly(asList(CLIENT_SPAN));
+    assertThat(secondary.getTraces()).containsExactly(asList(CLIENT_SPAN));
+  }
+
+  @Test public void accept_slowSecondaryDoesntBlockPrimary() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    storage = FanOutStorage.newBuilder()
+      .primary("primary", primary)
+      .addSecondary("slow", new FakeStorage(release, null))
+      .queueSize(1)
+      .closeTimeout(0, TimeUnit.MILLISECONDS)
+      .build();
+
+    // first is in flight, second queued, third dropped
+    for (int i = 0; i < 3; i++) {
+      storage.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+    }
+
+    assertThat(primary.getTraces()).hasSize(1);
+    assertThat(storage.droppedMessages("slow")).isEqualTo(1);
+    release.countDown();
+  }
+
+  @Test public void accept_secondaryFailureIsIsolated() throws Exception {
+    storage = FanOutStorage.newBuilder()
+      .primary("primary", primary)
+      .addSecondary("broken", new FakeStorage(null, new IllegalStateException("broken")))
+      .build();
+
+    storage.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+    storage.close();
+
+    assertThat(primary.getTraces()).hasSize(1);
+    assertThat(storage.failedMessages("broken")).isEqualTo(1);
+  }
+
+  @Test public void accept_callsSpanConsumersOnDelegateThreads() throws Exception {
+    Thread caller = Thread.currentThread();
+    List<Thread> primaryThreads = new ArrayList<>();
+    storage = FanOutStorage.newBuilder()
+      .primary("primary", new ConsumerStorage(spans -> {
+        primaryThreads.add(Thread.currentThread());
+        return Call.create(null);
+      }))
+      .addSecondary("throws", new ConsumerStorage(spans -> {
+        throw new IllegalStateException("throws");
+      }))
+      .build();
+
+    storage.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+    storage.close();
+
+    assertThat(primaryThreads).hasSize(1).doesNotContain(caller);
+    assertThat(storage.failedMessages("throws")).isEqualTo(1);
+  }
+
+  @Test public void accept_primaryFailurePropagates() throws Exception {
+    storage = FanOutStorage.newBuilder()
+      .primary("broken", new FakeStorage(null, new IllegalStateException("broken")))
+      .addSecondary("secondary", secondary)
+      .build();
+
+    try {
+      storage.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+      failBecauseExceptionWasNotThrown(IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("broken");
+    }
+  }
+
+  @Test public void accept_primaryQueueFullRejects() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    storage = FanOutStorage.newBuilder()
+      .primary("slow", new FakeStorage(release, null))
+      .queueSize(1)
+      .closeTimeout(0, TimeUnit.MILLISECONDS)
+      .build();
+
+    CallbackRecorder first = new CallbackRecorder(), second = new CallbackRecorder();
+    storage.spanConsumer().accept(asList(CLIENT_SPAN)).enqueue(first);
+    storage.spanConsumer().accept(asList(CLIENT_SPAN)).enqueue(second);
+
+    try {
+      storage.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+      failBecauseExceptionWasNotThrown(RejectedExecutionException.class);
+    } catch (RejectedExecutionException e) {
+      assertThat(e).hasMessage("queue full: slow");
+    }
+    release.countDown();
+  }
+
+  @Test public void read_primaryOnly() throws Exception {
+    secondary.accept(asList(CLIENT_SPAN)).execute();
+    storage = FanOutStorage.newBuilder()
+      .primary("primary", primary)
+      .addSecondary("secondary", secondary)
+      .build();
+
+    assertThat(storage.spanStore().getTrace(CLIENT_SPAN.traceId()).execute()).isEmpty();
+  }
+
+  @Test public void read_fallsBackOnError() throws Exception {
+    secondary.accept(asList(CLIENT_SPAN)).execute();
+    storage = FanOutStorage.newBuilder()
+      .primary("broken", new FakeStorage(null, new IllegalStateException("broken")))
+      .addSecondary("secondary", secondary)
+      .readFallback("secondary")
+      .build();
+
+    assertThat(storage.spanStore().getTrace(CLIENT_SPAN.traceId()).execute())
+      .containsExactly(CLIENT_SPAN);
+
+    CallbackRecorder callback = new CallbackRecorder();
+    storage.spanStore().getServiceNames().enqueue(callback);
+    assertThat(callback.value).isEqualTo(asList("backend", "frontend"));
+  }
+
+  @Test public void check_isPrimary() {
+    storage = FanOutStorage.newBuilder()
+      .primary("primary", primary)
+      .addSecondary("broken", new FakeStorage(null, new IllegalStateException("broken")))
+      .build();
+
+    assertThat(storage.check()).isSameAs(CheckResult.OK);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void build_fallbackMustBeSecondary() {
+    FanOutStorage.newBuilder().primary("primary", primary).readFallback("secondary").build();
+  }
+
+  static final class CallbackRecorder implements zipkin2.Callback {
+    Object value;
+    Throwable error;
+
+    @Override public void onSuccess(Object value) {
+      this.value = value;
+    }
+
+    @Override public void onError(Throwable t) {
+      this.error = t;
+    }
+  }
+
+  static final class ConsumerStorage extends StorageComponent {
+    final SpanConsumer spanConsumer;
+
+    ConsumerStorage(SpanConsumer spanConsumer) {
+      this.spanConsumer = spanConsumer;
+    }
+
+    @Override public SpanStore spanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spanConsumer;
+    }
+  }
+
+  /** Writes block until released, then fail if there's an error. Reads fail if there's an error. */
+  static final class FakeStorage extends StorageComponent implements SpanConsumer, SpanStore {
+    final CountDownLatch release;
+    final RuntimeException error;
+
+    FakeStorage(CountDownLatch release, RuntimeException error) {
+      this.release = release;
+      this.error = error;
+    }
+
+    @Override public SpanStore spanStore() {
+      return this;
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return this;
+    }
+
+    @Override public Call<Void> accept(List<Span> spans) {
+      return call(null);
+    }
+
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
+      return call(null);
+    }
+
+    @Override public Call<List<Span>> getTrace(String traceId) {
+      return call(null);
+    }
+
+    @Override public Call<List<String>> getServiceNames() {
+      return call(null);
+    }
+
+    @Override public Call<List<String>> getSpanNames(String serviceName) {
+      return call(null);
+    }
+
+    @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+      return call(null);
+    }
+
+    <V> Call<V> call(V value) {
+      return Call.<V>create(value).map(v -> {
+        if (release != null) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (error != null) throw error;
+        return v;
+      });
+    }
+
+    @Override public CheckResult check() {
+      return error != null ? CheckResult.failed(error) : CheckResult.OK;
+    }
+  }
+}
@@ -14,8 +14,14 @@
 package zipkin2.storage;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.junit.Test;
@@ -23,6 +29,7 @@ import zipkin2.DependencyLink;
 import zipkin2.Endpoint;
 import zipkin2.Span;
 import zipkin2.TestObjects;
+import zipkin2.codec.SpanBytesEncoder;
 
 import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
@@ -94,6 +101,176 @@ public class InMemoryStorageTest {
     );
   }
 
+  /** Queries and eviction run while spans are accepted, without losing track of services */
+  @Test public void concurrentAcceptAndQuery() throws Exception {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(1000).build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < 3; thread++) {
+      int offset = thread * 10000;
+      futures.add(executor.submit(() -> {
+        for (int i = 1; i <= 2000; i++) {
+          String traceId = Integer.toHexString(offset + i);
+          Endpoint service = Endpoint.newBuilder().serviceName("service" + (i % 50)).build();
+          storage.accept(asList(
+            Span.newBuilder().traceId(traceId).id("1").name("get").localEndpoint(service)
+              .remoteEndpoint(TestObjects.BACKEND).timestamp((TODAY + i) * 1000L).build(),
+            Span.newBuilder().traceId(traceId).parentId("1").id("2").name("get")
+              .localEndpoint(TestObjects.BACKEND).timestamp((TODAY + i) * 1000L).build()
+          )).execute();
+        }
+        return null;
+      }));
+    }
+    futures.add(executor.submit(() -> {
+      for (int i = 0; i < 50; i++) {
+        storage.getTraces(requestBuilder().serviceName("backend").build()).execute();
+        storage.getDependencies(TODAY + TestObjects.DAY, TestObjects.DAY).execute();
+      }
+      return null;
+    }));
+    executor.shutdown();
+    for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+
+    List<List<Span>> traces = storage.getTraces();
+    int spanCount = traces.stream().mapToInt(List::size).sum();
+    assertThat(spanCount)
+      .isLessThanOrEqualTo(1000 + 2 * 3); // each thread can overshoot by its input while evicting
+
+    // every service indexed still has traces
+    for (String serviceName : storage.getServiceNames().execute()) {
+      assertThat(storage.getTraces(requestBuilder().serviceName(serviceName).build()).execute())
+        .isNotEmpty();
+    }
+  }
+
+  @Test public void getTraces_onlyReturnsTracesInLookback() throws IOException {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").build();
+    List<Span> spans = IntStream.rangeClosed(1, 5).mapToObj(i -> Span.newBuilder().name("get")
+      .traceId(Integer.toHexString(i)).id(Integer.toHexString(i))
+      .timestamp((TODAY + i * 1000L) * 1000L).localEndpoint(frontend).build()).collect(toList());
+    storage.accept(spans).execute();
+
+    // the window is [TODAY + 2000, TODAY + 4000] in millis
+    QueryRequest.Builder request = requestBuilder().endTs(TODAY + 4000L).lookback(2000L);
+    assertThat(storage.getTraces(request.build()).execute())
+      .containsExactly(asList(spans.get(3)), asList(spans.get(2)), asList(spans.get(1)));
+    assertThat(storage.getTraces(request.serviceName("frontend").build()).execute())
+      .containsExactly(asList(spans.get(3)), asList(spans.get(2)), asList(spans.get(1)));
+    assertThat(storage.getTraces(request.limit(2).build()).execute())
+      .containsExactly(asList(spans.get(3)), asList(spans.get(2)));
+  }
+
+  @Test public void evictionOnlyRemovesServicesOfEvictedTraces() throws IOException {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(2).build();
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").build();
+    Endpoint backend = Endpoint.newBuilder().serviceName("backend").build();
+    Endpoint db = Endpoint.newBuilder().serviceName("db").build();
+
+    storage.accept(asList(Span.newBuilder().traceId("1").id("1").name("get")
+      .localEndpoint(frontend).remoteEndpoint(db).timestamp(TODAY * 1000L).build())).execute();
+    storage.accept(asList(Span.newBuilder().traceId("2").id("2").name("post")
+      .localEndpoint(frontend).timestamp((TODAY + 1) * 1000L).build())).execute();
+    storage.accept(asList(Span.newBuilder().traceId("3").id("3").name("query")
+      .localEndpoint(backend).timestamp((TODAY + 2) * 1000L).build())).execute();
+
+    // the oldest trace was the only one with "db", but "frontend" is still in trace 2
+    assertThat(storage.getServiceNames().execute())
+      .containsExactly("backend", "frontend");
+    assertThat(storage.getSpanNames("db").execute()).isEmpty();
+    assertThat(storage.getTraces(requestBuilder().serviceName("frontend").build()).execute())
+      .hasSize(1);
+
+    assertThat(storage.evictionCount()).isEqualTo(1);
+    assertThat(storage.evictedTraceCount()).isEqualTo(1);
+    assertThat(storage.evictedSpanCount()).isEqualTo(1);
+    assertThat(storage.evictionNanos()).isPositive();
+  }
+
+  @Test public void maxBytes_evictsByEncodedSize() throws IOException {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").build();
+    List<Span> spans = IntStream.rangeClosed(1, 10).mapToObj(i -> {
+      Span.Builder builder = Span.newBuilder().name("get")
+        .traceId(Integer.toHexString(i)).id(Integer.toHexString(i))
+        .timestamp((TODAY + i) * 1000L).localEndpoint(frontend);
+      for (int tag = 0; tag < 100; tag++) builder.putTag("tag" + tag, "value" + tag);
+      return builder.build();
+    }).collect(toList());
+    int spanSize = SpanBytesEncoder.PROTO3.sizeInBytes(spans.get(0));
+
+    // room for a little over three spans, though the span count limit is much higher
+    storage = InMemoryStorage.newBuilder().maxBytes(spanSize * 3 + spanSize / 2).build();
+    for (Span span : spans) storage.accept(asList(span)).execute();
+
+    assertThat(storage.getTraces())
+      .containsExactlyInAnyOrder(asList(spans.get(9)), asList(spans.get(8)), asList(spans.get(7)));
+    assertThat(storage.getTrace(spans.get(9).traceId()).execute())
+      .containsExactly(spans.get(9));
+    assertThat(storage.evictedSpanCount()).isEqualTo(7);
+  }
+
+  @Test public void offHeap_dropsOldestSegmentWithItsTraces() throws IOException {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").build();
+    List<Span> spans = IntStream.rangeClosed(1, 40).mapToObj(i -> Span.newBuilder().name("get")
+      .traceId(Integer.toHexString(i)).id(Integer.toHexString(i))
+      .timestamp((TODAY + i) * 1000L).localEndpoint(frontend).build()).collect(toList());
+    int spanSize = SpanBytesEncoder.PROTO3.sizeInBytes(spans.get(0));
+
+    // each segment holds two spans
+    storage = InMemoryStorage.newBuilder()
+      .maxBytes(spanSize * 2 * InMemoryStorage.OFF_HEAP_SEGMENTS).offHeap(true).build();
+    for (Span span : spans) storage.accept(asList(span)).execute();
+
+    // when the 17th segment was needed, the first was dropped, and so on
+    assertThat(storage.getTraces()).hasSize(32);
+    assertThat(storage.getTrace(spans.get(7).traceId()).execute()).isEmpty();
+    assertThat(storage.getTrace(spans.get(8).traceId()).execute())
+      .containsExactly(spans.get(8));
+    assertThat(storage.evictionCount()).isEqualTo(4);
+    assertThat(storage.evictedSpanCount()).isEqualTo(8);
+  }
+
+  @Test public void offHeap_doesntIndexLateSpanOfTraceDroppedByItsWrite() throws IOException {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").build();
+    List<Span> spans = IntStream.rangeClosed(1, 32).mapToObj(i -> Span.newBuilder().name("get")
+      .traceId(Integer.toHexString(i)).id(Integer.toHexString(i))
+      .timestamp((TODAY + i) * 1000L).localEndpoint(frontend).build()).collect(toList());
+    int spanSize = SpanBytesEncoder.PROTO3.sizeInBytes(spans.get(0));
+    storage = InMemoryStorage.newBuilder()
+      .maxBytes(spanSize * 2 * InMemoryStorage.OFF_HEAP_SEGMENTS).offHeap(true).build();
+    for (Span span : spans) storage.accept(asList(span)).execute();
+
+    // all segments are full, so writing this drops the first, which holds the rest of its trace
+    Span late = spans.get(0).toBuilder().id("21").build();
+    storage.accept(asList(late)).execute();
+
+    assertThat(storage.getTrace(late.traceId()).execute()).isEmpty();
+    assertThat(storage.acceptedSpanCount.get()).isEqualTo(33);
+    assertThat(storage.evictedSpanCount()).isEqualTo(3);
+  }
+
+  @Test public void offHeap_dropsSpansLargerThanSegment() throws IOException {
+    Span small = Span.newBuilder().traceId("1").id("1").name("get")
+      .timestamp(TODAY * 1000L).build();
+    int spanSize = SpanBytesEncoder.PROTO3.sizeInBytes(small);
+    storage = InMemoryStorage.newBuilder()
+      .maxBytes(spanSize * 2 * InMemoryStorage.OFF_HEAP_SEGMENTS).offHeap(true).build();
+
+    char[] longName = new char[spanSize * 3];
+    Arrays.fill(longName, 'a');
+    Span large = small.toBuilder().id("2").name(new String(longName)).build();
+    storage.accept(asList(small, large)).execute();
+
+    assertThat(storage.getTrace(small.traceId()).execute()).containsExactly(small);
+    assertThat(storage.oversizedSpanCount()).isEqualTo(1);
+    assertThat(storage.storedBytes.get()).isZero(); // nothing fell back to the heap
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void offHeap_requiresMaxBytes() {
+    InMemoryStorage.newBuilder().offHeap(true).build();
+  }
+
   static QueryRequest.Builder requestBuilder() {
     return QueryRequest.newBuilder().endTs(TODAY + TestObjects.DAY).lookback(
       TestObjects.DAY * 2).limit(100);
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanSegmentsTest {
+  // two segments of 10 bytes
+  SpanSegments segments = new SpanSegments(20, 2);
+  List<String> droppedTraces = new ArrayList<>();
+
+  @Test public void write_readsBack() {
+    SpanSegments.Ref ref = segments.write("a", new byte[] {1, 2, 3}, droppedTraces);
+    SpanSegments.Ref ref2 = segments.write("b", new byte[] {4, 5}, droppedTraces);
+
+    assertThat(ref.read()).containsExactly(1, 2, 3);
+    assertThat(ref2.read()).containsExactly(4, 5);
+    assertThat(droppedTraces).isEmpty();
+  }
+
+  @Test public void write_nullWhenLargerThanSegment() {
+    assertThat(segments.write("a", new byte[11], droppedTraces))
+      .isNull();
+  }
+
+  @Test public void write_dropsOldestSegmentWhenFull() {
+    SpanSegments.Ref first = segments.write("a", new byte[6], droppedTraces);
+    segments.write("b", new byte[4], droppedTraces);
+    SpanSegments.Ref second = segments.write("c", new byte[6], droppedTraces); // next segment
+    assertThat(droppedTraces).isEmpty();
+
+    SpanSegments.Ref third = segments.write("d", new byte[] {7, 8, 9, 10, 11}, droppedTraces);
+
+    assertThat(droppedTraces).containsExactly("a", "b");
+    assertThat(first.read()).isNull();
+    assertThat(second.read()).hasSize(6);
+    assertThat(third.read()).containsExactly(7, 8, 9, 10, 11);
+  }
+
+  @Test public void write_remembersEachTraceOncePerRun() {
+    segments.write("a", new byte[2], droppedTraces);
+    segments.write("a", new byte[2], droppedTraces);
+    segments.write("b", new byte[2], droppedTraces);
+    segments.write("a", new byte[2], droppedTraces);
+
+    assertThat(segments.ring.peekLast().lowTraceIds)
+      .containsExactly("a", "b", "a");
+  }
+
+  @Test public void clear_invalidatesAndReusesSegments() {
+    SpanSegments.Ref ref = segments.write("a", new byte[] {1}, droppedTraces);
+    SpanSegments.Segment segment = ref.segment;
+
+    segments.clear();
+
+    assertThat(ref.read()).isNull();
+    assertThat(segments.write("b", new byte[] {2}, droppedTraces).segment)
+      .isSameAs(segment);
+    assertThat(droppedTraces).isEmpty();
+  }
+}